@@ -0,0 +1,256 @@
+package mpicbg.imglib.algorithm.fft.custom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the normalized cross correlation of two images for a number of candidate shifts.
+ * This is used by {@link PhaseCorrelation} to verify the phase correlation peaks.
+ * The images are copied once into primitive arrays (the first dimension varies fastest), and each candidate shift is evaluated
+ * in two passes over the overlapping rows: the first one computes the averages, and the second one accumulates the centered sums of squares and products
+ * in the same way as the original implementation.
+ * The candidates are evaluated by a pool of threads that is shared by all instances within the JVM instead of spawning new threads for every pair.
+ *
+ * @author Igor Pisarev
+ */
+public class CrossCorrelationVerifier
+{
+	private interface RowConsumer
+	{
+		void accept( int index1, int index2 );
+	}
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool( runnable ->
+		{
+			final Thread thread = new Thread( runnable, "cross-correlation-verifier" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+
+	private final float[] data1, data2;
+	private final int[] dimensions1, dimensions2;
+	private final int[] steps1, steps2;
+	private final int numDimensions;
+
+	/**
+	 * @param data1 pixels of the first image (the first dimension varies fastest)
+	 * @param dimensions1 dimensions of the first image
+	 * @param data2 pixels of the second image (the first dimension varies fastest)
+	 * @param dimensions2 dimensions of the second image
+	 */
+	public CrossCorrelationVerifier( final float[] data1, final int[] dimensions1, final float[] data2, final int[] dimensions2 )
+	{
+		this.data1 = data1;
+		this.data2 = data2;
+		this.dimensions1 = dimensions1.clone();
+		this.dimensions2 = dimensions2.clone();
+		steps1 = getSteps( dimensions1 );
+		steps2 = getSteps( dimensions2 );
+		numDimensions = dimensions1.length;
+	}
+
+	/**
+	 * Evaluates all candidate shifts using up to {@code numThreads} threads of the shared pool.
+	 *
+	 * @param shifts candidate shifts of the second image relative to the first image
+	 * @param minOverlapPx minimum required overlap in each dimension
+	 * @param numPixels is filled with the number of overlapping pixels for each candidate (0 if the overlap is too small)
+	 * @return cross correlation coefficients for the candidates
+	 */
+	public double[] testCrossCorrelation( final List< int[] > shifts, final int[] minOverlapPx, final long[] numPixels, final int numThreads )
+	{
+		final double[] correlations = new double[ shifts.size() ];
+		final AtomicInteger nextCandidate = new AtomicInteger();
+		final Runnable task = () ->
+			{
+				final long[] candidateNumPixels = new long[ 1 ];
+				for ( int i = nextCandidate.getAndIncrement(); i < shifts.size(); i = nextCandidate.getAndIncrement() )
+				{
+					correlations[ i ] = testCrossCorrelation( shifts.get( i ), minOverlapPx, candidateNumPixels );
+					numPixels[ i ] = candidateNumPixels[ 0 ];
+				}
+			};
+
+		// the calling thread takes part in the computation, so no additional threads are needed for a single-threaded run
+		final int numTasks = Math.min( Math.max( numThreads, 1 ), shifts.size() );
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( int t = 1; t < numTasks; ++t )
+			futures.add( executor.submit( task ) );
+		task.run();
+
+		try
+		{
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+
+		return correlations;
+	}
+
+	/**
+	 * Computes the cross correlation coefficient for a single candidate shift.
+	 * The overlap is determined in the same way as in {@link PhaseCorrelation#testCrossCorrelation(int[], mpicbg.imglib.image.Image, mpicbg.imglib.image.Image, int[], long[])}.
+	 *
+	 * @param numPixels if not null, the first element is set to the number of overlapping pixels (0 if the overlap is too small)
+	 */
+	public double testCrossCorrelation( final int[] shift, final int[] minOverlapPx, final long[] numPixels )
+	{
+		final int[] overlapSize = new int[ numDimensions ];
+		final int[] offsetImage1 = new int[ numDimensions ];
+		final int[] offsetImage2 = new int[ numDimensions ];
+
+		long numPx = 1;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			if ( shift[ d ] >= 0 )
+			{
+				// they are not overlapping ( this might happen due to fft zeropadding and extension
+				if ( shift[ d ] >= dimensions1[ d ] )
+					return setNumPixels( numPixels, 0 );
+
+				offsetImage1[ d ] = shift[ d ];
+				offsetImage2[ d ] = 0;
+				overlapSize[ d ] = Math.min( dimensions1[ d ] - shift[ d ], dimensions2[ d ] );
+			}
+			else
+			{
+				// they are not overlapping ( this might happen due to fft zeropadding and extension
+				if ( shift[ d ] >= dimensions2[ d ] )
+					return setNumPixels( numPixels, 0 );
+
+				offsetImage1[ d ] = 0;
+				offsetImage2[ d ] = -shift[ d ];
+				overlapSize[ d ] = Math.min( dimensions2[ d ] + shift[ d ], dimensions1[ d ] );
+			}
+
+			numPx *= overlapSize[ d ];
+
+			if ( overlapSize[ d ] < minOverlapPx[ d ] )
+				return setNumPixels( numPixels, 0 );
+		}
+
+		setNumPixels( numPixels, numPx );
+
+		int startIndex1 = 0, startIndex2 = 0;
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			startIndex1 += offsetImage1[ d ] * steps1[ d ];
+			startIndex2 += offsetImage2[ d ] * steps2[ d ];
+		}
+		final int rowLength = overlapSize[ 0 ];
+
+		// first pass: compute the averages
+		final double[] sums = new double[ 2 ];
+		forEachOverlapRow( overlapSize, startIndex1, startIndex2, ( index1, index2 ) ->
+			{
+				double rowSum1 = 0, rowSum2 = 0;
+				for ( int x = 0; x < rowLength; ++x )
+				{
+					rowSum1 += data1[ index1 + x ];
+					rowSum2 += data2[ index2 + x ];
+				}
+				sums[ 0 ] += rowSum1;
+				sums[ 1 ] += rowSum2;
+			} );
+
+		final double avg1 = sums[ 0 ] / numPx;
+		final double avg2 = sums[ 1 ] / numPx;
+
+		// second pass: accumulate the centered sums, which do not lose precision when the variance is small compared to the average
+		final double[] centeredSums = new double[ 3 ];
+		forEachOverlapRow( overlapSize, startIndex1, startIndex2, ( index1, index2 ) ->
+			{
+				double rowVar1 = 0, rowVar2 = 0, rowCoVar = 0;
+				for ( int x = 0; x < rowLength; ++x )
+				{
+					final double dist1 = data1[ index1 + x ] - avg1;
+					final double dist2 = data2[ index2 + x ] - avg2;
+					rowCoVar += dist1 * dist2;
+					rowVar1 += dist1 * dist1;
+					rowVar2 += dist2 * dist2;
+				}
+				centeredSums[ 0 ] += rowVar1;
+				centeredSums[ 1 ] += rowVar2;
+				centeredSums[ 2 ] += rowCoVar;
+			} );
+
+		final double var1 = centeredSums[ 0 ] / numPx;
+		final double var2 = centeredSums[ 1 ] / numPx;
+		final double coVar = centeredSums[ 2 ] / numPx;
+
+		final double stDev1 = Math.sqrt( var1 );
+		final double stDev2 = Math.sqrt( var2 );
+
+		// all pixels had the same color....
+		if ( stDev1 == 0 || stDev2 == 0 )
+		{
+			if ( stDev1 == stDev2 && avg1 == avg2 )
+				return 1;
+			else
+				return 0;
+		}
+
+		return coVar / ( stDev1 * stDev2 );
+	}
+
+	/**
+	 * Calls the consumer with the start indices of each row of the overlap in both images.
+	 */
+	private void forEachOverlapRow( final int[] overlapSize, final int startIndex1, final int startIndex2, final RowConsumer consumer )
+	{
+		int index1 = startIndex1, index2 = startIndex2;
+		final int[] rowPosition = new int[ numDimensions ];
+		while ( true )
+		{
+			consumer.accept( index1, index2 );
+
+			// move to the next row of the overlap
+			int d = 1;
+			for ( ; d < numDimensions; ++d )
+			{
+				if ( ++rowPosition[ d ] < overlapSize[ d ] )
+				{
+					index1 += steps1[ d ];
+					index2 += steps2[ d ];
+					break;
+				}
+				rowPosition[ d ] = 0;
+				index1 -= ( overlapSize[ d ] - 1 ) * steps1[ d ];
+				index2 -= ( overlapSize[ d ] - 1 ) * steps2[ d ];
+			}
+			if ( d == numDimensions )
+				break;
+		}
+	}
+
+	private static double setNumPixels( final long[] numPixels, final long value )
+	{
+		if ( numPixels != null && numPixels.length > 0 )
+			numPixels[ 0 ] = value;
+		return 0;
+	}
+
+	private static int[] getSteps( final int[] dimensions )
+	{
+		final int[] steps = new int[ dimensions.length ];
+		steps[ 0 ] = 1;
+		for ( int d = 1; d < dimensions.length; ++d )
+			steps[ d ] = steps[ d - 1 ] * dimensions[ d - 1 ];
+		return steps;
+	}
+}
@@ -0,0 +1,51 @@
+package mpicbg.imglib.algorithm.fft.custom;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Per-JVM cache of the padded image sizes used by {@link PhaseCorrelation}.
+ * Both images are extended to the same padded size, so that the sizes of their Fourier transforms match and are fast to compute.
+ * Resolving the padded size requires repeatedly trying candidate sizes, while neighboring pairs of a regular tile grid almost always have the same overlap size,
+ * so the resolved sizes are reused across the pairs processed by the same executor.
+ *
+ * @author Igor Pisarev
+ */
+public class FFTSizeCache
+{
+	private static final FFTSizeCache instance = new FFTSizeCache();
+
+	public static FFTSizeCache getInstance()
+	{
+		return instance;
+	}
+
+	private final ConcurrentHashMap< String, int[] > extendedSizes = new ConcurrentHashMap<>();
+
+	private FFTSizeCache()
+	{
+	}
+
+	/**
+	 * @param maxDim maximum dimensions of the two input images
+	 * @param resolver computes the extended image size for the given dimensions if it is not cached yet
+	 * @return extended image size that should be passed to both Fourier transforms
+	 */
+	public int[] getExtendedOriginalImageSize( final int[] maxDim, final Function< int[], int[] > resolver )
+	{
+		final String key = Arrays.toString( maxDim );
+		final int[] cachedExtendedSize = extendedSizes.get( key );
+		if ( cachedExtendedSize != null )
+			return cachedExtendedSize.clone();
+
+		final int[] extendedSize = resolver.apply( maxDim.clone() );
+		extendedSizes.putIfAbsent( key, extendedSize.clone() );
+		return extendedSize;
+	}
+
+	public void clear()
+	{
+		extendedSizes.clear();
+	}
+}
@@ -38,6 +38,7 @@ import mpicbg.imglib.algorithm.fft.FourierTransform.Rearrangement;
 import mpicbg.imglib.algorithm.fft.InverseFourierTransform;
 import mpicbg.imglib.cursor.Cursor;
 import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.cursor.LocalizableCursor;
 import mpicbg.imglib.cursor.special.LocalNeighborhoodCursor;
 import mpicbg.imglib.cursor.special.RegionOfInterestCursor;
 import mpicbg.imglib.custom.OffsetConverter;
@@ -133,9 +134,6 @@ public class PhaseCorrelation<T extends RealType<T>, S extends RealType<S>> impl
 	@Override
 	public boolean process()
 	{
-		// get the maximal dimensions of both images
-		final int[] maxDim = getMaxDim( image1, image2 );
-
 		// compute fourier transforms
 		final FourierTransform<T, ComplexFloatType> fft1 = new FourierTransform<>( image1, new ComplexFloatType() );
 		final FourierTransform<S, ComplexFloatType> fft2 = new FourierTransform<>( image2, new ComplexFloatType() );
@@ -146,28 +144,10 @@ public class PhaseCorrelation<T extends RealType<T>, S extends RealType<S>> impl
 		fft1.setRearrangement( Rearrangement.UNCHANGED );
 		fft2.setRearrangement( Rearrangement.UNCHANGED );
 
-		boolean sizeFound = false;
-
-		// check if the size was enough ( there is a minimum extension )
-		do
-		{
-			sizeFound = true;
-
-			fft1.setExtendedOriginalImageSize( maxDim );
-			fft2.setExtendedOriginalImageSize( maxDim );
-
-			for ( int d = 0; d < numDimensions; ++d )
-			{
-				final int diff = Math.abs( fft1.getExtendedSize()[ d ] - fft2.getExtendedSize()[ d ] );
-
-				if ( diff > 0 )
-				{
-					maxDim[ d ] += diff;
-					sizeFound = false;
-				}
-			}
-		}
-		while( !sizeFound );
+		// get the maximal dimensions of both images and the size they need to be extended to (the same for all pairs with the same dimensions)
+		final int[] maxDim = FFTSizeCache.getInstance().getExtendedOriginalImageSize( getMaxDim( image1, image2 ), dim -> resolveExtendedSize( fft1, fft2, dim ) );
+		fft1.setExtendedOriginalImageSize( maxDim );
+		fft2.setExtendedOriginalImageSize( maxDim );
 
 		if ( !fft1.checkInput() )
 		{
@@ -249,6 +229,37 @@ public class PhaseCorrelation<T extends RealType<T>, S extends RealType<S>> impl
 		return true;
 	}
 
+	/**
+	 * Increases the given size until both Fourier transforms are extended to the same size (there is a minimum extension).
+	 */
+	protected int[] resolveExtendedSize( final FourierTransform<T, ComplexFloatType> fft1, final FourierTransform<S, ComplexFloatType> fft2, final int[] maxDim )
+	{
+		boolean sizeFound = false;
+
+		// check if the size was enough ( there is a minimum extension )
+		do
+		{
+			sizeFound = true;
+
+			fft1.setExtendedOriginalImageSize( maxDim );
+			fft2.setExtendedOriginalImageSize( maxDim );
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				final int diff = Math.abs( fft1.getExtendedSize()[ d ] - fft2.getExtendedSize()[ d ] );
+
+				if ( diff > 0 )
+				{
+					maxDim[ d ] += diff;
+					sizeFound = false;
+				}
+			}
+		}
+		while( !sizeFound );
+
+		return maxDim;
+	}
+
 	protected void verifyWithCrossCorrelation( final ArrayList<PhaseCorrelationPeak> peakList, final int[] dimInvPCM, final Image<T> image1, final Image<S> image2 )
 	{
 		final boolean[][] coordinates = Util.getRecursiveCoordinates( numDimensions );
@@ -296,35 +307,23 @@ public class PhaseCorrelation<T extends RealType<T>, S extends RealType<S>> impl
 		//
 		// test them multithreaded
 		//
-		final AtomicInteger ai = new AtomicInteger(0);
-		final Thread[] threads = SimpleMultiThreading.newThreads( getNumThreads() );
-		final int numThreads = threads.length;
-
-		for (int ithread = 0; ithread < threads.length; ++ithread)
-			threads[ithread] = new Thread(new Runnable()
-			{
-				@Override
-				public void run()
-				{
-					final int myNumber = ai.getAndIncrement();
-
-					for ( int i = 0; i < newPeakList.size(); ++i )
-						if ( i % numThreads == myNumber )
-						{
-							final PhaseCorrelationPeak peak = newPeakList.get( i );
-							final long[] numPixels = new long[ 1 ];
-
-							peak.setCrossCorrelationPeak( (float)testCrossCorrelation( peak.getPosition(), image1, image2, minOverlapPx, numPixels ) );
-							peak.setNumPixels( numPixels[ 0 ] );
+		final CrossCorrelationVerifier verifier = new CrossCorrelationVerifier( toFloatArray( image1 ), image1.getDimensions(), toFloatArray( image2 ), image2.getDimensions() );
+		final ArrayList<int[]> shifts = new ArrayList<>();
+		for ( final PhaseCorrelationPeak peak : newPeakList )
+			shifts.add( peak.getPosition() );
 
-							// sort by cross correlation peak
-							peak.setSortPhaseCorrelation( false );
-						}
+		final long[] numPixels = new long[ shifts.size() ];
+		final double[] crossCorrelations = verifier.testCrossCorrelation( shifts, minOverlapPx, numPixels, getNumThreads() );
 
-				}
-			});
+		for ( int i = 0; i < newPeakList.size(); ++i )
+		{
+			final PhaseCorrelationPeak peak = newPeakList.get( i );
+			peak.setCrossCorrelationPeak( (float)crossCorrelations[ i ] );
+			peak.setNumPixels( numPixels[ i ] );
 
-		SimpleMultiThreading.startAndJoin( threads );
+			// sort by cross correlation peak
+			peak.setSortPhaseCorrelation( false );
+		}
 
 		// update old list and sort
 		peakList.clear();
@@ -332,6 +331,32 @@ public class PhaseCorrelation<T extends RealType<T>, S extends RealType<S>> impl
 		Collections.sort( peakList );
 	}
 
+	/**
+	 * Copies the pixels of the image into a flat array where the first dimension varies fastest.
+	 */
+	protected static <R extends RealType<R>> float[] toFloatArray( final Image<R> image )
+	{
+		final int[] dimensions = image.getDimensions();
+		final float[] data = new float[ image.getNumPixels() ];
+		final int[] position = new int[ dimensions.length ];
+		final LocalizableCursor<R> cursor = image.createLocalizableCursor();
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.getPosition( position );
+
+			int index = position[ dimensions.length - 1 ];
+			for ( int d = dimensions.length - 2; d >= 0; --d )
+				index = index * dimensions[ d ] + position[ d ];
+
+			data[ index ] = cursor.getType().getRealFloat();
+		}
+
+		cursor.close();
+		return data;
+	}
+
 	public static <T extends RealType<T>, S extends RealType<S>> double testCrossCorrelation( final int[] shift, final Image<T> image1, final Image<S> image2 )
 	{
 		return testCrossCorrelation( shift, image1, image2, 5 );
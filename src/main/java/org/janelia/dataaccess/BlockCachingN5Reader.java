@@ -0,0 +1,83 @@
+package org.janelia.dataaccess;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Wraps an {@link N5Reader} and serves the block requests through the given {@link N5BlockCache}.
+ * All other requests are passed directly to the wrapped reader.
+ *
+ * @author Igor Pisarev
+ */
+public class BlockCachingN5Reader implements N5Reader
+{
+	private final N5Reader n5;
+	private final String basePath;
+	private final N5BlockCache cache;
+	private final N5BlockCache.Stats stats;
+
+	public BlockCachingN5Reader( final N5Reader n5, final String basePath, final N5BlockCache cache, final N5BlockCache.Stats stats )
+	{
+		this.n5 = n5;
+		this.basePath = basePath;
+		this.cache = cache;
+		this.stats = stats;
+	}
+
+	@Override
+	public DataBlock< ? > readBlock( final String pathName, final DatasetAttributes datasetAttributes, final long[] gridPosition ) throws IOException
+	{
+		return cache.getOrLoad(
+				N5BlockCache.getBlockKey( basePath, pathName, gridPosition ),
+				() -> n5.readBlock( pathName, datasetAttributes, gridPosition ),
+				stats
+			);
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Class< T > clazz ) throws IOException
+	{
+		return n5.getAttribute( pathName, key, clazz );
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Type type ) throws IOException
+	{
+		return n5.getAttribute( pathName, key, type );
+	}
+
+	@Override
+	public DatasetAttributes getDatasetAttributes( final String pathName ) throws IOException
+	{
+		return n5.getDatasetAttributes( pathName );
+	}
+
+	@Override
+	public boolean exists( final String pathName )
+	{
+		return n5.exists( pathName );
+	}
+
+	@Override
+	public boolean datasetExists( final String pathName ) throws IOException
+	{
+		return n5.datasetExists( pathName );
+	}
+
+	@Override
+	public String[] list( final String pathName ) throws IOException
+	{
+		return n5.list( pathName );
+	}
+
+	@Override
+	public Map< String, Class< ? > > listAttributes( final String pathName ) throws IOException
+	{
+		return n5.listAttributes( pathName );
+	}
+}
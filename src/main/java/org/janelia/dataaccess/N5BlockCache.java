@@ -0,0 +1,239 @@
+package org.janelia.dataaccess;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
+import org.janelia.saalfeldlab.n5.DataBlock;
+
+/**
+ * Executor-wide (one per JVM) LRU cache of decoded N5 blocks that is bounded by the total size of the cached data in bytes.
+ * The blocks are identified by the N5 root, the dataset path, and the grid position of the block.
+ * <p>
+ * The cache is opt-in: it is only used by the threads that have bound a {@link Stats} object (see {@link #bindStats(Stats)}),
+ * all other readers access the storage directly. The size of the cache is defined by the stats of the first task that uses it
+ * on the executor and stays the same for the lifetime of the executor.
+ * Hits, misses, and evictions are reported through Spark accumulators of the {@link Stats} object bound to the calling task.
+ *
+ * @author Igor Pisarev
+ */
+public class N5BlockCache
+{
+	/**
+	 * Cache statistics collected for a single Spark stage.
+	 * Also defines the cache size that is used if the cache has not been created on the executor yet.
+	 */
+	public static class Stats implements Serializable
+	{
+		private static final long serialVersionUID = -5403519526218233812L;
+
+		private final LongAccumulator hits, misses, evictions;
+		private final long maxBytes;
+
+		private Stats( final LongAccumulator hits, final LongAccumulator misses, final LongAccumulator evictions, final long maxBytes )
+		{
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.maxBytes = maxBytes;
+		}
+
+		/**
+		 * Registers named accumulators for the given stage.
+		 *
+		 * @param maxBytes requested cache size in bytes, 0 to disable the cache, or a negative value to use the default cache size
+		 */
+		public static Stats create( final JavaSparkContext sparkContext, final String stageName, final long maxBytes )
+		{
+			return new Stats(
+					sparkContext.sc().longAccumulator( "N5 block cache hits (" + stageName + ")" ),
+					sparkContext.sc().longAccumulator( "N5 block cache misses (" + stageName + ")" ),
+					sparkContext.sc().longAccumulator( "N5 block cache evictions (" + stageName + ")" ),
+					maxBytes
+				);
+		}
+
+		public long getHits() { return hits.value(); }
+		public long getMisses() { return misses.value(); }
+		public long getEvictions() { return evictions.value(); }
+
+		@Override
+		public String toString()
+		{
+			final long requests = getHits() + getMisses();
+			return String.format( "hits=%d, misses=%d, evictions=%d, hit rate=%.2f%%", getHits(), getMisses(), getEvictions(), requests > 0 ? getHits() * 100.0 / requests : 0. );
+		}
+	}
+
+	/**
+	 * Loads a block from the storage when it is not available in the cache.
+	 */
+	@FunctionalInterface
+	public static interface BlockLoader
+	{
+		DataBlock< ? > load() throws IOException;
+	}
+
+	private static final long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+	private static N5BlockCache instance;
+
+	private static final ThreadLocal< Stats > boundStats = new ThreadLocal<>();
+
+	/**
+	 * @return the cache to be used by the current thread, or null if the thread has not enabled the cache
+	 */
+	public static N5BlockCache getBoundInstance()
+	{
+		final Stats stats = boundStats.get();
+		if ( stats == null || stats.maxBytes == 0 )
+			return null;
+		return getInstance( stats.maxBytes );
+	}
+
+	/**
+	 * Creates the cache when it is requested for the first time on this executor, the requested size is ignored afterwards.
+	 */
+	private static synchronized N5BlockCache getInstance( final long requestedMaxBytes )
+	{
+		if ( instance == null )
+			instance = new N5BlockCache( requestedMaxBytes >= 0 ? requestedMaxBytes : DEFAULT_MAX_BYTES );
+		return instance;
+	}
+
+	/**
+	 * Enables the cache for the current thread and binds the given stats to it, so the blocks requested by this thread are accounted in these stats.
+	 */
+	public static void bindStats( final Stats stats )
+	{
+		boundStats.set( stats );
+	}
+
+	public static void unbindStats()
+	{
+		boundStats.remove();
+	}
+
+	public static Stats getBoundStats()
+	{
+		return boundStats.get();
+	}
+
+	public static String getBlockKey( final String basePath, final String datasetPath, final long[] gridPosition )
+	{
+		return PathResolver.get( basePath, datasetPath ) + Arrays.toString( gridPosition );
+	}
+
+	private final LinkedHashMap< String, DataBlock< ? > > blocks = new LinkedHashMap<>( 16, 0.75f, true );
+	private final long maxBytes;
+	private long cachedBytes;
+
+	N5BlockCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public synchronized long getCachedBytes()
+	{
+		return cachedBytes;
+	}
+
+	public synchronized int getNumCachedBlocks()
+	{
+		return blocks.size();
+	}
+
+	/**
+	 * @return the cached block, or null if it is not cached
+	 */
+	public DataBlock< ? > get( final String key, final Stats stats )
+	{
+		final DataBlock< ? > block;
+		synchronized ( this )
+		{
+			block = blocks.get( key );
+		}
+		if ( stats != null )
+			( block != null ? stats.hits : stats.misses ).add( 1 );
+		return block;
+	}
+
+	public void put( final String key, final DataBlock< ? > block, final Stats stats )
+	{
+		if ( block == null )
+			return;
+
+		final long blockBytes = getSizeInBytes( block );
+		if ( maxBytes == 0 || blockBytes > maxBytes )
+			return;
+
+		synchronized ( this )
+		{
+
+			final DataBlock< ? > replacedBlock = blocks.put( key, block );
+			if ( replacedBlock != null )
+				cachedBytes -= getSizeInBytes( replacedBlock );
+			cachedBytes += blockBytes;
+			evict( stats );
+		}
+	}
+
+	/**
+	 * Returns the cached block if available, otherwise loads it using the {@code loader} (outside of the cache lock) and stores it in the cache.
+	 */
+	public DataBlock< ? > getOrLoad( final String key, final BlockLoader loader, final Stats stats ) throws IOException
+	{
+		final DataBlock< ? > cachedBlock = get( key, stats );
+		if ( cachedBlock != null )
+			return cachedBlock;
+
+		final DataBlock< ? > block = loader.load();
+		put( key, block, stats );
+		return block;
+	}
+
+	public synchronized void clear()
+	{
+		blocks.clear();
+		cachedBytes = 0;
+	}
+
+	private void evict( final Stats stats )
+	{
+		for ( final Iterator< Map.Entry< String, DataBlock< ? > > > it = blocks.entrySet().iterator(); it.hasNext() && cachedBytes > maxBytes; )
+		{
+			cachedBytes -= getSizeInBytes( it.next().getValue() );
+			it.remove();
+			if ( stats != null )
+				stats.evictions.add( 1 );
+		}
+	}
+
+	private static long getSizeInBytes( final DataBlock< ? > block )
+	{
+		final Object data = block.getData();
+		if ( data instanceof byte[] )
+			return ( ( byte[] ) data ).length;
+		if ( data instanceof short[] )
+			return ( ( short[] ) data ).length * 2L;
+		if ( data instanceof int[] )
+			return ( ( int[] ) data ).length * 4L;
+		if ( data instanceof float[] )
+			return ( ( float[] ) data ).length * 4L;
+		if ( data instanceof long[] )
+			return ( ( long[] ) data ).length * 8L;
+		if ( data instanceof double[] )
+			return ( ( double[] ) data ).length * 8L;
+		return block.getNumElements();
+	}
+}
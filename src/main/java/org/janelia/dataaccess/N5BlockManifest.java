@@ -0,0 +1,184 @@
+package org.janelia.dataaccess;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Set of the blocks of a sparse N5 dataset that have been written.
+ * The blocks that are not in the manifest are uniformly filled with the fill value of the dataset and are not stored,
+ * so the readers can skip them without probing the storage.
+ * <p>
+ * The manifest is stored in the dataset attributes as a list of {@code [start, end)} ranges of the linear block indexes (the first dimension varies fastest),
+ * which is compact for the typical case where the written blocks form a few contiguous regions.
+ *
+ * @author Igor Pisarev
+ */
+public class N5BlockManifest implements Serializable
+{
+	private static final long serialVersionUID = 4810359612390172155L;
+
+	public static final String WRITTEN_BLOCKS_ATTRIBUTE_KEY = "writtenBlocks";
+	public static final String FILL_VALUE_ATTRIBUTE_KEY = "fillValue";
+
+	private final long[] dimensions;
+	private final int[] blockSize;
+	private final long[] gridDimensions;
+	private final BitSet writtenBlocks = new BitSet();
+
+	public N5BlockManifest( final long[] dimensions, final int[] blockSize )
+	{
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize.clone();
+
+		gridDimensions = new long[ dimensions.length ];
+		long numBlocks = 1;
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			gridDimensions[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			numBlocks *= gridDimensions[ d ];
+		}
+		if ( numBlocks > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many blocks in the dataset: " + numBlocks );
+	}
+
+	public N5BlockManifest( final DatasetAttributes attributes )
+	{
+		this( attributes.getDimensions(), attributes.getBlockSize() );
+	}
+
+	public long numBlocks()
+	{
+		long numBlocks = 1;
+		for ( int d = 0; d < gridDimensions.length; ++d )
+			numBlocks *= gridDimensions[ d ];
+		return numBlocks;
+	}
+
+	public long numWrittenBlocks()
+	{
+		return writtenBlocks.cardinality();
+	}
+
+	public boolean contains( final long[] gridPosition )
+	{
+		return writtenBlocks.get( getIndex( gridPosition ) );
+	}
+
+	public void add( final long[] gridPosition )
+	{
+		writtenBlocks.set( getIndex( gridPosition ) );
+	}
+
+	/**
+	 * Adds all blocks that intersect with the given region of the dataset.
+	 */
+	public void addRegion( final long[] min, final long[] size )
+	{
+		for ( final long[] gridPosition : getGridPositions( min, size ) )
+			add( gridPosition );
+	}
+
+	/**
+	 * @return true if any of the blocks that intersect with the given region of the dataset has been written
+	 */
+	public boolean containsAny( final long[] min, final long[] size )
+	{
+		for ( final long[] gridPosition : getGridPositions( min, size ) )
+			if ( contains( gridPosition ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return grid positions of all blocks that intersect with the given region of the dataset
+	 */
+	public List< long[] > getGridPositions( final long[] min, final long[] size )
+	{
+		final List< long[] > gridPositions = new ArrayList<>();
+		final int n = dimensions.length;
+		final long[] gridMin = new long[ n ], gridMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( size[ d ] <= 0 || min[ d ] >= dimensions[ d ] )
+				return gridPositions;
+			gridMin[ d ] = min[ d ] / blockSize[ d ];
+			gridMax[ d ] = Math.min( min[ d ] + size[ d ] - 1, dimensions[ d ] - 1 ) / blockSize[ d ];
+		}
+
+		final long[] gridPosition = gridMin.clone();
+		while ( true )
+		{
+			gridPositions.add( gridPosition.clone() );
+
+			int d = 0;
+			for ( ; d < n; ++d )
+			{
+				if ( ++gridPosition[ d ] <= gridMax[ d ] )
+					break;
+				gridPosition[ d ] = gridMin[ d ];
+			}
+			if ( d == n )
+				break;
+		}
+		return gridPositions;
+	}
+
+	public void addAll( final N5BlockManifest other )
+	{
+		writtenBlocks.or( other.writtenBlocks );
+	}
+
+	/**
+	 * Stores the manifest and the fill value of the missing blocks in the attributes of the dataset.
+	 */
+	public void write( final N5Writer n5, final String datasetPath, final double fillValue ) throws IOException
+	{
+		final List< long[] > ranges = new ArrayList<>();
+		for ( int start = writtenBlocks.nextSetBit( 0 ); start >= 0; start = writtenBlocks.nextSetBit( start ) )
+		{
+			final int end = writtenBlocks.nextClearBit( start );
+			ranges.add( new long[] { start, end } );
+			start = end;
+		}
+		n5.setAttribute( datasetPath, WRITTEN_BLOCKS_ATTRIBUTE_KEY, ranges.toArray( new long[ 0 ][] ) );
+		n5.setAttribute( datasetPath, FILL_VALUE_ATTRIBUTE_KEY, fillValue );
+	}
+
+	/**
+	 * @return the manifest of the dataset, or {@code null} if the dataset is not sparse (all of its blocks may have been written)
+	 */
+	public static N5BlockManifest read( final N5Reader n5, final String datasetPath ) throws IOException
+	{
+		final long[][] ranges = n5.getAttribute( datasetPath, WRITTEN_BLOCKS_ATTRIBUTE_KEY, long[][].class );
+		if ( ranges == null )
+			return null;
+
+		final N5BlockManifest manifest = new N5BlockManifest( n5.getDatasetAttributes( datasetPath ) );
+		for ( final long[] range : ranges )
+			manifest.writtenBlocks.set( ( int ) range[ 0 ], ( int ) range[ 1 ] );
+		return manifest;
+	}
+
+	/**
+	 * @return value of the blocks that are missing in a sparse dataset, or {@code null} if not specified
+	 */
+	public static Double readFillValue( final N5Reader n5, final String datasetPath ) throws IOException
+	{
+		return n5.getAttribute( datasetPath, FILL_VALUE_ATTRIBUTE_KEY, Double.class );
+	}
+
+	private int getIndex( final long[] gridPosition )
+	{
+		long index = 0;
+		for ( int d = gridPosition.length - 1; d >= 0; --d )
+			index = index * gridDimensions[ d ] + gridPosition[ d ];
+		return ( int ) index;
+	}
+}
@@ -0,0 +1,55 @@
+package org.janelia.dataaccess;
+
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+
+/**
+ * Creates N5 compression settings from their command line representation in the form of {@code name[:level]},
+ * where the name is one of {@code raw}, {@code gzip}, {@code lz4}, {@code xz}, {@code bzip2}.
+ * The optional level is the compression level for gzip, the block size for lz4 and bzip2, and the preset for xz.
+ *
+ * @author Igor Pisarev
+ */
+public class N5Compressions
+{
+	public static final String DEFAULT = "gzip";
+	public static final String USAGE = "N5 compression in the form of name[:level] where the name is 'raw', 'gzip', 'lz4', 'xz', or 'bzip2' (e.g. 'gzip:1')";
+
+	public static Compression parse( final String compressionStr ) throws IllegalArgumentException
+	{
+		final String[] tokens = compressionStr.trim().split( ":" );
+		if ( tokens.length > 2 )
+			throw new IllegalArgumentException( "Invalid compression: " + compressionStr + ". " + USAGE );
+
+		final Integer level;
+		try
+		{
+			level = tokens.length > 1 ? Integer.valueOf( tokens[ 1 ].trim() ) : null;
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "Invalid compression level: " + compressionStr + ". " + USAGE );
+		}
+
+		final String name = tokens[ 0 ].trim().toLowerCase();
+		switch ( name )
+		{
+		case "raw":
+			return new RawCompression();
+		case "gzip":
+			return level != null ? new GzipCompression( level ) : new GzipCompression();
+		case "lz4":
+			return level != null ? new Lz4Compression( level ) : new Lz4Compression();
+		case "xz":
+			return level != null ? new XzCompression( level ) : new XzCompression();
+		case "bzip2":
+			return level != null ? new Bzip2Compression( level ) : new Bzip2Compression();
+		default:
+			throw new IllegalArgumentException( "Unknown compression: " + compressionStr + ". " + USAGE );
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package org.janelia.dataaccess;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Writes a region that spans multiple blocks of an N5 dataset, encoding and writing the blocks concurrently.
+ * {@link N5Utils#saveBlock(RandomAccessibleInterval, N5Writer, String, DatasetAttributes, long[])} compresses the blocks of the region one by one,
+ * and the compression is usually the most expensive part of the export.
+ * The blocks are written by a pool of threads that is shared by all callers within the JVM, and the calling thread takes part in the work.
+ *
+ * @author Igor Pisarev
+ */
+public class N5ParallelBlockWriter
+{
+	private static final ExecutorService executor = Executors.newCachedThreadPool( runnable ->
+		{
+			final Thread thread = new Thread( runnable, "n5-block-writer" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+
+	/**
+	 * @param source region to save, its size has to be a multiple of the block size except for the blocks at the border of the dataset
+	 * @param attributes attributes of the dataset (should be obtained once and reused instead of reading them for every region)
+	 * @param gridOffset position of the first block of the region in the block grid of the dataset
+	 * @param numThreads maximum number of threads that encode the blocks of the region concurrently
+	 */
+	public static < T extends NativeType< T > > void saveBlocks(
+			final RandomAccessibleInterval< T > source,
+			final N5Writer n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final long[] gridOffset,
+			final int numThreads ) throws IOException
+	{
+		final int n = source.numDimensions();
+		final int[] blockSize = attributes.getBlockSize();
+		final RandomAccessibleInterval< T > zeroMinSource = Views.zeroMin( source );
+
+		final long[] gridDimensions = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			gridDimensions[ d ] = ( zeroMinSource.dimension( d ) + blockSize[ d ] - 1 ) / blockSize[ d ];
+		final long numBlocks = Intervals.numElements( gridDimensions );
+
+		if ( numThreads <= 1 || numBlocks <= 1 )
+		{
+			N5Utils.saveBlock( zeroMinSource, n5, dataset, attributes, gridOffset );
+			return;
+		}
+
+		final AtomicLong nextBlock = new AtomicLong();
+		final Callable< Void > task = () ->
+			{
+				final long[] blockGridPosition = new long[ n ], datasetGridPosition = new long[ n ];
+				final long[] blockMin = new long[ n ], blockMax = new long[ n ];
+				for ( long i = nextBlock.getAndIncrement(); i < numBlocks; i = nextBlock.getAndIncrement() )
+				{
+					IntervalIndexer.indexToPosition( i, gridDimensions, blockGridPosition );
+					for ( int d = 0; d < n; ++d )
+					{
+						blockMin[ d ] = blockGridPosition[ d ] * blockSize[ d ];
+						blockMax[ d ] = Math.min( blockMin[ d ] + blockSize[ d ], zeroMinSource.dimension( d ) ) - 1;
+						datasetGridPosition[ d ] = gridOffset[ d ] + blockGridPosition[ d ];
+					}
+					N5Utils.saveBlock( Views.zeroMin( Views.interval( zeroMinSource, blockMin, blockMax ) ), n5, dataset, attributes, datasetGridPosition );
+				}
+				return null;
+			};
+
+		// the calling thread takes part in the computation
+		final int numTasks = ( int ) Math.min( numThreads, numBlocks );
+		final List< Future< Void > > futures = new ArrayList<>();
+		for ( int t = 1; t < numTasks; ++t )
+			futures.add( executor.submit( task ) );
+
+		try
+		{
+			task.call();
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException ) e.getCause();
+			throw new IOException( e.getCause() );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			throw e;
+		}
+		catch ( final Exception e )
+		{
+			throw new IOException( e );
+		}
+		finally
+		{
+			// do not leave the remaining blocks to the pool if the region could not be written
+			nextBlock.set( numBlocks );
+		}
+	}
+}
@@ -19,6 +19,7 @@ import org.janelia.flatfield.FlatfieldCorrectionSolver.FlatfieldRegularizerMetad
 import org.janelia.flatfield.FlatfieldCorrectionSolver.FlatfieldSolutionMetadata;
 import org.janelia.flatfield.FlatfieldCorrectionSolver.ModelType;
 import org.janelia.flatfield.FlatfieldCorrectionSolver.RegularizerModelType;
+import org.janelia.flatfield.StackHistogram.QuantileMode;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.stitching.TileInfo;
 import org.janelia.stitching.Utils;
@@ -174,7 +175,7 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 				//.set( "spark.driver.maxResultSize", "8g" )
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 				//.set( "spark.kryoserializer.buffer.max", "2047m" )
-				.registerKryoClasses( new Class[] { Integer.class, Long.class, float[].class, Short.class, Double.class, TreeMap.class, TreeMap[].class, long[].class, short[][].class, double[].class, List.class, Tuple2.class, Interval.class, FinalInterval.class, ArrayImg.class, DoubleType.class, DoubleArray.class } )
+				.registerKryoClasses( new Class[] { Integer.class, Long.class, float[].class, Short.class, Double.class, TreeMap.class, TreeMap[].class, long[].class, short[].class, short[][].class, double[].class, List.class, Tuple2.class, Interval.class, FinalInterval.class, ArrayImg.class, DoubleType.class, DoubleArray.class } )
 				.set( "spark.rdd.compress", "true" )
 				//.set( "spark.executor.heartbeatInterval", "10000000" )
 				//.set( "spark.network.timeout", "10000000" )
@@ -224,7 +225,7 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 		if ( !args.getHistogramSettings().isValid() || args.backgroundIntensityValue( channel ) == null )
 		{
 			// if provided in the cmd args, set user-specified values, otherwise use estimated values
-			final StackHistogram stackHistogram = StackHistogram.getStackHistogram( sparkContext, tiles, defaultStackHistogramSettings );
+			final StackHistogram stackHistogram = StackHistogram.loadOrCollectStackHistogram( sparkContext, dataProvider, inputChannelPath, tiles, defaultStackHistogramSettings, args.stackHistogramSampling() );
 			if ( args.getHistogramSettings().isValid() )
 			{
 				histogramSettings = args.getHistogramSettings();
@@ -233,8 +234,21 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 			{
 				final Pair< Double, Double > intensityRange = stackHistogram.getIntensityRange( args.getMinMaxQuantiles() );
 				histogramSettings = new HistogramSettings( Math.floor( intensityRange.getA() ), Math.ceil( intensityRange.getB() ), args.getHistogramSettings().bins );
+
+				if ( stackHistogram.isSampled() )
+				{
+					final Pair< Double, Double > minBounds = stackHistogram.getQuantileBounds( args.getMinMaxQuantiles().getA(), QuantileMode.LowerBound );
+					final Pair< Double, Double > maxBounds = stackHistogram.getQuantileBounds( args.getMinMaxQuantiles().getB(), QuantileMode.UpperBound );
+					System.out.println( String.format( "Sampled stack histogram: min value bounds [%.2f, %.2f], max value bounds [%.2f, %.2f]", minBounds.getA(), minBounds.getB(), maxBounds.getA(), maxBounds.getB() ) );
+				}
 			}
 			pivotValue = args.backgroundIntensityValue( channel ) != null ? args.backgroundIntensityValue( channel ) : Math.round( stackHistogram.getPivotValue() );
+
+			if ( stackHistogram.isSampled() && args.backgroundIntensityValue( channel ) == null )
+			{
+				final Pair< Double, Double > pivotValueBounds = stackHistogram.getPivotValueBounds();
+				System.out.println( String.format( "Sampled stack histogram: pivot value bounds [%.2f, %.2f]", pivotValueBounds.getA(), pivotValueBounds.getB() ) );
+			}
 		}
 		else
 		{
@@ -252,7 +266,8 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 				flatfieldFolderPath,
 				tiles,
 				fullTileSize,
-				histogramSettings
+				histogramSettings,
+				args.histogramsEncoding()
 			);
 
 		final double[] referenceHistogram = histogramsProvider.getReferenceHistogram();
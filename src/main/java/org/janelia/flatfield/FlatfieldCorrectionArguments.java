@@ -49,6 +49,12 @@ public class FlatfieldCorrectionArguments
 			usage = "Estimate 2D flatfield (slices are used as additional data points)")
 	private boolean use2D = false;
 
+	@Option(name = "--histogramsEncoding", required = false,
+			usage = "Storage format of the per-pixel histograms ('double', 'integer' to store the counts as UINT16/UINT32, or 'sparse' to store only the non-zero bins)")
+	private String histogramsEncodingStr = "double";
+
+	private HistogramsEncoding histogramsEncoding = null;
+
 	@Option(name = "--qmin", aliases = { "--minQuantile" }, required = false,
 			usage = "Quantile to determine min histogram value")
 	private Double histMinQuantile;
@@ -57,6 +63,11 @@ public class FlatfieldCorrectionArguments
 			usage = "Quantile to determine max histogram value")
 	private Double histMaxQuantile;
 
+	@Option(name = "--stackHistogramSampling", required = false,
+			usage = "Fraction of slices of each tile to be used for estimating the stack histogram (the histogram intensity range and the background value). "
+					+ "By default (1) all data is used. The stack histogram is stored next to the tile configuration and reused in the subsequent runs and pipeline steps")
+	private double stackHistogramSampling = 1;
+
 	private static final double defaultHistMinQuantile = 0.05;
 	private static final double defaultHistMaxQuantile = 0.95;
 
@@ -101,6 +112,18 @@ public class FlatfieldCorrectionArguments
 
 		if ( backgroundIntensityValues != null && backgroundIntensityValues.size() != inputChannelsPaths.size() && backgroundIntensityValues.size() != 1 )
 			throw new IllegalArgumentException( "Background intensity values should be provided for each input channel" );
+
+		if ( stackHistogramSampling <= 0 || stackHistogramSampling > 1 )
+			throw new IllegalArgumentException( "Stack histogram sampling fraction should be in (0,1]" );
+
+		if ( histogramsEncodingStr.equalsIgnoreCase( "double" ) )
+			histogramsEncoding = HistogramsEncoding.DOUBLE;
+		else if ( histogramsEncodingStr.equalsIgnoreCase( "integer" ) )
+			histogramsEncoding = HistogramsEncoding.INTEGER;
+		else if ( histogramsEncodingStr.equalsIgnoreCase( "sparse" ) )
+			histogramsEncoding = HistogramsEncoding.SPARSE;
+		else
+			throw new IllegalArgumentException( "Invalid histograms encoding. Possible values are: 'double', 'integer' or 'sparse'" );
 	}
 
 	public boolean parsedSuccessfully() { return parsedSuccessfully; }
@@ -108,6 +131,8 @@ public class FlatfieldCorrectionArguments
 	public List< String > inputChannelsPaths() { return inputChannelsPaths; }
 	public String cropMinMaxIntervalStr() { return cropMinMaxInterval; };
 	public boolean use2D() { return use2D; }
+	public HistogramsEncoding histogramsEncoding() { return histogramsEncoding; }
+	public double stackHistogramSampling() { return stackHistogramSampling; }
 	public Pair< Double, Double > getMinMaxQuantiles() { return new ValuePair<>( histMinQuantile, histMaxQuantile ); }
 
 	public HistogramSettings getHistogramSettings()
@@ -0,0 +1,119 @@
+package org.janelia.flatfield;
+
+import java.util.Iterator;
+
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Translation;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.RandomAccessiblePairNullable;
+import net.imglib2.view.Views;
+
+/**
+ * Applies the flatfield correction to a block of tile data stored in a primitive array.
+ * The scaling (S) and translation (T) components of the flatfield are sampled once for the block,
+ * and the correction {@code v * S + T} is then computed in a single loop over the arrays instead of moving
+ * the random accesses of the flatfield components in lockstep with the tile (as in {@link FlatfieldCorrectedRandomAccessible}).
+ * All arrays are in flat iteration order of the block (the first dimension varies fastest).
+ *
+ * @author Igor Pisarev
+ */
+public class FlatfieldCorrectionKernel
+{
+	private final float[] scaling, translation;
+
+	private FlatfieldCorrectionKernel( final float[] scaling, final float[] translation )
+	{
+		this.scaling = scaling;
+		this.translation = translation;
+	}
+
+	/**
+	 * Samples the flatfield for a block of the tile.
+	 *
+	 * @param flatfield flatfield components (scaling and translation)
+	 * @param interval block in the local coordinate space of the tile
+	 */
+	public static < U extends RealType< U > > FlatfieldCorrectionKernel create(
+			final RandomAccessiblePairNullable< U, U > flatfield,
+			final Interval interval )
+	{
+		return new FlatfieldCorrectionKernel(
+				sample( flatfield.getA(), interval ),
+				sample( flatfield.getB(), interval )
+			);
+	}
+
+	/**
+	 * Samples the flatfield for a block of the tile that is placed at the given offset in the target space.
+	 * If the offset is not integral, the flatfield components are resampled with linear interpolation in the same way as the tile itself.
+	 *
+	 * @param flatfield flatfield components (scaling and translation)
+	 * @param tileDimensions size of the tile
+	 * @param offset position of the tile in the target space
+	 * @param targetInterval block in the target space
+	 */
+	public static < U extends RealType< U > > FlatfieldCorrectionKernel create(
+			final RandomAccessiblePairNullable< U, U > flatfield,
+			final Dimensions tileDimensions,
+			final double[] offset,
+			final Interval targetInterval )
+	{
+		final Interval tileInterval = new FinalInterval( Intervals.dimensionsAsLongArray( tileDimensions ) );
+		return new FlatfieldCorrectionKernel(
+				sample( translate( Views.interval( flatfield.getA(), tileInterval ), offset ), targetInterval ),
+				sample( translate( Views.interval( flatfield.getB(), tileInterval ), offset ), targetInterval )
+			);
+	}
+
+	/**
+	 * Corrects the data in place.
+	 */
+	public void apply( final float[] data )
+	{
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = data[ i ] * scaling[ i ] + translation[ i ];
+	}
+
+	/**
+	 * Copies the values of the block into a new array and corrects them.
+	 *
+	 * @param source values of the block in flat iteration order
+	 * @return corrected values
+	 */
+	public < R extends RealType< R > > float[] apply( final Iterator< R > source )
+	{
+		final float[] data = new float[ scaling.length ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = source.next().getRealFloat() * scaling[ i ] + translation[ i ];
+		return data;
+	}
+
+	private static < U extends RealType< U > > RandomAccessible< U > translate( final RandomAccessibleInterval< U > component, final double[] offset )
+	{
+		final long[] integralOffset = new long[ offset.length ];
+		for ( int d = 0; d < offset.length; ++d )
+		{
+			integralOffset[ d ] = ( long ) offset[ d ];
+			if ( integralOffset[ d ] != offset[ d ] )
+				return Views.raster( RealViews.affine( Views.interpolate( Views.extendBorder( component ), new NLinearInterpolatorFactory<>() ), new Translation( offset ) ) );
+		}
+		return Views.translate( component, integralOffset );
+	}
+
+	private static < U extends RealType< U > > float[] sample( final RandomAccessible< U > component, final Interval interval )
+	{
+		final float[] field = new float[ ( int ) Intervals.numElements( interval ) ];
+		final Cursor< U > cursor = Views.flatIterable( Views.interval( component, interval ) ).cursor();
+		for ( int i = 0; i < field.length; ++i )
+			field[ i ] = cursor.next().getRealFloat();
+		return field;
+	}
+}
@@ -18,21 +18,11 @@ import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.N5RemoveSpark;
 
-import mpicbg.models.Affine1D;
 import mpicbg.models.AffineModel1D;
-import mpicbg.models.FixedScalingAffineModel1D;
-import mpicbg.models.FixedTranslationAffineModel1D;
-import mpicbg.models.IdentityModel;
 import mpicbg.models.IndependentlyInterpolatedAffineModel1D;
-import mpicbg.models.InterpolatedAffineModel1D;
-import mpicbg.models.InvertibleBoundable;
-import mpicbg.models.Model;
-import mpicbg.models.Point;
-import mpicbg.models.PointMatch;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
@@ -165,7 +155,7 @@ public class FlatfieldCorrectionSolver implements Serializable
 	}
 
 	@SuppressWarnings( "unchecked" )
-	public < T extends RealType< T >, M extends Model< M > & Affine1D< M >, R extends Model< R > & Affine1D< R > & InvertibleBoundable > FlatfieldSolutionMetadata leastSquaresInterpolationFit(
+	public < T extends RealType< T > > FlatfieldSolutionMetadata leastSquaresInterpolationFit(
 			final int currentScaleLevel,
 			final String currentScaleHistogramsDataset,
 			final FlatfieldRegularizerMetadata regularizerMetadata,
@@ -209,7 +199,7 @@ public class FlatfieldCorrectionSolver implements Serializable
 				// open histograms dataset
 				final DataProvider dataProviderLocal = DataProviderFactory.create( histogramsProvider.getDataProviderType() );
 				final N5Writer n5Local = dataProviderLocal.createN5Writer( histogramsProvider.getHistogramsN5BasePath() );
-				final RandomAccessibleInterval< T > histogramsStorageImg = ( RandomAccessibleInterval ) N5Utils.open( n5Local, currentScaleHistogramsDataset );
+				final RandomAccessibleInterval< T > histogramsStorageImg = ( RandomAccessibleInterval ) N5Utils.open( new HistogramsN5Reader( n5Local ), currentScaleHistogramsDataset );
 				final CompositeIntervalView< T, RealComposite< T > > histogramsImg = Views.collapseReal( histogramsStorageImg );
 				final IntervalView< RealComposite< T > > histogramsBlockImg = Views.interval( histogramsImg, cellInterval );
 
@@ -258,10 +248,9 @@ public class FlatfieldCorrectionSolver implements Serializable
 				final Cursor< DoubleType > translationTermBlockImgCursor = Views.flatIterable( translationTermBlockImg ).cursor();
 				final Cursor< DoubleType > pivotValuesBlockImgCursor = Views.flatIterable( pivotValuesBlockImg ).cursor();
 
-				final RealComposite< T > referenceHistogram = new RealComposite<>(
-						( RandomAccess< T > ) ArrayImgs.doubles( histogramsProvider.getReferenceHistogram(), histogramSettings.bins ).randomAccess(),
-						histogramSettings.bins
-					);
+				final HistogramMatchingFit histogramMatchingFit = new HistogramMatchingFit( binValues, histogramsProvider.getReferenceHistogram(), pivotValue );
+				final double[] regularizerValues = new double[ 2 ], estimatedModelValues = new double[ 2 ];
+				final RandomAccessiblePairNullable< DoubleType, DoubleType >.RandomAccess regularizerRandomAccess = regularizer != null ? regularizer.randomAccess() : null;
 
 				final long[] position = new long[ cellGrid.numDimensions() ];
 				while ( histogramsBlockImgCursor.hasNext() )
@@ -273,117 +262,26 @@ public class FlatfieldCorrectionSolver implements Serializable
 					translationTermBlockImgCursor.fwd();
 					pivotValuesBlockImgCursor.fwd();
 
-					final List< PointMatch > matches = HistogramMatching.generateHistogramMatches(
-							histogram,
-							referenceHistogram,
-							binValues
-						);
+					histogramMatchingFit.match( histogram );
 
-					// apply the offsets to the pointmatch values
-					final double[] offset = new double[] { pivotValue, pivotValue };
-					for ( final PointMatch match : matches )
+					if ( regularizerRandomAccess != null )
 					{
-						final Point[] points = new Point[] { match.getP1(), match.getP2() };
-						for ( int i = 0; i < 2; ++i )
-							for ( final double[] value : new double[][] { points[ i ].getL(), points[ i ].getW() } )
-								value[ 0 ] -= offset[ i ];
-					}
-
-					final double[] regularizerValues;
-					if ( regularizer != null )
-					{
-						final RandomAccessiblePairNullable< DoubleType, DoubleType >.RandomAccess regularizerRandomAccess = regularizer.randomAccess();
 						regularizerRandomAccess.setPosition( position );
-
-						regularizerValues = new double[]
-							{
-								( regularizerRandomAccess.getA() != null ? regularizerRandomAccess.getA().get() : 1 ),
-								( regularizerRandomAccess.getB() != null ? regularizerRandomAccess.getB().get() : 0 )
-							};
-					}
-					else
-					{
-						regularizerValues = null;
-					}
-
-					final M model;
-					switch ( modelType )
-					{
-					case AffineModel:
-						model = ( M ) new AffineModel1D();
-						break;
-					case FixedTranslationAffineModel:
-						model = ( M ) new FixedTranslationAffineModel1D( regularizerValues == null ? 0 : regularizerValues[ 1 ] );
-						break;
-					case FixedScalingAffineModel:
-						model = ( M ) new FixedScalingAffineModel1D( regularizerValues == null ? 1 : regularizerValues[ 0 ] );
-						break;
-					default:
-						model = null;
-						break;
-					}
-
-					final M pivotedModel = ( M ) new InterpolatedAffineModel1D<>( model, new FixedTranslationAffineModel1D( 0 ), INTERPOLATION_LAMBDA_PIVOT );
-
-					boolean modelFound = false;
-					try
-					{
-//						modelFound = model.filter( matches, new ArrayList<>(), 4.0 );
-						pivotedModel.fit( matches );
-						modelFound = true;
-					}
-					catch ( final Exception e )
-					{
-						modelFound = false;
-						e.printStackTrace();
-					}
-
-
-					final R regularizerModel;
-					switch ( regularizerModelType )
-					{
-					case IdentityModel:
-						regularizerModel = ( R ) new IdentityModel();
-						break;
-					case AffineModel:
-						final AffineModel1D downsampledModel = new AffineModel1D();
-						downsampledModel.set(
-								regularizerValues != null ? regularizerValues[ 0 ] : 1,
-								regularizerValues != null ? regularizerValues[ 1 ] : 0 );
-						regularizerModel = ( R ) downsampledModel;
-						break;
-					default:
-						regularizerModel = null;
-						break;
+						regularizerValues[ 0 ] = regularizerRandomAccess.getA() != null ? regularizerRandomAccess.getA().get() : 1;
+						regularizerValues[ 1 ] = regularizerRandomAccess.getB() != null ? regularizerRandomAccess.getB().get() : 0;
 					}
 
-//					final R interpolatedRegularizer = ( R ) new InterpolatedAffineModel1D<>(
-//							regularizerModel,
-//							new IdentityModel(),
-//							INTERPOLATION_LAMBDA_IDENTITY );
-	//
-//					final M interpolatedModel = ( M ) ( modelFound ?
-//							new IndependentlyInterpolatedAffineModel1D<>(
-//									pivotedModel,
-//									interpolatedRegularizer,
-//									INTERPOLATION_LAMBDA_SCALING,
-//									INTERPOLATION_LAMBDA_TRANSLATION ) :
-//							interpolatedRegularizer );
-
-					final M interpolatedModel = ( M ) ( modelFound ?
-							new IndependentlyInterpolatedAffineModel1D<>(
-									pivotedModel,
-									regularizerModel,
-									INTERPOLATION_LAMBDA_SCALING,
-									INTERPOLATION_LAMBDA_TRANSLATION ) :
-								regularizerModel );
-
-					final double[] estimatedModelValues = new double[ 2 ];
-					interpolatedModel.toArray( estimatedModelValues );
+					estimateModel(
+							histogramMatchingFit,
+							modelType,
+							regularizerModelType,
+							regularizerRandomAccess != null ? regularizerValues : null,
+							estimatedModelValues
+						);
 
 					scalingTermBlockImgCursor.get().set( estimatedModelValues[ 0 ] );
 					translationTermBlockImgCursor.get().set( estimatedModelValues[ 1 ] );
-					pivotValuesBlockImgCursor.get().set( offset[ 0 ] );
+					pivotValuesBlockImgCursor.get().set( pivotValue );
 				}
 
 				N5Utils.saveBlock( scalingTermBlockImg, n5Local, solutionMetadata.scalingTermDataset, blockPosition );
@@ -396,6 +294,76 @@ public class FlatfieldCorrectionSolver implements Serializable
 		return solutionMetadata;
 	}
 
+	/**
+	 * Estimates the correction model of a single pixel from the histogram matches accumulated by the given {@link HistogramMatchingFit}.
+	 * The result is the same as fitting the model of the given type pulled towards the pivot point
+	 * ({@code InterpolatedAffineModel1D( model, FixedTranslationAffineModel1D( 0 ), INTERPOLATION_LAMBDA_PIVOT )})
+	 * and interpolating it with the regularizer model ({@link IndependentlyInterpolatedAffineModel1D}),
+	 * or taking the regularizer model if the fit has failed, but does not create any point matches or models.
+	 *
+	 * @param regularizerValues scaling and translation terms of the downsampled solution, or {@code null} at the coarsest scale level
+	 * @param estimatedModelValues output scaling and translation terms
+	 */
+	static void estimateModel(
+			final HistogramMatchingFit histogramMatchingFit,
+			final ModelType modelType,
+			final RegularizerModelType regularizerModelType,
+			final double[] regularizerValues,
+			final double[] estimatedModelValues )
+	{
+		boolean modelFound;
+		switch ( modelType )
+		{
+		case AffineModel:
+			modelFound = histogramMatchingFit.fitAffine();
+			break;
+		case FixedTranslationAffineModel:
+			modelFound = histogramMatchingFit.fitFixedTranslation( regularizerValues == null ? 0 : regularizerValues[ 1 ] );
+			break;
+		case FixedScalingAffineModel:
+			modelFound = histogramMatchingFit.fitFixedScaling( regularizerValues == null ? 1 : regularizerValues[ 0 ] );
+			break;
+		default:
+			throw new IllegalArgumentException( "unknown model type: " + modelType );
+		}
+
+		double scaling = 0, translation = 0;
+		if ( modelFound )
+		{
+			scaling = histogramMatchingFit.getScaling();
+			translation = histogramMatchingFit.getTranslation();
+			modelFound = histogramMatchingFit.fitFixedTranslation( 0 );
+		}
+
+		final double regularizerScaling, regularizerTranslation;
+		switch ( regularizerModelType )
+		{
+		case IdentityModel:
+			regularizerScaling = 1;
+			regularizerTranslation = 0;
+			break;
+		case AffineModel:
+			regularizerScaling = regularizerValues != null ? regularizerValues[ 0 ] : 1;
+			regularizerTranslation = regularizerValues != null ? regularizerValues[ 1 ] : 0;
+			break;
+		default:
+			throw new IllegalArgumentException( "unknown regularizer model type: " + regularizerModelType );
+		}
+
+		if ( modelFound )
+		{
+			final double pivotedScaling = scaling * ( 1.0 - INTERPOLATION_LAMBDA_PIVOT ) + histogramMatchingFit.getScaling() * INTERPOLATION_LAMBDA_PIVOT;
+			final double pivotedTranslation = translation * ( 1.0 - INTERPOLATION_LAMBDA_PIVOT ) + histogramMatchingFit.getTranslation() * INTERPOLATION_LAMBDA_PIVOT;
+			estimatedModelValues[ 0 ] = pivotedScaling * ( 1.0 - INTERPOLATION_LAMBDA_SCALING ) + regularizerScaling * INTERPOLATION_LAMBDA_SCALING;
+			estimatedModelValues[ 1 ] = pivotedTranslation * ( 1.0 - INTERPOLATION_LAMBDA_TRANSLATION ) + regularizerTranslation * INTERPOLATION_LAMBDA_TRANSLATION;
+		}
+		else
+		{
+			estimatedModelValues[ 0 ] = regularizerScaling;
+			estimatedModelValues[ 1 ] = regularizerTranslation;
+		}
+	}
+
 	public void cleanupFlatfieldSolutionExports( final DataProvider dataProvider, final String histogramsN5BasePath ) throws IOException
 	{
 		final DataProviderType dataProviderType = dataProvider.getType();
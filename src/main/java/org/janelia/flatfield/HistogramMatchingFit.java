@@ -0,0 +1,215 @@
+package org.janelia.flatfield;
+
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.composite.RealComposite;
+
+/**
+ * Fits 1D affine models to the histogram matches of a pixel histogram and the reference histogram without creating any point matches.
+ * The matches are generated in the same way as in {@link HistogramMatching#generateHistogramMatches(RealComposite, RealComposite, double[])},
+ * but instead of being collected they are reduced to the weighted sums that are needed for the closed form least squares solutions
+ * of {@link mpicbg.models.AffineModel1D}, {@link mpicbg.models.FixedScalingAffineModel1D} and {@link mpicbg.models.FixedTranslationAffineModel1D}.
+ * The values of both histograms are offset by the pivot value.
+ * <p>
+ * An instance reuses its buffers between the pixels and is not thread-safe.
+ *
+ * @author Igor Pisarev
+ */
+public class HistogramMatchingFit
+{
+	// same for all models, see the in-repo copies of FixedScalingAffineModel1D and FixedTranslationAffineModel1D
+	private static final int MIN_NUM_MATCHES = 2;
+
+	private final double[] binValues;
+	private final double[] referenceHistogram;
+	private final double referenceQuantityTotal;
+	private final double pivotValue;
+	private final double[] histogram;
+
+	// weighted sums over the matches of the current histogram
+	private int numMatches;
+	private double sumWeights, sumP, sumQ, sumPP, sumPQ;
+
+	// weighted sums of the centered values (computed on demand for the affine fit)
+	private double centerP, centerQ;
+	private double sumCenteredPP, sumCenteredPQ;
+
+	// parameters of the last fitted model
+	private double scaling, translation;
+
+	public HistogramMatchingFit( final double[] binValues, final double[] referenceHistogram, final double pivotValue )
+	{
+		this.binValues = binValues;
+		this.referenceHistogram = referenceHistogram;
+		this.pivotValue = pivotValue;
+		histogram = new double[ binValues.length ];
+
+		double quantityTotal = 0;
+		for ( final double quantity : referenceHistogram )
+			quantityTotal += quantity;
+		referenceQuantityTotal = quantityTotal;
+	}
+
+	/**
+	 * Matches the given histogram to the reference histogram and accumulates the sums for the subsequent fits.
+	 */
+	public < T extends RealType< T > > void match( final RealComposite< T > pixelHistogram )
+	{
+		for ( int bin = 0; bin < histogram.length; ++bin )
+			histogram[ bin ] = pixelHistogram.get( bin ).getRealDouble();
+		match( histogram );
+	}
+
+	/**
+	 * Matches the given histogram to the reference histogram and accumulates the sums for the subsequent fits.
+	 */
+	public void match( final double[] pixelHistogram )
+	{
+		if ( pixelHistogram != histogram )
+			System.arraycopy( pixelHistogram, 0, histogram, 0, histogram.length );
+
+		numMatches = 0;
+		sumWeights = sumP = sumQ = sumPP = sumPQ = 0;
+		centerP = centerQ = Double.NaN;
+		walk( false );
+	}
+
+	public int getNumMatches() { return numMatches; }
+
+	public double getScaling() { return scaling; }
+	public double getTranslation() { return translation; }
+
+	/**
+	 * Fits an affine model (see {@link mpicbg.models.AffineModel1D}).
+	 *
+	 * @return false if there are not enough matches or the matches are ill-defined (the fit of the mpicbg model would throw an exception)
+	 */
+	public boolean fitAffine()
+	{
+		if ( numMatches < MIN_NUM_MATCHES )
+			return false;
+
+		// the centered sums are accumulated in a second pass over the matches to avoid the loss of precision
+		final double pc = sumP / sumWeights, qc = sumQ / sumWeights;
+		if ( pc != centerP || qc != centerQ )
+		{
+			centerP = pc;
+			centerQ = qc;
+			sumCenteredPP = sumCenteredPQ = 0;
+			walk( true );
+		}
+
+		if ( sumCenteredPP == 0 )
+			return false;
+
+		scaling = sumCenteredPQ / sumCenteredPP;
+		translation = centerQ - scaling * centerP;
+		return true;
+	}
+
+	/**
+	 * Fits an affine model with the fixed scaling (see {@link mpicbg.models.FixedScalingAffineModel1D}).
+	 *
+	 * @return false if there are not enough matches
+	 */
+	public boolean fitFixedScaling( final double fixedScaling )
+	{
+		if ( numMatches < MIN_NUM_MATCHES )
+			return false;
+
+		scaling = fixedScaling;
+		translation = sumQ / sumWeights - fixedScaling * sumP / sumWeights;
+		return true;
+	}
+
+	/**
+	 * Fits an affine model with the fixed translation (see {@link mpicbg.models.FixedTranslationAffineModel1D}).
+	 *
+	 * @return false if there are not enough matches or the matches are ill-defined
+	 */
+	public boolean fitFixedTranslation( final double fixedTranslation )
+	{
+		if ( numMatches < MIN_NUM_MATCHES || sumPP == 0 )
+			return false;
+
+		scaling = ( sumPQ - fixedTranslation * sumP ) / sumPP;
+		translation = fixedTranslation;
+		return true;
+	}
+
+	/**
+	 * Walks the two histograms bin by bin in the same way as {@link HistogramMatching#generateHistogramMatches(RealComposite, RealComposite, double[])}
+	 * and accumulates the weighted sums of the matched values.
+	 *
+	 * @param centered if true, accumulates the sums of the values centered around {@link #centerP} and {@link #centerQ}
+	 */
+	private void walk( final boolean centered )
+	{
+		final int bins = binValues.length;
+
+		double histogramQuantityTotal = 0;
+		for ( int bin = 0; bin < bins; ++bin )
+			histogramQuantityTotal += histogram[ bin ];
+
+		final double quantityTotal = ( histogramQuantityTotal + referenceQuantityTotal ) / 2;
+
+		final double quantitySkipLeft = Math.max( histogram[ 0 ], referenceHistogram[ 0 ] );
+		final double quantitySkipRight = Math.max( histogram[ bins - 1 ], referenceHistogram[ bins - 1 ] );
+		final double weightInner = quantityTotal - quantitySkipRight - quantitySkipLeft;
+		double quantityProcessed = 0;
+
+		double quantity = 0, referenceQuantity = 0;
+		int index = -1, referenceIndex = -1;
+
+		while ( true )
+		{
+			while ( quantity <= 0 && index < bins - 1 )
+				quantity = histogram[ ++index ];
+			if ( quantity <= 0 && index == bins - 1 )
+				return;
+
+			while ( referenceQuantity <= 0 && referenceIndex < bins - 1 )
+				referenceQuantity = referenceHistogram[ ++referenceIndex ];
+			if ( referenceQuantity <= 0 && referenceIndex == bins - 1 )
+				return;
+
+			final double quantityMin = Math.min( quantity, referenceQuantity );
+
+			// ignore the values that are less than minValue or greater than maxValue (i.e. undersaturated/oversaturated values)
+			if ( quantityProcessed + quantityMin > quantitySkipLeft && quantityTotal - quantityProcessed > quantitySkipRight )
+			{
+				if ( index > 0 && index < bins - 1 && referenceIndex > 0 && referenceIndex < bins - 1 )
+				{
+					final double weightLeft = quantityMin - Math.max( quantitySkipLeft - quantityProcessed, 0 );
+					final double weightRight = Math.min( quantityTotal - quantitySkipRight - quantityProcessed, quantityMin );
+					final double weight = Math.min( Math.min( weightLeft, weightRight ), weightInner );
+					if ( weight > 0 )
+					{
+						final double p = binValues[ index ] - pivotValue;
+						final double q = binValues[ referenceIndex ] - pivotValue;
+						if ( centered )
+						{
+							final double pc = p - centerP;
+							final double qc = q - centerQ;
+							sumCenteredPP += weight * pc * pc;
+							sumCenteredPQ += weight * pc * qc;
+						}
+						else
+						{
+							++numMatches;
+							final double wp = weight * p;
+							sumWeights += weight;
+							sumP += wp;
+							sumQ += weight * q;
+							sumPP += wp * p;
+							sumPQ += wp * q;
+						}
+					}
+				}
+			}
+
+			quantityProcessed += quantityMin;
+			quantity -= quantityMin;
+			referenceQuantity -= quantityMin;
+		}
+	}
+}
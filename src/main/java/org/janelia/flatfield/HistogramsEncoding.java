@@ -0,0 +1,189 @@
+package org.janelia.flatfield;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+/**
+ * Storage format of the per-pixel histograms dataset.
+ * Each block of the histograms dataset covers a block of pixels and all bins (the bins dimension is the last one),
+ * and is decoded into the dense array of counts in flat iteration order of the block.
+ * Encoded datasets are read through {@link HistogramsN5Reader} which exposes them as regular {@link DataType#FLOAT64} datasets.
+ *
+ * @author Igor Pisarev
+ */
+public enum HistogramsEncoding
+{
+	/**
+	 * Dense counts stored as double values.
+	 */
+	DOUBLE,
+
+	/**
+	 * Dense counts stored as UINT16 or UINT32 values depending on the max possible count.
+	 */
+	INTEGER,
+
+	/**
+	 * Only the non-zero bins are stored. A block is a variable-length INT32 block that contains
+	 * the number of non-zero bins for each pixel, followed by (bin offset, count) pairs for each pixel,
+	 * where the bin offset is relative to the previous non-zero bin of the same pixel.
+	 */
+	SPARSE;
+
+	public static final String ATTRIBUTE_KEY = "histogramsEncoding";
+
+	/**
+	 * @param maxCount max possible count in a single bin (the number of values that are binned for each pixel)
+	 * @return data type for storing the histograms with this encoding, or {@code null} if the counts cannot be represented
+	 */
+	public DataType getDataType( final long maxCount )
+	{
+		switch ( this )
+		{
+		case DOUBLE:
+			return DataType.FLOAT64;
+		case INTEGER:
+			if ( maxCount <= 0xffffL )
+				return DataType.UINT16;
+			else if ( maxCount <= 0xffffffffL )
+				return DataType.UINT32;
+			else
+				return null;
+		case SPARSE:
+			return maxCount <= Integer.MAX_VALUE ? DataType.INT32 : null;
+		default:
+			throw new IllegalArgumentException( "Unknown histograms encoding: " + this );
+		}
+	}
+
+	/**
+	 * @param histograms dense counts in flat iteration order of the block
+	 * @param size size of the block including the bins dimension
+	 * @param gridPosition position of the block including the bins dimension
+	 * @param dataType data type of the dataset
+	 */
+	public DataBlock< ? > encode( final double[] histograms, final int[] size, final long[] gridPosition, final DataType dataType )
+	{
+		if ( this == SPARSE )
+			return new IntArrayDataBlock( size, gridPosition, encodeSparse( histograms, size[ size.length - 1 ] ) );
+
+		switch ( dataType )
+		{
+		case FLOAT64:
+			return new DoubleArrayDataBlock( size, gridPosition, histograms );
+		case UINT16:
+			final short[] shortCounts = new short[ histograms.length ];
+			for ( int i = 0; i < histograms.length; ++i )
+				shortCounts[ i ] = ( short ) ( long ) histograms[ i ];
+			return new ShortArrayDataBlock( size, gridPosition, shortCounts );
+		case UINT32:
+			final int[] intCounts = new int[ histograms.length ];
+			for ( int i = 0; i < histograms.length; ++i )
+				intCounts[ i ] = ( int ) ( long ) histograms[ i ];
+			return new IntArrayDataBlock( size, gridPosition, intCounts );
+		default:
+			throw new IllegalArgumentException( "Data type " + dataType + " is not supported by " + this + " histograms encoding" );
+		}
+	}
+
+	/**
+	 * @return dense counts in flat iteration order of the block
+	 */
+	public double[] decode( final DataBlock< ? > block )
+	{
+		final Object data = block.getData();
+		if ( this == SPARSE )
+		{
+			final int[] size = block.getSize();
+			return decodeSparse( ( int[] ) data, DataBlock.getNumElements( size ), size[ size.length - 1 ] );
+		}
+
+		if ( data instanceof double[] )
+			return ( double[] ) data;
+
+		final int numElements = DataBlock.getNumElements( block.getSize() );
+		final double[] histograms = new double[ numElements ];
+		if ( data instanceof short[] )
+		{
+			final short[] shortCounts = ( short[] ) data;
+			for ( int i = 0; i < numElements; ++i )
+				histograms[ i ] = shortCounts[ i ] & 0xffff;
+		}
+		else if ( data instanceof int[] )
+		{
+			final int[] intCounts = ( int[] ) data;
+			for ( int i = 0; i < numElements; ++i )
+				histograms[ i ] = intCounts[ i ] & 0xffffffffL;
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Block of " + data.getClass().getSimpleName() + " cannot be decoded by " + this + " histograms encoding" );
+		}
+		return histograms;
+	}
+
+	/**
+	 * @return encoding of the given histograms dataset ({@link #DOUBLE} if not specified)
+	 */
+	public static HistogramsEncoding read( final N5Reader n5, final String histogramsDataset ) throws IOException
+	{
+		final String encoding = n5.getAttribute( histogramsDataset, ATTRIBUTE_KEY, String.class );
+		return encoding != null ? HistogramsEncoding.valueOf( encoding ) : DOUBLE;
+	}
+
+	static int[] encodeSparse( final double[] histograms, final int bins )
+	{
+		final int numPixels = histograms.length / bins;
+		final int[] numNonZeroBins = new int[ numPixels ];
+		int totalNonZeroBins = 0;
+		for ( int bin = 0, i = 0; bin < bins; ++bin )
+		{
+			for ( int pixel = 0; pixel < numPixels; ++pixel, ++i )
+			{
+				if ( histograms[ i ] != 0 )
+				{
+					++numNonZeroBins[ pixel ];
+					++totalNonZeroBins;
+				}
+			}
+		}
+
+		final int[] data = new int[ numPixels + totalNonZeroBins * 2 ];
+		System.arraycopy( numNonZeroBins, 0, data, 0, numPixels );
+		for ( int pixel = 0, pos = numPixels; pixel < numPixels; ++pixel )
+		{
+			for ( int bin = 0, previousBin = 0; bin < bins; ++bin )
+			{
+				final double count = histograms[ bin * numPixels + pixel ];
+				if ( count != 0 )
+				{
+					data[ pos++ ] = bin - previousBin;
+					data[ pos++ ] = ( int ) count;
+					previousBin = bin;
+				}
+			}
+		}
+		return data;
+	}
+
+	static double[] decodeSparse( final int[] data, final int numElements, final int bins )
+	{
+		final int numPixels = numElements / bins;
+		final double[] histograms = new double[ numElements ];
+		for ( int pixel = 0, pos = numPixels; pixel < numPixels; ++pixel )
+		{
+			for ( int i = 0, bin = 0; i < data[ pixel ]; ++i )
+			{
+				bin += data[ pos++ ];
+				histograms[ bin * numPixels + pixel ] = data[ pos++ ];
+			}
+		}
+		return histograms;
+	}
+}
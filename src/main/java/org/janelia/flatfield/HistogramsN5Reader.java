@@ -0,0 +1,129 @@
+package org.janelia.flatfield;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Wraps an {@link N5Reader} and exposes the histograms datasets stored with a compact {@link HistogramsEncoding}
+ * as regular {@link DataType#FLOAT64} datasets, so they can be opened with {@link org.janelia.saalfeldlab.n5.imglib2.N5Utils#open(N5Reader, String)}
+ * and used as {@link net.imglib2.view.composite.RealComposite} histograms in the same way as the dense ones.
+ * All other datasets and requests are passed directly to the wrapped reader.
+ *
+ * @author Igor Pisarev
+ */
+public class HistogramsN5Reader implements N5Reader
+{
+	protected final N5Reader n5;
+
+	private final Map< String, HistogramsEncoding > encodings = new ConcurrentHashMap<>();
+	private final Map< String, DatasetAttributes > storageAttributes = new ConcurrentHashMap<>();
+
+	public HistogramsN5Reader( final N5Reader n5 )
+	{
+		this.n5 = n5;
+	}
+
+	@Override
+	public DataBlock< ? > readBlock( final String pathName, final DatasetAttributes datasetAttributes, final long[] gridPosition ) throws IOException
+	{
+		final HistogramsEncoding encoding = getEncoding( pathName );
+		if ( encoding == HistogramsEncoding.DOUBLE )
+			return n5.readBlock( pathName, datasetAttributes, gridPosition );
+
+		final DataBlock< ? > block = n5.readBlock( pathName, getStorageAttributes( pathName ), gridPosition );
+		if ( block == null )
+			return null;
+
+		return new DoubleArrayDataBlock( block.getSize(), block.getGridPosition(), encoding.decode( block ) );
+	}
+
+	@Override
+	public DatasetAttributes getDatasetAttributes( final String pathName ) throws IOException
+	{
+		final DatasetAttributes attributes = n5.getDatasetAttributes( pathName );
+		if ( attributes == null || getEncoding( pathName ) == HistogramsEncoding.DOUBLE )
+			return attributes;
+
+		return new DatasetAttributes(
+				attributes.getDimensions(),
+				attributes.getBlockSize(),
+				DataType.FLOAT64,
+				attributes.getCompression()
+			);
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Class< T > clazz ) throws IOException
+	{
+		return n5.getAttribute( pathName, key, clazz );
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Type type ) throws IOException
+	{
+		return n5.getAttribute( pathName, key, type );
+	}
+
+	@Override
+	public boolean exists( final String pathName )
+	{
+		return n5.exists( pathName );
+	}
+
+	@Override
+	public boolean datasetExists( final String pathName ) throws IOException
+	{
+		return n5.datasetExists( pathName );
+	}
+
+	@Override
+	public String[] list( final String pathName ) throws IOException
+	{
+		return n5.list( pathName );
+	}
+
+	@Override
+	public Map< String, Class< ? > > listAttributes( final String pathName ) throws IOException
+	{
+		return n5.listAttributes( pathName );
+	}
+
+	/**
+	 * Drops the cached encoding and storage attributes of the given dataset after it has been modified.
+	 */
+	protected void invalidate( final String pathName )
+	{
+		encodings.remove( pathName );
+		storageAttributes.remove( pathName );
+	}
+
+	private HistogramsEncoding getEncoding( final String pathName ) throws IOException
+	{
+		HistogramsEncoding encoding = encodings.get( pathName );
+		if ( encoding == null )
+		{
+			encoding = HistogramsEncoding.read( n5, pathName );
+			encodings.put( pathName, encoding );
+		}
+		return encoding;
+	}
+
+	private DatasetAttributes getStorageAttributes( final String pathName ) throws IOException
+	{
+		DatasetAttributes attributes = storageAttributes.get( pathName );
+		if ( attributes == null )
+		{
+			attributes = n5.getDatasetAttributes( pathName );
+			storageAttributes.put( pathName, attributes );
+		}
+		return attributes;
+	}
+}
@@ -0,0 +1,58 @@
+package org.janelia.flatfield;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * {@link HistogramsN5Reader} that also passes the write requests to the wrapped {@link N5Writer}.
+ * This allows to use the encoded histograms as the input for the jobs that read and write through the same N5 writer (e.g. downsampling).
+ * The written datasets are stored as they are.
+ *
+ * @author Igor Pisarev
+ */
+public class HistogramsN5Writer extends HistogramsN5Reader implements N5Writer
+{
+	private final N5Writer n5Writer;
+
+	public HistogramsN5Writer( final N5Writer n5Writer )
+	{
+		super( n5Writer );
+		this.n5Writer = n5Writer;
+	}
+
+	@Override
+	public void setAttributes( final String pathName, final Map< String, ? > attributes ) throws IOException
+	{
+		n5Writer.setAttributes( pathName, attributes );
+		invalidate( pathName );
+	}
+
+	@Override
+	public void createGroup( final String pathName ) throws IOException
+	{
+		n5Writer.createGroup( pathName );
+	}
+
+	@Override
+	public boolean remove( final String pathName ) throws IOException
+	{
+		invalidate( pathName );
+		return n5Writer.remove( pathName );
+	}
+
+	@Override
+	public < T > void writeBlock( final String pathName, final DatasetAttributes datasetAttributes, final DataBlock< T > dataBlock ) throws IOException
+	{
+		n5Writer.writeBlock( pathName, datasetAttributes, dataBlock );
+	}
+
+	@Override
+	public boolean deleteBlock( final String pathName, final long[] gridPosition ) throws IOException
+	{
+		return n5Writer.deleteBlock( pathName, gridPosition );
+	}
+}
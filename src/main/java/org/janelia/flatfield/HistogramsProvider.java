@@ -1,21 +1,21 @@
 package org.janelia.flatfield;
 
-import net.imglib2.RandomAccess;
 import net.imglib2.*;
 import net.imglib2.histogram.Real1dBinMapper;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 import net.imglib2.view.composite.CompositeIntervalView;
 import net.imglib2.view.composite.RealComposite;
 import org.apache.commons.lang.NotImplementedException;
+import org.apache.spark.HashPartitioner;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
 import org.janelia.dataaccess.DataProvider;
@@ -23,6 +23,7 @@ import org.janelia.dataaccess.DataProviderFactory;
 import org.janelia.dataaccess.DataProviderType;
 import org.janelia.dataaccess.PathResolver;
 import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
@@ -35,7 +36,6 @@ import scala.Tuple2;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.URISyntaxException;
-import java.util.Iterator;
 import java.util.*;
 
 public class HistogramsProvider implements Serializable
@@ -43,6 +43,7 @@ public class HistogramsProvider implements Serializable
 	private static final long serialVersionUID = 2090264857259429741L;
 
 	private static final double REFERENCE_HISTOGRAM_POINTS_PERCENT = 0.25;
+	private static final int REFERENCE_HISTOGRAM_MEAN_BUCKETS = 1 << 16;
 	private static final int HISTOGRAMS_DEFAULT_BLOCK_SIZE = 64;
 	private static final String HISTOGRAMS_N5_DATASET_NAME = "histograms-n5";
 
@@ -54,17 +55,23 @@ public class HistogramsProvider implements Serializable
 
 	private static final int MAX_PARTITIONS = 15000;
 
+	// bin indexes of the tile-major path are stored as unsigned shorts
+	private static final int MAX_TILE_MAJOR_BINS = 1 << 16;
+
 	private transient final JavaSparkContext sparkContext;
 	private transient final DataProvider dataProvider;
 	private transient final TileInfo[] tiles;
 	private transient final Interval workingInterval;
 
 	private final DataProviderType dataProviderType;
+	private final TileType tileType;
 
 	private final String histogramsN5BasePath;
 	private final String histogramsDataset;
 
 	private final HistogramSettings histogramSettings;
+	private final HistogramsEncoding histogramsEncoding;
+	private final long maxBinCount;
 
 	private final long[] fieldOfViewSize;
 	private final int[] blockSize;
@@ -78,7 +85,8 @@ public class HistogramsProvider implements Serializable
 			final String basePath,
 			final TileInfo[] tiles,
 			final long[] fullTileSize,
-			final HistogramSettings histogramSettings ) throws IOException, URISyntaxException
+			final HistogramSettings histogramSettings,
+			final HistogramsEncoding histogramsEncoding ) throws IOException, URISyntaxException
 	{
 		this.sparkContext = sparkContext;
 		this.dataProvider = dataProvider;
@@ -86,6 +94,7 @@ public class HistogramsProvider implements Serializable
 		this.tiles = tiles;
 
 		this.histogramSettings = histogramSettings;
+		this.histogramsEncoding = histogramsEncoding;
 
 		dataProviderType = dataProvider.getType();
 
@@ -94,12 +103,15 @@ public class HistogramsProvider implements Serializable
 
 		// set field of view size and block size
 		// check if tiles are single image files, or N5 datasets
-		final TileType tileType = TileLoader.getTileType( tiles[ 0 ], dataProvider );
+		tileType = TileLoader.getTileType( tiles[ 0 ], dataProvider );
 		// TODO: check that all tiles are of the same type
 
 		final boolean use2D = workingInterval.numDimensions() < fullTileSize.length;
 
 		fieldOfViewSize = use2D ? new long[] { fullTileSize[ 0 ], fullTileSize[ 1 ] } : fullTileSize.clone();
+
+		// each pixel of the field of view gets a value from every tile (and from every slice of the tile in 2D mode)
+		maxBinCount = tiles.length * ( use2D ? Intervals.numElements( fullTileSize ) / Intervals.numElements( fieldOfViewSize ) : 1 );
 		blockSize = new int[ fieldOfViewSize.length ];
 		if ( tileType == TileType.N5_DATASET )
 		{
@@ -147,7 +159,7 @@ public class HistogramsProvider implements Serializable
 	public String getHistogramsN5BasePath() { return histogramsN5BasePath; }
 	public String getHistogramsDataset() { return histogramsDataset; }
 
-	private < T extends NativeType< T > & RealType< T >, R extends RealType< R > > void populateHistogramsN5() throws IOException
+	private void populateHistogramsN5() throws IOException
 	{
 		System.out.println( "Binning the input stack and saving as N5 blocks..." );
 
@@ -162,13 +174,24 @@ public class HistogramsProvider implements Serializable
 		final N5Writer n5 = dataProvider.createN5Writer( histogramsN5BasePath );
 		if ( !n5.datasetExists( histogramsDataset ) )
 		{
+			HistogramsEncoding encoding = histogramsEncoding;
+			DataType dataType = encoding.getDataType( maxBinCount );
+			if ( dataType == null )
+			{
+				System.out.println( "Bin counts up to " + maxBinCount + " cannot be stored with " + encoding + " histograms encoding, using " + HistogramsEncoding.DOUBLE + " instead" );
+				encoding = HistogramsEncoding.DOUBLE;
+				dataType = encoding.getDataType( maxBinCount );
+			}
+			System.out.println( "Storing histograms with " + encoding + " encoding as " + dataType );
+
 			n5.createDataset(
 					histogramsDataset,
 					extendedDimensions,
 					extendedBlockSize,
-					DataType.FLOAT64,
+					dataType,
 					new GzipCompression()
 				);
+			n5.setAttribute( histogramsDataset, HistogramsEncoding.ATTRIBUTE_KEY, encoding.name() );
 		}
 		else
 		{
@@ -196,6 +219,29 @@ public class HistogramsProvider implements Serializable
 		histogramAttributes.put( HISTOGRAM_NUM_BINS_KEY, histogramSettings.bins );
 		n5.setAttributes( histogramsDataset, histogramAttributes );
 
+		// resolve the dataset attributes and the encoding once instead of reading them for every block
+		final DatasetAttributes histogramsDatasetAttributes = n5.getDatasetAttributes( histogramsDataset );
+		final HistogramsEncoding encoding = HistogramsEncoding.read( n5, histogramsDataset );
+
+		if ( tileType == TileType.IMAGE_FILE && histogramSettings.bins <= MAX_TILE_MAJOR_BINS )
+			populateHistogramsTileMajor( extendedBlockSize, histogramsDatasetAttributes, encoding );
+		else
+			populateHistogramsBlockMajor( extendedDimensions, extendedBlockSize, histogramsDatasetAttributes, encoding );
+
+		// mark all histograms as ready to skip block existence check and save time for subsequent runs
+		n5.setAttribute( histogramsDataset, ALL_HISTOGRAMS_EXIST_KEY, true );
+	}
+
+	/**
+	 * Populates the histograms block by block. Each task loops over all tiles and reads the part of each tile that corresponds to its block,
+	 * which is efficient for tiles stored as N5 datasets where the histogram blocks are aligned with the tile blocks.
+	 */
+	private < T extends NativeType< T > & RealType< T >, R extends RealType< R > > void populateHistogramsBlockMajor(
+			final long[] extendedDimensions,
+			final int[] extendedBlockSize,
+			final DatasetAttributes histogramsDatasetAttributes,
+			final HistogramsEncoding encoding )
+	{
 		final Broadcast< TileInfo[] > broadcastedTiles = sparkContext.broadcast( tiles );
 
 		final List< long[] > blockPositions = getBlockPositions( fieldOfViewSize, blockSize );
@@ -213,7 +259,7 @@ public class HistogramsProvider implements Serializable
 				final Interval extendedBlockInterval = new FinalInterval( extendedCellMin, extendedCellMax );
 
 				// create histogram block
-				final RandomAccessibleInterval< DoubleType > histogramsStorageBlockImg = ArrayImgs.doubles( Intervals.dimensionsAsLongArray( extendedBlockInterval ) );
+				final ArrayImg< DoubleType, DoubleArray > histogramsStorageBlockImg = ArrayImgs.doubles( Intervals.dimensionsAsLongArray( extendedBlockInterval ) );
 				final RandomAccessibleInterval< R > histogramsGenericStorageBlockImg = ( RandomAccessibleInterval< R > ) histogramsStorageBlockImg;
 				final RandomAccessibleInterval< RealComposite< R > > histogramsBlockImg = Views.collapseReal( histogramsGenericStorageBlockImg );
 				final Real1dBinMapper< R > binMapper = new Real1dBinMapper<>( histogramSettings.histMinValue, histogramSettings.histMaxValue, histogramSettings.bins, true );
@@ -234,23 +280,7 @@ public class HistogramsProvider implements Serializable
 				for ( final TileInfo tile : broadcastedTiles.value() )
 				{
 					final RandomAccessibleInterval< T > tileStorageImg = TileLoader.loadTile( tile, dataProviderLocal );
-					final Interval tileImgOffsetInterval;
-					if ( tileStorageImg.numDimensions() == 3 )
-					{
-						tileImgOffsetInterval = new FinalInterval(
-								new long[] { blockInterval.min( 0 ), blockInterval.min( 1 ), blockInterval.numDimensions() >= 3 ? blockInterval.min( 2 ) : tileStorageImg.min( 2 ) },
-								new long[] { blockInterval.max( 0 ), blockInterval.max( 1 ), blockInterval.numDimensions() >= 3 ? blockInterval.max( 2 ) : tileStorageImg.max( 2 ) }
-							);
-					}
-					else
-					{
-						tileImgOffsetInterval = new FinalInterval(
-								new long[] { blockInterval.min( 0 ), blockInterval.min( 1 ) },
-								new long[] { blockInterval.max( 0 ), blockInterval.max( 1 ) }
-							);
-					}
-
-					final RandomAccessibleInterval< T > tileStorageImgInterval = Views.offsetInterval( tileStorageImg, tileImgOffsetInterval );
+					final RandomAccessibleInterval< T > tileStorageImgInterval = Views.offsetInterval( tileStorageImg, getTileBlockInterval( tileStorageImg, blockInterval ) );
 					final Cursor< RealComposite< R > > histogramsBlockImgCursor = Views.flatIterable( histogramsBlockImg ).cursor();
 
 					if ( tileStorageImg.numDimensions() == blockInterval.numDimensions() )
@@ -294,13 +324,175 @@ public class HistogramsProvider implements Serializable
 				System.out.println( "Block min=" + Arrays.toString( Intervals.minAsLongArray( blockInterval ) ) + ", max=" + Arrays.toString( Intervals.maxAsLongArray( blockInterval ) ) + ": populated histograms" );
 
 				final N5Writer n5Local = dataProviderLocal.createN5Writer( histogramsN5BasePath );
-				N5Utils.saveBlock( histogramsStorageBlockImg, n5Local, histogramsDataset, extendedBlockPosition );
+				saveHistogramsBlock( n5Local, histogramsDataset, histogramsDatasetAttributes, encoding, histogramsStorageBlockImg.update( null ).getCurrentStorageArray(), extendedCellDimensions, extendedBlockPosition );
 			} );
 
 		broadcastedTiles.destroy();
+	}
 
-		// mark all histograms as ready to skip block existence check and save time for subsequent runs
-		n5.setAttribute( histogramsDataset, ALL_HISTOGRAMS_EXIST_KEY, true );
+	/**
+	 * Populates the histograms tile by tile. Image files can only be read as a whole, so each task reads a single tile once
+	 * and maps its values to bin indexes for every histogram block. The binned blocks of all tiles are then shuffled by the block index
+	 * and accumulated into the histograms.
+	 * The binned blocks are merged only on the reduce side: a map-side combine would have to hold dense histograms for all blocks covered by the tiles in a partition,
+	 * which is as large as the entire histograms dataset, whereas a binned block takes only 2 bytes per tile pixel.
+	 */
+	private < T extends NativeType< T > & RealType< T > > void populateHistogramsTileMajor(
+			final int[] extendedBlockSize,
+			final DatasetAttributes histogramsDatasetAttributes,
+			final HistogramsEncoding encoding )
+	{
+		final List< long[] > blockPositions = getBlockPositions( fieldOfViewSize, blockSize );
+		final int numBlocks = blockPositions.size();
+		final int bins = histogramSettings.bins;
+
+		sparkContext.parallelize( Arrays.asList( tiles ), Math.min( tiles.length, MAX_PARTITIONS ) )
+			.flatMapToPair( tile ->
+				{
+					final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
+					final RandomAccessibleInterval< T > tileStorageImg = TileLoader.loadTile( tile, dataProviderLocal );
+					final Real1dBinMapper< T > binMapper = new Real1dBinMapper<>( histogramSettings.histMinValue, histogramSettings.histMaxValue, histogramSettings.bins, true );
+
+					final CellGrid cellGrid = new CellGrid( fieldOfViewSize, blockSize );
+					final long[] blockPosition = new long[ cellGrid.numDimensions() ];
+					final List< Tuple2< Long, Tuple2< Integer, short[] > > > binnedBlocks = new ArrayList<>( numBlocks );
+					for ( long blockIndex = 0; blockIndex < numBlocks; ++blockIndex )
+					{
+						cellGrid.getCellGridPositionFlat( blockIndex, blockPosition );
+						final Interval blockInterval = getBlockInterval( cellGrid, blockPosition );
+						final RandomAccessibleInterval< T > tileStorageImgInterval = Views.offsetInterval( tileStorageImg, getTileBlockInterval( tileStorageImg, blockInterval ) );
+						binnedBlocks.add( new Tuple2<>(
+								blockIndex,
+								new Tuple2<>( ( int ) Intervals.numElements( blockInterval ), binValues( tileStorageImgInterval, binMapper ) )
+							) );
+					}
+
+					System.out.println( "Tile " + tile.getIndex() + ": binned " + numBlocks + " blocks" );
+					return binnedBlocks.iterator();
+				}
+			)
+			.combineByKey(
+					binnedBlock -> accumulateBinnedValues( new double[ binnedBlock._1() * bins ], binnedBlock._1(), binnedBlock._2() ),
+					( histogramsBlock, binnedBlock ) -> accumulateBinnedValues( histogramsBlock, binnedBlock._1(), binnedBlock._2() ),
+					( histogramsBlock, other ) ->
+						{
+							for ( int i = 0; i < histogramsBlock.length; ++i )
+								histogramsBlock[ i ] += other[ i ];
+							return histogramsBlock;
+						},
+					new HashPartitioner( Math.min( numBlocks, MAX_PARTITIONS ) ),
+					false, // do not combine on the map side
+					null // default serializer
+				)
+			.foreach( blockIndexAndHistograms ->
+				{
+					final CellGrid cellGrid = new CellGrid( fieldOfViewSize, blockSize );
+					final long[] blockPosition = new long[ cellGrid.numDimensions() ];
+					cellGrid.getCellGridPositionFlat( blockIndexAndHistograms._1(), blockPosition );
+					final Interval blockInterval = getBlockInterval( cellGrid, blockPosition );
+
+					final long[] extendedBlockPosition = new long[ extendedBlockSize.length ];
+					System.arraycopy( blockPosition, 0, extendedBlockPosition, 0, blockPosition.length );
+					final int[] extendedBlockDimensions = new int[ extendedBlockSize.length ];
+					for ( int d = 0; d < blockPosition.length; ++d )
+						extendedBlockDimensions[ d ] = ( int ) blockInterval.dimension( d );
+					extendedBlockDimensions[ blockPosition.length ] = histogramSettings.bins;
+
+					final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
+					final N5Writer n5Local = dataProviderLocal.createN5Writer( histogramsN5BasePath );
+					saveHistogramsBlock( n5Local, histogramsDataset, histogramsDatasetAttributes, encoding, blockIndexAndHistograms._2(), extendedBlockDimensions, extendedBlockPosition );
+
+					System.out.println( "Block min=" + Arrays.toString( Intervals.minAsLongArray( blockInterval ) ) + ", max=" + Arrays.toString( Intervals.maxAsLongArray( blockInterval ) ) + ": populated histograms" );
+				}
+			);
+	}
+
+	/**
+	 * Stores a block of histograms using the encoding of the histograms dataset.
+	 * The dataset attributes and the encoding are resolved once on the driver and passed to the tasks.
+	 *
+	 * @param histograms dense counts in flat iteration order of the block (the bins dimension is the last one)
+	 */
+	private static void saveHistogramsBlock(
+			final N5Writer n5,
+			final String histogramsDataset,
+			final DatasetAttributes histogramsDatasetAttributes,
+			final HistogramsEncoding encoding,
+			final double[] histograms,
+			final int[] extendedBlockDimensions,
+			final long[] extendedBlockPosition ) throws IOException
+	{
+		n5.writeBlock(
+				histogramsDataset,
+				histogramsDatasetAttributes,
+				encoding.encode( histograms, extendedBlockDimensions, extendedBlockPosition, histogramsDatasetAttributes.getDataType() )
+			);
+	}
+
+	/**
+	 * Maps the values to their bin indexes. The bin indexes are stored as unsigned shorts.
+	 *
+	 * @return bin indexes in flat iteration order of the given interval
+	 */
+	static < T extends RealType< T > > short[] binValues( final RandomAccessibleInterval< T > img, final Real1dBinMapper< T > binMapper )
+	{
+		final short[] binnedValues = new short[ ( int ) Intervals.numElements( img ) ];
+		final Cursor< T > cursor = Views.flatIterable( img ).cursor();
+		for ( int i = 0; i < binnedValues.length; ++i )
+			binnedValues[ i ] = ( short ) binMapper.map( cursor.next() );
+		return binnedValues;
+	}
+
+	/**
+	 * Adds binned values to the histograms of a block.
+	 * If the binned values contain more elements than the block (when the tile has an additional dimension that is collapsed into the histograms),
+	 * the values are assigned to the pixels cyclically, which matches the flat iteration order of the tile interval.
+	 *
+	 * @param histogramsBlock histograms of the block in flat iteration order of the histograms dataset (the bins dimension is the last one)
+	 * @param numPixels number of pixels in the block
+	 * @param binnedValues bin indexes of the values (see {@link #binValues(RandomAccessibleInterval, Real1dBinMapper)})
+	 * @return histograms block
+	 */
+	static double[] accumulateBinnedValues( final double[] histogramsBlock, final int numPixels, final short[] binnedValues )
+	{
+		for ( int i = 0, pixel = 0; i < binnedValues.length; ++i )
+		{
+			histogramsBlock[ ( binnedValues[ i ] & 0xffff ) * numPixels + pixel ] += 1;
+			if ( ++pixel == numPixels )
+				pixel = 0;
+		}
+		return histogramsBlock;
+	}
+
+	private static Interval getBlockInterval( final CellGrid cellGrid, final long[] blockPosition )
+	{
+		final long[] cellMin = new long[ cellGrid.numDimensions() ], cellMax = new long[ cellGrid.numDimensions() ];
+		final int[] cellDimensions = new int[ cellGrid.numDimensions() ];
+		cellGrid.getCellDimensions( blockPosition, cellMin, cellDimensions );
+		for ( int d = 0; d < cellGrid.numDimensions(); ++d )
+			cellMax[ d ] = cellMin[ d ] + cellDimensions[ d ] - 1;
+		return new FinalInterval( cellMin, cellMax );
+	}
+
+	/**
+	 * @return interval of the tile that corresponds to the given histograms block (the entire extent in the last dimension if the tile has an additional dimension)
+	 */
+	private static Interval getTileBlockInterval( final Interval tileImg, final Interval blockInterval )
+	{
+		if ( tileImg.numDimensions() == 3 )
+		{
+			return new FinalInterval(
+					new long[] { blockInterval.min( 0 ), blockInterval.min( 1 ), blockInterval.numDimensions() >= 3 ? blockInterval.min( 2 ) : tileImg.min( 2 ) },
+					new long[] { blockInterval.max( 0 ), blockInterval.max( 1 ), blockInterval.numDimensions() >= 3 ? blockInterval.max( 2 ) : tileImg.max( 2 ) }
+				);
+		}
+		else
+		{
+			return new FinalInterval(
+					new long[] { blockInterval.min( 0 ), blockInterval.min( 1 ) },
+					new long[] { blockInterval.max( 0 ), blockInterval.max( 1 ) }
+				);
+		}
 	}
 
 	public double[] getReferenceHistogram() throws IOException
@@ -351,92 +543,59 @@ public class HistogramsProvider implements Serializable
 		final long mStart = Math.round( numPixels / 2.0 ) - Math.round( numMedianPoints / 2.0 );
 		final long mEnd = mStart + numMedianPoints;
 
-		final List< long[] > blockPositions = getBlockPositions( fieldOfViewSize, blockSize );
-		final double[] accumulatedFilteredHistogram = sparkContext.parallelize( blockPositions, Math.min( blockPositions.size(), MAX_PARTITIONS ) )
-			// compute mean value for each histogram
-			.flatMapToPair( blockPosition ->
-				{
-					final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
-					final N5Reader n5Local = dataProviderLocal.createN5Reader( histogramsN5BasePath );
-					final RandomAccessibleInterval< T > histogramsStorageImg = N5Utils.open( n5Local, histogramsDataset );
-					final CompositeIntervalView< T, RealComposite< T > > histogramsImg = Views.collapseReal( histogramsStorageImg );
-
-					final Real1dBinMapper< T > binMapper = new Real1dBinMapper<>( histogramSettings.histMinValue, histogramSettings.histMaxValue, histogramSettings.bins, true );
-					final T binCenterValue = ( T ) new DoubleType();
-
-					final CellGrid cellGrid = new CellGrid( fieldOfViewSize, blockSize );
-					final long[] cellMin = new long[ cellGrid.numDimensions() ], cellMax = new long[ cellGrid.numDimensions() ];
-					final int[] cellDimensions = new int[ cellGrid.numDimensions() ];
-					cellGrid.getCellDimensions( blockPosition, cellMin, cellDimensions );
-					for ( int d = 0; d < cellGrid.numDimensions(); ++d )
-						cellMax[ d ] = cellMin[ d ] + cellDimensions[ d ] - 1;
-					final Interval blockInterval = new FinalInterval( cellMin, cellMax );
+		// histogram means are weighted averages of the inner bin values, so they are within the range of these values
+		final double[] binValues = HistogramMatching.getBinValues( histogramSettings );
+		final double minMean = binValues[ 1 ], maxMean = binValues[ histogramSettings.bins - 2 ];
 
-					final IntervalView< RealComposite< T > > histogramsBlockImg = Views.interval( histogramsImg, blockInterval );
-					final Cursor< RealComposite< T > > histogramsBlockImgCursor = Views.iterable( histogramsBlockImg ).localizingCursor();
+		final List< long[] > blockPositions = getBlockPositions( fieldOfViewSize, blockSize );
 
-					final List< Tuple2< Float, Long > > histogramMeanAndPixelIndex = new ArrayList<>();
+		// first pass: count the histogram means in fine buckets to find the cut values
+		final long[] meanBucketCounts = sparkContext.parallelize( blockPositions, Math.min( blockPositions.size(), MAX_PARTITIONS ) )
+			.map( blockPosition ->
+				{
+					final long[] blockMeanBucketCounts = new long[ REFERENCE_HISTOGRAM_MEAN_BUCKETS + 1 ];
+					final Cursor< RealComposite< T > > histogramsBlockImgCursor = openHistogramsBlock( dataProviderType, histogramsN5BasePath, histogramsDataset, fieldOfViewSize, blockSize, blockPosition );
 					while ( histogramsBlockImgCursor.hasNext() )
-					{
-						final RealComposite< T > histogram = histogramsBlockImgCursor.next();
-
-						// compute mean value of the histogram (excluding tail bins)
-						double histogramValueSum = 0, histogramQuantitySum = 0;
-						for ( long bin = 1; bin < histogramSettings.bins - 1; ++bin )
-						{
-							final double binQuantity = histogram.get( bin ).getRealDouble();
-							binMapper.getCenterValue( bin, binCenterValue );
-							histogramValueSum += binQuantity * binCenterValue.getRealDouble();
-							histogramQuantitySum += binQuantity;
-						}
-						final double histogramMean = histogramValueSum / histogramQuantitySum;
-
-						final long pixelIndex = IntervalIndexer.positionToIndex( histogramsBlockImgCursor, histogramsImg );
-						histogramMeanAndPixelIndex.add( new Tuple2<>( ( float ) histogramMean, pixelIndex ) );
-					}
-					return histogramMeanAndPixelIndex.iterator();
+						++blockMeanBucketCounts[ getMeanBucket( getHistogramMean( histogramsBlockImgCursor.next(), binValues ), minMean, maxMean, REFERENCE_HISTOGRAM_MEAN_BUCKETS ) ];
+					return blockMeanBucketCounts;
 				}
 			)
-			// sort histograms by their mean values
-			.sortByKey()
-			.zipWithIndex()
-			// choose subset of these histograms (e.g. >25% and <75%)
-			.filter( tuple -> tuple._2() >= mStart && tuple._2() < mEnd )
-			// map filtered histograms to their respective N5 blocks where they belong
-			.mapToPair( tuple ->
+			.treeReduce( ( counts, other ) ->
 				{
-					final long pixelIndex = tuple._1()._2();
-					final long[] pixelPosition = new long[ fieldOfViewSize.length ], blockPosition = new long[ fieldOfViewSize.length ];
-					IntervalIndexer.indexToPosition( pixelIndex, fieldOfViewSize, pixelPosition );
-
-					final CellGrid cellGrid = new CellGrid( fieldOfViewSize, blockSize );
-					final long[] cellGridDimensions = cellGrid.getGridDimensions();
-					cellGrid.getCellPosition( pixelPosition, blockPosition );
+					for ( int bucket = 0; bucket < counts.length; ++bucket )
+						counts[ bucket ] += other[ bucket ];
+					return counts;
+				},
+				Integer.MAX_VALUE // max possible aggregation depth
+			);
 
-					final long blockIndex = IntervalIndexer.positionToIndex( blockPosition, cellGridDimensions );
-					return new Tuple2<>( blockIndex, pixelPosition );
-				}
-			)
-			// group filtered histograms by their respective N5 blocks
-			.groupByKey()
-			// for each N5 block, accumulate all filtered histograms within this block
-			.map( tuple ->
+		// choose subset of the histograms by their mean values (e.g. >25% and <75%)
+		final int[] cutBuckets = getCutBuckets( meanBucketCounts, mStart, mEnd );
+		final long numSelectedPoints = getNumSelectedPoints( meanBucketCounts, cutBuckets );
+		System.out.println( String.format(
+				"Reference histogram: selected %d histograms with mean values in [%.2f, %.2f), expected %d",
+				numSelectedPoints,
+				getMeanBucketMin( cutBuckets[ 0 ], minMean, maxMean, REFERENCE_HISTOGRAM_MEAN_BUCKETS ),
+				getMeanBucketMin( cutBuckets[ 1 ], minMean, maxMean, REFERENCE_HISTOGRAM_MEAN_BUCKETS ),
+				numMedianPoints
+			) );
+
+		if ( numSelectedPoints == 0 )
+			throw new RuntimeException( "no histograms with the mean value in the expected range to estimate the reference histogram" );
+
+		// second pass: for each N5 block, accumulate all histograms within the cut values, and then aggregate them
+		final double[] accumulatedFilteredHistogram = sparkContext.parallelize( blockPositions, Math.min( blockPositions.size(), MAX_PARTITIONS ) )
+			.map( blockPosition ->
 				{
-					final Iterable< long[] > pixelPositions = tuple._2();
-					final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
-					final N5Reader n5Local = dataProviderLocal.createN5Reader( histogramsN5BasePath );
-					final RandomAccessibleInterval< T > histogramsStorageImg = N5Utils.open( n5Local, histogramsDataset );
-					final CompositeIntervalView< T, RealComposite< T > > histogramsImg = Views.collapseReal( histogramsStorageImg );
-					final RandomAccess< RealComposite< T > > histogramsImgRandomAccess = histogramsImg.randomAccess();
-
 					final double[] accumulatedFilteredBlockHistogram = new double[ histogramSettings.bins ];
-					for ( final Iterator< long[] > it = pixelPositions.iterator(); it.hasNext(); )
+					final Cursor< RealComposite< T > > histogramsBlockImgCursor = openHistogramsBlock( dataProviderType, histogramsN5BasePath, histogramsDataset, fieldOfViewSize, blockSize, blockPosition );
+					while ( histogramsBlockImgCursor.hasNext() )
 					{
-						final long[] pixelPosition = it.next();
-						histogramsImgRandomAccess.setPosition( pixelPosition );
-						final RealComposite< T > histogram = histogramsImgRandomAccess.get();
-						for ( int bin = 0; bin < histogramSettings.bins; ++bin )
-							accumulatedFilteredBlockHistogram[ bin ] += histogram.get( bin ).getRealDouble();
+						final RealComposite< T > histogram = histogramsBlockImgCursor.next();
+						final int bucket = getMeanBucket( getHistogramMean( histogram, binValues ), minMean, maxMean, REFERENCE_HISTOGRAM_MEAN_BUCKETS );
+						if ( bucket >= cutBuckets[ 0 ] && bucket < cutBuckets[ 1 ] )
+							for ( int bin = 0; bin < histogramSettings.bins; ++bin )
+								accumulatedFilteredBlockHistogram[ bin ] += histogram.get( bin ).getRealDouble();
 					}
 					return accumulatedFilteredBlockHistogram;
 				}
@@ -452,11 +611,119 @@ public class HistogramsProvider implements Serializable
 
 		// average the accumulated histogram
 		for ( int bin = 0; bin < histogramSettings.bins; ++bin )
-			accumulatedFilteredHistogram[ bin ] /= numMedianPoints;
+			accumulatedFilteredHistogram[ bin ] /= numSelectedPoints;
 
 		return accumulatedFilteredHistogram;
 	}
 
+	private static < T extends RealType< T > & NativeType< T > > Cursor< RealComposite< T > > openHistogramsBlock(
+			final DataProviderType dataProviderType,
+			final String histogramsN5BasePath,
+			final String histogramsDataset,
+			final long[] fieldOfViewSize,
+			final int[] blockSize,
+			final long[] blockPosition ) throws IOException
+	{
+		final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
+		final N5Reader n5Local = new HistogramsN5Reader( dataProviderLocal.createN5Reader( histogramsN5BasePath ) );
+		final RandomAccessibleInterval< T > histogramsStorageImg = N5Utils.open( n5Local, histogramsDataset );
+		final CompositeIntervalView< T, RealComposite< T > > histogramsImg = Views.collapseReal( histogramsStorageImg );
+
+		final CellGrid cellGrid = new CellGrid( fieldOfViewSize, blockSize );
+		final Interval blockInterval = getBlockInterval( cellGrid, blockPosition );
+		return Views.flatIterable( Views.interval( histogramsImg, blockInterval ) ).cursor();
+	}
+
+	/**
+	 * @return mean value of the histogram excluding the tail bins, or NaN if all values are in the tail bins
+	 */
+	static < T extends RealType< T > > double getHistogramMean( final RealComposite< T > histogram, final double[] binValues )
+	{
+		double histogramValueSum = 0, histogramQuantitySum = 0;
+		for ( int bin = 1; bin < binValues.length - 1; ++bin )
+		{
+			final double binQuantity = histogram.get( bin ).getRealDouble();
+			histogramValueSum += binQuantity * binValues[ bin ];
+			histogramQuantitySum += binQuantity;
+		}
+		return histogramValueSum / histogramQuantitySum;
+	}
+
+	/**
+	 * @return bucket of the histogram mean value in [0, numBuckets), or numBuckets for NaN values (they are sorted after all other values)
+	 */
+	static int getMeanBucket( final double mean, final double minMean, final double maxMean, final int numBuckets )
+	{
+		if ( Double.isNaN( mean ) )
+			return numBuckets;
+		final double bucket = ( mean - minMean ) / ( maxMean - minMean ) * numBuckets;
+		return ( int ) Math.max( Math.min( bucket, numBuckets - 1 ), 0 );
+	}
+
+	private static double getMeanBucketMin( final int bucket, final double minMean, final double maxMean, final int numBuckets )
+	{
+		return minMean + ( maxMean - minMean ) * bucket / numBuckets;
+	}
+
+	/**
+	 * Finds the range of buckets that contains the histograms with ranks from {@code start} (inclusive) to {@code end} (exclusive)
+	 * when sorted by their mean values. The cuts are placed at the bucket boundaries that are the closest to the requested ranks,
+	 * so the number of selected histograms differs from the requested one by at most a half of the two boundary buckets.
+	 * NaN means (the last bucket) are never selected.
+	 *
+	 * @return first (inclusive) and last (exclusive) selected buckets
+	 */
+	static int[] getCutBuckets( final long[] meanBucketCounts, final long start, final long end )
+	{
+		final int numBuckets = meanBucketCounts.length - 1;
+		final int[] cutBuckets = new int[] { 0, 0 };
+		final long[] cutRanks = new long[] { start, end };
+		final long[] cutRankDistances = new long[] { Long.MAX_VALUE, Long.MAX_VALUE };
+
+		// number of histograms with the mean value in the buckets before the current one
+		long rank = 0;
+		for ( int bucket = 0; bucket <= numBuckets; ++bucket )
+		{
+			for ( int i = 0; i < 2; ++i )
+			{
+				// among the equally distant boundaries choose the ones that give the narrowest range
+				final long cutRankDistance = Math.abs( rank - cutRanks[ i ] );
+				if ( cutRankDistance < cutRankDistances[ i ] || ( i == 0 && cutRankDistance == cutRankDistances[ i ] ) )
+				{
+					cutBuckets[ i ] = bucket;
+					cutRankDistances[ i ] = cutRankDistance;
+				}
+			}
+			if ( bucket < numBuckets )
+				rank += meanBucketCounts[ bucket ];
+		}
+
+		// if the requested range is narrow compared to the bucket size, select the bucket that contains it
+		if ( cutBuckets[ 0 ] >= cutBuckets[ 1 ] )
+		{
+			rank = 0;
+			for ( int bucket = 0; bucket < numBuckets; ++bucket )
+			{
+				rank += meanBucketCounts[ bucket ];
+				if ( rank > start )
+				{
+					cutBuckets[ 0 ] = bucket;
+					cutBuckets[ 1 ] = bucket + 1;
+					break;
+				}
+			}
+		}
+		return cutBuckets;
+	}
+
+	static long getNumSelectedPoints( final long[] meanBucketCounts, final int[] cutBuckets )
+	{
+		long numSelectedPoints = 0;
+		for ( int bucket = cutBuckets[ 0 ]; bucket < cutBuckets[ 1 ]; ++bucket )
+			numSelectedPoints += meanBucketCounts[ bucket ];
+		return numSelectedPoints;
+	}
+
 	public static List< long[] > getBlockPositions( final long[] dimensions, final int[] blockSize )
 	{
 		final List< long[] > blockPositions = new ArrayList<>();
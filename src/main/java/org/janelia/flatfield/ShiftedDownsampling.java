@@ -99,9 +99,10 @@ public class ShiftedDownsampling< A extends AffineGet & AffineSet >
 
 		scalePyramidDatasetPaths = new ArrayList<>();
 		scalePyramidDatasetPaths.add( fullScaleHistogramsDataset );
+		// the full scale histograms may be stored with a compact encoding, the downsampled histograms are averaged and stored as double values
 		scalePyramidDatasetPaths.addAll( N5OffsetScalePyramidSpark.downsampleOffsetScalePyramid(
 				sparkContext,
-				() -> DataProviderFactory.create( dataProviderType ).createN5Writer( histogramsN5BasePath ),
+				() -> new HistogramsN5Writer( DataProviderFactory.create( dataProviderType ).createN5Writer( histogramsN5BasePath ) ),
 				fullScaleHistogramsDataset,
 				downsampledHistogramsGroupPath,
 				downsamplingFactors,
@@ -1,13 +1,24 @@
 package org.janelia.flatfield;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Comparator;
 
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.dataaccess.DataProvider;
 import org.janelia.dataaccess.DataProviderFactory;
+import org.janelia.dataaccess.PathResolver;
 import org.janelia.stitching.TileInfo;
 import org.janelia.stitching.TileLoader;
 
+import com.google.gson.Gson;
+
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.histogram.Real1dBinMapper;
@@ -18,6 +29,13 @@ import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 
+/**
+ * Histogram of all values of a tile stack. It can be estimated from a fraction of slices of each tile,
+ * in which case the slices are split into {@link #NUM_SUBSAMPLES} interpenetrating subsamples
+ * and the spread of the estimates over the subsamples is reported as the confidence bounds of the estimated values.
+ *
+ * @author Igor Pisarev
+ */
 public class StackHistogram
 {
 	public static enum QuantileMode
@@ -27,15 +45,45 @@ public class StackHistogram
 		CenterValue
 	}
 
+	/**
+	 * Number of interpenetrating subsamples in the sampled mode. If the subsamples are independent,
+	 * the range of their estimates contains the median of the estimated value with probability 1 - 2^(1-{@value}).
+	 */
+	public static final int NUM_SUBSAMPLES = 10;
+
+	private static final String STACK_HISTOGRAM_FILENAME_PREFIX = "stack-histogram-";
+
 	private final long[] stackHistogram;
 	private final HistogramSettings stackHistogramSettings;
 
-	private StackHistogram( final long[] stackHistogram, final HistogramSettings stackHistogramSettings )
+	// fraction of slices of each tile that has been used for estimating the histogram (1 if all data has been used)
+	private final double sampledFraction;
+
+	// histograms of the subsamples in the sampled mode (null if all data has been used)
+	private final long[][] subsampleHistograms;
+
+	StackHistogram( final long[] stackHistogram, final HistogramSettings stackHistogramSettings )
+	{
+		this( stackHistogram, stackHistogramSettings, 1, null );
+	}
+
+	StackHistogram( final long[][] subsampleHistograms, final HistogramSettings stackHistogramSettings, final double sampledFraction )
+	{
+		this( sumHistograms( subsampleHistograms ), stackHistogramSettings, sampledFraction, subsampleHistograms );
+	}
+
+	private StackHistogram( final long[] stackHistogram, final HistogramSettings stackHistogramSettings, final double sampledFraction, final long[][] subsampleHistograms )
 	{
 		this.stackHistogram = stackHistogram;
 		this.stackHistogramSettings = stackHistogramSettings;
+		this.sampledFraction = sampledFraction;
+		this.subsampleHistograms = subsampleHistograms;
 	}
 
+	public HistogramSettings getHistogramSettings() { return stackHistogramSettings; }
+	public double getSampledFraction() { return sampledFraction; }
+	public boolean isSampled() { return subsampleHistograms != null; }
+
 	public Pair< Double, Double > getIntensityRange()
 	{
 		return getIntensityRange( new ValuePair<>( 0., 1.) );
@@ -55,6 +103,62 @@ public class StackHistogram
 	}
 
 	public double getQuantile( final double quantile, final QuantileMode quantileMode )
+	{
+		return getQuantile( stackHistogram, stackHistogramSettings, quantile, quantileMode );
+	}
+
+	/**
+	 * @return range of the quantile values estimated from each subsample in the sampled mode, or the quantile value if all data has been used
+	 */
+	public Pair< Double, Double > getQuantileBounds( final double quantile, final QuantileMode quantileMode )
+	{
+		if ( !isSampled() )
+		{
+			final double quantileValue = getQuantile( quantile, quantileMode );
+			return new ValuePair<>( quantileValue, quantileValue );
+		}
+
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for ( final long[] subsampleHistogram : subsampleHistograms )
+		{
+			if ( Arrays.stream( subsampleHistogram ).sum() == 0 )
+				continue;
+			final double quantileValue = getQuantile( subsampleHistogram, stackHistogramSettings, quantile, quantileMode );
+			min = Math.min( quantileValue, min );
+			max = Math.max( quantileValue, max );
+		}
+		return new ValuePair<>( min, max );
+	}
+
+	public double getPivotValue()
+	{
+		return getPivotValue( stackHistogram, stackHistogramSettings );
+	}
+
+	/**
+	 * @return range of the pivot values estimated from each subsample in the sampled mode, or the pivot value if all data has been used
+	 */
+	public Pair< Double, Double > getPivotValueBounds()
+	{
+		if ( !isSampled() )
+		{
+			final double pivotValue = getPivotValue();
+			return new ValuePair<>( pivotValue, pivotValue );
+		}
+
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for ( final long[] subsampleHistogram : subsampleHistograms )
+		{
+			if ( Arrays.stream( subsampleHistogram ).sum() == 0 )
+				continue;
+			final double pivotValue = getPivotValue( subsampleHistogram, stackHistogramSettings );
+			min = Math.min( pivotValue, min );
+			max = Math.max( pivotValue, max );
+		}
+		return new ValuePair<>( min, max );
+	}
+
+	private static double getQuantile( final long[] stackHistogram, final HistogramSettings stackHistogramSettings, final double quantile, final QuantileMode quantileMode )
 	{
 		final Real1dBinMapper< DoubleType > binMapper = new Real1dBinMapper<>( stackHistogramSettings.histMinValue, stackHistogramSettings.histMaxValue, stackHistogramSettings.bins, true );
 		final long totalValuesCount = Arrays.stream( stackHistogram ).sum();
@@ -98,7 +202,7 @@ public class StackHistogram
 		return quantileValue;
 	}
 
-	public double getPivotValue()
+	private static double getPivotValue( final long[] stackHistogram, final HistogramSettings stackHistogramSettings )
 	{
 		// simply use the most frequent value as the pivot value (this typically represents background)
 		int mostFrequentValueBin = 0;
@@ -112,39 +216,187 @@ public class StackHistogram
 		return centerBinValue.get();
 	}
 
-	public static < T extends NativeType< T > & RealType< T > > StackHistogram getStackHistogram(
+	public static StackHistogram getStackHistogram(
 			final JavaSparkContext sparkContext,
 			final TileInfo[] tiles,
 			final HistogramSettings stackHistogramSettings )
 	{
-		final long[] stackHistogram = sparkContext.parallelize( Arrays.asList( tiles ), tiles.length ).map( tile ->
+		return getStackHistogram( sparkContext, tiles, stackHistogramSettings, 1 );
+	}
+
+	/**
+	 * Collects the histogram of the tile stack.
+	 *
+	 * @param sampledFraction fraction of slices of each tile to be used (the slices are evenly spaced along the last dimension), or 1 to use all data
+	 */
+	public static < T extends NativeType< T > & RealType< T > > StackHistogram getStackHistogram(
+			final JavaSparkContext sparkContext,
+			final TileInfo[] tiles,
+			final HistogramSettings stackHistogramSettings,
+			final double sampledFraction )
+	{
+		if ( sampledFraction <= 0 || sampledFraction > 1 )
+			throw new IllegalArgumentException( "sampled fraction should be in (0,1], got " + sampledFraction );
+
+		final boolean sampled = sampledFraction < 1;
+		final long[][] stackHistograms = sparkContext.parallelize( Arrays.asList( tiles ), tiles.length ).map( tile ->
 			{
-				final long[] histogram = new long[ stackHistogramSettings.bins ];
 				final Real1dBinMapper< T > binMapper = new Real1dBinMapper<>( stackHistogramSettings.histMinValue, stackHistogramSettings.histMaxValue, stackHistogramSettings.bins, true );
 				final RandomAccessibleInterval< T > tileImg = TileLoader.loadTile( tile, DataProviderFactory.create( DataProviderFactory.detectType( tile.getFilePath() ) ) );
-				final Cursor< T > cursor = Views.iterable( tileImg ).cursor();
-				while ( cursor.hasNext() )
-					++histogram[ ( int ) binMapper.map( cursor.next() ) ];
-				return histogram;
+
+				if ( !sampled )
+				{
+					final long[] histogram = new long[ stackHistogramSettings.bins ];
+					final Cursor< T > cursor = Views.iterable( tileImg ).cursor();
+					while ( cursor.hasNext() )
+						++histogram[ ( int ) binMapper.map( cursor.next() ) ];
+					return new long[][] { histogram };
+				}
+
+				// assign the sampled slices to the subsamples in turn, so each subsample covers the whole extent of the tile
+				final long[][] histograms = new long[ NUM_SUBSAMPLES ][ stackHistogramSettings.bins ];
+				final int sliceDimension = tileImg.numDimensions() - 1;
+				final long[] sampledSlices = getSampledSlices( tileImg.dimension( sliceDimension ), sampledFraction );
+				for ( int i = 0; i < sampledSlices.length; ++i )
+				{
+					final long[] histogram = histograms[ ( tile.getIndex() + i ) % NUM_SUBSAMPLES ];
+					final Cursor< T > cursor = Views.iterable( Views.hyperSlice( tileImg, sliceDimension, tileImg.min( sliceDimension ) + sampledSlices[ i ] ) ).cursor();
+					while ( cursor.hasNext() )
+						++histogram[ ( int ) binMapper.map( cursor.next() ) ];
+				}
+				return histograms;
 			}
 		)
-		.treeReduce( ( histogram, other ) ->
+		.treeReduce( ( histograms, other ) ->
 			{
-				for ( int bin = 0; bin < stackHistogramSettings.bins; ++bin )
-					histogram[ bin ] += other[ bin ];
-				return histogram;
+				for ( int i = 0; i < histograms.length; ++i )
+					for ( int bin = 0; bin < stackHistogramSettings.bins; ++bin )
+						histograms[ i ][ bin ] += other[ i ][ bin ];
+				return histograms;
 			},
 			Integer.MAX_VALUE // max possible aggregation depth
 		);
 
-		return new StackHistogram( stackHistogram, stackHistogramSettings );
+		return sampled ? new StackHistogram( stackHistograms, stackHistogramSettings, sampledFraction ) : new StackHistogram( stackHistograms[ 0 ], stackHistogramSettings );
+	}
+
+	/**
+	 * Loads the stack histogram stored next to the tile configuration for the same set of tiles and histogram settings,
+	 * or collects it and stores it for the subsequent steps. The histogram collected from all data is used if available even if the sampled one is requested.
+	 * The stored histograms are identified by the tile image paths and sizes, so they need to be removed if the tile images are overwritten.
+	 *
+	 * @param tileConfigurationPath path to the tile configuration of the given tiles
+	 * @param sampledFraction fraction of slices of each tile to be used, or 1 to use all data
+	 */
+	public static StackHistogram loadOrCollectStackHistogram(
+			final JavaSparkContext sparkContext,
+			final DataProvider dataProvider,
+			final String tileConfigurationPath,
+			final TileInfo[] tiles,
+			final HistogramSettings stackHistogramSettings,
+			final double sampledFraction ) throws IOException
+	{
+		final String fullStackHistogramPath = getStackHistogramPath( tileConfigurationPath, tiles, stackHistogramSettings, 1 );
+		final String stackHistogramPath = getStackHistogramPath( tileConfigurationPath, tiles, stackHistogramSettings, sampledFraction );
+		for ( final String path : new String[] { fullStackHistogramPath, stackHistogramPath } )
+		{
+			if ( dataProvider.exists( path ) )
+			{
+				final StackHistogram stackHistogram = load( dataProvider, path );
+				if ( stackHistogram.hasSameSettings( stackHistogramSettings ) )
+				{
+					System.out.println( "Loaded stack histogram from " + path );
+					return stackHistogram;
+				}
+			}
+		}
+
+		final StackHistogram stackHistogram = getStackHistogram( sparkContext, tiles, stackHistogramSettings, sampledFraction );
+		try ( final Writer writer = dataProvider.getJsonWriter( stackHistogramPath ) )
+		{
+			writer.write( new Gson().toJson( stackHistogram ) );
+		}
+		System.out.println( "Saved stack histogram to " + stackHistogramPath );
+		return stackHistogram;
+	}
+
+	private static StackHistogram load( final DataProvider dataProvider, final String path ) throws IOException
+	{
+		try ( final Reader reader = dataProvider.getJsonReader( path ) )
+		{
+			return new Gson().fromJson( reader, StackHistogram.class );
+		}
+	}
+
+	private boolean hasSameSettings( final HistogramSettings other )
+	{
+		return stackHistogramSettings.histMinValue.equals( other.histMinValue )
+				&& stackHistogramSettings.histMaxValue.equals( other.histMaxValue )
+				&& stackHistogramSettings.bins == other.bins;
+	}
+
+	static String getStackHistogramPath( final String tileConfigurationPath, final TileInfo[] tiles, final HistogramSettings stackHistogramSettings, final double sampledFraction )
+	{
+		final String filename = STACK_HISTOGRAM_FILENAME_PREFIX + getTileSetKey( tiles, stackHistogramSettings ) + ( sampledFraction < 1 ? "-sampled-" + sampledFraction : "" ) + ".json";
+		return PathResolver.get( PathResolver.getParent( tileConfigurationPath ), filename );
+	}
+
+	/**
+	 * @return hash of the tile images and the histogram settings (tile positions are not included, so the tile configurations
+	 * before and after stitching share the same stack histogram)
+	 */
+	static String getTileSetKey( final TileInfo[] tiles, final HistogramSettings stackHistogramSettings )
+	{
+		final StringBuilder sb = new StringBuilder();
+		final TileInfo[] sortedTiles = tiles.clone();
+		Arrays.sort( sortedTiles, Comparator.comparing( TileInfo::getIndex ) );
+		for ( final TileInfo tile : sortedTiles )
+			sb.append( tile.getIndex() ).append( ':' ).append( tile.getFilePath() ).append( ':' ).append( Arrays.toString( tile.getSize() ) ).append( ':' ).append( tile.getType() ).append( ';' );
+		sb.append( stackHistogramSettings.histMinValue ).append( ':' ).append( stackHistogramSettings.histMaxValue ).append( ':' ).append( stackHistogramSettings.bins );
+
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( sb.toString().getBytes( StandardCharsets.UTF_8 ) );
+			final StringBuilder key = new StringBuilder();
+			for ( int i = 0; i < 8; ++i )
+				key.append( String.format( "%02x", digest[ i ] ) );
+			return key.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * @return evenly spaced slice indexes covering the given fraction of slices (at least one)
+	 */
+	static long[] getSampledSlices( final long numSlices, final double sampledFraction )
+	{
+		final int numSampledSlices = ( int ) Math.max( Math.min( Math.round( numSlices * sampledFraction ), numSlices ), 1 );
+		final long[] sampledSlices = new long[ numSampledSlices ];
+		for ( int i = 0; i < numSampledSlices; ++i )
+			sampledSlices[ i ] = ( long ) ( ( i + 0.5 ) * numSlices / numSampledSlices );
+		return sampledSlices;
+	}
+
+	private static long[] sumHistograms( final long[][] histograms )
+	{
+		final long[] sum = new long[ histograms[ 0 ].length ];
+		for ( final long[] histogram : histograms )
+			for ( int bin = 0; bin < sum.length; ++bin )
+				sum[ bin ] += histogram[ bin ];
+		return sum;
 	}
 
 	@Override
 	public String toString()
 	{
 		final StringBuilder sb = new StringBuilder();
-		sb.append( String.format( "[ min=%.2f, max=%.2f, bins=%d (including two tail bins) ]", stackHistogramSettings.histMinValue, stackHistogramSettings.histMaxValue, stackHistogramSettings.bins ) ).append( System.lineSeparator() );
+		sb.append( String.format( "[ min=%.2f, max=%.2f, bins=%d (including two tail bins) ]", stackHistogramSettings.histMinValue, stackHistogramSettings.histMaxValue, stackHistogramSettings.bins ) );
+		if ( isSampled() )
+			sb.append( String.format( " estimated from %.1f%% of slices in %d subsamples", sampledFraction * 100, subsampleHistograms.length ) );
+		sb.append( System.lineSeparator() );
 		final Real1dBinMapper< DoubleType > binMapper = new Real1dBinMapper<>( stackHistogramSettings.histMinValue, stackHistogramSettings.histMaxValue, stackHistogramSettings.bins, true );
 		final DoubleType lowerBinValue = new DoubleType(), upperBinValue = new DoubleType();
 		for ( int bin = 0; bin < stackHistogramSettings.bins; ++bin )
@@ -0,0 +1,234 @@
+package org.janelia.stitching;
+
+import java.util.Iterator;
+
+import net.imglib2.Dimensions;
+import net.imglib2.Interval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Accumulates the contribution of a single tile to the blending fusion of an output cell.
+ * The blending weight of a pixel depends on the product of per-dimension factors (the relative distance to the closer tile border along each axis),
+ * so the factors are precomputed once as a lookup table per axis for the part of the tile that intersects with the cell.
+ * The weights and the weighted values are accumulated into primitive arrays that span the entire cell (the first dimension varies fastest).
+ *
+ * @author Igor Pisarev
+ */
+public class BlendingKernel
+{
+	private final double[][] factors;
+	private final int[] intersectionMin, intersectionSize;
+	private final int[] cellSteps;
+
+	/**
+	 * @param tileDimensions size of the tile
+	 * @param offset position of the tile relative to the cell
+	 * @param intersectionInCell intersection of the tile with the cell (in the cell coordinates)
+	 * @param cellDimensions size of the cell
+	 * @param fractionBlended fraction of the tile size that is blended near the tile borders
+	 */
+	public BlendingKernel( final Dimensions tileDimensions, final double[] offset, final Interval intersectionInCell, final Dimensions cellDimensions, final double fractionBlended )
+	{
+		final int n = intersectionInCell.numDimensions();
+		factors = new double[ n ][];
+		intersectionMin = new int[ n ];
+		intersectionSize = new int[ n ];
+		cellSteps = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			intersectionMin[ d ] = ( int ) intersectionInCell.min( d );
+			intersectionSize[ d ] = ( int ) intersectionInCell.dimension( d );
+			cellSteps[ d ] = d == 0 ? 1 : cellSteps[ d - 1 ] * ( int ) cellDimensions.dimension( d - 1 );
+
+			final double imgAreaBlend = getBlendedAreaSize( tileDimensions.dimension( d ), fractionBlended );
+			factors[ d ] = new double[ intersectionSize[ d ] ];
+			for ( int i = 0; i < intersectionSize[ d ]; ++i )
+				factors[ d ][ i ] = getBlendingFactor( intersectionMin[ d ] + i - offset[ d ], tileDimensions.dimension( d ), imgAreaBlend );
+		}
+	}
+
+	/**
+	 * Adds the weighted values of the tile to the accumulation buffers.
+	 *
+	 * @param source values of the tile within the intersection in flat iteration order
+	 * @param weights accumulated weights for the cell
+	 * @param values accumulated weighted values for the cell
+	 */
+	public < R extends RealType< R > > void accumulate( final Iterator< R > source, final float[] weights, final float[] values )
+	{
+		final int n = factors.length;
+		final double[] factorsX = factors[ 0 ];
+		final int rowLength = intersectionSize[ 0 ];
+
+		int rowIndex = 0;
+		for ( int d = 0; d < n; ++d )
+			rowIndex += intersectionMin[ d ] * cellSteps[ d ];
+
+		final int[] rowPosition = new int[ n ];
+		while ( true )
+		{
+			// the factors of the higher dimensions are the same for the entire row
+			double rowFactor = 1;
+			for ( int d = 1; d < n; ++d )
+				rowFactor *= factors[ d ][ rowPosition[ d ] ];
+
+			for ( int x = 0; x < rowLength; ++x )
+			{
+				final double value = source.next().getRealDouble();
+				final double weight = getBlendingWeight( factorsX[ x ] * rowFactor );
+				weights[ rowIndex + x ] += weight;
+				values[ rowIndex + x ] += value * weight;
+			}
+
+			int d = 1;
+			for ( ; d < n; ++d )
+			{
+				if ( ++rowPosition[ d ] < intersectionSize[ d ] )
+				{
+					rowIndex += cellSteps[ d ];
+					break;
+				}
+				rowPosition[ d ] = 0;
+				rowIndex -= ( intersectionSize[ d ] - 1 ) * cellSteps[ d ];
+			}
+			if ( d >= n )
+				break;
+		}
+	}
+
+	/**
+	 * Computes the blending weights of the tile within the intersection, so they can be reused for multiple channels of the same tile.
+	 *
+	 * @return weights in flat iteration order of the intersection
+	 */
+	public float[] getWeights()
+	{
+		final int n = factors.length;
+		final double[] factorsX = factors[ 0 ];
+		final int rowLength = intersectionSize[ 0 ];
+
+		int numElements = 1;
+		for ( int d = 0; d < n; ++d )
+			numElements *= intersectionSize[ d ];
+		final float[] tileWeights = new float[ numElements ];
+
+		final int[] rowPosition = new int[ n ];
+		for ( int i = 0; i < numElements; i += rowLength )
+		{
+			double rowFactor = 1;
+			for ( int d = 1; d < n; ++d )
+				rowFactor *= factors[ d ][ rowPosition[ d ] ];
+
+			for ( int x = 0; x < rowLength; ++x )
+				tileWeights[ i + x ] = ( float ) getBlendingWeight( factorsX[ x ] * rowFactor );
+
+			for ( int d = 1; d < n && ++rowPosition[ d ] == intersectionSize[ d ]; ++d )
+				rowPosition[ d ] = 0;
+		}
+		return tileWeights;
+	}
+
+	/**
+	 * Adds the precomputed weights of the tile (see {@link #getWeights()}) to the accumulated weights for the cell.
+	 */
+	public void accumulateWeights( final float[] tileWeights, final float[] weights )
+	{
+		final int rowLength = intersectionSize[ 0 ];
+		final int[] rowIndexes = getRowIndexes();
+		for ( int row = 0; row < rowIndexes.length; ++row )
+			for ( int x = 0, i = row * rowLength; x < rowLength; ++x, ++i )
+				weights[ rowIndexes[ row ] + x ] += tileWeights[ i ];
+	}
+
+	/**
+	 * Adds the values of the tile weighted by the precomputed weights of the tile (see {@link #getWeights()}) to the accumulated values for the cell.
+	 *
+	 * @param source values of the tile within the intersection in flat iteration order
+	 */
+	public < R extends RealType< R > > void accumulateValues( final Iterator< R > source, final float[] tileWeights, final float[] values )
+	{
+		final int rowLength = intersectionSize[ 0 ];
+		final int[] rowIndexes = getRowIndexes();
+		for ( int row = 0; row < rowIndexes.length; ++row )
+			for ( int x = 0, i = row * rowLength; x < rowLength; ++x, ++i )
+				values[ rowIndexes[ row ] + x ] += source.next().getRealDouble() * tileWeights[ i ];
+	}
+
+	/**
+	 * @return index of the first pixel of each row of the intersection within the cell
+	 */
+	private int[] getRowIndexes()
+	{
+		final int n = intersectionSize.length;
+		int numRows = 1;
+		int rowIndex = 0;
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( d > 0 )
+				numRows *= intersectionSize[ d ];
+			rowIndex += intersectionMin[ d ] * cellSteps[ d ];
+		}
+
+		final int[] rowIndexes = new int[ numRows ];
+		final int[] rowPosition = new int[ n ];
+		for ( int row = 0; row < numRows; ++row )
+		{
+			rowIndexes[ row ] = rowIndex;
+			for ( int d = 1; d < n; ++d )
+			{
+				if ( ++rowPosition[ d ] < intersectionSize[ d ] )
+				{
+					rowIndex += cellSteps[ d ];
+					break;
+				}
+				rowPosition[ d ] = 0;
+				rowIndex -= ( intersectionSize[ d ] - 1 ) * cellSteps[ d ];
+			}
+		}
+		return rowIndexes;
+	}
+
+	/**
+	 * Computes the blending weight of a single pixel.
+	 *
+	 * @param location position of the pixel relative to the tile
+	 * @param dimensions size of the tile
+	 * @param percentScaling fraction of the tile size that is blended near the tile borders
+	 */
+	public static double getBlendingWeight( final double[] location, final Dimensions dimensions, final double percentScaling )
+	{
+		// compute multiplicative distance to the respective borders [0...1]
+		double minDistance = 1;
+
+		for ( int dim = 0; dim < location.length; ++dim )
+			minDistance *= getBlendingFactor( location[ dim ], dimensions.dimension( dim ), getBlendedAreaSize( dimensions.dimension( dim ), percentScaling ) );
+
+		return getBlendingWeight( minDistance );
+	}
+
+	private static double getBlendingWeight( final double minDistance )
+	{
+		if ( minDistance == 1 )
+			return 1;
+		else if ( minDistance <= 0 )
+			return 0.0000001;
+		else
+			return ( Math.cos( (1 - minDistance) * Math.PI ) + 1 ) / 2;
+	}
+
+	/**
+	 * @return relative distance [0...1] to the closer border of the tile along one dimension
+	 */
+	private static double getBlendingFactor( final double localImgPos, final long dimension, final double imgAreaBlend )
+	{
+		// the distance to the border that is closer
+		final double value = Math.max( 1, Math.min( localImgPos, dimension - 1 - localImgPos ) );
+		return value < imgAreaBlend ? value / imgAreaBlend : 1;
+	}
+
+	private static double getBlendedAreaSize( final long dimension, final double percentScaling )
+	{
+		return Math.round( percentScaling * 0.5f * ( dimension - 1 ) );
+	}
+}
@@ -12,7 +12,6 @@ import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.dataaccess.*;
 import org.janelia.saalfeldlab.n5.Compression;
-import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
@@ -48,6 +47,10 @@ public class ConvertTIFFTilesToN5Spark
 				usage = "Output block size as a comma-separated list.")
 		private String blockSizeStr = "128,128,64";
 
+		@Option(name = "-c", aliases = { "--compression" }, required = false,
+				usage = N5Compressions.USAGE)
+		private String compressionStr = N5Compressions.DEFAULT;
+
 		private boolean parsedSuccessfully = false;
 
 		public ConvertTIFFTilesToN5CmdArgs( final String... args ) throws IllegalArgumentException
@@ -102,7 +105,7 @@ public class ConvertTIFFTilesToN5Spark
 					parsedArgs.inputChannelsPaths,
 					parsedArgs.n5OutputPath,
 					CmdUtils.parseIntArray( parsedArgs.blockSizeStr ),
-					new GzipCompression()
+					N5Compressions.parse( parsedArgs.compressionStr )
 			);
 		}
 		System.out.println( "Done" );
@@ -16,13 +16,15 @@ import org.janelia.dataaccess.CloudURI;
 import org.janelia.dataaccess.DataProvider;
 import org.janelia.dataaccess.DataProviderFactory;
 import org.janelia.dataaccess.DataProviderType;
+import org.janelia.dataaccess.N5Compressions;
 import org.janelia.dataaccess.PathResolver;
-import org.janelia.flatfield.FlatfieldCorrectedRandomAccessible;
 import org.janelia.flatfield.FlatfieldCorrection;
+import org.janelia.flatfield.FlatfieldCorrectionKernel;
 import org.janelia.flatfield.HistogramSettings;
 import org.janelia.flatfield.StackHistogram;
+import org.janelia.flatfield.StackHistogram.QuantileMode;
+import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.stitching.TileLoader.TileType;
@@ -44,6 +46,7 @@ import net.imglib2.converter.ClampingConverter;
 import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealConverter;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.RealViews;
@@ -90,6 +93,14 @@ public class DeconvolutionSpark
 				usage = "If specified, the output images are saved as 32-bit float images. If omitted, they are converted into the value range of the input datatype (default).")
 		private boolean exportAsFloat = false;
 
+		@Option(name = "-c", aliases = { "--compression" }, required = false,
+				usage = N5Compressions.USAGE)
+		private String compressionStr = N5Compressions.DEFAULT;
+
+		@Option(name = "--stackHistogramSampling", required = false,
+				usage = "Fraction of slices of each deconvolved tile to be used for estimating the intensity range when converting the output images. By default (1) all data is used.")
+		private double stackHistogramSampling = 1;
+
 		private boolean parsedSuccessfully = false;
 
 		public DeconvolutionCmdArgs( final String... args ) throws IllegalArgumentException
@@ -171,6 +182,8 @@ public class DeconvolutionSpark
 		if ( !parsedArgs.parsedSuccessfully )
 			throw new IllegalArgumentException( "argument format mismatch" );
 
+		final Compression n5Compression = N5Compressions.parse( parsedArgs.compressionStr );
+
 		final DataProviderType dataProviderType = DataProviderFactory.detectType( parsedArgs.inputChannelsPaths.iterator().next() );
 		final DataProvider dataProvider = DataProviderFactory.create( dataProviderType );
 
@@ -246,7 +259,7 @@ public class DeconvolutionSpark
 		final N5Writer n5DeconTilesFloatWriter = dataProvider.createN5Writer( n5DeconTilesFloatPath );
 		for ( int ch = 0; ch < inputTileChannels.size(); ++ch )
 			for ( final TileInfo tile : inputTileChannels.get( ch ) )
-				n5DeconTilesFloatWriter.createDataset( channelDeconTilesFloatN5DatasetPaths.get( ch ).get( tile.getIndex() ), tile.getSize(), processingBlockSize, DataType.FLOAT32, new GzipCompression() );
+				n5DeconTilesFloatWriter.createDataset( channelDeconTilesFloatN5DatasetPaths.get( ch ).get( tile.getIndex() ), tile.getSize(), processingBlockSize, DataType.FLOAT32, n5Compression );
 
 		// create spark context with speculation mode property
 		try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
@@ -281,20 +294,6 @@ public class DeconvolutionSpark
 					final RandomAccessibleInterval< FloatType > tileImgFloat = Converters.convert( tileImg, new RealConverter<>(), new FloatType() );
 					final RandomAccessibleInterval< FloatType > psfImgFloat = Converters.convert( psfImg, new RealConverter<>(), new FloatType() );
 
-					// apply flatfield correction
-					final RandomAccessibleInterval< FloatType > sourceImgFloat;
-					final RandomAccessiblePairNullable< U, U > flatfield = broadcastedChannelFlatfields.value().get( channelIndex );
-					if ( flatfield != null )
-					{
-						final FlatfieldCorrectedRandomAccessible< FloatType, U > flatfieldCorrectedTileImg = new FlatfieldCorrectedRandomAccessible<>( tileImgFloat, flatfield.toRandomAccessiblePair() );
-						final RandomAccessibleInterval< U > correctedImg = Views.interval( flatfieldCorrectedTileImg, tileImgFloat );
-						sourceImgFloat = Converters.convert( correctedImg, new RealConverter<>(), new FloatType() );
-					}
-					else
-					{
-						sourceImgFloat = tileImgFloat;
-					}
-
 					// rescale PSF with respect to the pixel resolution
 					final long[] rescaledPsfDimensions = Intervals.dimensionsAsLongArray( psfImgFloat );
 					rescaledPsfDimensions[ 2 ] = Math.round( psfImgFloat.dimension( 2 ) * ( parsedArgs.psfStepZ / tile.getPixelResolution( 2 ) ) );
@@ -312,8 +311,21 @@ public class DeconvolutionSpark
 					}
 					final Interval paddedProcessingBlock = new FinalInterval( paddedProcessingBlockMin, paddedProcessingBlockMax );
 
-					// get padded processing block image
-					final RandomAccessibleInterval< FloatType > paddedProcessingBlockImg = Views.interval( sourceImgFloat, paddedProcessingBlock );
+					// get padded processing block image and apply flatfield correction to it
+					final RandomAccessibleInterval< FloatType > paddedProcessingBlockImg;
+					final RandomAccessiblePairNullable< U, U > flatfield = broadcastedChannelFlatfields.value().get( channelIndex );
+					if ( flatfield != null )
+					{
+						final float[] correctedData = FlatfieldCorrectionKernel.create( flatfield, paddedProcessingBlock ).apply( Views.flatIterable( Views.interval( tileImgFloat, paddedProcessingBlock ) ).cursor() );
+						paddedProcessingBlockImg = Views.translate(
+								ArrayImgs.floats( correctedData, Intervals.dimensionsAsLongArray( paddedProcessingBlock ) ),
+								Intervals.minAsLongArray( paddedProcessingBlock )
+							);
+					}
+					else
+					{
+						paddedProcessingBlockImg = Views.interval( tileImgFloat, paddedProcessingBlock );
+					}
 
 					// subtract background
 					final double backgroundValue = channelBackgroundValues.get( channelIndex );
@@ -391,13 +403,20 @@ public class DeconvolutionSpark
 					final StackHistogram deconStackHistogram = StackHistogram.getStackHistogram(
 							sparkContext,
 							deconTilesFloatMap.values().toArray( new TileInfo[ 0 ] ),
-							stackHistogramSettings
+							stackHistogramSettings,
+							parsedArgs.stackHistogramSampling
 						);
 					try ( final PrintWriter logWriter = new PrintWriter( dataProvider.getOutputStream( PathResolver.get( outputImagesPath, "ch" + ch + "_stackHistogram.txt" ) ) ) )
 					{
 						logWriter.println( "Stack histogram for channel " + channelGlobalMinMaxIntensityValues.size() + ":" + System.lineSeparator() + deconStackHistogram );
 					}
 					final Pair< Double, Double > globalDeconMinMaxValues = deconStackHistogram.getIntensityRange( intensityRangeQuantiles );
+					if ( deconStackHistogram.isSampled() )
+					{
+						final Pair< Double, Double > minBounds = deconStackHistogram.getQuantileBounds( intensityRangeQuantiles.getA(), QuantileMode.LowerBound );
+						final Pair< Double, Double > maxBounds = deconStackHistogram.getQuantileBounds( intensityRangeQuantiles.getB(), QuantileMode.UpperBound );
+						System.out.println( String.format( "Sampled stack histogram for channel %d: min value bounds [%.2f, %.2f], max value bounds [%.2f, %.2f]", ch, minBounds.getA(), minBounds.getB(), maxBounds.getA(), maxBounds.getB() ) );
+					}
 					channelGlobalMinMaxIntensityValues.add( new Tuple2<>( globalDeconMinMaxValues.getA(), globalDeconMinMaxValues.getB() ) );
 				}
 
@@ -470,7 +489,7 @@ public class DeconvolutionSpark
 						// save the converted decon tile image as an N5 dataset
 						final N5Writer localN5DeconTilesWriter = localDataProvider.createN5Writer( n5DeconTilesPath );
 						final String outputDatasetPath = channelDeconTilesConvertedN5DatasetPaths.get( channelIndex ).get( deconTileFloat.getIndex() );
-						N5Utils.save( convertedDeconTileImg, localN5DeconTilesWriter, outputDatasetPath, processingBlockSize, new GzipCompression() );
+						N5Utils.save( convertedDeconTileImg, localN5DeconTilesWriter, outputDatasetPath, processingBlockSize, n5Compression );
 
 						// delete intermediate 32-bit decon tile N5 dataset
 						final N5Writer localN5DeconTilesFloatWriter = localDataProvider.createN5Writer( n5DeconTilesFloatPath );
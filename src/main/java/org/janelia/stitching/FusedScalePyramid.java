@@ -0,0 +1,166 @@
+package org.janelia.stitching;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Layout of the scale pyramid of the exported dataset that is generated during fusion.
+ * The downsampling factors of each level are obtained from the previous level by downsampling by 2 in all dimensions where
+ * the physical size of the pixel is still smaller than the target size of the level (the pixels of the full-scale level in the dimension with the best resolution times 2^level),
+ * so the lower levels become nearly isotropic for anisotropic data, and every level is an integer downsampling of all previous levels.
+ * All levels use the same block size.
+ * <p>
+ * A fusion task that processes a region of {@code blockSize * factors(numFusedLevels)} pixels at full scale (aligned to the grid of such regions)
+ * produces whole blocks of every level up to {@code numFusedLevels}, so these levels can be generated while the data is still in memory.
+ *
+ * @author Igor Pisarev
+ */
+public class FusedScalePyramid implements Serializable
+{
+	private static final long serialVersionUID = -2106405216440981737L;
+
+	private final int[] blockSize;
+	private final List< int[] > levelsDownsamplingFactors = new ArrayList<>();
+	private final List< long[] > levelsDimensions = new ArrayList<>();
+
+	/**
+	 * @param fullScaleDimensions size of the full-scale level
+	 * @param blockSize block size of all levels
+	 * @param normalizedVoxelDimensions voxel size normalized such that the smallest value is 1
+	 */
+	public FusedScalePyramid( final long[] fullScaleDimensions, final int[] blockSize, final double[] normalizedVoxelDimensions )
+	{
+		final int n = fullScaleDimensions.length;
+		this.blockSize = blockSize.clone();
+
+		int[] factors = new int[ n ];
+		long[] dimensions = fullScaleDimensions.clone();
+		Arrays.fill( factors, 1 );
+		levelsDownsamplingFactors.add( factors );
+		levelsDimensions.add( dimensions );
+
+		// keep adding levels until the previous one fits into a single block
+		while ( hasMultipleBlocks( dimensions ) )
+		{
+			final int level = levelsDownsamplingFactors.size();
+			final int[] nextFactors = new int[ n ];
+			final long[] nextDimensions = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				final boolean downsample = dimensions[ d ] > 1 && factors[ d ] * normalizedVoxelDimensions[ d ] < ( 1 << level );
+				nextFactors[ d ] = factors[ d ] * ( downsample ? 2 : 1 );
+				nextDimensions[ d ] = Math.max( fullScaleDimensions[ d ] / nextFactors[ d ], 1 );
+			}
+			factors = nextFactors;
+			dimensions = nextDimensions;
+			levelsDownsamplingFactors.add( factors );
+			levelsDimensions.add( dimensions );
+		}
+	}
+
+	public int numLevels()
+	{
+		return levelsDownsamplingFactors.size();
+	}
+
+	public int[] getBlockSize()
+	{
+		return blockSize.clone();
+	}
+
+	/**
+	 * @return downsampling factors of the level relative to the full-scale level
+	 */
+	public int[] getDownsamplingFactors( final int level )
+	{
+		return levelsDownsamplingFactors.get( level ).clone();
+	}
+
+	/**
+	 * @return downsampling factors of the level relative to the previous level
+	 */
+	public int[] getRelativeDownsamplingFactors( final int level )
+	{
+		final int[] factors = levelsDownsamplingFactors.get( level ), previousFactors = levelsDownsamplingFactors.get( level - 1 );
+		final int[] relativeFactors = new int[ factors.length ];
+		for ( int d = 0; d < relativeFactors.length; ++d )
+			relativeFactors[ d ] = factors[ d ] / previousFactors[ d ];
+		return relativeFactors;
+	}
+
+	public long[] getDimensions( final int level )
+	{
+		return levelsDimensions.get( level ).clone();
+	}
+
+	/**
+	 * @return size of the full-scale region that contains whole blocks of all levels up to the given one
+	 */
+	public int[] getProcessingCellSize( final int numFusedLevels )
+	{
+		final int[] factors = levelsDownsamplingFactors.get( numFusedLevels );
+		final int[] processingCellSize = new int[ blockSize.length ];
+		for ( int d = 0; d < processingCellSize.length; ++d )
+			processingCellSize[ d ] = blockSize[ d ] * factors[ d ];
+		return processingCellSize;
+	}
+
+	/**
+	 * @return number of full-scale pixels in the processing cell for the given number of fused levels (the cell is clipped by the full-scale dimensions)
+	 */
+	public long getProcessingCellNumElements( final int numFusedLevels )
+	{
+		final int[] processingCellSize = getProcessingCellSize( numFusedLevels );
+		final long[] fullScaleDimensions = levelsDimensions.get( 0 );
+		long numElements = 1;
+		for ( int d = 0; d < processingCellSize.length; ++d )
+			numElements *= Math.min( processingCellSize[ d ], fullScaleDimensions[ d ] );
+		return numElements;
+	}
+
+	/**
+	 * The processing cell grows by the downsampling factors of every fused level, so it is limited by the amount of memory that a task can hold.
+	 *
+	 * @param requestedLevels requested number of fused levels
+	 * @param maxProcessingCellElements maximum allowed number of full-scale pixels in the processing cell
+	 * @return largest number of fused levels (up to the requested number) such that the processing cell does not exceed the given size
+	 */
+	public int getMaxFusedLevels( final int requestedLevels, final long maxProcessingCellElements )
+	{
+		int numFusedLevels = Math.min( requestedLevels, numLevels() - 1 );
+		while ( numFusedLevels > 0 && getProcessingCellNumElements( numFusedLevels ) > maxProcessingCellElements )
+			--numFusedLevels;
+		return numFusedLevels;
+	}
+
+	/**
+	 * Maps a region of the full-scale level (aligned to the downsampling factors of the level) onto the level.
+	 * The last pixel of the level may cover a partial region if the level would be empty otherwise.
+	 *
+	 * @param level scale level
+	 * @param fullScaleMin min of the region at full scale
+	 * @param fullScaleSize size of the region at full scale
+	 * @param levelMin min of the region at the given level (output)
+	 * @param levelSize size of the region at the given level (output)
+	 */
+	public void getLevelRegion( final int level, final long[] fullScaleMin, final long[] fullScaleSize, final long[] levelMin, final long[] levelSize )
+	{
+		final int[] factors = levelsDownsamplingFactors.get( level );
+		final long[] dimensions = levelsDimensions.get( level );
+		for ( int d = 0; d < factors.length; ++d )
+		{
+			levelMin[ d ] = fullScaleMin[ d ] / factors[ d ];
+			levelSize[ d ] = Math.max( Math.min( dimensions[ d ] - levelMin[ d ], ( fullScaleSize[ d ] + factors[ d ] - 1 ) / factors[ d ] ), 0 );
+		}
+	}
+
+	private boolean hasMultipleBlocks( final long[] dimensions )
+	{
+		for ( int d = 0; d < dimensions.length; ++d )
+			if ( dimensions[ d ] > blockSize[ d ] )
+				return true;
+		return false;
+	}
+}
@@ -3,21 +3,20 @@ package org.janelia.stitching;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.janelia.dataaccess.DataProvider;
-import org.janelia.flatfield.FlatfieldCorrectedRandomAccessible;
+import org.janelia.flatfield.FlatfieldCorrectionKernel;
 
 import bdv.export.Downsample;
 import net.imglib2.Cursor;
-import net.imglib2.Dimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.FinalRealInterval;
 import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
@@ -26,7 +25,6 @@ import net.imglib2.converter.RealFloatConverter;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.img.imageplus.ImagePlusImgFactory;
-import net.imglib2.img.list.ListImg;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.AbstractTranslation;
 import net.imglib2.realtransform.RealViews;
@@ -38,7 +36,6 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.IntervalsNullable;
-import net.imglib2.view.RandomAccessiblePair;
 import net.imglib2.view.RandomAccessiblePairNullable;
 import net.imglib2.view.Views;
 
@@ -103,10 +100,40 @@ public class FusionPerformer
 	}
 
 
+	/**
+	 * Fuses multiple channels that share the same tile geometry within the given cell.
+	 * The tiles are matched across the channels by their order in the lists.
+	 * The tile intersections, the blending weights or the ownership for the hard-cut fusion, and the tile combinations for exporting overlaps are computed once for all channels.
+	 *
+	 * @return fused image for each channel
+	 */
 	public static <
 		T extends RealType< T > & NativeType< T >,
-		U extends RealType< U > & NativeType< U >,
-		R extends RealType< R > & NativeType< R > >
+		U extends RealType< U > & NativeType< U > >
+	List< ImagePlusImg< T, ? > > fuseChannelsWithinCell(
+			final DataProvider dataProvider,
+			final FusionMode mode,
+			final List< List< TileInfo > > channelsTilesWithinCell,
+			final Interval targetInterval,
+			final T dataType,
+			final List< Number > channelsBackgroundValues,
+			final List< RandomAccessiblePairNullable< U, U > > channelsFlatfields,
+			final List< Map< Integer, Set< Integer > > > channelsPairwiseConnectionsMaps ) throws Exception
+	{
+		switch ( mode )
+		{
+		case MAX_MIN_DISTANCE:
+			return fuseChannelsWithinCellUsingMaxMinDistance( dataProvider, channelsTilesWithinCell, targetInterval, dataType, channelsBackgroundValues, channelsFlatfields, channelsPairwiseConnectionsMaps );
+		case BLENDING:
+			return fuseChannelsWithinCellUsingBlending( dataProvider, channelsTilesWithinCell, targetInterval, dataType, channelsBackgroundValues, channelsFlatfields, channelsPairwiseConnectionsMaps );
+		default:
+			throw new RuntimeException( "Unknown fusion mode" );
+		}
+	}
+
+	public static <
+		T extends RealType< T > & NativeType< T >,
+		U extends RealType< U > & NativeType< U > >
 	ImagePlusImg< T, ? > fuseTilesWithinCellUsingBlending(
 			final DataProvider dataProvider,
 			final List< TileInfo > tilesWithinCell,
@@ -116,185 +143,99 @@ public class FusionPerformer
 			final RandomAccessiblePairNullable< U, U > flatfield,
 			final Map< Integer, Set< Integer > > pairwiseConnectionsMap ) throws Exception
 	{
-		// initialize helper images for blending fusion strategy
-		final RandomAccessibleInterval< FloatType > weights = ArrayImgs.floats( Intervals.dimensionsAsLongArray( targetInterval ) );
-		final RandomAccessibleInterval< FloatType > values = ArrayImgs.floats( Intervals.dimensionsAsLongArray( targetInterval ) );
+		return fuseChannelsWithinCellUsingBlending(
+				dataProvider,
+				Collections.singletonList( tilesWithinCell ),
+				targetInterval,
+				dataType,
+				Collections.singletonList( backgroundValue ),
+				Collections.singletonList( flatfield ),
+				Collections.singletonList( pairwiseConnectionsMap )
+			).get( 0 );
+	}
 
-		// initialize helper image for tile connections when exporting only overlaps
-		final RandomAccessibleInterval< Set< Integer > > tileIndexes;
-		if ( pairwiseConnectionsMap != null )
-		{
-			final int numElements = ( int ) Intervals.numElements( targetInterval );
-			final List< Set< Integer > > tileIndexesList = new ArrayList<>( numElements );
-			for ( int i = 0; i < numElements; ++i )
-				tileIndexesList.add( new HashSet<>() );
-			tileIndexes = new ListImg<>( tileIndexesList, Intervals.dimensionsAsLongArray( targetInterval ) );
-		}
-		else
-		{
-			tileIndexes = null;
-		}
+	public static <
+		T extends RealType< T > & NativeType< T >,
+		U extends RealType< U > & NativeType< U >,
+		R extends RealType< R > & NativeType< R > >
+	List< ImagePlusImg< T, ? > > fuseChannelsWithinCellUsingBlending(
+			final DataProvider dataProvider,
+			final List< List< TileInfo > > channelsTilesWithinCell,
+			final Interval targetInterval,
+			final T dataType,
+			final List< Number > channelsBackgroundValues,
+			final List< RandomAccessiblePairNullable< U, U > > channelsFlatfields,
+			final List< Map< Integer, Set< Integer > > > channelsPairwiseConnectionsMaps ) throws Exception
+	{
+		final int numChannels = channelsTilesWithinCell.size();
+		final List< TileInfo > tilesWithinCell = channelsTilesWithinCell.get( 0 );
 
-		for ( final TileInfo tile : tilesWithinCell )
-		{
-			System.out.println( "Loading tile image " + tile.getFilePath() );
-			final Dimensions tileDimensions = tile.getBoundaries();
+		// initialize helper buffers for blending fusion strategy (the weights are the same for all channels)
+		final int numElements = ( int ) Intervals.numElements( targetInterval );
+		final float[] weights = new float[ numElements ];
+		final float[][] channelsValues = new float[ numChannels ][ numElements ];
 
-			final FinalRealInterval intersection = IntervalsNullable.intersectReal(
-					new FinalRealInterval( tile.getPosition(), tile.getMax() ),
-					targetInterval );
+		// initialize helper label image for tile connections when exporting only overlaps
+		final TileCombinationLabels tileLabels = hasPairwiseConnections( channelsPairwiseConnectionsMaps ) ? new TileCombinationLabels( Intervals.dimensionsAsIntArray( targetInterval ) ) : null;
 
-			if ( intersection == null )
-				throw new IllegalArgumentException( "tilesWithinCell contains a tile that doesn't intersect with the target interval:\n" + "Tile " + tile.getIndex() + " at " + Arrays.toString( tile.getPosition() ) + " of size " + Arrays.toString( tile.getSize() ) + "\n" + "Output cell " + " at " + Arrays.toString( Intervals.minAsIntArray( targetInterval ) ) + " of size " + Arrays.toString( Intervals.dimensionsAsIntArray( targetInterval ) ) );
+		for ( int tileIndex = 0; tileIndex < tilesWithinCell.size(); ++tileIndex )
+		{
+			final TileInfo tile = tilesWithinCell.get( tileIndex );
+			final double[] offset = getOffset( tile, targetInterval );
+			final Interval intersectionIntervalInTargetInterval = getIntersectionInTargetInterval( tile, targetInterval );
 
-			final double[] offset = new double[ targetInterval.numDimensions() ];
-			final long[] minIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
-			final long[] maxIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
-			for ( int d = 0; d < minIntersectionInTargetInterval.length; ++d )
+			final BlendingKernel blendingKernel = new BlendingKernel( tile.getBoundaries(), offset, intersectionIntervalInTargetInterval, targetInterval, FRACTION_BLENDED );
+			if ( numChannels == 1 )
 			{
-				offset[ d ] = tile.getPosition( d ) - targetInterval.min( d );
-				minIntersectionInTargetInterval[ d ] = ( long ) Math.floor( intersection.realMin( d ) ) - targetInterval.min( d );
-				maxIntersectionInTargetInterval[ d ] = ( long ) Math.ceil ( intersection.realMax( d ) ) - targetInterval.min( d );
+				System.out.println( "Loading tile image " + tile.getFilePath() );
+				final RandomAccessibleInterval< R > sourceInterval = FusionPerformer.< T, U, R >getTileSource( dataProvider, tile, offset, intersectionIntervalInTargetInterval, channelsFlatfields.get( 0 ) );
+				blendingKernel.accumulate( Views.flatIterable( sourceInterval ).cursor(), weights, channelsValues[ 0 ] );
 			}
-			final Interval intersectionIntervalInTargetInterval = new FinalInterval( minIntersectionInTargetInterval, maxIntersectionInTargetInterval );
-			final Translation translation = new Translation( offset );
-
-			final RandomAccessibleInterval< T > rawTile = TileLoader.loadTile( tile, dataProvider );
-			final RandomAccessibleInterval< R > convertedTile = ( RandomAccessibleInterval ) Converters.convert( rawTile, new RealFloatConverter<>(), new FloatType() );
-			final RandomAccessible< R > extendedTile = Views.extendBorder( convertedTile );
-			final RealRandomAccessible< R > interpolatedTile = Views.interpolate( extendedTile, new NLinearInterpolatorFactory<>() );
-			final RandomAccessible< R > rasteredInterpolatedTile = Views.raster( RealViews.affine( interpolatedTile, translation ) );
-			final RandomAccessibleInterval< R > interpolatedTileInterval = Views.interval( rasteredInterpolatedTile, intersectionIntervalInTargetInterval );
-
-			final RandomAccessibleInterval< R > sourceInterval;
-			if ( flatfield != null )
+			else
 			{
-				final RandomAccessible< U >[] flatfieldComponents = new RandomAccessible[] { flatfield.getA(), flatfield.getB() }, adjustedFlatfieldComponents = new RandomAccessible[ 2 ];
-				for ( int i = 0; i < flatfieldComponents.length; ++i )
+				final float[] tileWeights = blendingKernel.getWeights();
+				blendingKernel.accumulateWeights( tileWeights, weights );
+				for ( int channel = 0; channel < numChannels; ++channel )
 				{
-					final RandomAccessibleInterval< U > flatfieldComponentInterval = Views.interval( flatfieldComponents[ i ], new FinalInterval( tile.getSize() ) );
-					final RandomAccessible< U > extendedFlatfieldComponent = Views.extendBorder( flatfieldComponentInterval );
-					final RealRandomAccessible< U > interpolatedFlatfieldComponent = Views.interpolate( extendedFlatfieldComponent, new NLinearInterpolatorFactory<>() );
-					final RandomAccessible< U > rasteredInterpolatedFlatfieldComponent = Views.raster( RealViews.affine( interpolatedFlatfieldComponent, translation ) );
-					adjustedFlatfieldComponents[ i ] = Views.interval( rasteredInterpolatedFlatfieldComponent, intersectionIntervalInTargetInterval );
+					final TileInfo channelTile = channelsTilesWithinCell.get( channel ).get( tileIndex );
+					System.out.println( "Loading tile image " + channelTile.getFilePath() );
+					final RandomAccessibleInterval< R > sourceInterval = FusionPerformer.< T, U, R >getTileSource( dataProvider, channelTile, offset, intersectionIntervalInTargetInterval, channelsFlatfields.get( channel ) );
+					blendingKernel.accumulateValues( Views.flatIterable( sourceInterval ).cursor(), tileWeights, channelsValues[ channel ] );
 				}
-				final RandomAccessiblePair< U, U > adjustedFlatfield = new RandomAccessiblePair<>( adjustedFlatfieldComponents[ 0 ], adjustedFlatfieldComponents[ 1 ] );
-				final FlatfieldCorrectedRandomAccessible< R, U > flatfieldCorrectedTile = new FlatfieldCorrectedRandomAccessible<>( interpolatedTileInterval, adjustedFlatfield );
-				final RandomAccessibleInterval< U > flatfieldCorrectedInterval = Views.interval( flatfieldCorrectedTile, intersectionIntervalInTargetInterval );
-				sourceInterval = ( RandomAccessibleInterval ) Converters.convert( flatfieldCorrectedInterval, new RealFloatConverter<>(), new FloatType() );
 			}
-			else
-			{
-				sourceInterval = interpolatedTileInterval;
-			}
-
-			final RandomAccessibleInterval< FloatType > weightsInterval = Views.interval( weights, intersectionIntervalInTargetInterval ) ;
-			final RandomAccessibleInterval< FloatType > valuesInterval = Views.interval( values, intersectionIntervalInTargetInterval ) ;
-			final RandomAccessibleInterval< Set< Integer > > tileIndexesInterval = tileIndexes != null ? Views.interval( tileIndexes, intersectionIntervalInTargetInterval ) : null;
-
-			final Cursor< R > sourceCursor = Views.flatIterable( sourceInterval ).localizingCursor();
-			final Cursor< FloatType > weightsCursor = Views.flatIterable( weightsInterval ).cursor();
-			final Cursor< FloatType > valuesCursor = Views.flatIterable( valuesInterval ).cursor();
-			final Cursor< Set< Integer > > tileIndexesCursor = tileIndexesInterval != null ? Views.flatIterable( tileIndexesInterval ).cursor() : null;
 
-			final double[] position = new double[ sourceCursor.numDimensions() ];
-			while ( sourceCursor.hasNext() || weightsCursor.hasNext() || valuesCursor.hasNext() || ( tileIndexesCursor != null && tileIndexesCursor.hasNext() ) )
-			{
-				final double value = sourceCursor.next().getRealDouble();
-
-				sourceCursor.localize( position );
-				for ( int d = 0; d < position.length; ++d )
-					position[ d ] -= offset[ d ];
-				final double weight = getBlendingWeight( position, tileDimensions, FRACTION_BLENDED );
-
-				final FloatType weightAccum = weightsCursor.next();
-				final FloatType valueAccum = valuesCursor.next();
-				weightAccum.setReal( weightAccum.getRealDouble() + weight );
-				valueAccum.setReal( valueAccum.getRealDouble() + value * weight );
-
-				if ( tileIndexesCursor != null )
-					tileIndexesCursor.next().add( tile.getIndex() );
-			}
+			if ( tileLabels != null )
+				tileLabels.addTile( tile.getIndex(), intersectionIntervalInTargetInterval );
 		}
 
-		final T fillType = dataType.createVariable();
-		if ( backgroundValue != null)
-			fillType.setReal( backgroundValue.doubleValue() );
-
-		// initialize output image
-		final ImagePlusImg< T, ? > out = new ImagePlusImgFactory< T >().create( Intervals.dimensionsAsLongArray( targetInterval ), dataType.createVariable() );
-		final Cursor< FloatType > weightsCursor = Views.flatIterable( weights ).cursor();
-		final Cursor< FloatType > valuesCursor = Views.flatIterable( values ).cursor();
-		final Cursor< T > outCursor = Views.flatIterable( out ).cursor();
-		while ( outCursor.hasNext() || weightsCursor.hasNext() || valuesCursor.hasNext() )
+		final List< ImagePlusImg< T, ? > > outs = new ArrayList<>();
+		for ( int channel = 0; channel < numChannels; ++channel )
 		{
-			final double weight = weightsCursor.next().getRealDouble();
-			final double value = valuesCursor.next().getRealDouble();
-			outCursor.next().setReal( weight == 0 ? fillType.getRealDouble() : value / weight );
-		}
+			final T fillType = getFillType( dataType, channelsBackgroundValues.get( channel ) );
 
-		// retain only requested content within overlaps that corresponds to pairwise connections map
-		if ( tileIndexes != null )
-		{
-			outCursor.reset();
-			final Cursor< Set< Integer > > tileIndexesCursor = Views.flatIterable( tileIndexes ).cursor();
-			while ( outCursor.hasNext() || tileIndexesCursor.hasNext() )
+			// initialize output image
+			final ImagePlusImg< T, ? > out = new ImagePlusImgFactory< T >().create( Intervals.dimensionsAsLongArray( targetInterval ), dataType.createVariable() );
+			final Cursor< T > outCursor = Views.flatIterable( out ).cursor();
+			final float[] values = channelsValues[ channel ];
+			for ( int i = 0; i < numElements; ++i )
 			{
-				boolean retainPixel = false;
-				final Set< Integer > tilesAtPoint = tileIndexesCursor.next();
-				for ( final Integer testTileIndex : tilesAtPoint )
-				{
-					final Set< Integer > connectedTileIndexes = pairwiseConnectionsMap.get( testTileIndex );
-					if ( connectedTileIndexes != null && !Collections.disjoint( tilesAtPoint, connectedTileIndexes ) )
-					{
-						retainPixel = true;
-						break;
-					}
-				}
-
-				outCursor.fwd();
-				if ( !retainPixel )
-					outCursor.get().set( fillType );
+				final double weight = weights[ i ];
+				final double value = values[ i ];
+				outCursor.next().setReal( weight == 0 ? fillType.getRealDouble() : value / weight );
 			}
-		}
-
-		return out;
-	}
-	private static double getBlendingWeight( final double[] location, final Dimensions dimensions, final double percentScaling )
-	{
-		// compute multiplicative distance to the respective borders [0...1]
-		double minDistance = 1;
-
-		for ( int dim = 0; dim < location.length; ++dim )
-		{
-			// the position in the image
-			final double localImgPos = location[ dim ];
 
-			// the distance to the border that is closer
-			double value = Math.max( 1, Math.min( localImgPos, dimensions.dimension( dim ) - 1 - localImgPos ) );
+			// retain only requested content within overlaps that corresponds to pairwise connections map
+			if ( channelsPairwiseConnectionsMaps.get( channel ) != null )
+				retainPairwiseConnections( out, tileLabels, channelsPairwiseConnectionsMaps.get( channel ), fillType );
 
-			final float imgAreaBlend = Math.round( percentScaling * 0.5f * ( dimensions.dimension( dim ) - 1 ) );
-
-			if ( value < imgAreaBlend )
-				value = value / imgAreaBlend;
-			else
-				value = 1;
-
-			minDistance *= value;
+			outs.add( out );
 		}
-
-		if ( minDistance == 1 )
-			return 1;
-		else if ( minDistance <= 0 )
-			return 0.0000001;
-		else
-			return ( Math.cos( (1 - minDistance) * Math.PI ) + 1 ) / 2;
+		return outs;
 	}
 
 	public static <
 		T extends RealType< T > & NativeType< T >,
-		U extends RealType< U > & NativeType< U >,
-		R extends RealType< R > & NativeType< R > >
+		U extends RealType< U > & NativeType< U > >
 	ImagePlusImg< T, ? > fuseTilesWithinCellUsingMaxMinDistance(
 			final DataProvider dataProvider,
 			final List< TileInfo > tilesWithinCell,
@@ -304,147 +245,268 @@ public class FusionPerformer
 			final RandomAccessiblePairNullable< U, U > flatfield,
 			final Map< Integer, Set< Integer > > pairwiseConnectionsMap ) throws Exception
 	{
-		// initialize output image
-		final ImagePlusImg< T, ? > out = new ImagePlusImgFactory< T >().create( Intervals.dimensionsAsLongArray( targetInterval ), dataType.createVariable() );
-
-		final T fillType = dataType.createVariable();
-		if ( backgroundValue != null)
-			fillType.setReal( backgroundValue.doubleValue() );
+		return fuseChannelsWithinCellUsingMaxMinDistance(
+				dataProvider,
+				Collections.singletonList( tilesWithinCell ),
+				targetInterval,
+				dataType,
+				Collections.singletonList( backgroundValue ),
+				Collections.singletonList( flatfield ),
+				Collections.singletonList( pairwiseConnectionsMap )
+			).get( 0 );
+	}
 
-		// fill with default value
-		if ( backgroundValue != null )
-			for ( final T outVal : out )
-				outVal.set( fillType );
+	public static <
+		T extends RealType< T > & NativeType< T >,
+		U extends RealType< U > & NativeType< U >,
+		R extends RealType< R > & NativeType< R > >
+	List< ImagePlusImg< T, ? > > fuseChannelsWithinCellUsingMaxMinDistance(
+			final DataProvider dataProvider,
+			final List< List< TileInfo > > channelsTilesWithinCell,
+			final Interval targetInterval,
+			final T dataType,
+			final List< Number > channelsBackgroundValues,
+			final List< RandomAccessiblePairNullable< U, U > > channelsFlatfields,
+			final List< Map< Integer, Set< Integer > > > channelsPairwiseConnectionsMaps ) throws Exception
+	{
+		final int numChannels = channelsTilesWithinCell.size();
+		final List< TileInfo > tilesWithinCell = channelsTilesWithinCell.get( 0 );
+
+		// initialize output images
+		final List< ImagePlusImg< T, ? > > outs = new ArrayList<>();
+		final List< T > fillTypes = new ArrayList<>();
+		final List< RandomAccess< T > > outRandomAccesses = new ArrayList<>();
+		for ( int channel = 0; channel < numChannels; ++channel )
+		{
+			final ImagePlusImg< T, ? > out = new ImagePlusImgFactory< T >().create( Intervals.dimensionsAsLongArray( targetInterval ), dataType.createVariable() );
+			final T fillType = getFillType( dataType, channelsBackgroundValues.get( channel ) );
 
-		// initialize helper image for hard-cut fusion strategy
-		final RandomAccessibleInterval< FloatType > maxMinDistances = ArrayImgs.floats( Intervals.dimensionsAsLongArray( targetInterval ) );
+			// fill with default value
+			if ( channelsBackgroundValues.get( channel ) != null )
+				for ( final T outVal : out )
+					outVal.set( fillType );
 
-		// initialize helper image for tile connections when exporting only overlaps
-		final RandomAccessibleInterval< Set< Integer > > tileIndexes;
-		if ( pairwiseConnectionsMap != null )
-		{
-			final List< Set< Integer > > tileIndexesList = new ArrayList<>( ( int ) out.size() );
-			for ( int i = 0; i < out.size(); ++i )
-				tileIndexesList.add( new HashSet<>() );
-			tileIndexes = new ListImg<>( tileIndexesList, Intervals.dimensionsAsLongArray( targetInterval ) );
+			outs.add( out );
+			fillTypes.add( fillType );
+			outRandomAccesses.add( out.randomAccess() );
 		}
-		else
+
+		// compute which tile owns each pixel of the output cell for hard-cut fusion strategy
+		final double[][] offsets = new double[ tilesWithinCell.size() ][];
+		final long[][] tileDimensions = new long[ tilesWithinCell.size() ][];
+		for ( int i = 0; i < tilesWithinCell.size(); ++i )
 		{
-			tileIndexes = null;
+			offsets[ i ] = getOffset( tilesWithinCell.get( i ), targetInterval );
+			tileDimensions[ i ] = tilesWithinCell.get( i ).getSize();
 		}
+		final MaxMinDistanceOwnership ownership = new MaxMinDistanceOwnership( offsets, tileDimensions, Intervals.dimensionsAsIntArray( targetInterval ) );
 
-		for ( final TileInfo tile : tilesWithinCell )
-		{
-			System.out.println( "Loading tile image " + tile.getFilePath() );
+		// initialize helper label image for tile connections when exporting only overlaps
+		final TileCombinationLabels tileLabels = hasPairwiseConnections( channelsPairwiseConnectionsMaps ) ? new TileCombinationLabels( Intervals.dimensionsAsIntArray( targetInterval ) ) : null;
 
-			final FinalRealInterval intersection = IntervalsNullable.intersectReal(
-					new FinalRealInterval( tile.getPosition(), tile.getMax() ),
-					targetInterval );
+		final long[] rowPosition = new long[ targetInterval.numDimensions() ];
 
-			if ( intersection == null )
-				throw new IllegalArgumentException( "tilesWithinCell contains a tile that doesn't intersect with the target interval:\n" + "Tile " + tile.getIndex() + " at " + Arrays.toString( tile.getPosition() ) + " of size " + Arrays.toString( tile.getSize() ) + "\n" + "Output cell " + " at " + Arrays.toString( Intervals.minAsIntArray( targetInterval ) ) + " of size " + Arrays.toString( Intervals.dimensionsAsIntArray( targetInterval ) ) );
+		for ( int tileIndex = 0; tileIndex < tilesWithinCell.size(); ++tileIndex )
+		{
+			final TileInfo tile = tilesWithinCell.get( tileIndex );
+			final double[] offset = offsets[ tileIndex ];
+			final Interval intersectionIntervalInTargetInterval = getIntersectionInTargetInterval( tile, targetInterval );
 
-			final double[] offset = new double[ targetInterval.numDimensions() ];
-			final long[] minIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
-			final long[] maxIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
-			for ( int d = 0; d < minIntersectionInTargetInterval.length; ++d )
-			{
-				offset[ d ] = tile.getPosition( d ) - targetInterval.min( d );
-				minIntersectionInTargetInterval[ d ] = ( long ) Math.floor( intersection.realMin( d ) ) - targetInterval.min( d );
-				maxIntersectionInTargetInterval[ d ] = ( long ) Math.ceil ( intersection.realMax( d ) ) - targetInterval.min( d );
-			}
-			final Interval intersectionIntervalInTargetInterval = new FinalInterval( minIntersectionInTargetInterval, maxIntersectionInTargetInterval );
-			final Translation translation = new Translation( offset );
+			if ( tileLabels != null )
+				tileLabels.addTile( tile.getIndex(), intersectionIntervalInTargetInterval );
 
-			final RandomAccessibleInterval< T > rawTile = TileLoader.loadTile( tile, dataProvider );
-			final RandomAccessibleInterval< R > convertedTile = ( RandomAccessibleInterval ) Converters.convert( rawTile, new RealFloatConverter<>(), new FloatType() );
-			final RandomAccessible< R > extendedTile = Views.extendBorder( convertedTile );
-			final RealRandomAccessible< R > interpolatedTile = Views.interpolate( extendedTile, new NLinearInterpolatorFactory<>() );
-			final RandomAccessible< R > rasteredInterpolatedTile = Views.raster( RealViews.affine( interpolatedTile, translation ) );
-			final RandomAccessibleInterval< R > interpolatedTileInterval = Views.interval( rasteredInterpolatedTile, intersectionIntervalInTargetInterval );
-
-			final RandomAccessibleInterval< R > sourceInterval;
-			if ( flatfield != null )
+			// the tile may be entirely covered by other tiles
+			if ( ownership.getNumRuns( tileIndex ) == 0 )
+				continue;
+
+			for ( int channel = 0; channel < numChannels; ++channel )
 			{
-				final RandomAccessible< U >[] flatfieldComponents = new RandomAccessible[] { flatfield.getA(), flatfield.getB() }, adjustedFlatfieldComponents = new RandomAccessible[ 2 ];
-				for ( int i = 0; i < flatfieldComponents.length; ++i )
+				final TileInfo channelTile = channelsTilesWithinCell.get( channel ).get( tileIndex );
+				System.out.println( "Loading tile image " + channelTile.getFilePath() );
+				final RandomAccessibleInterval< R > sourceInterval = FusionPerformer.< T, U, R >getTileSource( dataProvider, channelTile, offset, intersectionIntervalInTargetInterval, channelsFlatfields.get( channel ) );
+
+				// copy the rows of the sub-boxes owned by the tile
+				final RandomAccess< R > sourceRandomAccess = sourceInterval.randomAccess();
+				final RandomAccess< T > outRandomAccess = outRandomAccesses.get( channel );
+				for ( int run = 0; run < ownership.getNumRuns( tileIndex ); ++run )
 				{
-					final RandomAccessibleInterval< U > flatfieldComponentInterval = Views.interval( flatfieldComponents[ i ], new FinalInterval( tile.getSize() ) );
-					final RandomAccessible< U > extendedFlatfieldComponent = Views.extendBorder( flatfieldComponentInterval );
-					final RealRandomAccessible< U > interpolatedFlatfieldComponent = Views.interpolate( extendedFlatfieldComponent, new NLinearInterpolatorFactory<>() );
-					final RandomAccessible< U > rasteredInterpolatedFlatfieldComponent = Views.raster( RealViews.affine( interpolatedFlatfieldComponent, translation ) );
-					adjustedFlatfieldComponents[ i ] = Views.interval( rasteredInterpolatedFlatfieldComponent, intersectionIntervalInTargetInterval );
+					ownership.getRowPosition( ownership.getRunRow( tileIndex, run ), rowPosition );
+					rowPosition[ 0 ] = ownership.getRunStart( tileIndex, run );
+					sourceRandomAccess.setPosition( rowPosition );
+					outRandomAccess.setPosition( rowPosition );
+
+					for ( int x = ownership.getRunStart( tileIndex, run ); x < ownership.getRunEnd( tileIndex, run ); ++x )
+					{
+						outRandomAccess.get().setReal( sourceRandomAccess.get().getRealDouble() );
+						sourceRandomAccess.fwd( 0 );
+						outRandomAccess.fwd( 0 );
+					}
 				}
-				final RandomAccessiblePair< U, U > adjustedFlatfield = new RandomAccessiblePair<>( adjustedFlatfieldComponents[ 0 ], adjustedFlatfieldComponents[ 1 ] );
-				final FlatfieldCorrectedRandomAccessible< R, U > flatfieldCorrectedTile = new FlatfieldCorrectedRandomAccessible<>( interpolatedTileInterval, adjustedFlatfield );
-				final RandomAccessibleInterval< U > flatfieldCorrectedInterval = Views.interval( flatfieldCorrectedTile, intersectionIntervalInTargetInterval );
-				sourceInterval = ( RandomAccessibleInterval ) Converters.convert( flatfieldCorrectedInterval, new RealFloatConverter<>(), new FloatType() );
-			}
-			else
-			{
-				sourceInterval = interpolatedTileInterval;
 			}
+		}
 
-			final RandomAccessibleInterval< T > outInterval = Views.interval( out, intersectionIntervalInTargetInterval ) ;
-			final RandomAccessibleInterval< FloatType > maxMinDistanceInterval = Views.interval( maxMinDistances, intersectionIntervalInTargetInterval ) ;
-			final RandomAccessibleInterval< Set< Integer > > tileIndexesInterval = tileIndexes != null ? Views.interval( tileIndexes, intersectionIntervalInTargetInterval ) : null;
+		// retain only requested content within overlaps that corresponds to pairwise connections map
+		for ( int channel = 0; channel < numChannels; ++channel )
+			if ( channelsPairwiseConnectionsMaps.get( channel ) != null )
+				retainPairwiseConnections( outs.get( channel ), tileLabels, channelsPairwiseConnectionsMaps.get( channel ), fillTypes.get( channel ) );
 
-			final Cursor< R > sourceCursor = Views.flatIterable( sourceInterval ).localizingCursor();
-			final Cursor< T > outCursor = Views.flatIterable( outInterval ).cursor();
-			final Cursor< FloatType > maxMinDistanceCursor = Views.flatIterable( maxMinDistanceInterval ).cursor();
-			final Cursor< Set< Integer > > tileIndexesCursor = tileIndexesInterval != null ? Views.flatIterable( tileIndexesInterval ).cursor() : null;
+		return outs;
+	}
 
-			while ( sourceCursor.hasNext() || outCursor.hasNext() || maxMinDistanceCursor.hasNext() || ( tileIndexesCursor != null && tileIndexesCursor.hasNext() ) )
-			{
-				sourceCursor.fwd();
-				outCursor.fwd();
-				final FloatType maxMinDistance = maxMinDistanceCursor.next();
-				double minDistance = Double.MAX_VALUE;
-				for ( int d = 0; d < offset.length; ++d )
-				{
-					final double cursorPosition = sourceCursor.getDoublePosition( d );
-					final double dx = Math.min(
-							cursorPosition - offset[ d ],
-							tile.getSize( d ) - 1 + offset[ d ] - cursorPosition );
-					if ( dx < minDistance ) minDistance = dx;
-				}
-				if ( minDistance >= maxMinDistance.get() )
-				{
-					maxMinDistance.setReal( minDistance );
-					outCursor.get().setReal( sourceCursor.get().getRealDouble() );
-				}
+	private static double[] getOffset( final TileInfo tile, final Interval targetInterval )
+	{
+		final double[] offset = new double[ targetInterval.numDimensions() ];
+		for ( int d = 0; d < offset.length; ++d )
+			offset[ d ] = tile.getPosition( d ) - targetInterval.min( d );
+		return offset;
+	}
 
-				if ( tileIndexesCursor != null )
-					tileIndexesCursor.next().add( tile.getIndex() );
-			}
-		}
+	/**
+	 * @return intersection of the tile with the target interval (in the coordinates of the target interval)
+	 */
+	private static Interval getIntersectionInTargetInterval( final TileInfo tile, final Interval targetInterval )
+	{
+		final FinalRealInterval intersection = IntervalsNullable.intersectReal(
+				new FinalRealInterval( tile.getPosition(), tile.getMax() ),
+				targetInterval );
 
-		// retain only requested content within overlaps that corresponds to pairwise connections map
-		if ( tileIndexes != null )
+		if ( intersection == null )
+			throw new IllegalArgumentException( "tilesWithinCell contains a tile that doesn't intersect with the target interval:\n" + "Tile " + tile.getIndex() + " at " + Arrays.toString( tile.getPosition() ) + " of size " + Arrays.toString( tile.getSize() ) + "\n" + "Output cell " + " at " + Arrays.toString( Intervals.minAsIntArray( targetInterval ) ) + " of size " + Arrays.toString( Intervals.dimensionsAsIntArray( targetInterval ) ) );
+
+		final long[] minIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
+		final long[] maxIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
+		for ( int d = 0; d < minIntersectionInTargetInterval.length; ++d )
 		{
-			final Cursor< T > outCursor = Views.flatIterable( out ).cursor();
-			final Cursor< Set< Integer > > tileIndexesCursor = Views.flatIterable( tileIndexes ).cursor();
-			while ( outCursor.hasNext() || tileIndexesCursor.hasNext() )
-			{
-				boolean retainPixel = false;
-				final Set< Integer > tilesAtPoint = tileIndexesCursor.next();
-				for ( final Integer testTileIndex : tilesAtPoint )
-				{
-					final Set< Integer > connectedTileIndexes = pairwiseConnectionsMap.get( testTileIndex );
-					if ( connectedTileIndexes != null && !Collections.disjoint( tilesAtPoint, connectedTileIndexes ) )
-					{
-						retainPixel = true;
-						break;
-					}
-				}
+			minIntersectionInTargetInterval[ d ] = ( long ) Math.floor( intersection.realMin( d ) ) - targetInterval.min( d );
+			maxIntersectionInTargetInterval[ d ] = ( long ) Math.ceil ( intersection.realMax( d ) ) - targetInterval.min( d );
+		}
+		return new FinalInterval( minIntersectionInTargetInterval, maxIntersectionInTargetInterval );
+	}
 
-				outCursor.fwd();
-				if ( !retainPixel )
-					outCursor.get().set( fillType );
-			}
+	private static < T extends RealType< T > > T getFillType( final T dataType, final Number backgroundValue )
+	{
+		final T fillType = dataType.createVariable();
+		if ( backgroundValue != null)
+			fillType.setReal( backgroundValue.doubleValue() );
+		return fillType;
+	}
+
+	private static boolean hasPairwiseConnections( final List< Map< Integer, Set< Integer > > > channelsPairwiseConnectionsMaps )
+	{
+		for ( final Map< Integer, Set< Integer > > pairwiseConnectionsMap : channelsPairwiseConnectionsMaps )
+			if ( pairwiseConnectionsMap != null )
+				return true;
+		return false;
+	}
+
+
+	/**
+	 * Creates a view of the tile within the given interval of the output cell.
+	 * If the flatfield is provided, the tile data within the interval is loaded into memory and corrected using {@link FlatfieldCorrectionKernel}.
+	 * If the tile is placed at an integral offset, the pixels are taken directly from the source data.
+	 * Otherwise the tile is interpolated at the output pixel locations.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static <
+		T extends RealType< T > & NativeType< T >,
+		U extends RealType< U > & NativeType< U >,
+		R extends RealType< R > & NativeType< R > >
+	RandomAccessibleInterval< R > getTileSource(
+			final DataProvider dataProvider,
+			final TileInfo tile,
+			final double[] offset,
+			final Interval intersectionIntervalInTargetInterval,
+			final RandomAccessiblePairNullable< U, U > flatfield ) throws Exception
+	{
+		final RandomAccessibleInterval< T > rawTile = TileLoader.loadTile( tile, dataProvider );
+		final RandomAccessibleInterval< R > convertedTile = ( RandomAccessibleInterval ) Converters.convert( rawTile, new RealFloatConverter<>(), new FloatType() );
+		final long[] integralOffset = getIntegralOffset( offset );
+
+		final RandomAccessibleInterval< R > tileInterval;
+		if ( integralOffset != null )
+			tileInterval = getTranslatedTileInterval( convertedTile, integralOffset, intersectionIntervalInTargetInterval );
+		else
+			tileInterval = getInterpolatedTileInterval( convertedTile, offset, intersectionIntervalInTargetInterval );
+
+		if ( flatfield == null )
+			return tileInterval;
+
+		// materialize the tile within the intersection and correct it in a single pass with the flatfield resampled for the tile offset
+		final FlatfieldCorrectionKernel flatfieldCorrectionKernel = FlatfieldCorrectionKernel.create( flatfield, tile.getBoundaries(), offset, intersectionIntervalInTargetInterval );
+		final float[] flatfieldCorrectedData = flatfieldCorrectionKernel.apply( Views.flatIterable( tileInterval ).cursor() );
+		return ( RandomAccessibleInterval ) Views.translate(
+				ArrayImgs.floats( flatfieldCorrectedData, Intervals.dimensionsAsLongArray( intersectionIntervalInTargetInterval ) ),
+				Intervals.minAsLongArray( intersectionIntervalInTargetInterval )
+			);
+	}
+
+	/**
+	 * Takes the pixels of the tile placed at an integral offset directly from the source data.
+	 */
+	static < R extends RealType< R > > RandomAccessibleInterval< R > getTranslatedTileInterval(
+			final RandomAccessibleInterval< R > convertedTile,
+			final long[] integralOffset,
+			final Interval intersectionIntervalInTargetInterval )
+	{
+		return Views.interval( Views.translate( convertedTile, integralOffset ), intersectionIntervalInTargetInterval );
+	}
+
+	/**
+	 * Interpolates the tile at the output pixel locations.
+	 */
+	static < R extends RealType< R > > RandomAccessibleInterval< R > getInterpolatedTileInterval(
+			final RandomAccessibleInterval< R > convertedTile,
+			final double[] offset,
+			final Interval intersectionIntervalInTargetInterval )
+	{
+		final Translation translation = new Translation( offset );
+		final RandomAccessible< R > extendedTile = Views.extendBorder( convertedTile );
+		final RealRandomAccessible< R > interpolatedTile = Views.interpolate( extendedTile, new NLinearInterpolatorFactory<>() );
+		final RandomAccessible< R > rasteredInterpolatedTile = Views.raster( RealViews.affine( interpolatedTile, translation ) );
+		return Views.interval( rasteredInterpolatedTile, intersectionIntervalInTargetInterval );
+	}
+
+	/**
+	 * @return true if the tile is placed at an integral position, so it can be fused without interpolation
+	 */
+	public static boolean hasIntegralPosition( final TileInfo tile )
+	{
+		return getIntegralOffset( tile.getPosition() ) != null;
+	}
+
+	/**
+	 * @return the offset converted to integers if all of its components are integral, or null otherwise
+	 */
+	private static long[] getIntegralOffset( final double[] offset )
+	{
+		final long[] integralOffset = new long[ offset.length ];
+		for ( int d = 0; d < offset.length; ++d )
+		{
+			if ( offset[ d ] != Math.rint( offset[ d ] ) )
+				return null;
+			integralOffset[ d ] = ( long ) offset[ d ];
 		}
+		return integralOffset;
+	}
 
-		return out;
+	/**
+	 * Fills the pixels that are not covered by any pair of connected tiles with the given value.
+	 * The check is done once for each distinct combination of tiles within the cell.
+	 */
+	private static < T extends RealType< T > > void retainPairwiseConnections(
+			final RandomAccessibleInterval< T > out,
+			final TileCombinationLabels tileLabels,
+			final Map< Integer, Set< Integer > > pairwiseConnectionsMap,
+			final T fillType )
+	{
+		final boolean[] retainedLabels = tileLabels.getRetainedLabels( pairwiseConnectionsMap );
+		final Cursor< T > outCursor = Views.flatIterable( out ).cursor();
+		for ( int i = 0; outCursor.hasNext(); ++i )
+		{
+			outCursor.fwd();
+			if ( !retainedLabels[ tileLabels.getLabel( i ) ] )
+				outCursor.get().set( fillType );
+		}
 	}
 
 
@@ -503,12 +565,21 @@ public class FusionPerformer
 
 			final RandomAccessibleInterval< T > rawTile = TileLoader.loadTile( tile, dataProvider );
 			final RandomAccessibleInterval< T > correctedDimTile = rawTile.numDimensions() < cell.numDimensions() ? Views.stack( rawTile ) : rawTile;
-			final RealRandomAccessible< T > interpolatedTile = Views.interpolate( Views.extendBorder( correctedDimTile ), new NLinearInterpolatorFactory<>() );
 
-			final AbstractTranslation translation = ( tile.numDimensions() == 3 ? new Translation3D( tile.getPosition() ) : new Translation2D( tile.getPosition() ) );
-			final RandomAccessible< T > translatedInterpolatedTile = RealViews.affine( interpolatedTile, translation );
+			final long[] integralPosition = getIntegralOffset( tile.getPosition() );
+			final RandomAccessible< T > translatedTile;
+			if ( integralPosition != null )
+			{
+				translatedTile = Views.translate( correctedDimTile, integralPosition );
+			}
+			else
+			{
+				final RealRandomAccessible< T > interpolatedTile = Views.interpolate( Views.extendBorder( correctedDimTile ), new NLinearInterpolatorFactory<>() );
+				final AbstractTranslation translation = ( tile.numDimensions() == 3 ? new Translation3D( tile.getPosition() ) : new Translation2D( tile.getPosition() ) );
+				translatedTile = RealViews.affine( interpolatedTile, translation );
+			}
 
-			final IterableInterval< T > tileSource = Views.flatIterable( Views.interval( translatedInterpolatedTile, intersection ) );
+			final IterableInterval< T > tileSource = Views.flatIterable( Views.interval( translatedTile, intersection ) );
 			final IterableInterval< T > cellBox = Views.flatIterable( Views.interval( cellImg, intersection ) );
 
 			final Cursor< T > source = tileSource.cursor();
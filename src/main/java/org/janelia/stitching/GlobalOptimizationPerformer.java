@@ -1,8 +1,10 @@
 package org.janelia.stitching;
 
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -11,12 +13,16 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
 
+import org.janelia.stitching.StitchingArguments.OptimizationSolver;
+
 import mpicbg.models.ErrorStatistic;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
 import mpicbg.models.Tile;
 import mpicbg.models.TileConfiguration;
 import mpicbg.models.TileUtil;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
 import mpicbg.stitching.ComparePair;
 import mpicbg.stitching.ImagePlusTimePoint;
 import mpicbg.stitching.PointMatchStitching;
@@ -80,6 +86,22 @@ public class GlobalOptimizationPerformer
 	public int remainingGraphSize;
 	public double avgDisplacement, maxDisplacement;
 
+	/**
+	 * If set, the tile models are initialized from the previous solution, and only the affected part of the graph is re-optimized when the changes are small.
+	 */
+	public OptimizationWarmStart warmStart = null;
+
+	/**
+	 * If positive, the optimization stops once the error has not been changing for this number of iterations
+	 * (and the average error is acceptable), otherwise it always runs for the full number of iterations.
+	 */
+	public int earlyStoppingPlateauWidth = 0;
+
+	/**
+	 * Method used for fitting the tile models to the pairwise matches within each round of the optimization.
+	 */
+	public OptimizationSolver solver = OptimizationSolver.RELAXATION;
+
 	public static void suppressOutput()
 	{
 		System.setOut( suppressedOut );
@@ -471,19 +493,28 @@ public class GlobalOptimizationPerformer
 				long elapsed = System.nanoTime();
 
 				final int iterations = 2000;
-				tc.preAlign();
-
-				TileUtil.optimizeConcurrently(
-						new ErrorStatistic( iterations + 1 ),
-						10,
-						iterations,
-						iterations,
-						1.f,
-						tc,
-						tc.getTiles(),
-						tc.getFixedTiles(),
-						1 // single-threaded because run with different configurations in parallel using Spark
-					);
+				if ( warmStart == null || !initializeFromPreviousSolution( tc, tilesSet, firstChannel ) )
+					tc.preAlign();
+
+				if ( solver == OptimizationSolver.LEAST_SQUARES && hasTranslationModels( tc ) )
+				{
+					solveLeastSquares( tc );
+				}
+				else
+				{
+					final int plateauWidth = earlyStoppingPlateauWidth > 0 ? Math.min( earlyStoppingPlateauWidth, iterations ) : iterations;
+					TileUtil.optimizeConcurrently(
+							new ErrorStatistic( iterations + 1 ),
+							10,
+							iterations,
+							plateauWidth,
+							1.f,
+							tc,
+							tc.getTiles(),
+							tc.getFixedTiles(),
+							1 // single-threaded because run with different configurations in parallel using Spark
+						);
+				}
 
 				elapsed = System.nanoTime() - elapsed;
 
@@ -693,6 +724,152 @@ public class GlobalOptimizationPerformer
 
 		return imageInformationList;
 	}
+
+	/**
+	 * Sets the models of the tiles that are present in the previous solution to their previous positions,
+	 * and pre-aligns the remaining tiles to them through the pairwise matches (similarly to {@link TileConfiguration#preAlign()}).
+	 * If only a small part of the graph is affected by the changes in the pairs, the rest of the tiles are fixed.
+	 *
+	 * @return false if none of the tiles are present in the previous solution, so the configuration needs to be pre-aligned from scratch
+	 */
+	private boolean initializeFromPreviousSolution( final TileConfiguration tc, final Set< Tile< ? > > tilesSet, final Vector< ComparePair > pairs ) throws Exception
+	{
+		final Set< Tile< ? > > alignedTiles = new HashSet<>();
+		final ArrayDeque< Tile< ? > > queue = new ArrayDeque<>();
+		for ( final Tile< ? > tile : tilesSet )
+		{
+			final double[] previousPosition = warmStart.getPreviousPosition( ( ( ImagePlusTimePoint ) tile ).getImpId() );
+			if ( previousPosition != null )
+			{
+				setTranslation( tile, previousPosition );
+				tile.apply();
+				alignedTiles.add( tile );
+				queue.add( tile );
+			}
+		}
+
+		if ( alignedTiles.isEmpty() )
+			return false;
+
+		final int reusedTiles = alignedTiles.size();
+		while ( !queue.isEmpty() )
+		{
+			final Tile< ? > tile = queue.poll();
+			for ( final Tile< ? > connectedTile : tile.getConnectedTiles() )
+			{
+				if ( alignedTiles.contains( connectedTile ) || !tilesSet.contains( connectedTile ) )
+					continue;
+
+				// fit the model only to the matches with already aligned tiles
+				final List< PointMatch > matches = new ArrayList<>();
+				for ( final PointMatch match : connectedTile.getMatches() )
+				{
+					final ComparePair pair = ( ( PointMatchStitching ) match ).getPair();
+					if ( alignedTiles.contains( pair.getTile1() == connectedTile ? pair.getTile2() : pair.getTile1() ) )
+						matches.add( match );
+				}
+				connectedTile.getModel().fit( matches );
+				connectedTile.apply();
+				alignedTiles.add( connectedTile );
+				queue.add( connectedTile );
+			}
+		}
+
+		final List< ComparePair > validPairs = new ArrayList<>();
+		for ( final ComparePair pair : pairs )
+			if ( pair.getIsValidOverlap() )
+				validPairs.add( pair );
+
+		final Set< Integer > affectedTiles = warmStart.getAffectedTiles( validPairs );
+		int fixedTiles = 0;
+		if ( affectedTiles != null && !affectedTiles.isEmpty() )
+		{
+			for ( final Tile< ? > tile : tilesSet )
+			{
+				if ( !affectedTiles.contains( ( ( ImagePlusTimePoint ) tile ).getImpId() ) )
+				{
+					tc.fixTile( tile );
+					++fixedTiles;
+				}
+			}
+		}
+
+		System.out.println( "Initialized " + reusedTiles + " tiles from the previous solution, pre-aligned " + ( alignedTiles.size() - reusedTiles ) + " new tiles" +
+				( affectedTiles == null ? ", re-optimizing the whole graph" : ", re-optimizing " + ( tilesSet.size() - fixedTiles ) + " affected tiles" ) );
+		return true;
+	}
+
+	private static boolean hasTranslationModels( final TileConfiguration tc )
+	{
+		for ( final Tile< ? > tile : tc.getTiles() )
+			if ( !( tile.getModel() instanceof TranslationModel2D || tile.getModel() instanceof TranslationModel3D ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Finds the optimal translations of the tiles directly by solving the sparse linear least-squares problem
+	 * defined by the point matches, which is equivalent to running the iterative relaxation until convergence.
+	 */
+	private static void solveLeastSquares( final TileConfiguration tc )
+	{
+		final List< Tile< ? > > tiles = new ArrayList<>( tc.getTiles() );
+		final Map< Tile< ? >, Integer > tileToIndex = new HashMap<>();
+		for ( int i = 0; i < tiles.size(); ++i )
+			tileToIndex.put( tiles.get( i ), i );
+
+		final int numDimensions = getTranslation( tiles.get( 0 ) ).length;
+		final TranslationLeastSquaresSolver leastSquaresSolver = new TranslationLeastSquaresSolver( tiles.size(), numDimensions );
+		final double[][] initialPositions = new double[ tiles.size() ][];
+		for ( int i = 0; i < tiles.size(); ++i )
+		{
+			final Tile< ? > tile = tiles.get( i );
+			initialPositions[ i ] = getTranslation( tile );
+			if ( tc.getFixedTiles().contains( tile ) )
+				leastSquaresSolver.fixTile( i );
+
+			// each match of this tile requires that (position + p1) is equal to (position of the other tile + p2)
+			for ( final PointMatch match : tile.getMatches() )
+			{
+				final ComparePair pair = ( ( PointMatchStitching ) match ).getPair();
+				final Integer otherIndex = tileToIndex.get( pair.getTile1() == tile ? pair.getTile2() : pair.getTile1() );
+				if ( otherIndex == null )
+					continue;
+
+				final double[] offset = new double[ numDimensions ];
+				for ( int d = 0; d < numDimensions; ++d )
+					offset[ d ] = match.getP2().getL()[ d ] - match.getP1().getL()[ d ];
+				leastSquaresSolver.addConstraint( otherIndex, i, offset, match.getWeight() );
+			}
+		}
+
+		final double[][] positions = leastSquaresSolver.solve( initialPositions );
+		for ( int i = 0; i < tiles.size(); ++i )
+		{
+			setTranslation( tiles.get( i ), positions[ i ] );
+			tiles.get( i ).apply();
+		}
+		tc.updateErrors();
+
+		System.out.println( "Least-squares solver converged in " + leastSquaresSolver.getIterations() + " iterations" );
+	}
+
+	private static double[] getTranslation( final Tile< ? > tile )
+	{
+		final double[] translation = new double[ tile.getModel() instanceof TranslationModel3D ? 3 : 2 ];
+		tile.getModel().applyInPlace( translation );
+		return translation;
+	}
+
+	private static void setTranslation( final Tile< ? > tile, final double[] position )
+	{
+		if ( tile.getModel() instanceof TranslationModel3D )
+			( ( TranslationModel3D ) tile.getModel() ).set( position[ 0 ], position[ 1 ], position[ 2 ] );
+		else if ( tile.getModel() instanceof TranslationModel2D )
+			( ( TranslationModel2D ) tile.getModel() ).set( position[ 0 ], position[ 1 ] );
+		else
+			throw new IllegalArgumentException( "Only translation models are supported for the warm start, got " + tile.getModel().getClass().getName() );
+	}
 }
 
 
@@ -0,0 +1,228 @@
+package org.janelia.stitching;
+
+import java.util.Arrays;
+
+/**
+ * Computes which tile owns each pixel of an output cell under the max-min-distance fusion strategy,
+ * i.e. the tile where the pixel is farthest from the closest tile border (the later tile wins in case of a tie).
+ * The distance of a tile along a row of the cell is a trapezoid function of the position in the row,
+ * so the ownership changes only at a few points that are computed analytically from the tile boundaries.
+ * The resulting partition of the cell is represented as runs of consecutive pixels within the rows that are owned by the same tile.
+ *
+ * @author Igor Pisarev
+ */
+public class MaxMinDistanceOwnership
+{
+	private static final double EPSILON = 1e-6;
+
+	private final int[] cellDimensions;
+	private final int numTiles;
+
+	// runs of each tile packed as (row index, start, end exclusive) triples
+	private final int[][] runs;
+	private final int[] numRuns;
+
+	// positions within the current row where a new run may start
+	private int[] cuts = new int[ 64 ];
+	private int numCuts;
+
+	/**
+	 * @param offsets positions of the tiles relative to the cell
+	 * @param tileDimensions sizes of the tiles
+	 * @param cellDimensions size of the cell
+	 */
+	public MaxMinDistanceOwnership( final double[][] offsets, final long[][] tileDimensions, final int[] cellDimensions )
+	{
+		this.cellDimensions = cellDimensions.clone();
+		numTiles = offsets.length;
+		runs = new int[ numTiles ][ 3 * 16 ];
+		numRuns = new int[ numTiles ];
+
+		final int n = cellDimensions.length;
+		final double[] rowDistances = new double[ numTiles ];
+		final double[] start = new double[ numTiles ], end = new double[ numTiles ];
+		for ( int t = 0; t < numTiles; ++t )
+		{
+			start[ t ] = offsets[ t ][ 0 ];
+			end[ t ] = tileDimensions[ t ][ 0 ] - 1 + offsets[ t ][ 0 ];
+		}
+
+		final int rowLength = cellDimensions[ 0 ];
+		final int[] rowPosition = new int[ n ];
+		for ( int rowIndex = 0; ; ++rowIndex )
+		{
+			// distance to the closest border along the higher dimensions is the same for the entire row
+			for ( int t = 0; t < numTiles; ++t )
+			{
+				double minDistance = Double.MAX_VALUE;
+				for ( int d = 1; d < n; ++d )
+					minDistance = Math.min( getDistance( rowPosition[ d ], offsets[ t ][ d ], tileDimensions[ t ][ d ] ), minDistance );
+				rowDistances[ t ] = minDistance;
+			}
+
+			// the ownership can only change at the points where one of the distance functions changes its slope or two of them intersect
+			numCuts = 0;
+			addCut( 0 );
+			for ( int t = 0; t < numTiles; ++t )
+			{
+				if ( rowDistances[ t ] < 0 )
+					continue;
+
+				addCuts( start[ t ] );
+				addCuts( end[ t ] );
+				addCuts( start[ t ] + rowDistances[ t ] );
+				addCuts( end[ t ] - rowDistances[ t ] );
+				addCuts( ( start[ t ] + end[ t ] ) / 2 );
+
+				for ( int s = 0; s < numTiles; ++s )
+				{
+					if ( s == t || rowDistances[ s ] < 0 )
+						continue;
+
+					addCuts( start[ t ] + rowDistances[ s ] );
+					addCuts( end[ t ] - rowDistances[ s ] );
+					addCuts( ( start[ t ] + end[ s ] ) / 2 );
+				}
+			}
+
+			// the owner is the same for all pixels between the cuts
+			Arrays.sort( cuts, 0, numCuts );
+			for ( int i = 0; i < numCuts; ++i )
+			{
+				if ( i > 0 && cuts[ i ] == cuts[ i - 1 ] )
+					continue;
+
+				final int runStart = cuts[ i ];
+				int next = i + 1;
+				while ( next < numCuts && cuts[ next ] == runStart )
+					++next;
+				final int runEnd = next < numCuts ? cuts[ next ] : rowLength;
+
+				final int owner = getOwner( runStart, rowDistances, start, end );
+				if ( owner != -1 )
+					addRun( owner, rowIndex, runStart, runEnd );
+			}
+
+			int d = 1;
+			for ( ; d < n; ++d )
+			{
+				if ( ++rowPosition[ d ] < cellDimensions[ d ] )
+					break;
+				rowPosition[ d ] = 0;
+			}
+			if ( d >= n )
+				break;
+		}
+	}
+
+	public int numTiles()
+	{
+		return numTiles;
+	}
+
+	/**
+	 * @return number of runs owned by the tile
+	 */
+	public int getNumRuns( final int tile )
+	{
+		return numRuns[ tile ];
+	}
+
+	/**
+	 * @return linear index of the row (over the dimensions except the first one) that contains the given run of the tile
+	 */
+	public int getRunRow( final int tile, final int run )
+	{
+		return runs[ tile ][ 3 * run ];
+	}
+
+	public int getRunStart( final int tile, final int run )
+	{
+		return runs[ tile ][ 3 * run + 1 ];
+	}
+
+	/**
+	 * @return end position (exclusive) of the run
+	 */
+	public int getRunEnd( final int tile, final int run )
+	{
+		return runs[ tile ][ 3 * run + 2 ];
+	}
+
+	/**
+	 * Converts the row index into the position of the first pixel of the row within the cell.
+	 */
+	public void getRowPosition( final int rowIndex, final long[] position )
+	{
+		position[ 0 ] = 0;
+		int remainder = rowIndex;
+		for ( int d = 1; d < cellDimensions.length; ++d )
+		{
+			position[ d ] = remainder % cellDimensions[ d ];
+			remainder /= cellDimensions[ d ];
+		}
+	}
+
+	/**
+	 * Evaluates the owner of a single pixel of the row in the same way as the per-pixel strategy does.
+	 */
+	private int getOwner( final int x, final double[] rowDistances, final double[] start, final double[] end )
+	{
+		int owner = -1;
+		double maxMinDistance = 0;
+		for ( int t = 0; t < numTiles; ++t )
+		{
+			final double minDistance = Math.min( rowDistances[ t ], Math.min( x - start[ t ], end[ t ] - x ) );
+			if ( minDistance >= maxMinDistance )
+			{
+				maxMinDistance = minDistance;
+				owner = t;
+			}
+		}
+		return owner;
+	}
+
+	private void addRun( final int tile, final int rowIndex, final int runStart, final int runEnd )
+	{
+		// merge with the previous run of the same tile if they are adjacent
+		final int last = 3 * ( numRuns[ tile ] - 1 );
+		if ( numRuns[ tile ] > 0 && runs[ tile ][ last ] == rowIndex && runs[ tile ][ last + 2 ] == runStart )
+		{
+			runs[ tile ][ last + 2 ] = runEnd;
+			return;
+		}
+
+		if ( 3 * numRuns[ tile ] == runs[ tile ].length )
+			runs[ tile ] = Arrays.copyOf( runs[ tile ], runs[ tile ].length * 2 );
+
+		final int next = 3 * numRuns[ tile ]++;
+		runs[ tile ][ next ] = rowIndex;
+		runs[ tile ][ next + 1 ] = runStart;
+		runs[ tile ][ next + 2 ] = runEnd;
+	}
+
+	/**
+	 * Separates the pixels on both sides of the given breakpoint, and isolates the pixel that falls onto it (within the rounding error).
+	 */
+	private void addCuts( final double breakpoint )
+	{
+		if ( !( breakpoint > -1 && breakpoint < cellDimensions[ 0 ] ) )
+			return;
+
+		final int firstCut = ( int ) Math.ceil( breakpoint - EPSILON ), lastCut = ( int ) Math.floor( breakpoint + EPSILON ) + 1;
+		for ( int cut = Math.max( firstCut, 1 ); cut <= lastCut && cut < cellDimensions[ 0 ]; ++cut )
+			addCut( cut );
+	}
+
+	private void addCut( final int cut )
+	{
+		if ( numCuts == cuts.length )
+			cuts = Arrays.copyOf( cuts, cuts.length * 2 );
+		cuts[ numCuts++ ] = cut;
+	}
+
+	private static double getDistance( final double position, final double offset, final long size )
+	{
+		return Math.min( position - offset, size - 1 + offset - position );
+	}
+}
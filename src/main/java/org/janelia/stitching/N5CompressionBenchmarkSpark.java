@@ -0,0 +1,227 @@
+package org.janelia.stitching;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.dataaccess.CloudURI;
+import org.janelia.dataaccess.DataProvider;
+import org.janelia.dataaccess.DataProviderFactory;
+import org.janelia.dataaccess.DataProviderType;
+import org.janelia.dataaccess.N5Compressions;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.bdv.N5ExportMetadata;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Measures the encoding throughput and the size ratio of different N5 compressions on a random sample of blocks of an existing dataset,
+ * which helps to choose the compression for the export and the conversion steps of a particular dataset.
+ *
+ * @author Igor Pisarev
+ */
+public class N5CompressionBenchmarkSpark
+{
+	private static class N5CompressionBenchmarkCmdArgs implements Serializable
+	{
+		private static final long serialVersionUID = -2587713407263421945L;
+
+		@Option(name = "-i", aliases = { "--input" }, required = true,
+				usage = "Path to an N5 container (can be a filesystem path, an Amazon S3 link, or a Google Cloud link).")
+		private String n5Path;
+
+		@Option(name = "-d", aliases = { "--dataset" }, required = false,
+				usage = "Dataset to sample the blocks from. By default the full resolution of the first channel of the N5 export is used.")
+		private String datasetPath = N5ExportMetadata.getScaleLevelDatasetPath( 0, 0 );
+
+		@Option(name = "-n", aliases = { "--numBlocks" }, required = false,
+				usage = "Number of randomly sampled blocks.")
+		private int numBlocks = 200;
+
+		@Option(name = "-c", aliases = { "--compressions" }, required = false,
+				usage = "Comma-separated list of compressions to test. " + N5Compressions.USAGE)
+		private String compressionsStr = "raw,gzip,gzip:1,lz4,xz,bzip2";
+
+		private boolean parsedSuccessfully = false;
+
+		public N5CompressionBenchmarkCmdArgs( final String... args ) throws IllegalArgumentException
+		{
+			final CmdLineParser parser = new CmdLineParser( this );
+			try
+			{
+				parser.parseArgument( args );
+				parsedSuccessfully = true;
+			}
+			catch ( final CmdLineException e )
+			{
+				System.err.println( e.getMessage() );
+				parser.printUsage( System.err );
+			}
+
+			// make sure that input path is absolute if it's a filesystem path
+			if ( !CloudURI.isCloudURI( n5Path ) )
+				n5Path = Paths.get( n5Path ).toAbsolutePath().toString();
+		}
+	}
+
+	private static final int MAX_PARTITIONS = 15000;
+
+	public static void main( final String... args ) throws IOException
+	{
+		final N5CompressionBenchmarkCmdArgs parsedArgs = new N5CompressionBenchmarkCmdArgs( args );
+		if ( !parsedArgs.parsedSuccessfully )
+			throw new IllegalArgumentException( "argument format mismatch" );
+
+		final String[] compressionNames = parsedArgs.compressionsStr.split( "," );
+		final Compression[] compressions = new Compression[ compressionNames.length ];
+		for ( int i = 0; i < compressions.length; ++i )
+			compressions[ i ] = N5Compressions.parse( compressionNames[ i ] );
+
+		final DataProvider dataProvider = DataProviderFactory.create( DataProviderFactory.detectType( parsedArgs.n5Path ) );
+		final DataProviderType dataProviderType = dataProvider.getType();
+		final N5Reader n5 = dataProvider.createN5Reader( parsedArgs.n5Path );
+		final DatasetAttributes datasetAttributes = n5.getDatasetAttributes( parsedArgs.datasetPath );
+		if ( datasetAttributes == null )
+			throw new IllegalArgumentException( "Dataset " + parsedArgs.datasetPath + " does not exist in " + parsedArgs.n5Path );
+
+		final List< long[] > sampledGridPositions = sampleGridPositions( datasetAttributes, parsedArgs.numBlocks );
+		System.out.println( "Sampled " + sampledGridPositions.size() + " blocks of size " + Arrays.toString( datasetAttributes.getBlockSize() ) + " from " + parsedArgs.datasetPath );
+
+		final long[] totals;
+		try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
+				.setAppName( "N5CompressionBenchmarkSpark" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			) )
+		{
+			totals = sparkContext.parallelize( sampledGridPositions, Math.min( sampledGridPositions.size(), MAX_PARTITIONS ) ).map( gridPosition ->
+					{
+						final DataProvider localDataProvider = DataProviderFactory.create( dataProviderType );
+						final N5Reader localN5 = localDataProvider.createN5Reader( parsedArgs.n5Path );
+						return encodeBlock( localN5.readBlock( parsedArgs.datasetPath, datasetAttributes, gridPosition ), datasetAttributes, compressions );
+					}
+				)
+				.reduce( ( a, b ) ->
+					{
+						final long[] sum = new long[ a.length ];
+						for ( int i = 0; i < sum.length; ++i )
+							sum[ i ] = a[ i ] + b[ i ];
+						return sum;
+					}
+				);
+		}
+
+		final long numNonEmptyBlocks = totals[ 0 ], rawBytes = totals[ 1 ];
+		System.out.println( numNonEmptyBlocks + " out of " + sampledGridPositions.size() + " sampled blocks exist, " + rawBytes + " bytes of uncompressed data" );
+		if ( numNonEmptyBlocks == 0 )
+			return;
+
+		System.out.println( String.format( "%-12s %16s %12s %18s", "compression", "encoded bytes", "size ratio", "throughput, MB/s" ) );
+		for ( int i = 0; i < compressions.length; ++i )
+		{
+			final long encodedBytes = totals[ 2 + 2 * i ], encodingTime = totals[ 2 + 2 * i + 1 ];
+			System.out.println( String.format(
+					"%-12s %16d %12.3f %18.1f",
+					compressionNames[ i ].trim(),
+					encodedBytes,
+					( double ) encodedBytes / rawBytes,
+					rawBytes / 1e6 / ( Math.max( encodingTime, 1 ) / 1e9 )
+				) );
+		}
+	}
+
+	/**
+	 * Picks random blocks of the dataset without repetitions (with a fixed seed so the runs are comparable).
+	 */
+	private static List< long[] > sampleGridPositions( final DatasetAttributes datasetAttributes, final int numBlocks )
+	{
+		final long[] dimensions = datasetAttributes.getDimensions();
+		final int[] blockSize = datasetAttributes.getBlockSize();
+		final long[] gridDimensions = new long[ dimensions.length ];
+		long numGridBlocks = 1;
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			gridDimensions[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			numGridBlocks *= gridDimensions[ d ];
+		}
+
+		final List< Long > blockIndexes = new ArrayList<>();
+		if ( numGridBlocks <= numBlocks )
+		{
+			for ( long index = 0; index < numGridBlocks; ++index )
+				blockIndexes.add( index );
+		}
+		else
+		{
+			final Random rnd = new Random( 42 );
+			final Set< Long > sampledBlockIndexes = new TreeSet<>();
+			while ( sampledBlockIndexes.size() < numBlocks )
+				sampledBlockIndexes.add( ( long ) ( rnd.nextDouble() * numGridBlocks ) );
+			blockIndexes.addAll( sampledBlockIndexes );
+		}
+
+		final List< long[] > gridPositions = new ArrayList<>();
+		for ( final long index : blockIndexes )
+		{
+			final long[] gridPosition = new long[ dimensions.length ];
+			long remainder = index;
+			for ( int d = 0; d < dimensions.length; ++d )
+			{
+				gridPosition[ d ] = remainder % gridDimensions[ d ];
+				remainder /= gridDimensions[ d ];
+			}
+			gridPositions.add( gridPosition );
+		}
+		return gridPositions;
+	}
+
+	/**
+	 * Encodes the block with each of the given compressions.
+	 *
+	 * @return (number of blocks, uncompressed bytes) followed by the (encoded bytes, encoding time in ns) pair for each compression
+	 */
+	private static long[] encodeBlock( final DataBlock< ? > block, final DatasetAttributes datasetAttributes, final Compression[] compressions ) throws IOException
+	{
+		final long[] stats = new long[ 2 + 2 * compressions.length ];
+		if ( block == null )
+			return stats;
+
+		stats[ 0 ] = 1;
+		stats[ 1 ] = block.toByteBuffer().capacity();
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for ( int i = 0; i < compressions.length; ++i )
+		{
+			final DatasetAttributes compressionAttributes = new DatasetAttributes(
+					datasetAttributes.getDimensions(),
+					datasetAttributes.getBlockSize(),
+					datasetAttributes.getDataType(),
+					compressions[ i ]
+				);
+
+			// the first pass warms up the codec, only the second one is measured
+			out.reset();
+			DefaultBlockWriter.writeBlock( out, compressionAttributes, block );
+
+			out.reset();
+			final long start = System.nanoTime();
+			DefaultBlockWriter.writeBlock( out, compressionAttributes, block );
+			stats[ 2 + 2 * i + 1 ] = System.nanoTime() - start;
+			stats[ 2 + 2 * i ] = out.size();
+		}
+		return stats;
+	}
+}
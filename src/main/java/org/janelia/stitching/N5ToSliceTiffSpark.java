@@ -116,8 +116,13 @@ public class N5ToSliceTiffSpark
 				final String sliceIndexFormat = parsedArgs.useLeadingZeroes ? "%05d" : "%d";
 				final String filenameFormat = filenamePrefix + sliceIndexFormat + ".tif";
 
-				// load fill intensity value from n5 export attributes if a custom value was used
-				final Number fillValue = PipelineFusionStepExecutor.getBackgroundValue( n5, channel );
+				// load fill intensity value from n5 export attributes if a custom value was used (the sparse datasets specify the value of the missing blocks)
+				final Double datasetFillValue = N5BlockManifest.readFillValue( n5, n5DatasetPath );
+				final Number fillValue = datasetFillValue != null ? datasetFillValue : PipelineFusionStepExecutor.getBackgroundValue( n5, channel );
+
+				final N5BlockManifest manifest = N5BlockManifest.read( n5, n5DatasetPath );
+				if ( manifest != null )
+					System.out.println( String.format( "%s: %d out of %d blocks are stored, the remaining blocks are filled with %s", n5DatasetPath, manifest.numWrittenBlocks(), manifest.numBlocks(), fillValue ) );
 
 				org.janelia.saalfeldlab.n5.spark.N5ToSliceTiffSpark.convert(
 						sparkContext,
@@ -0,0 +1,146 @@
+package org.janelia.stitching;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import mpicbg.stitching.ComparePair;
+
+/**
+ * Holds the solution of the previous stitching iteration (tile positions and the pairs that were used to obtain it).
+ * It is used by {@link GlobalOptimizationPerformer} to initialize the tile models instead of pre-aligning them from scratch,
+ * and to determine which part of the graph is affected by the changes in the set of pairs and needs to be re-optimized.
+ *
+ * @author Igor Pisarev
+ */
+
+public class OptimizationWarmStart implements Serializable
+{
+	private static final long serialVersionUID = 2351695146720856211L;
+
+	/**
+	 * If more than this fraction of the tiles is affected by the changes, the whole graph is re-optimized.
+	 */
+	private static final double MAX_AFFECTED_FRACTION = 0.25;
+
+	/**
+	 * The tiles within this number of connections from a changed pair are allowed to move during the re-optimization.
+	 */
+	private static final int AFFECTED_NEIGHBORHOOD = 2;
+
+	/**
+	 * Pairwise shifts that differ less than this (in px) from the previous ones are treated as unchanged.
+	 */
+	private static final double SHIFT_CHANGE_TOLERANCE = 0.5;
+
+	private final Map< Integer, double[] > previousPositions = new HashMap<>();
+	private final Map< Integer, Map< Integer, float[] > > previousShifts = new HashMap<>();
+
+	public OptimizationWarmStart( final TileInfo[] previousStitchedTiles, final List< SerializablePairWiseStitchingResult[] > previousUsedPairs )
+	{
+		for ( final TileInfo tile : previousStitchedTiles )
+			previousPositions.put( tile.getIndex(), tile.getPosition().clone() );
+
+		for ( final SerializablePairWiseStitchingResult[] pairMulti : previousUsedPairs )
+			for ( final SerializablePairWiseStitchingResult pair : pairMulti )
+				putShift( previousShifts, pair.getTilePair().getA().getIndex(), pair.getTilePair().getB().getIndex(), pair.getOffset() );
+	}
+
+	/**
+	 * @return position of the tile in the previous solution, or null if the tile was not included in it
+	 */
+	public double[] getPreviousPosition( final int tileIndex )
+	{
+		return previousPositions.get( tileIndex );
+	}
+
+	/**
+	 * Compares the given pairs with the pairs that were used in the previous solution.
+	 * The affected tiles are the ones that are not present in the previous solution or have a changed pair, along with their close neighbors.
+	 *
+	 * @return indexes of the tiles that need to be re-optimized, or null if the changes are too large and the whole graph should be re-optimized
+	 */
+	public Set< Integer > getAffectedTiles( final Collection< ComparePair > validPairs )
+	{
+		final Map< Integer, Map< Integer, float[] > > currentShifts = new HashMap<>();
+		final Map< Integer, Set< Integer > > connections = new HashMap<>();
+		for ( final ComparePair pair : validPairs )
+		{
+			final int ind1 = pair.getTile1().getImpId(), ind2 = pair.getTile2().getImpId();
+			putShift( currentShifts, ind1, ind2, pair.getRelativeShift() );
+			connections.computeIfAbsent( ind1, k -> new HashSet<>() ).add( ind2 );
+			connections.computeIfAbsent( ind2, k -> new HashSet<>() ).add( ind1 );
+		}
+
+		final Set< Integer > changedTiles = new HashSet<>();
+		for ( final Integer tileIndex : connections.keySet() )
+			if ( !previousPositions.containsKey( tileIndex ) )
+				changedTiles.add( tileIndex );
+		collectChangedTiles( currentShifts, previousShifts, changedTiles );
+		collectChangedTiles( previousShifts, currentShifts, changedTiles );
+
+		// expand the changed tiles to their neighborhood in the current graph
+		final Set< Integer > affectedTiles = new HashSet<>( changedTiles );
+		final Queue< Integer > queue = new ArrayDeque<>( changedTiles );
+		for ( int hop = 0; hop < AFFECTED_NEIGHBORHOOD && !queue.isEmpty(); ++hop )
+		{
+			for ( int i = queue.size(); i > 0; --i )
+				for ( final Integer neighbor : connections.getOrDefault( queue.poll(), new HashSet<>() ) )
+					if ( affectedTiles.add( neighbor ) )
+						queue.add( neighbor );
+		}
+
+		if ( affectedTiles.size() > connections.size() * MAX_AFFECTED_FRACTION )
+			return null;
+		return affectedTiles;
+	}
+
+	/**
+	 * Adds the tiles of the pairs from {@code shifts} that are missing or have a different shift in {@code otherShifts}.
+	 */
+	private static void collectChangedTiles( final Map< Integer, Map< Integer, float[] > > shifts, final Map< Integer, Map< Integer, float[] > > otherShifts, final Set< Integer > changedTiles )
+	{
+		for ( final Map.Entry< Integer, Map< Integer, float[] > > entry : shifts.entrySet() )
+		{
+			for ( final Map.Entry< Integer, float[] > pairEntry : entry.getValue().entrySet() )
+			{
+				final float[] otherShift = otherShifts.containsKey( entry.getKey() ) ? otherShifts.get( entry.getKey() ).get( pairEntry.getKey() ) : null;
+				if ( otherShift == null || getDistance( pairEntry.getValue(), otherShift ) > SHIFT_CHANGE_TOLERANCE )
+				{
+					changedTiles.add( entry.getKey() );
+					changedTiles.add( pairEntry.getKey() );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores the shift under the smaller tile index so that both orderings of the pair are mapped to the same entry.
+	 */
+	private static void putShift( final Map< Integer, Map< Integer, float[] > > shifts, final int ind1, final int ind2, final float[] shift )
+	{
+		if ( shift == null )
+			return;
+
+		final float[] orientedShift = shift.clone();
+		if ( ind1 > ind2 )
+			for ( int d = 0; d < orientedShift.length; ++d )
+				orientedShift[ d ] = -orientedShift[ d ];
+
+		shifts.computeIfAbsent( Math.min( ind1, ind2 ), k -> new HashMap<>() ).put( Math.max( ind1, ind2 ), orientedShift );
+	}
+
+	private static double getDistance( final float[] a, final float[] b )
+	{
+		double distanceSqr = 0;
+		for ( int d = 0; d < Math.min( a.length, b.length ); ++d )
+			distanceSqr += Math.pow( a[ d ] - b[ d ], 2 );
+		return Math.sqrt( distanceSqr );
+	}
+}
@@ -1,23 +1,39 @@
 package org.janelia.stitching;
 
+import bdv.export.Downsample;
 import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import net.imglib2.Cursor;
 import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.imageplus.ImagePlusImg;
+import net.imglib2.img.imageplus.ImagePlusImgFactory;
+import net.imglib2.iterator.IntervalIterator;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
+import net.imglib2.util.Util;
 import net.imglib2.view.RandomAccessiblePairNullable;
+import net.imglib2.view.Views;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.util.LongAccumulator;
 import org.janelia.dataaccess.DataProvider;
 import org.janelia.dataaccess.DataProviderFactory;
 import org.janelia.dataaccess.DataProviderType;
+import org.janelia.dataaccess.N5BlockCache;
+import org.janelia.dataaccess.N5BlockManifest;
+import org.janelia.dataaccess.N5ParallelBlockWriter;
 import org.janelia.dataaccess.PathResolver;
 import org.janelia.flatfield.FlatfieldCorrection;
 import org.janelia.flatfield.HistogramSettings;
 import org.janelia.flatfield.StackHistogram;
-import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.bdv.N5ExportMetadata;
@@ -26,11 +42,15 @@ import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid.N5NonIsotropicScalePyramidSpark;
 import org.janelia.stitching.FusionPerformer.FusionMode;
 import org.janelia.stitching.TileLoader.TileType;
+import org.janelia.util.ComparableTuple;
 import org.janelia.util.Conversions;
+import org.janelia.util.concurrent.TaskThreadingPolicy;
 
 import java.io.IOException;
 import java.util.*;
 
+import scala.Tuple2;
+
 /**
  * Fuses a set of tiles within a set of small square cells using linear blending.
  * Saves fused tile configuration on the disk.
@@ -49,14 +69,12 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 	private static final int MIN_BLOCK_SIZE = 64;
 
 	private static final String PIXEL_RESOLUTION_ATTRIBUTE_KEY = "pixelResolution";
+	private static final String DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY = "downsamplingFactors";
 
 	final TreeMap< Integer, long[] > levelToImageDimensions = new TreeMap<>(), levelToCellSize = new TreeMap<>();
 
 	double[] normalizedVoxelDimensions;
 
-	Broadcast< Map< Integer, Set< Integer > > > broadcastedPairwiseConnectionsMap;
-	Broadcast< RandomAccessiblePairNullable< U, U > > broadcastedFlatfieldCorrection;
-
 	private final HistogramSettings stackHistogramSettings = new HistogramSettings( 0., 16383., 4098 );
 
 	public PipelineFusionStepExecutor( final StitchingJob job, final JavaSparkContext sparkContext )
@@ -78,13 +96,31 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 	// TODO: add comprehensive support for 4D images where multiple channels are encoded as the 4th dimension
 	private void runImpl() throws PipelineExecutionException, IOException
 	{
+		final DataProvider dataProvider = job.getDataProvider();
+		final DataProviderType dataProviderType = dataProvider.getType();
+
+		// in the delta mode the tiles are placed into the coordinate space of the existing export (that has been generated from the previous configuration)
+		final boolean deltaExport = job.getArgs().previousTileConfigurations() != null;
+		final List< List< Interval > > channelsAffectedRegions = deltaExport ? new ArrayList<>() : null;
 		for ( int channel = 0; channel < job.getChannels(); channel++ )
-			TileOperations.translateTilesToOriginReal( job.getTiles( channel ) );
+		{
+			if ( deltaExport )
+			{
+				final TileInfo[] previousTiles = dataProvider.loadTiles( job.getArgs().previousTileConfigurations().get( channel ) );
+				final List< Interval > affectedRegions = getAffectedRegions( previousTiles, job.getTiles( channel ) );
+				System.out.println( "[Delta export] Found " + affectedRegions.size() + " affected regions in channel " + channel );
+				channelsAffectedRegions.add( affectedRegions );
+			}
+			else
+			{
+				TileOperations.translateTilesToOriginReal( job.getTiles( channel ) );
+			}
+		}
 
-		final String overlapsPathSuffix = job.getArgs().exportOverlaps() ? "-overlaps" : "";
+		if ( deltaExport && job.getArgs().exportOverlaps() )
+			throw new PipelineExecutionException( "Delta export is not supported in the export overlaps mode" );
 
-		final DataProvider dataProvider = job.getDataProvider();
-		final DataProviderType dataProviderType = dataProvider.getType();
+		final String overlapsPathSuffix = job.getArgs().exportOverlaps() ? "-overlaps" : "";
 
 		// check if stage configuration is supplied and if it was intended
 		for ( final String inputFilePath : job.getArgs().inputTileConfigurations() )
@@ -111,7 +147,12 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 
 		final String n5ExportPath = baseExportPath;
 
-		if ( dataProvider.createN5Reader( n5ExportPath ).exists( "/" ) )
+		final boolean exportExists = dataProvider.createN5Reader( n5ExportPath ).exists( "/" );
+		if ( deltaExport && !exportExists )
+		{
+			throw new PipelineExecutionException( "Delta export requires the existing export: " + n5ExportPath );
+		}
+		else if ( !deltaExport && exportExists )
 		{
 			throw new PipelineExecutionException( "Export path already exists: " + n5ExportPath + System.lineSeparator() +
 					"Aborting to prevent possible overwriting of useful data. Please make sure everything is correct, and in case it was intended, delete the existing export first and run it again." );
@@ -125,12 +166,12 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 		normalizedVoxelDimensions = Utils.normalizeVoxelDimensions( voxelDimensions );
 		System.out.println( "Normalized voxel size = " + Arrays.toString( normalizedVoxelDimensions ) );
 
-		// loop over channels
-		for ( int ch = 0; ch < job.getChannels(); ch++ )
+		// prepare fusion settings for each channel
+		final List< Map< Integer, Set< Integer > > > channelsPairwiseConnectionsMaps = new ArrayList<>();
+		final List< RandomAccessiblePairNullable< U, U > > channelsFlatfieldCorrections = new ArrayList<>();
+		final List< Number > channelsBackgroundValues = new ArrayList<>();
+		for ( int channel = 0; channel < job.getChannels(); channel++ )
 		{
-			final int channel = ch;
-			System.out.println( "Processing channel #" + channel );
-
 			final String channelInputPath = job.getArgs().inputTileConfigurations().get( channel );
 			// get the path to the correction images for the channel and adjust it if necessary (remove '-final' suffix)
 			final String channelCorrectionPath = Utils.removeFilenameSuffix( job.getArgs().correctionImagesPaths().get(channel), "-final");
@@ -141,8 +182,8 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 			// special mode which allows to export only overlaps of tile pairs that have been used for final stitching
 			final Map< Integer, Set< Integer > > pairwiseConnectionsMap = getPairwiseConnectionsMap( channelInputPath );
 			if ( pairwiseConnectionsMap != null )
-				System.out.println( "[Export overlaps mode] Broadcasting pairwise connections map" );
-			broadcastedPairwiseConnectionsMap = sparkContext.broadcast( pairwiseConnectionsMap );
+				System.out.println( "[Export overlaps mode] Broadcasting pairwise connections map for channel " + channel );
+			channelsPairwiseConnectionsMaps.add( pairwiseConnectionsMap );
 
 			// prepare flatfield correction images
 			// use it as a folder with the input file's name
@@ -152,8 +193,8 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 					job.getDimensionality()
 				);
 			if ( flatfieldCorrection != null )
-				System.out.println( "[Flatfield correction] Broadcasting flatfield correction images" );
-			broadcastedFlatfieldCorrection = sparkContext.broadcast( flatfieldCorrection );
+				System.out.println( "[Flatfield correction] Broadcasting flatfield correction images for channel " + channel );
+			channelsFlatfieldCorrections.add( flatfieldCorrection );
 
 			final Number backgroundValue;
 			if ( job.getArgs().fillBackground() )
@@ -164,7 +205,7 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 				} else {
 					// The background value is not available and needs to be estimated.
 					// This is the case for deconvolved data, because in the Flatfield Correction step the background value is estimated only for raw data.
-					backgroundValue = estimateBackgroundValue( job.getTiles( channel ) );
+					backgroundValue = estimateBackgroundValue( channelInputPath, job.getTiles( channel ) );
 				}
 				System.out.println( "Using background intensity value of " + backgroundValue + " for filling in channel " + channel );
 
@@ -175,39 +216,119 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 			{
 				backgroundValue = null;
 			}
+			channelsBackgroundValues.add( backgroundValue );
+		}
 
-			final String fullScaleOutputPath = N5ExportMetadata.getScaleLevelDatasetPath( channel, 0 );
+		// channels that share the same tile geometry can be fused in a single pass
+		final List< List< Integer > > fusionChannelGroups = new ArrayList<>();
+		final List< TileInfo[] > allChannelsTiles = new ArrayList<>();
+		for ( int channel = 0; channel < job.getChannels(); channel++ )
+			allChannelsTiles.add( job.getTiles( channel ) );
+		if ( job.getArgs().multichannelFusion() && job.getChannels() > 1 && haveSameTileGeometry( allChannelsTiles ) )
+		{
+			final List< Integer > allChannels = new ArrayList<>();
+			for ( int channel = 0; channel < job.getChannels(); channel++ )
+				allChannels.add( channel );
+			fusionChannelGroups.add( allChannels );
+		}
+		else
+		{
+			if ( job.getArgs().multichannelFusion() && job.getChannels() > 1 )
+				System.out.println( "Tile positions are not the same in all channels, fusing the channels separately" );
+			for ( int channel = 0; channel < job.getChannels(); channel++ )
+				fusionChannelGroups.add( Collections.singletonList( channel ) );
+		}
 
-			// Generate export of the first scale level
-			fuse(
-					n5ExportPath,
-					fullScaleOutputPath,
-					job.getTiles( channel ),
-					backgroundValue,
-					voxelDimensions
-				);
+		for ( final List< Integer > channels : fusionChannelGroups )
+		{
+			System.out.println( "Processing channel" + ( channels.size() > 1 ? "s " : " #" ) + channels );
 
-			// Generate lower scale levels
-			downsampledDatasets = N5NonIsotropicScalePyramidSpark.downsampleNonIsotropicScalePyramid(
-					sparkContext,
-					() -> DataProviderFactory.create( dataProviderType ).createN5Writer( n5ExportPath ),
-					fullScaleOutputPath,
+			if ( deltaExport )
+			{
+				final List< Interval > affectedRegions = new ArrayList<>();
+				for ( final int channel : channels )
+					affectedRegions.addAll( channelsAffectedRegions.get( channel ) );
+
+				if ( affectedRegions.isEmpty() )
+				{
+					System.out.println( "[Delta export] No tiles have been changed, skipping" );
+					continue;
+				}
+
+				// Re-fuse the affected cells of the first scale level and regenerate the affected blocks of the lower scale levels
+				fuse(
+						n5ExportPath,
+						channels,
+						channelsBackgroundValues,
+						channelsFlatfieldCorrections,
+						channelsPairwiseConnectionsMaps,
+						voxelDimensions,
+						affectedRegions
+					);
+
+				// the lower scale levels are defined relative to the min coordinate of the export
+				final List< Interval > exportAffectedRegions = new ArrayList<>();
+				final long[] exportOffset = job.getArgs().minCoord() != null ? job.getArgs().minCoord() : new long[ job.getDimensionality() ];
+				for ( final Interval affectedRegion : affectedRegions )
+				{
+					final long[] min = Intervals.minAsLongArray( affectedRegion ), max = Intervals.maxAsLongArray( affectedRegion );
+					for ( int d = 0; d < exportOffset.length; ++d )
+					{
+						min[ d ] -= exportOffset[ d ];
+						max[ d ] -= exportOffset[ d ];
+					}
+					exportAffectedRegions.add( new FinalInterval( min, max ) );
+				}
+
+				for ( final int channel : channels )
+					updateDownsampledLevels( n5ExportPath, channel, exportAffectedRegions );
+
+				continue;
+			}
+
+			// Generate export of the first scale level (along with the lower scale levels if requested)
+			final List< List< String > > channelsFusedDownsampledDatasets = fuse(
+					n5ExportPath,
+					channels,
+					channelsBackgroundValues,
+					channelsFlatfieldCorrections,
+					channelsPairwiseConnectionsMaps,
 					voxelDimensions,
-					false // not a power of two scale pyramid
+					null
 				);
 
-			broadcastedPairwiseConnectionsMap.destroy();
-			broadcastedFlatfieldCorrection.destroy();
+			// Generate lower scale levels
+			for ( int i = 0; i < channels.size(); ++i )
+			{
+				if ( channelsFusedDownsampledDatasets != null )
+				{
+					downsampledDatasets = channelsFusedDownsampledDatasets.get( i );
+				}
+				else
+				{
+					downsampledDatasets = N5NonIsotropicScalePyramidSpark.downsampleNonIsotropicScalePyramid(
+							sparkContext,
+							() -> DataProviderFactory.create( dataProviderType ).createN5Writer( n5ExportPath ),
+							N5ExportMetadata.getScaleLevelDatasetPath( channels.get( i ), 0 ),
+							voxelDimensions,
+							false // not a power of two scale pyramid
+						);
+				}
+			}
 		}
 
 		System.out.println( "All channels have been exported" );
 
+		// the metadata of the existing export stays the same
+		if ( deltaExport )
+			return;
+
 		// TODO: remove and make n5-viewer to look for downsampling factors attributes by itself
 		final double[][] scalesDouble = new double[ downsampledDatasets.size() + 1 ][];
 		scalesDouble[ 0 ] = new double[ job.getDimensionality() ];
 		Arrays.fill( scalesDouble[ 0 ], 1 );
 		for ( int s = 0; s < downsampledDatasets.size(); ++s )
-			scalesDouble[ s + 1 ] = Conversions.toDoubleArray( n5.getAttribute( downsampledDatasets.get( s ), "downsamplingFactors", int[].class ) );
+			scalesDouble[ s + 1 ] = Conversions.toDoubleArray( n5.getAttribute( downsampledDatasets.get( s ), DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ) );
 
 		final N5ExportMetadataWriter exportMetadata = N5ExportMetadata.openForWriting( n5 );
 		exportMetadata.setDefaultScales( scalesDouble );
@@ -246,45 +367,204 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 		return processingCellSize;
 	}
 
-	private void fuse(
+	/**
+	 * Fuses the tiles into the full-scale datasets of the given channels.
+	 * Multiple channels are fused in a single pass where each task processes the same cell of all channels, so the channels must share the tile geometry.
+	 * If the scale pyramid is requested to be fused as well, generates all lower scale levels.
+	 * <p>
+	 * If the affected regions are specified (delta export mode), the datasets must exist already, and only the cells of the full-scale level
+	 * that intersect with the affected regions are re-fused. The lower scale levels are not generated in this mode.
+	 *
+	 * @param affectedRegions regions of the full-scale level to be re-fused, or {@code null} to fuse the entire dataset
+	 * @return paths to the lower scale levels for each of the given channels, or {@code null} if only the full-scale level has been generated
+	 */
+	private List< List< String > > fuse(
 			final String n5ExportPath,
-			final String fullScaleOutputPath,
-			final TileInfo[] tiles,
-			final Number backgroundValue,
-			final double[] voxelDimensions ) throws IOException
+			final List< Integer > channels,
+			final List< Number > allChannelsBackgroundValues,
+			final List< RandomAccessiblePairNullable< U, U > > allChannelsFlatfieldCorrections,
+			final List< Map< Integer, Set< Integer > > > allChannelsPairwiseConnectionsMaps,
+			final double[] voxelDimensions,
+			final List< Interval > affectedRegions ) throws IOException, PipelineExecutionException
 	{
+		final int numChannels = channels.size();
+		final List< TileInfo[] > channelsTiles = new ArrayList<>();
+		final List< String > fullScaleOutputPaths = new ArrayList<>();
+		final List< Number > channelsBackgroundValues = new ArrayList<>();
+		final List< RandomAccessiblePairNullable< U, U > > channelsFlatfieldCorrections = new ArrayList<>();
+		final List< Map< Integer, Set< Integer > > > channelsPairwiseConnectionsMaps = new ArrayList<>();
+		for ( final int channel : channels )
+		{
+			channelsTiles.add( job.getArgs().roundPositions() ? roundTilePositions( job.getTiles( channel ) ) : job.getTiles( channel ) );
+			fullScaleOutputPaths.add( N5ExportMetadata.getScaleLevelDatasetPath( channel, 0 ) );
+			channelsBackgroundValues.add( allChannelsBackgroundValues.get( channel ) );
+			channelsFlatfieldCorrections.add( allChannelsFlatfieldCorrections.get( channel ) );
+			channelsPairwiseConnectionsMaps.add( allChannelsPairwiseConnectionsMaps.get( channel ) );
+		}
+
+		// the tile geometry is the same for all channels, so it is computed from the first one
+		final TileInfo[] tiles = channelsTiles.get( 0 );
+		final long integralTilesCount = Arrays.stream( tiles ).filter( FusionPerformer::hasIntegralPosition ).count();
+		System.out.println( integralTilesCount + " out of " + tiles.length + " tiles are placed at integral positions and will be fused without interpolation" );
+
 		final DataProvider dataProvider = job.getDataProvider();
-		final int[] cellSize = getOptimalCellSize( tiles );
+		final N5Writer n5 = dataProvider.createN5Writer( n5ExportPath );
+		final boolean deltaExport = affectedRegions != null;
+
+		// in the delta mode the output grid is defined by the existing export
+		final DatasetAttributes existingAttributes = deltaExport ? n5.getDatasetAttributes( fullScaleOutputPaths.get( 0 ) ) : null;
+		final int[] cellSize = deltaExport ? existingAttributes.getBlockSize() : getOptimalCellSize( tiles );
 
 		final Boundaries boundingBox;
 		if ( job.getArgs().minCoord() != null && job.getArgs().maxCoord() != null )
 			boundingBox = new Boundaries( job.getArgs().minCoord(), job.getArgs().maxCoord() );
+		else if ( deltaExport )
+			boundingBox = new Boundaries( existingAttributes.getDimensions() );
 		else
 			boundingBox = TileOperations.getCollectionBoundaries( tiles );
 
 		final long[] offset = Intervals.minAsLongArray( boundingBox );
 		final long[] dimensions = Intervals.dimensionsAsLongArray( boundingBox );
 
-		final N5Writer n5 = dataProvider.createN5Writer( n5ExportPath );
-		n5.createDataset(
-				fullScaleOutputPath,
-				Intervals.dimensionsAsLongArray( boundingBox ),
-				cellSize,
-				N5Utils.dataType( ( T ) tiles[ 0 ].getType().getType() ),
-				new GzipCompression()
-			);
+		if ( deltaExport )
+		{
+			if ( !Arrays.equals( dimensions, existingAttributes.getDimensions() ) )
+				throw new PipelineExecutionException( "Export bounding box " + Arrays.toString( dimensions ) + " does not match the size of the existing export " + Arrays.toString( existingAttributes.getDimensions() ) );
 
-		n5.setAttribute( fullScaleOutputPath, PIXEL_RESOLUTION_ATTRIBUTE_KEY, voxelDimensions );
+			if ( job.getArgs().minCoord() == null && !isWithin( TileOperations.getCollectionBoundaries( tiles ), boundingBox ) )
+				throw new PipelineExecutionException( "The tiles extend beyond the existing export, full re-export is required" );
+		}
+		else
+		{
+			for ( final String fullScaleOutputPath : fullScaleOutputPaths )
+			{
+				n5.createDataset(
+						fullScaleOutputPath,
+						Intervals.dimensionsAsLongArray( boundingBox ),
+						cellSize,
+						N5Utils.dataType( ( T ) tiles[ 0 ].getType().getType() ),
+						job.getArgs().compression()
+					);
+
+				n5.setAttribute( fullScaleOutputPath, PIXEL_RESOLUTION_ATTRIBUTE_KEY, voxelDimensions );
+			}
+		}
 
-		final int[] processingCellSize = getProcessingCellSize( tiles );
-		System.out.println( "Fusing tile configuration into an N5 dataset with block size " + Arrays.toString( cellSize ) + " using processing block size " + Arrays.toString( processingCellSize ) );
-		final List< TileInfo > processingCells = TileOperations.divideSpace( boundingBox, new FinalDimensions( processingCellSize ) );
+		// the cells that are uniformly filled with the fill value of the channel are not stored
+		final List< Double > channelsFillValues = new ArrayList<>();
+		for ( final Number backgroundValue : channelsBackgroundValues )
+			channelsFillValues.add( backgroundValue != null ? backgroundValue.doubleValue() : 0 );
+		final boolean skipUniformCells = areUniformCellsSkipped( deltaExport );
+		final boolean nonZeroFillValue = channelsFillValues.stream().anyMatch( fillValue -> fillValue != 0 );
 
-		sparkContext.parallelize( processingCells, Math.min( processingCells.size(), MAX_PARTITIONS ) ).foreach( cell ->
+		// blocks of the first few lower scale levels are generated by the same tasks, so the processing cells are aligned to the scale pyramid.
+		// If the missing blocks need to be filled with a non-zero value, all lower scale levels are generated here as well to take the missing blocks into account
+		final FusedScalePyramid scalePyramid;
+		final int numFusedLevels;
+		final List< List< String > > channelsDownsampledDatasets;
+		final int[] processingCellSize;
+		if ( ( job.getArgs().fusedPyramidLevels() > 0 || nonZeroFillValue ) && !deltaExport )
+		{
+			scalePyramid = new FusedScalePyramid( dimensions, cellSize, normalizedVoxelDimensions );
+			final int requestedFusedLevels = Math.min( job.getArgs().fusedPyramidLevels(), scalePyramid.numLevels() - 1 );
+			final long bytesPerPixel = estimateFusedCellBytesPerPixel( ( T ) tiles[ 0 ].getType().getType(), numChannels, job.getArgs().blending() );
+			numFusedLevels = scalePyramid.getMaxFusedLevels( requestedFusedLevels, job.getArgs().maxFusedCellSizeBytes() / bytesPerPixel );
+			if ( numFusedLevels < requestedFusedLevels )
+				System.out.println( "Reduced the number of lower scale levels generated during fusion from " + requestedFusedLevels + " to " + numFusedLevels + ": " +
+						"the processing block of " + Arrays.toString( scalePyramid.getProcessingCellSize( requestedFusedLevels ) ) + " would take ~" +
+						( scalePyramid.getProcessingCellNumElements( requestedFusedLevels ) * bytesPerPixel / ( 1024 * 1024 ) ) + "MB, " +
+						"the limit is " + ( job.getArgs().maxFusedCellSizeBytes() / ( 1024 * 1024 ) ) + "MB (--maxFusedCellSize)" );
+			channelsDownsampledDatasets = new ArrayList<>();
+			for ( final int channel : channels )
 			{
-				final List< TileInfo > tilesWithinCell = TileOperations.findTilesWithinSubregion( tiles, cell );
-				if ( tilesWithinCell.isEmpty() && backgroundValue == null )
-					return;
+				final List< String > downsampledDatasets = new ArrayList<>();
+				for ( int level = 1; level < scalePyramid.numLevels(); ++level )
+				{
+					downsampledDatasets.add( N5ExportMetadata.getScaleLevelDatasetPath( channel, level ) );
+					n5.createDataset(
+							downsampledDatasets.get( level - 1 ),
+							scalePyramid.getDimensions( level ),
+							cellSize,
+							N5Utils.dataType( ( T ) tiles[ 0 ].getType().getType() ),
+							job.getArgs().compression()
+						);
+				}
+				channelsDownsampledDatasets.add( downsampledDatasets );
+			}
+			processingCellSize = numFusedLevels > 0 ? scalePyramid.getProcessingCellSize( numFusedLevels ) : getProcessingCellSize( tiles );
+			System.out.println( "Generating " + numFusedLevels + " out of " + ( scalePyramid.numLevels() - 1 ) + " lower scale levels during fusion" );
+		}
+		else
+		{
+			scalePyramid = null;
+			numFusedLevels = 0;
+			channelsDownsampledDatasets = null;
+			// in the delta mode the processing cells need to be aligned to the grid of the existing export
+			processingCellSize = deltaExport ? cellSize : getProcessingCellSize( tiles );
+		}
+
+		System.out.println( "Fusing tile configuration into " + numChannels + " N5 dataset(s) with block size " + Arrays.toString( cellSize ) + " using processing block size " + Arrays.toString( processingCellSize ) );
+		final List< TileInfo > allProcessingCells = TileOperations.divideSpace( boundingBox, new FinalDimensions( processingCellSize ) );
+		final List< TileInfo > processingCells = deltaExport ? getAffectedCells( allProcessingCells, affectedRegions ) : allProcessingCells;
+		if ( deltaExport )
+			System.out.println( "[Delta export] Re-fusing " + processingCells.size() + " out of " + allProcessingCells.size() + " cells" );
+
+		final N5BlockCache.Stats blockCacheStats = N5BlockCache.Stats.create( sparkContext, "fusion " + fullScaleOutputPaths, job.getArgs().blockCacheSizeBytes() );
+
+		// build the spatial index of the tiles once and share it with all tasks instead of scanning all tiles for every cell
+		final Broadcast< TileSpatialIndex > broadcastedTileIndex = sparkContext.broadcast( new TileSpatialIndex( tiles ) );
+		final ImageType tilesImageType = tiles[ 0 ].getType();
+
+		// the tiles of the other channels are matched with the tiles found in the spatial index by their indexes
+		final List< Map< Integer, TileInfo > > channelsTilesMaps = new ArrayList<>();
+		for ( final TileInfo[] channelTiles : channelsTiles )
+			channelsTilesMaps.add( Utils.createTilesMap( channelTiles ) );
+		final Broadcast< List< Map< Integer, TileInfo > > > broadcastedChannelsTilesMaps = sparkContext.broadcast( channelsTilesMaps );
+
+		final Broadcast< List< RandomAccessiblePairNullable< U, U > > > broadcastedFlatfieldCorrections = sparkContext.broadcast( channelsFlatfieldCorrections );
+		final Broadcast< List< Map< Integer, Set< Integer > > > > broadcastedPairwiseConnectionsMaps = sparkContext.broadcast( channelsPairwiseConnectionsMaps );
+
+		// the attributes of the output datasets are read once here instead of being read for every written block
+		final List< DatasetAttributes > fullScaleDatasetsAttributes = new ArrayList<>();
+		final List< List< DatasetAttributes > > channelsDownsampledDatasetsAttributes = new ArrayList<>();
+		for ( int i = 0; i < numChannels; ++i )
+		{
+			fullScaleDatasetsAttributes.add( n5.getDatasetAttributes( fullScaleOutputPaths.get( i ) ) );
+			final List< DatasetAttributes > downsampledDatasetsAttributes = new ArrayList<>();
+			for ( int level = 1; level <= numFusedLevels; ++level )
+				downsampledDatasetsAttributes.add( n5.getDatasetAttributes( channelsDownsampledDatasets.get( i ).get( level - 1 ) ) );
+			channelsDownsampledDatasetsAttributes.add( downsampledDatasetsAttributes );
+		}
+
+		// the blocks of a processing cell are encoded concurrently using the cores reserved for a task (spark.task.cpus)
+		final TaskThreadingPolicy threadingPolicy = new TaskThreadingPolicy( sparkContext.getConf() );
+		System.out.println( "N5 blocks will be encoded using up to " + sparkContext.getConf().getInt( "spark.task.cpus", 1 ) + " threads per task (spark.task.cpus)" );
+
+		final LongAccumulator directlyCopiedTileCells = sparkContext.sc().longAccumulator();
+		final LongAccumulator interpolatedTileCells = sparkContext.sc().longAccumulator();
+		final LongAccumulator skippedUniformCells = sparkContext.sc().longAccumulator();
+
+		// each task returns the position of the cell along with the channels where the cell has been written
+		final List< Tuple2< long[], boolean[] > > writtenCells = sparkContext.parallelize( processingCells, Math.min( processingCells.size(), MAX_PARTITIONS ) ).map( cell ->
+			{
+				final List< TileInfo > tilesWithinCell = TileOperations.findTilesWithinSubregion( broadcastedTileIndex.value(), cell );
+				if ( tilesWithinCell.isEmpty() && skipUniformCells )
+				{
+					// the cell would be uniformly filled with the fill value
+					skippedUniformCells.add( numChannels );
+					return null;
+				}
+
+				final List< List< TileInfo > > channelsTilesWithinCell = new ArrayList<>();
+				channelsTilesWithinCell.add( tilesWithinCell );
+				for ( int i = 1; i < numChannels; ++i )
+				{
+					final Map< Integer, TileInfo > channelTilesMap = broadcastedChannelsTilesMaps.value().get( i );
+					final List< TileInfo > channelTilesWithinCell = new ArrayList<>();
+					for ( final TileInfo tile : tilesWithinCell )
+						channelTilesWithinCell.add( channelTilesMap.get( tile.getIndex() ) );
+					channelsTilesWithinCell.add( channelTilesWithinCell );
+				}
 
 				final Boundaries cellBox = cell.getBoundaries();
 				final long[] cellOffsetCoordinates = new long[ cellBox.numDimensions() ];
@@ -296,22 +576,480 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 				cellGrid.getCellPosition( cellOffsetCoordinates, cellGridPosition );
 
 				final DataProvider dataProviderLocal = job.getDataProvider();
-				final T dataType = ( T ) tiles[ 0 ].getType().getType();
-
-				final ImagePlusImg< T, ? > outImg = FusionPerformer.fuseTilesWithinCell(
-						dataProviderLocal,
-						job.getArgs().blending() ? FusionMode.BLENDING : FusionMode.MAX_MIN_DISTANCE,
-						tilesWithinCell,
-						cellBox,
-						dataType,
-						backgroundValue,
-						broadcastedFlatfieldCorrection.value(),
-						broadcastedPairwiseConnectionsMap.value()
-					);
+				final T dataType = ( T ) tilesImageType.getType();
+
+				for ( final TileInfo tile : tilesWithinCell )
+					( FusionPerformer.hasIntegralPosition( tile ) ? directlyCopiedTileCells : interpolatedTileCells ).add( numChannels );
+
+				// neighboring cells read the same tile blocks, account for them in the stats of this stage
+				final List< ImagePlusImg< T, ? > > outImgs;
+				N5BlockCache.bindStats( blockCacheStats );
+				try
+				{
+					outImgs = FusionPerformer.fuseChannelsWithinCell(
+							dataProviderLocal,
+							job.getArgs().blending() ? FusionMode.BLENDING : FusionMode.MAX_MIN_DISTANCE,
+							channelsTilesWithinCell,
+							cellBox,
+							dataType,
+							channelsBackgroundValues,
+							broadcastedFlatfieldCorrections.value(),
+							broadcastedPairwiseConnectionsMaps.value()
+						);
+				}
+				finally
+				{
+					N5BlockCache.unbindStats();
+				}
+
 				final N5Writer n5Local = dataProviderLocal.createN5Writer( n5ExportPath );
-				N5Utils.saveBlock( outImg, n5Local, fullScaleOutputPath, cellGridPosition );
+				final int numWriterThreads = threadingPolicy.getThreadsPerTask();
+				final boolean[] channelsWritten = new boolean[ numChannels ];
+				for ( int i = 0; i < numChannels; ++i )
+				{
+					// the downsampled blocks of a uniform cell are uniform as well
+					if ( skipUniformCells && isUniform( outImgs.get( i ), channelsFillValues.get( i ) ) )
+					{
+						skippedUniformCells.add( 1 );
+						continue;
+					}
+
+					channelsWritten[ i ] = true;
+					N5ParallelBlockWriter.saveBlocks( outImgs.get( i ), n5Local, fullScaleOutputPaths.get( i ), fullScaleDatasetsAttributes.get( i ), cellGridPosition, numWriterThreads );
+
+					// downsample the fused data while it is still in memory, each level is obtained from the previous one
+					RandomAccessibleInterval< T > previousLevelImg = outImgs.get( i );
+					final long[] levelMin = new long[ cellBox.numDimensions() ], levelSize = new long[ cellBox.numDimensions() ];
+					for ( int level = 1; level <= numFusedLevels; ++level )
+					{
+						scalePyramid.getLevelRegion( level, cellOffsetCoordinates, Intervals.dimensionsAsLongArray( cellBox ), levelMin, levelSize );
+						if ( Intervals.numElements( levelSize ) == 0 )
+							break;
+
+						final ImagePlusImg< T, ? > levelImg = new ImagePlusImgFactory< T >().create( levelSize, dataType.createVariable() );
+						Downsample.downsample( Views.extendBorder( previousLevelImg ), levelImg, scalePyramid.getRelativeDownsamplingFactors( level ) );
+
+						final long[] levelGridPosition = new long[ levelMin.length ];
+						for ( int d = 0; d < levelGridPosition.length; ++d )
+							levelGridPosition[ d ] = levelMin[ d ] / cellSize[ d ];
+						N5ParallelBlockWriter.saveBlocks( levelImg, n5Local, channelsDownsampledDatasets.get( i ).get( level - 1 ), channelsDownsampledDatasetsAttributes.get( i ).get( level - 1 ), levelGridPosition, numWriterThreads );
+
+						previousLevelImg = levelImg;
+					}
+				}
+
+				for ( final boolean channelWritten : channelsWritten )
+					if ( channelWritten )
+						return new Tuple2<>( cellOffsetCoordinates, channelsWritten );
+				return null;
 			}
-		);
+		)
+		.filter( writtenCell -> writtenCell != null )
+		.collect();
+
+		broadcastedTileIndex.destroy();
+		broadcastedChannelsTilesMaps.destroy();
+		broadcastedFlatfieldCorrections.destroy();
+		broadcastedPairwiseConnectionsMaps.destroy();
+
+		System.out.println( "Fused tile parts: " + directlyCopiedTileCells.value() + " copied directly, " + interpolatedTileCells.value() + " interpolated" );
+		System.out.println( "Skipped " + skippedUniformCells.value() + " uniform cells" );
+		System.out.println( "N5 block cache: " + blockCacheStats );
+
+		// record the written blocks of each dataset, so the readers do not need to probe the storage for the missing blocks
+		for ( int i = 0; i < numChannels; ++i )
+		{
+			final N5BlockManifest manifest = deltaExport ? N5BlockManifest.read( n5, fullScaleOutputPaths.get( i ) ) : new N5BlockManifest( dimensions, cellSize );
+			if ( manifest == null )
+				continue;
+
+			final List< N5BlockManifest > fusedLevelsManifests = new ArrayList<>();
+			for ( int level = 1; level <= numFusedLevels; ++level )
+				fusedLevelsManifests.add( new N5BlockManifest( scalePyramid.getDimensions( level ), cellSize ) );
+
+			final long[] cellMin = new long[ dimensions.length ], cellDimensions = new long[ dimensions.length ];
+			final long[] levelMin = new long[ dimensions.length ], levelSize = new long[ dimensions.length ];
+			for ( final Tuple2< long[], boolean[] > writtenCell : writtenCells )
+			{
+				if ( !writtenCell._2()[ i ] )
+					continue;
+
+				for ( int d = 0; d < dimensions.length; ++d )
+				{
+					cellMin[ d ] = writtenCell._1()[ d ];
+					cellDimensions[ d ] = Math.min( processingCellSize[ d ], dimensions[ d ] - cellMin[ d ] );
+				}
+				manifest.addRegion( cellMin, cellDimensions );
+
+				for ( int level = 1; level <= numFusedLevels; ++level )
+				{
+					scalePyramid.getLevelRegion( level, cellMin, cellDimensions, levelMin, levelSize );
+					fusedLevelsManifests.get( level - 1 ).addRegion( levelMin, levelSize );
+				}
+			}
+
+			final double fillValue = deltaExport ? N5BlockManifest.readFillValue( n5, fullScaleOutputPaths.get( i ) ) : channelsFillValues.get( i );
+			manifest.write( n5, fullScaleOutputPaths.get( i ), fillValue );
+			System.out.println( String.format( "%s: %d out of %d blocks are stored", fullScaleOutputPaths.get( i ), manifest.numWrittenBlocks(), manifest.numBlocks() ) );
+
+			for ( int level = 1; level <= numFusedLevels; ++level )
+				fusedLevelsManifests.get( level - 1 ).write( n5, channelsDownsampledDatasets.get( i ).get( level - 1 ), fillValue );
+		}
+
+		if ( scalePyramid == null )
+			return null;
+
+		// the remaining coarser levels are small enough to be generated from the last fused level
+		for ( int i = 0; i < numChannels; ++i )
+		{
+			final List< String > downsampledDatasets = channelsDownsampledDatasets.get( i );
+			for ( int level = numFusedLevels + 1; level < scalePyramid.numLevels(); ++level )
+			{
+				final String previousLevelDataset = level > 1 ? downsampledDatasets.get( level - 2 ) : fullScaleOutputPaths.get( i );
+				final long[] levelDimensions = scalePyramid.getDimensions( level );
+				final N5BlockManifest levelManifest = new N5BlockManifest( levelDimensions, cellSize );
+				final List< long[] > writtenGridPositions = downsampleBlocks(
+						n5ExportPath,
+						previousLevelDataset,
+						N5BlockManifest.read( n5, previousLevelDataset ),
+						channelsFillValues.get( i ),
+						downsampledDatasets.get( level - 1 ),
+						scalePyramid.getRelativeDownsamplingFactors( level ),
+						levelManifest.getGridPositions( new long[ levelDimensions.length ], levelDimensions ),
+						true
+					);
+				for ( final long[] gridPosition : writtenGridPositions )
+					levelManifest.add( gridPosition );
+				levelManifest.write( n5, downsampledDatasets.get( level - 1 ), channelsFillValues.get( i ) );
+			}
+
+			for ( int level = 1; level < scalePyramid.numLevels(); ++level )
+				n5.setAttribute( downsampledDatasets.get( level - 1 ), DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, scalePyramid.getDownsamplingFactors( level ) );
+		}
+
+		return channelsDownsampledDatasets;
+	}
+
+	/**
+	 * Regenerates the blocks of the existing lower scale levels of the channel that are affected by the changes within the given regions of the full-scale level.
+	 * Each level is downsampled from the previous one if the relative downsampling factors are integral, or from the full-scale level otherwise.
+	 * The manifests of the sparse levels are updated with the regenerated blocks.
+	 */
+	private void updateDownsampledLevels( final String n5ExportPath, final int channel, final List< Interval > affectedRegions ) throws IOException
+	{
+		final N5Writer n5 = job.getDataProvider().createN5Writer( n5ExportPath );
+		final String fullScaleDataset = N5ExportMetadata.getScaleLevelDatasetPath( channel, 0 );
+
+		String previousLevelDataset = fullScaleDataset;
+		int[] previousLevelFactors = new int[ job.getDimensionality() ];
+		Arrays.fill( previousLevelFactors, 1 );
+
+		for ( int level = 1; n5.datasetExists( N5ExportMetadata.getScaleLevelDatasetPath( channel, level ) ); ++level )
+		{
+			final String levelDataset = N5ExportMetadata.getScaleLevelDatasetPath( channel, level );
+			final DatasetAttributes levelAttributes = n5.getDatasetAttributes( levelDataset );
+			final long[] levelDimensions = levelAttributes.getDimensions();
+			final int[] levelBlockSize = levelAttributes.getBlockSize();
+			final int[] levelFactors = n5.getAttribute( levelDataset, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class );
+
+			boolean integralRelativeFactors = true;
+			for ( int d = 0; d < levelFactors.length; ++d )
+				integralRelativeFactors &= levelFactors[ d ] % previousLevelFactors[ d ] == 0;
+
+			final String sourceDataset = integralRelativeFactors ? previousLevelDataset : fullScaleDataset;
+			final int[] relativeFactors = new int[ levelFactors.length ];
+			for ( int d = 0; d < relativeFactors.length; ++d )
+				relativeFactors[ d ] = integralRelativeFactors ? levelFactors[ d ] / previousLevelFactors[ d ] : levelFactors[ d ];
+
+			// find the blocks of the level that intersect with the affected regions
+			final Set< ComparableTuple< Long > > affectedGridPositions = new TreeSet<>();
+			for ( final Interval affectedRegion : affectedRegions )
+			{
+				final long[] gridMin = new long[ levelDimensions.length ], gridMax = new long[ levelDimensions.length ];
+				for ( int d = 0; d < levelDimensions.length; ++d )
+				{
+					gridMin[ d ] = Math.min( Math.max( affectedRegion.min( d ), 0 ) / levelFactors[ d ], levelDimensions[ d ] - 1 ) / levelBlockSize[ d ];
+					gridMax[ d ] = Math.min( Math.max( affectedRegion.max( d ), 0 ) / levelFactors[ d ], levelDimensions[ d ] - 1 ) / levelBlockSize[ d ];
+				}
+				final IntervalIterator gridIterator = new IntervalIterator( new FinalInterval( gridMin, gridMax ) );
+				final long[] gridPosition = new long[ levelDimensions.length ];
+				while ( gridIterator.hasNext() )
+				{
+					gridIterator.fwd();
+					gridIterator.localize( gridPosition );
+					affectedGridPositions.add( new ComparableTuple<>( Conversions.toBoxedArray( gridPosition ) ) );
+				}
+			}
+
+			final List< long[] > gridPositions = new ArrayList<>();
+			for ( final ComparableTuple< Long > affectedGridPosition : affectedGridPositions )
+				gridPositions.add( Arrays.stream( affectedGridPosition.getValues() ).mapToLong( Long::longValue ).toArray() );
+			System.out.println( "[Delta export] Updating " + gridPositions.size() + " blocks of " + levelDataset + " from " + sourceDataset );
+
+			// the existing blocks may need to be overwritten with uniform data, so all affected blocks are stored
+			final Double sourceFillValue = N5BlockManifest.readFillValue( n5, sourceDataset );
+			final List< long[] > writtenGridPositions = downsampleBlocks(
+					n5ExportPath,
+					sourceDataset,
+					N5BlockManifest.read( n5, sourceDataset ),
+					sourceFillValue != null ? sourceFillValue : 0,
+					levelDataset,
+					relativeFactors,
+					gridPositions,
+					false
+				);
+
+			final N5BlockManifest levelManifest = N5BlockManifest.read( n5, levelDataset );
+			if ( levelManifest != null )
+			{
+				for ( final long[] gridPosition : writtenGridPositions )
+					levelManifest.add( gridPosition );
+				levelManifest.write( n5, levelDataset, N5BlockManifest.readFillValue( n5, levelDataset ) );
+			}
+
+			previousLevelDataset = levelDataset;
+			previousLevelFactors = levelFactors;
+		}
+	}
+
+	/**
+	 * Downsamples the given blocks of the level from the source dataset.
+	 * If the source dataset is sparse, its missing blocks are filled with the fill value without reading them.
+	 *
+	 * @param skipUniformBlocks if true, the resulting blocks that are uniformly filled with the fill value are not stored
+	 * @return grid positions of the blocks that have been stored
+	 */
+	private List< long[] > downsampleBlocks(
+			final String n5ExportPath,
+			final String sourceDataset,
+			final N5BlockManifest sourceManifest,
+			final double fillValue,
+			final String levelDataset,
+			final int[] relativeFactors,
+			final List< long[] > gridPositions,
+			final boolean skipUniformBlocks ) throws IOException
+	{
+		final DataProviderType dataProviderType = job.getDataProvider().getType();
+		final N5Reader n5 = job.getDataProvider().createN5Reader( n5ExportPath );
+		final long[] sourceDimensions = n5.getDatasetAttributes( sourceDataset ).getDimensions();
+		final DatasetAttributes levelAttributes = n5.getDatasetAttributes( levelDataset );
+		final long[] levelDimensions = levelAttributes.getDimensions();
+		final int[] levelBlockSize = levelAttributes.getBlockSize();
+
+		if ( gridPositions.isEmpty() )
+			return gridPositions;
+
+		return sparkContext.parallelize( gridPositions, Math.min( gridPositions.size(), MAX_PARTITIONS ) ).map( gridPosition ->
+			{
+				final int n = gridPosition.length;
+				final long[] blockSize = new long[ n ], sourceMin = new long[ n ], sourceSize = new long[ n ];
+				for ( int d = 0; d < n; ++d )
+				{
+					final long blockMin = gridPosition[ d ] * levelBlockSize[ d ];
+					blockSize[ d ] = Math.min( levelBlockSize[ d ], levelDimensions[ d ] - blockMin );
+					sourceMin[ d ] = blockMin * relativeFactors[ d ];
+					sourceSize[ d ] = Math.min( blockSize[ d ] * relativeFactors[ d ], sourceDimensions[ d ] - sourceMin[ d ] );
+				}
+
+				// the block is uniform if all source blocks are missing
+				if ( skipUniformBlocks && sourceManifest != null && !sourceManifest.containsAny( sourceMin, sourceSize ) )
+					return null;
+
+				final N5Writer n5Local = DataProviderFactory.create( dataProviderType ).createN5Writer( n5ExportPath );
+				final RandomAccessibleInterval< T > sourceRegion = loadRegion( n5Local, sourceDataset, sourceManifest, fillValue, sourceMin, sourceSize );
+				final ImagePlusImg< T, ? > levelImg = new ImagePlusImgFactory< T >().create( blockSize, Util.getTypeFromInterval( sourceRegion ).createVariable() );
+				Downsample.downsample( Views.extendBorder( sourceRegion ), levelImg, relativeFactors );
+
+				if ( skipUniformBlocks && isUniform( levelImg, fillValue ) )
+					return null;
+
+				N5Utils.saveBlock( levelImg, n5Local, levelDataset, gridPosition );
+				return gridPosition;
+			}
+		)
+		.filter( gridPosition -> gridPosition != null )
+		.collect();
+	}
+
+	/**
+	 * Loads a region of the dataset (the resulting image has zero min).
+	 * If the dataset is sparse, the missing blocks are filled with the fill value without reading them.
+	 */
+	private static < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > loadRegion(
+			final N5Reader n5,
+			final String dataset,
+			final N5BlockManifest manifest,
+			final double fillValue,
+			final long[] min,
+			final long[] size ) throws IOException
+	{
+		final RandomAccessibleInterval< T > source = N5Utils.open( n5, dataset );
+		if ( manifest == null )
+			return Views.offsetInterval( source, min, size );
+
+		final ImagePlusImg< T, ? > regionImg = new ImagePlusImgFactory< T >().create( size, Util.getTypeFromInterval( source ).createVariable() );
+		for ( final T val : regionImg )
+			val.setReal( fillValue );
+
+		final RandomAccessibleInterval< T > translatedRegionImg = Views.translate( regionImg, min );
+		final int[] blockSize = n5.getDatasetAttributes( dataset ).getBlockSize();
+		for ( final long[] gridPosition : manifest.getGridPositions( min, size ) )
+		{
+			if ( !manifest.contains( gridPosition ) )
+				continue;
+
+			final long[] blockMin = new long[ min.length ], blockMax = new long[ min.length ];
+			for ( int d = 0; d < min.length; ++d )
+			{
+				blockMin[ d ] = Math.max( gridPosition[ d ] * blockSize[ d ], min[ d ] );
+				blockMax[ d ] = Math.min( ( gridPosition[ d ] + 1 ) * blockSize[ d ], min[ d ] + size[ d ] ) - 1;
+			}
+			final Interval blockInterval = new FinalInterval( blockMin, blockMax );
+			final Cursor< T > sourceCursor = Views.flatIterable( Views.interval( source, blockInterval ) ).cursor();
+			final Cursor< T > targetCursor = Views.flatIterable( Views.interval( translatedRegionImg, blockInterval ) ).cursor();
+			while ( sourceCursor.hasNext() )
+				targetCursor.next().set( sourceCursor.next() );
+		}
+		return regionImg;
+	}
+
+	/**
+	 * Approximate memory that a fusion task holds per full-scale pixel of the processing cell:
+	 * the fused output and its downsampled levels (which take less than the output itself) for every channel,
+	 * plus the weights and the accumulated values for blending, or the max-min distances otherwise.
+	 */
+	private static < T extends RealType< T > > long estimateFusedCellBytesPerPixel( final T type, final int numChannels, final boolean blending )
+	{
+		final long outputBytes = ( type.getBitsPerPixel() + 7 ) / 8;
+		final long fusionBytes = blending ? Float.BYTES * ( 1 + numChannels ) : Double.BYTES;
+		return 2 * outputBytes * numChannels + fusionBytes;
+	}
+
+	/**
+	 * @return true if all pixels of the image are equal to the given value (converted to the pixel type)
+	 */
+	private static < T extends RealType< T > > boolean isUniform( final IterableInterval< T > img, final double value )
+	{
+		final Cursor< T > cursor = img.cursor();
+		if ( !cursor.hasNext() )
+			return true;
+
+		final T typedValue = cursor.next().createVariable();
+		typedValue.setReal( value );
+		final double expectedValue = typedValue.getRealDouble();
+
+		cursor.reset();
+		while ( cursor.hasNext() )
+			if ( cursor.next().getRealDouble() != expectedValue )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Translates the tiles into the coordinate space of the existing export that has been generated from the previous configuration,
+	 * and finds the regions where the fused data may change: the old and the new boxes of the tiles that have been moved, added, or removed.
+	 * The boxes are padded by one pixel to account for the interpolation of the tiles placed at subpixel positions.
+	 */
+	static List< Interval > getAffectedRegions( final TileInfo[] previousTiles, final TileInfo[] tiles )
+	{
+		// the previous export was generated from the tiles translated to the origin
+		final RealInterval previousSpace = TileOperations.getRealCollectionBoundaries( previousTiles );
+		final double[] translation = new double[ previousSpace.numDimensions() ];
+		for ( int d = 0; d < translation.length; ++d )
+			translation[ d ] = -previousSpace.realMin( d );
+		TileOperations.translateTiles( previousTiles, translation );
+		TileOperations.translateTiles( tiles, translation );
+
+		final Map< Integer, TileInfo > previousTilesMap = Utils.createTilesMap( previousTiles ), tilesMap = Utils.createTilesMap( tiles );
+		final List< Interval > affectedRegions = new ArrayList<>();
+		for ( final TileInfo tile : tiles )
+		{
+			final TileInfo previousTile = previousTilesMap.get( tile.getIndex() );
+			if ( previousTile == null || !Arrays.equals( tile.getPosition(), previousTile.getPosition() ) || !Arrays.equals( tile.getSize(), previousTile.getSize() ) )
+			{
+				affectedRegions.add( Intervals.expand( tile.getBoundaries(), 1 ) );
+				if ( previousTile != null )
+					affectedRegions.add( Intervals.expand( previousTile.getBoundaries(), 1 ) );
+			}
+		}
+		for ( final TileInfo previousTile : previousTiles )
+			if ( !tilesMap.containsKey( previousTile.getIndex() ) )
+				affectedRegions.add( Intervals.expand( previousTile.getBoundaries(), 1 ) );
+
+		return affectedRegions;
+	}
+
+	/**
+	 * @return the processing cells that intersect with any of the affected regions
+	 */
+	static List< TileInfo > getAffectedCells( final List< TileInfo > processingCells, final List< Interval > affectedRegions )
+	{
+		final List< TileInfo > affectedCells = new ArrayList<>();
+		for ( final TileInfo cell : processingCells )
+			if ( intersectsAny( cell.getBoundaries(), affectedRegions ) )
+				affectedCells.add( cell );
+		return affectedCells;
+	}
+
+	/**
+	 * The cells that do not contain any tiles or are uniformly filled with the fill value are not stored, the readers fill the missing blocks using the manifest.
+	 * In the delta mode they are always stored because they may still contain the old data of the tiles that have been moved or removed.
+	 */
+	static boolean areUniformCellsSkipped( final boolean deltaExport )
+	{
+		return !deltaExport;
+	}
+
+	private static boolean intersectsAny( final Interval interval, final List< Interval > regions )
+	{
+		for ( final Interval region : regions )
+			if ( !Intervals.isEmpty( Intervals.intersect( interval, region ) ) )
+				return true;
+		return false;
+	}
+
+	private static boolean isWithin( final Interval interval, final Interval container )
+	{
+		for ( int d = 0; d < interval.numDimensions(); ++d )
+			if ( interval.min( d ) < container.min( d ) || interval.max( d ) > container.max( d ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return true if all channels contain the same tiles (matched by their indexes) at the same positions and of the same size
+	 */
+	private static boolean haveSameTileGeometry( final List< TileInfo[] > channelsTiles )
+	{
+		final Map< Integer, TileInfo > referenceTilesMap = Utils.createTilesMap( channelsTiles.get( 0 ) );
+		for ( final TileInfo[] channelTiles : channelsTiles )
+		{
+			if ( channelTiles.length != referenceTilesMap.size() )
+				return false;
+
+			for ( final TileInfo tile : channelTiles )
+			{
+				final TileInfo referenceTile = referenceTilesMap.get( tile.getIndex() );
+				if ( referenceTile == null || !Arrays.equals( tile.getPosition(), referenceTile.getPosition() ) || !Arrays.equals( tile.getSize(), referenceTile.getSize() ) )
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return copies of the tiles with the positions rounded to the nearest voxel
+	 */
+	private static TileInfo[] roundTilePositions( final TileInfo[] tiles )
+	{
+		final TileInfo[] roundedTiles = new TileInfo[ tiles.length ];
+		for ( int i = 0; i < tiles.length; ++i )
+		{
+			roundedTiles[ i ] = tiles[ i ].clone();
+			for ( int d = 0; d < roundedTiles[ i ].numDimensions(); ++d )
+				roundedTiles[ i ].setPosition( d, Math.round( tiles[ i ].getPosition( d ) ) );
+		}
+		return roundedTiles;
 	}
 
 	private Map< Integer, Set< Integer > > getPairwiseConnectionsMap( final String channelPath ) throws PipelineExecutionException
@@ -348,9 +1086,21 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 		return pairwiseConnectionsMap;
 	}
 
-	private double estimateBackgroundValue( final TileInfo[] tiles )
+	private double estimateBackgroundValue( final String tileConfigurationPath, final TileInfo[] tiles ) throws IOException
 	{
-		final StackHistogram stackHistogram = StackHistogram.getStackHistogram( sparkContext, tiles, stackHistogramSettings );
+		final StackHistogram stackHistogram = StackHistogram.loadOrCollectStackHistogram(
+				sparkContext,
+				job.getDataProvider(),
+				tileConfigurationPath,
+				tiles,
+				stackHistogramSettings,
+				job.getArgs().stackHistogramSampling()
+			);
+		if ( stackHistogram.isSampled() )
+		{
+			final Pair< Double, Double > pivotValueBounds = stackHistogram.getPivotValueBounds();
+			System.out.println( String.format( "Sampled stack histogram: background value bounds [%.2f, %.2f]", pivotValueBounds.getA(), pivotValueBounds.getB() ) );
+		}
 		return stackHistogram.getPivotValue();
 	}
 
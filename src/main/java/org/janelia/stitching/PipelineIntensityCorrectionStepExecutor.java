@@ -129,7 +129,7 @@ public class PipelineIntensityCorrectionStepExecutor extends PipelineStepExecuto
 	 */
 	public < M extends Model< M > & Affine1D< M >, T extends RealType< T > & NativeType< T > > TileInfo[] matchIntensities( final TileInfo[] tiles, final M templateModel ) throws PipelineExecutionException
 	{
-		final List< TilePair > overlappingPairs = TileOperations.findOverlappingTiles( tiles );
+		final List< TilePair > overlappingPairs = TileOperations.findOverlappingTiles( tiles, true );
 		final Map< Integer, TileInfo > tilesMap = Utils.createTilesMap( tiles );
 
 		// set coeff dimensions
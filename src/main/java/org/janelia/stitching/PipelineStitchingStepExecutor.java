@@ -20,16 +20,19 @@ import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.imageplus.ImagePlusImgFactory;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function2;
 import org.apache.spark.broadcast.Broadcast;
 import org.apache.spark.util.LongAccumulator;
 import org.janelia.dataaccess.DataProvider;
+import org.janelia.dataaccess.N5BlockCache;
 import org.janelia.dataaccess.PathResolver;
-import org.janelia.flatfield.FlatfieldCorrectedRandomAccessible;
+import org.janelia.flatfield.FlatfieldCorrectionKernel;
 import org.janelia.flatfield.FlatfieldCorrection;
 import org.janelia.stitching.StitchingArguments.RematchingMode;
 import org.janelia.stitching.analysis.FilterAdjacentShifts;
 import org.janelia.util.Conversions;
 import org.janelia.util.concurrent.SameThreadExecutorService;
+import org.janelia.util.concurrent.TaskThreadingPolicy;
 
 import ij.ImagePlus;
 import mpicbg.imglib.custom.OffsetConverter;
@@ -40,7 +43,6 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.converter.Converters;
-import net.imglib2.converter.RealFloatConverter;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.img.imageplus.ImagePlusImgs;
@@ -55,6 +57,7 @@ import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.RandomAccessiblePairNullable;
 import net.imglib2.view.Views;
+import scala.Tuple2;
 
 /**
  * Computes updated tile positions using phase correlation for pairwise matches and then global optimization for fitting all of them together.
@@ -77,7 +80,7 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 	{
 		final DataProvider dataProvider = job.getDataProvider();
 
-		final List< TilePair > overlappingTiles = TileOperations.findOverlappingTiles( job.getTiles( job.getMainChannelIndex() ) );
+		final List< TilePair > overlappingTiles = TileOperations.findOverlappingTiles( job.getTiles( job.getMainChannelIndex() ), true );
 		System.out.println( "Overlapping pairs count = " + overlappingTiles.size() );
 
 		// Remove pairs with small overlap area if only adjacent pairs are requested
@@ -106,7 +109,7 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 				{
 					System.out.println( "************** Iteration " + iteration + " **************" );
 					preparePairwiseShiftsMulti( overlappingTiles, iteration );
-					optimizer.optimize( iteration, getIterationFolderName( iteration ) );
+					optimizer.optimize( iteration, getIterationFolderName( iteration ), iteration == 0 ? null : getIterationFolderName( iteration - 1 ) );
 				}
 				else
 				{
@@ -407,9 +410,15 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 		final LongAccumulator notEnoughNeighborsWithinConfidenceIntervalPairsCount = sparkContext.sc().longAccumulator();
 		final LongAccumulator noOverlapWithinConfidenceIntervalPairsCount = sparkContext.sc().longAccumulator();
 		final LongAccumulator noPeaksWithinConfidenceIntervalPairsCount = sparkContext.sc().longAccumulator();
+		final LongAccumulator overlapBytesRead = sparkContext.sc().longAccumulator();
+		final LongAccumulator overlapBytesUsed = sparkContext.sc().longAccumulator();
+		final N5BlockCache.Stats blockCacheStats = N5BlockCache.Stats.create( sparkContext, "pairwise stitching", job.getArgs().blockCacheSizeBytes() );
 
-		final JavaRDD< TilePair > rdd = sparkContext.parallelize( overlappingTiles, overlappingTiles.size() );
-		final JavaRDD< SerializablePairWiseStitchingResult[] > pairwiseStitching = rdd.map( pairOfTiles ->
+		// phase correlation of a pair can use as many threads as the cores reserved for a task (spark.task.cpus)
+		final TaskThreadingPolicy threadingPolicy = new TaskThreadingPolicy( sparkContext.getConf() );
+		System.out.println( "Phase correlation will use up to " + sparkContext.getConf().getInt( "spark.task.cpus", 1 ) + " threads per task (spark.task.cpus)" );
+
+		final Function2< TilePair, TileOverlapLoader.BatchCache, SerializablePairWiseStitchingResult[] > stitchPair = ( pairOfTiles, batchCache ) ->
 			{
 				final DataProvider dataProviderLocal = job.getDataProvider();
 
@@ -581,66 +590,46 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 						channelIndices = IntStream.range( 0, job.getChannels() ).boxed().collect( Collectors.toList() ); // all channels
 
 					T inputType = null;
-					final RandomAccessibleInterval< FloatType > avgChannelImg = ArrayImgs.floats( Intervals.dimensionsAsLongArray( overlaps[ j ] ) );
+					final float[] avgChannelData = new float[ ( int ) Intervals.numElements( overlaps[ j ] ) ];
 
 					for ( final int channel : channelIndices )
 					{
 						final TileInfo tileInfo = broadcastedTileChannelMappingByIndex.value().get( channel ).get( tileIndex );
-//						for ( final TileInfo tile : job.getTiles( channel ) )
-//						{
-//							if ( coordinates.compareTo( new ComparableTuple<>( Conversions.toBoxedArray( Utils.getTileCoordinates( tile ) ) ) ) == 0 )
-//							{
-//								tileInfo = tile;
-//								break;
-//							}
-//						}
 
 						// skip if no tile exists for this channel at this particular stage position
 						if ( tileInfo == null )
 							throw new PipelineExecutionException( pairOfTiles + ": cannot find corresponding tile for this channel" );
 
-						// FIXME: throw exception in case some image files are missing (or, check for missing files beforehand)
-						final RandomAccessibleInterval< T > img = TileLoader.loadTile( tileInfo, dataProviderLocal );
-						if ( img == null )
-							throw new PipelineExecutionException( "Cannot load tile image: " + tileInfo.getFilePath() );
-
-						final T type = Util.getTypeFromInterval( img );
-
-						// store input type
+						// store input type (the loader ensures that the type of the stored image matches the metadata)
 						if ( inputType == null )
-							inputType = type;
+							inputType = ( T ) tileInfo.getType().getType().createVariable();
 
-//						if ( imp != null )
+						// read only the blocks that intersect with the padded overlap
+						final TileOverlapLoader.OverlapRegion overlapRegion;
+						try
 						{
-							// warn if image type and/or size do not match metadata
-							if ( !type.getClass().equals( tileInfo.getType().getType().getClass() ) )
-								throw new PipelineExecutionException( String.format( "Image type %s does not match the value from metadata %s", type.getClass().getName(), tileInfo.getType() ) );
-							if ( !Arrays.equals( Intervals.dimensionsAsLongArray( img ), tileInfo.getSize() ) )
-								throw new PipelineExecutionException( String.format( "Image size %s does not match the value from metadata %s", Arrays.toString( Intervals.dimensionsAsLongArray( img ) ), Arrays.toString( tileInfo.getSize() ) ) );
-
-							final RandomAccessibleInterval< T > imgCrop = Views.interval( img, overlaps[ j ] );
+							overlapRegion = TileOverlapLoader.loadRegion( tileInfo, overlaps[ j ], dataProviderLocal, batchCache );
+						}
+						catch ( final IOException e )
+						{
+							throw new PipelineExecutionException( pairOfTiles + ": " + e.getMessage(), e );
+						}
+						overlapBytesRead.add( overlapRegion.getBytesRead() );
+						overlapBytesUsed.add( overlapRegion.getBytesUsed() );
+						System.out.println( String.format( "%s: loaded overlap of tile %d in channel %d, read %d bytes, used %d bytes", pairOfTiles, tileIndex, channel, overlapRegion.getBytesRead(), overlapRegion.getBytesUsed() ) );
 
-							final RandomAccessibleInterval< FloatType > sourceInterval;
-							final RandomAccessiblePairNullable< U, U > flatfield = broadcastedFlatfieldCorrectionForChannels.value().get( channel );
-							if ( flatfield != null )
-							{
-								System.out.println( "Flat-fielding image.." );
-								final FlatfieldCorrectedRandomAccessible< T, U > flatfieldCorrected = new FlatfieldCorrectedRandomAccessible<>( imgCrop, flatfield.toRandomAccessiblePair() );
-								final RandomAccessibleInterval< U > correctedImg = Views.interval( flatfieldCorrected, imgCrop );
-								sourceInterval = Converters.convert( correctedImg, new RealFloatConverter<>(), new FloatType() );
-							}
-							else
-							{
-								sourceInterval = Converters.convert( imgCrop, new RealFloatConverter<>(), new FloatType() );
-							}
+						final float[] overlapData = overlapRegion.getData();
+						final RandomAccessiblePairNullable< U, U > flatfield = broadcastedFlatfieldCorrectionForChannels.value().get( channel );
+						if ( flatfield != null )
+						{
+							System.out.println( "Flat-fielding image.." );
+							FlatfieldCorrectionKernel.create( flatfield, overlaps[ j ] ).apply( overlapData );
+						}
 
-							final Cursor< FloatType > srcCursor = Views.flatIterable( sourceInterval ).cursor();
-							final Cursor< FloatType > dstCursor = Views.flatIterable( avgChannelImg ).cursor();
-							while ( dstCursor.hasNext() || srcCursor.hasNext() )
-								dstCursor.next().add( srcCursor.next() );
+						for ( int i = 0; i < avgChannelData.length; ++i )
+							avgChannelData[ i ] += overlapData[ i ];
 
-							++channelsUsed;
-						}
+						++channelsUsed;
 					}
 
 					if ( channelsUsed == 0 )
@@ -648,12 +637,10 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 
 					// normalize if needed
 					if ( channelsUsed > 1 )
-					{
-						final FloatType denom = new FloatType( channelsUsed );
-						final Cursor< FloatType > dstCursor = Views.iterable( avgChannelImg ).cursor();
-						while ( dstCursor.hasNext() )
-							dstCursor.next().div( denom );
-					}
+						for ( int i = 0; i < avgChannelData.length; ++i )
+							avgChannelData[ i ] /= channelsUsed;
+
+					final RandomAccessibleInterval< FloatType > avgChannelImg = ArrayImgs.floats( avgChannelData, Intervals.dimensionsAsLongArray( overlaps[ j ] ) );
 
 					if ( blurSigma > 0 )
 					{
@@ -718,7 +705,7 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 					final double variance = pixelSumSquares / pixelCount - Math.pow( pixelSum / pixelCount, 2 );
 
 					final int timepoint = 1;
-					PairwiseStitchingPerformer.setThreads( 1 ); // TODO: determine automatically based on parallelism / smth else. Or, use different values for local/cluster configurations
+					PairwiseStitchingPerformer.setThreads( threadingPolicy.getThreadsPerTask() );
 
 					// for transforming 'overlap offset' to 'global offset'
 					final long[][] roiToTileOffset = new long[ 2 ][];
@@ -774,9 +761,49 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 
 				System.out.println( "Stitched tile pair " + pairOfTiles + ", got " + roiPartsResults.length + " matches" );
 				return roiPartsResults;
+			};
+
+		// group spatially close pairs together so the data of the tiles that are shared between them is loaded only once per batch
+		// each pair is tagged with its index in the list of overlapping pairs, so the results can be put back into the original order
+		final List< List< Tuple2< Integer, TilePair > > > pairBatches = new ArrayList<>();
+		for ( final List< Integer > pairIndexesBatch : TilePairPartitioner.partitionIndexesIntoBatches( overlappingTiles, job.getArgs().pairsPerTask() ) )
+		{
+			final List< Tuple2< Integer, TilePair > > pairBatch = new ArrayList<>();
+			for ( final int pairIndex : pairIndexesBatch )
+				pairBatch.add( new Tuple2<>( pairIndex, overlappingTiles.get( pairIndex ) ) );
+			pairBatches.add( pairBatch );
+		}
+		System.out.println( "Grouped " + overlappingTiles.size() + " pairs into " + pairBatches.size() + " batches" );
+
+		final JavaRDD< Tuple2< Integer, SerializablePairWiseStitchingResult[] > > pairwiseStitching = sparkContext.parallelize( pairBatches, pairBatches.size() ).flatMap( pairBatch ->
+			{
+				N5BlockCache.bindStats( blockCacheStats );
+				try
+				{
+					final List< TilePair > batchPairs = new ArrayList<>();
+					for ( final Tuple2< Integer, TilePair > indexedPair : pairBatch )
+						batchPairs.add( indexedPair._2() );
+
+					final TileOverlapLoader.BatchCache batchCache = new TileOverlapLoader.BatchCache( batchPairs );
+					final List< Tuple2< Integer, SerializablePairWiseStitchingResult[] > > batchResults = new ArrayList<>();
+					for ( final Tuple2< Integer, TilePair > indexedPair : pairBatch )
+					{
+						batchResults.add( new Tuple2<>( indexedPair._1(), stitchPair.call( indexedPair._2(), batchCache ) ) );
+						batchCache.release( indexedPair._2() );
+					}
+					return batchResults.iterator();
+				}
+				finally
+				{
+					N5BlockCache.unbindStats();
+				}
 			} );
 
-		final List< SerializablePairWiseStitchingResult[] > stitchingResults = pairwiseStitching.collect();
+		// the batches are processed in the Z-order of the pairs, restore the original order so the output does not depend on the batching
+		final SerializablePairWiseStitchingResult[][] orderedStitchingResults = new SerializablePairWiseStitchingResult[ overlappingTiles.size() ][];
+		for ( final Tuple2< Integer, SerializablePairWiseStitchingResult[] > indexedResult : pairwiseStitching.collect() )
+			orderedStitchingResults[ indexedResult._1() ] = indexedResult._2();
+		final List< SerializablePairWiseStitchingResult[] > stitchingResults = new ArrayList<>( Arrays.asList( orderedStitchingResults ) );
 
 		broadcastedFlatfieldCorrectionForChannels.destroy();
 		broadcastedSearchRadiusEstimator.destroy();
@@ -797,6 +824,8 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 		System.out.println( "    not enough neighbors within estimation window: " + notEnoughNeighborsWithinConfidenceIntervalPairsCount.value() );
 		System.out.println( "    <= 1px overlap within search radius: " + noOverlapWithinConfidenceIntervalPairsCount.value() );
 		System.out.println( "    no peaks found within search radius: " + noPeaksWithinConfidenceIntervalPairsCount.value() );
+		System.out.println( "N5 block cache: " + blockCacheStats );
+		System.out.println( "Overlap I/O: read " + overlapBytesRead.value() + " bytes, used " + overlapBytesUsed.value() + " bytes" + ( overlapBytesUsed.value() > 0 ? String.format( " (read/used ratio: %.2f)", ( double ) overlapBytesRead.value() / overlapBytesUsed.value() ) : "" ) );
 		System.out.println();
 
 		return stitchingResults;
@@ -12,6 +12,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.janelia.dataaccess.CloudURI;
+import org.janelia.dataaccess.N5Compressions;
+import org.janelia.saalfeldlab.n5.Compression;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -34,6 +36,12 @@ public class StitchingArguments implements Serializable {
 		INCREMENTAL
 	}
 
+	public static enum OptimizationSolver implements Serializable
+	{
+		RELAXATION,
+		LEAST_SQUARES
+	}
+
 	private static final long serialVersionUID = -8996450783846140673L;
 
 	@Option(name = "-i", aliases = { "--input" }, required = true,
@@ -80,6 +88,14 @@ public class StitchingArguments implements Serializable {
 			usage = "Compute pairwise shifts between all pairs (by default only adjacent pairs are used)")
 	private boolean allPairs = false;
 
+	@Option(name = "--pairsPerTask", required = false,
+			usage = "Number of spatially adjacent tile pairs processed within a single task during pairwise stitching (the tile data is reused between the pairs of the same task)")
+	private int pairsPerTask = 16;
+
+	@Option(name = "--blockCacheSize", required = false,
+			usage = "Size of the executor-wide cache of decoded N5 tile blocks in MB that is used by the stitching and fusion steps. By default it takes 1/8 of the executor memory, 0 disables the cache")
+	private Long blockCacheSizeMB = null;
+
 	@Option(name = "-m", aliases = { "--mode" }, required = false,
 			usage = "Rematching mode ('full' or 'incremental')")
 	private String rematchingModeStr = "incremental";
@@ -90,6 +106,16 @@ public class StitchingArguments implements Serializable {
 			usage = "Optimize tile configurations that don't contain any leaves (thus all edges are properly constrained)")
 	private boolean noLeaves = false;
 
+	@Option(name = "--incrementalOptimization", required = false,
+			usage = "Initialize the global optimization from the solution of the previous stitching iteration, re-optimize only the affected tiles when the set of pairs has changed slightly, and stop the optimization once the error has converged")
+	private boolean incrementalOptimization = false;
+
+	@Option(name = "--solver", required = false,
+			usage = "Solver for the global optimization ('relaxation' or 'leastsquares'). The least-squares solver finds the optimal translations directly and is much faster on large graphs")
+	private String optimizationSolverStr = "relaxation";
+
+	private OptimizationSolver optimizationSolver = null;
+
 	@Option(name = "--overlaps", required = false,
 			usage = "Export overlaps channel based on which connections between tiles have been used for final stitching")
 	private boolean exportOverlaps = false;
@@ -98,10 +124,41 @@ public class StitchingArguments implements Serializable {
 			usage = "Export the dataset using blending strategy instead of hardcut (max.min.distance)")
 	private boolean blending = false;
 
+	@Option(name = "--roundPositions", required = false,
+			usage = "Round the tile positions to the nearest voxel when exporting the dataset, so the tiles are fused without interpolation (tiles that are already placed at integral positions are always fused without interpolation)")
+	private boolean roundPositions = false;
+
+	@Option(name = "--multichannelFusion", required = false,
+			usage = "Fuse all channels in a single pass where each task processes the same cell of all channels, so the tile lookup and the fusion weights are computed once for all channels (requires the same tile positions in all channels)")
+	private boolean multichannelFusion = false;
+
+	@Option(name = "--fusedPyramidLevels", required = false,
+			usage = "Number of downsampled scale levels that are generated by the fusion tasks along with the full resolution blocks (the processing blocks are enlarged accordingly). "
+					+ "The remaining coarser levels are generated from the last fused level. By default (0), the scale pyramid is generated in a separate pass from the full resolution export")
+	private int fusedPyramidLevels = 0;
+
+	@Option(name = "--maxFusedCellSize", required = false,
+			usage = "Estimated memory in MB that a fusion task may use for a single processing block. The number of scale levels generated during fusion (--fusedPyramidLevels) is reduced until the enlarged processing block fits into this limit")
+	private long maxFusedCellSizeMB = 2048;
+
+	@Option(name = "--deltaFrom", required = false,
+			usage = "Update the existing export instead of creating a new one: re-fuse only the cells affected by the tiles that have been moved, added, or removed "
+					+ "relative to the given tile configurations that were used for the existing export (one per input configuration, in the same order). The affected blocks of the lower scale levels are updated as well")
+	private List< String > previousTileConfigurations = null;
+
+	@Option(name = "--compression", required = false,
+			usage = N5Compressions.USAGE + " for the exported dataset")
+	private String compressionStr = N5Compressions.DEFAULT;
+
 	@Option(name = "--fillBackground", aliases = { "--fill" }, required = false,
 			usage = "Fill the outer space in N5 export with the background value of the data instead of zero")
 	private boolean fillBackground = false;
 
+	@Option(name = "--stackHistogramSampling", required = false,
+			usage = "Fraction of slices of each tile to be used for estimating the background value with --fillBackground when it is not available from the flatfield correction step. "
+					+ "By default (1) all data is used. The stack histogram is stored next to the tile configuration and reused in the subsequent runs and pipeline steps")
+	private double stackHistogramSampling = 1;
+
 	/**
 	 * Toggle pipeline stages. By default all stages are executed.
 	 */
@@ -133,6 +190,9 @@ public class StitchingArguments implements Serializable {
 			parser.printUsage( System.err );
 		}
 
+		// fail early if the compression is not valid
+		N5Compressions.parse( compressionStr );
+
 		if ( !stitchOnly && !fuseOnly )
 			throw new IllegalArgumentException( "Please specify mode: --stitch / --fuse" );
 
@@ -147,6 +207,13 @@ public class StitchingArguments implements Serializable {
 				rematchingMode = RematchingMode.INCREMENTAL;
 			else
 				throw new IllegalArgumentException( "Invalid rematching mode. Possible values are: 'full' or 'incremental'" );
+
+			if ( optimizationSolverStr.equalsIgnoreCase( "relaxation" ) )
+				optimizationSolver = OptimizationSolver.RELAXATION;
+			else if ( optimizationSolverStr.equalsIgnoreCase( "leastsquares" ) )
+				optimizationSolver = OptimizationSolver.LEAST_SQUARES;
+			else
+				throw new IllegalArgumentException( "Invalid solver. Possible values are: 'relaxation' or 'leastsquares'" );
 		}
 
 		// make sure that inputTileConfigurations contains absolute file paths if running on a traditional filesystem
@@ -187,6 +254,16 @@ public class StitchingArguments implements Serializable {
 		    	}
 		}
 		
+		if ( previousTileConfigurations != null )
+		{
+			if ( previousTileConfigurations.size() != inputTileConfigurations.size() )
+				throw new IllegalArgumentException( "Previous tile configurations must match input tile configurations" );
+
+			for ( int i = 0; i < previousTileConfigurations.size(); ++i )
+				if ( !CloudURI.isCloudURI( previousTileConfigurations.get( i ) ) )
+					previousTileConfigurations.set( i, Paths.get( previousTileConfigurations.get( i ) ).toAbsolutePath().toString() );
+		}
+
 		if (correctionImagesPaths != null && correctionImagesPaths.size() > 0)
 		{
 			if (correctionImagesPaths.size() != inputTileConfigurations.size())
@@ -228,10 +305,20 @@ public class StitchingArguments implements Serializable {
 	public int fusionCellSize() { return fusionCellSize; }
 	public double blurSigma() { return blurSigma; }
 	public boolean useAllPairs() { return allPairs; }
+	public int pairsPerTask() { return pairsPerTask; }
+	public long blockCacheSizeBytes() { return blockCacheSizeMB != null ? blockCacheSizeMB * 1024 * 1024 : -1; }
 	public boolean noLeaves() { return noLeaves; }
+	public boolean incrementalOptimization() { return incrementalOptimization; }
 	public boolean exportOverlaps() { return exportOverlaps; }
 	public boolean blending() { return blending; }
+	public boolean roundPositions() { return roundPositions; }
+	public boolean multichannelFusion() { return multichannelFusion; }
+	public int fusedPyramidLevels() { return fusedPyramidLevels; }
+	public long maxFusedCellSizeBytes() { return maxFusedCellSizeMB * 1024 * 1024; }
+	public List< String > previousTileConfigurations() { return previousTileConfigurations; }
+	public Compression compression() { return N5Compressions.parse( compressionStr ); }
 	public boolean fillBackground() { return fillBackground; }
+	public double stackHistogramSampling() { return stackHistogramSampling; }
 	public boolean allowFusingStage() { return allowFusingStage; }
 
 	public boolean stitchOnly() { return stitchOnly; }
@@ -240,6 +327,7 @@ public class StitchingArguments implements Serializable {
 	public boolean applyRawStitchingToDecon() { return applyRawStitchingToDecon; }
 
 	public RematchingMode rematchingMode() { return rematchingMode; }
+	public OptimizationSolver optimizationSolver() { return optimizationSolver; }
 
 	private long[] parseArray( final String str )
 	{
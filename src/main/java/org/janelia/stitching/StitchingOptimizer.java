@@ -5,12 +5,16 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.Vector;
 
 import org.apache.spark.api.java.JavaSparkContext;
@@ -33,12 +37,14 @@ public class StitchingOptimizer implements Serializable
 	private static final double INITIAL_MAX_ALLOWED_ERROR = 5;
 	private static final double MAX_ALLOWED_ERROR_STEP = 5;
 
+	private static final int EARLY_STOPPING_PLATEAU_WIDTH = 200;
+
 	private static double getMaxAllowedError( final int iteration )
 	{
 		return Math.min( INITIAL_MAX_ALLOWED_ERROR + iteration * MAX_ALLOWED_ERROR_STEP, MAX_ALLOWED_ERROR_LIMIT );
 	}
 
-	private static final class OptimizationParameters
+	static final class OptimizationParameters
 	{
 		public final double minCrossCorrelation;
 		public final double minVariance;
@@ -48,9 +54,24 @@ public class StitchingOptimizer implements Serializable
 			this.minCrossCorrelation = minCrossCorrelation;
 			this.minVariance = minVariance;
 		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( !( other instanceof OptimizationParameters ) )
+				return false;
+			final OptimizationParameters otherParameters = ( OptimizationParameters ) other;
+			return Double.compare( minCrossCorrelation, otherParameters.minCrossCorrelation ) == 0 && Double.compare( minVariance, otherParameters.minVariance ) == 0;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * Double.hashCode( minCrossCorrelation ) + Double.hashCode( minVariance );
+		}
 	}
 
-	private static final class OptimizationResult implements Comparable< OptimizationResult >
+	static final class OptimizationResult implements Comparable< OptimizationResult >
 	{
 		public final OptimizationParameters optimizationParameters;
 		public final double maxAllowedError;
@@ -131,7 +152,7 @@ public class StitchingOptimizer implements Serializable
 		this.sparkContext = sparkContext;
 	}
 
-	public void optimize( final int iteration, final String iterationDirname ) throws IOException
+	public void optimize( final int iteration, final String iterationDirname, final String previousIterationDirname ) throws IOException
 	{
 		final DataProvider dataProvider = job.getDataProvider();
 
@@ -144,6 +165,8 @@ public class StitchingOptimizer implements Serializable
 
 		final List< SerializablePairWiseStitchingResult[] > shifts = TileInfoJSONProvider.loadPairwiseShiftsMulti( dataProvider.getJsonReader( pairwiseShiftsPath ) );
 
+		final OptimizationWarmStart warmStart = job.getArgs().incrementalOptimization() && previousIterationDirname != null ? loadWarmStart( basePath, previousIterationDirname ) : null;
+
 		try ( final OutputStream logOut = dataProvider.getOutputStream( PathResolver.get( basePath, iterationDirname, "optimizer.txt" ) ) )
 		{
 			try ( final PrintWriter logWriter = new PrintWriter( logOut ) )
@@ -154,14 +177,14 @@ public class StitchingOptimizer implements Serializable
 				final double maxAllowedError = getMaxAllowedError( iteration );
 				logWriter.println( "Set max allowed error to " + maxAllowedError + "px" );
 
-				final OptimizationParameters bestOptimizationParameters = findBestOptimizationParameters( shifts, maxAllowedError, logWriter );
+				final OptimizationParameters bestOptimizationParameters = findBestOptimizationParameters( shifts, warmStart, maxAllowedError, logWriter );
 
 				logWriter.println();
 				logWriter.println( "Determined optimization parameters:  min.cross.correlation=" + bestOptimizationParameters.minCrossCorrelation + ", min.variance=" + bestOptimizationParameters.minVariance );
 				System.out.println( "Stitching iteration " + iteration + ": Determined optimization parameters:  min.cross.correlation=" + bestOptimizationParameters.minCrossCorrelation + ", min.variance=" + bestOptimizationParameters.minVariance );
 
 				final Vector< ComparePair > comparePairs = createComparePairs( shifts, bestOptimizationParameters );
-				final GlobalOptimizationPerformer optimizationPerformer = new GlobalOptimizationPerformer();
+				final GlobalOptimizationPerformer optimizationPerformer = createOptimizationPerformer( warmStart );
 				final List< ImagePlusTimePoint > optimized = optimizationPerformer.optimize( comparePairs, job.getParams(), null, logWriter );
 
 				// Update tile positions
@@ -233,71 +256,130 @@ public class StitchingOptimizer implements Serializable
 		}
 	}
 
-	private OptimizationParameters findBestOptimizationParameters( final List< SerializablePairWiseStitchingResult[] > shifts, final double maxAllowedError, final PrintWriter logWriter )
+	/**
+	 * A set of retained pairwise connections shared by one or more points of the parameter grid.
+	 * The size of the resulting graph is known in advance because the optimizer only keeps the largest connected component of the retained connections.
+	 */
+	private static final class EdgeSetCandidate
+	{
+		public final List< OptimizationParameters > optimizationParametersList = new ArrayList<>();
+		public final int graphSize;
+		public final int validPairs;
+		public final boolean hasLeaves;
+
+		public EdgeSetCandidate( final int graphSize, final int validPairs, final boolean hasLeaves )
+		{
+			this.graphSize = graphSize;
+			this.validPairs = validPairs;
+			this.hasLeaves = hasLeaves;
+		}
+	}
+
+	/**
+	 * Evaluates a wave of the parameter grid points, each of them representing a distinct set of pairs.
+	 */
+	interface OptimizationParametersEvaluator
+	{
+		List< OptimizationResult > evaluate( List< OptimizationParameters > wave );
+	}
+
+	/**
+	 * Sorted results of the parameter grid search, and the statistics of how many sets of pairs were optimized or pruned.
+	 */
+	static final class ParameterSearchResult
+	{
+		public final List< OptimizationResult > optimizationResultList;
+		public final int gridSize;
+		public final int distinctEdgeSets;
+		public final int evaluatedCandidates;
+		public final int prunedCandidates;
+		public final int skippedCandidates;
+		public final int retainedGridPoints;
+
+		public ParameterSearchResult(
+				final List< OptimizationResult > optimizationResultList,
+				final int gridSize,
+				final int distinctEdgeSets,
+				final int evaluatedCandidates,
+				final int prunedCandidates,
+				final int skippedCandidates,
+				final int retainedGridPoints )
+		{
+			this.optimizationResultList = optimizationResultList;
+			this.gridSize = gridSize;
+			this.distinctEdgeSets = distinctEdgeSets;
+			this.evaluatedCandidates = evaluatedCandidates;
+			this.prunedCandidates = prunedCandidates;
+			this.skippedCandidates = skippedCandidates;
+			this.retainedGridPoints = retainedGridPoints;
+		}
+	}
+
+	static List< OptimizationParameters > createOptimizationParametersGrid()
 	{
 		final List< OptimizationParameters > optimizationParametersList = new ArrayList<>();
 		for ( double testMinCrossCorrelation = 0.1; testMinCrossCorrelation <= 1; testMinCrossCorrelation += 0.05 )
 			for ( double testMinVariance = 0; testMinVariance <= 300; testMinVariance += 1 + ( int ) testMinVariance / 10 )
 				optimizationParametersList.add( new OptimizationParameters( testMinCrossCorrelation, testMinVariance ) );
+		return optimizationParametersList;
+	}
 
-		final Broadcast< StitchingParameters > broadcastedStitchingParameters = sparkContext.broadcast( job.getParams() );
-
+	private OptimizationParameters findBestOptimizationParameters(
+			final List< SerializablePairWiseStitchingResult[] > shifts,
+			final OptimizationWarmStart warmStart,
+			final double maxAllowedError,
+			final PrintWriter logWriter )
+	{
+		final List< OptimizationParameters > optimizationParametersList = createOptimizationParametersGrid();
 		final boolean noLeaves = job.getArgs().noLeaves();
 
+		final Broadcast< StitchingParameters > broadcastedStitchingParameters = sparkContext.broadcast( job.getParams() );
+		final Broadcast< List< SerializablePairWiseStitchingResult[] > > broadcastedShifts = sparkContext.broadcast( shifts );
+		final Broadcast< OptimizationWarmStart > broadcastedWarmStart = warmStart != null ? sparkContext.broadcast( warmStart ) : null;
+		final int fullGraphSize = job.getTiles( job.getMainChannelIndex() ).length;
+		final int waveSize = Math.max( sparkContext.defaultParallelism(), 1 );
+
 		GlobalOptimizationPerformer.suppressOutput();
 
-		final List< OptimizationResult > optimizationResultList = new ArrayList<>( sparkContext.parallelize( optimizationParametersList, optimizationParametersList.size() ).map( optimizationParameters ->
-			{
-				final Vector< ComparePair > comparePairs = createComparePairs( shifts, optimizationParameters );
-
-				if ( noLeaves && hasLeaves( comparePairs ) )
-					return null;
-
-				int validPairs = 0;
-				for ( final ComparePair pair : comparePairs )
-					if ( pair.getIsValidOverlap() )
-						++validPairs;
-
-				final GlobalOptimizationPerformer optimizationPerformer = new GlobalOptimizationPerformer();
-				optimizationPerformer.optimize( comparePairs, broadcastedStitchingParameters.value() );
-				final OptimizationResult optimizationResult = new OptimizationResult(
-						optimizationParameters,
-						maxAllowedError,
-						job.getTiles( job.getMainChannelIndex() ).length,
-						optimizationPerformer.remainingGraphSize,
-						validPairs,
-						optimizationPerformer.avgDisplacement,
-						optimizationPerformer.maxDisplacement );
-				return optimizationResult;
-			}
-		).collect() );
+		final ParameterSearchResult searchResult = searchOptimizationParameters( shifts, optimizationParametersList, noLeaves, waveSize,
+				wave -> sparkContext.parallelize( wave, wave.size() ).map( optimizationParameters ->
+						evaluateOptimizationParameters(
+								broadcastedShifts.value(),
+								optimizationParameters,
+								createOptimizationPerformer( broadcastedWarmStart != null ? broadcastedWarmStart.value() : null ),
+								broadcastedStitchingParameters.value(),
+								maxAllowedError,
+								fullGraphSize )
+					).collect()
+			);
 
 		GlobalOptimizationPerformer.restoreOutput();
 		broadcastedStitchingParameters.destroy();
+		broadcastedShifts.destroy();
+		if ( broadcastedWarmStart != null )
+			broadcastedWarmStart.destroy();
+
+		System.out.println( "Optimizer parameter search: " + searchResult.gridSize + " grid points, " + searchResult.distinctEdgeSets + " distinct sets of pairs, " + searchResult.evaluatedCandidates + " optimized, " + searchResult.prunedCandidates + " pruned" + ( noLeaves ? ", " + searchResult.skippedCandidates + " skipped (no leaves mode)" : "" ) );
 
 		if ( noLeaves )
 		{
-			final int sizeBefore = optimizationResultList.size();
-			optimizationResultList.removeAll( Collections.singleton( null ) );
-			final int sizeAfter = optimizationResultList.size();
 			System.out.println( "" );
 			System.out.println( "-----------" );
 			System.out.println( "no leaves mode ON" );
 			System.out.println( "" );
-			System.out.println( "pairs before: " + sizeBefore );
-			System.out.println( "pairs after: " + sizeAfter );
+			System.out.println( "pairs before: " + searchResult.gridSize );
+			System.out.println( "pairs after: " + searchResult.retainedGridPoints );
 			System.out.println( "-----------" );
 			System.out.println( "" );
 		}
 
-		Collections.sort( optimizationResultList );
-
 		if ( logWriter != null )
 		{
 			logWriter.println();
 			logWriter.println( "Scanning parameter space for the optimizer: min.cross.correlation and min.variance:" );
+			logWriter.println( "(" + searchResult.gridSize + " grid points, " + searchResult.distinctEdgeSets + " distinct sets of pairs, " + searchResult.evaluatedCandidates + " optimized, " + searchResult.prunedCandidates + " pruned as they cannot yield a better result)" );
 			logWriter.println();
-			for ( final OptimizationResult optimizationResult : optimizationResultList )
+			for ( final OptimizationResult optimizationResult : searchResult.optimizationResultList )
 				logWriter.println(
 						"ratio=" + String.format( "%.2f", ( double ) optimizationResult.remainingGraphSize / optimizationResult.fullGraphSize ) +
 						", graph=" + optimizationResult.remainingGraphSize +
@@ -309,10 +391,268 @@ public class StitchingOptimizer implements Serializable
 					);
 		}
 
-		return optimizationResultList.get( 0 ).optimizationParameters;
+		return searchResult.optimizationResultList.get( 0 ).optimizationParameters;
 	}
 
-	private Vector< ComparePair > createComparePairs( final List< SerializablePairWiseStitchingResult[] > shifts, final OptimizationParameters optimizationParameters )
+	/**
+	 * Searches the parameter grid for the best set of pairs.
+	 * The grid points that retain the same set of pairs are optimized only once, and the sets that cannot outperform
+	 * the best acceptable result found so far are pruned. The evaluator is called with waves of up to {@code waveSize} grid points.
+	 *
+	 * @return results for the evaluated grid points sorted from best to worst
+	 */
+	static ParameterSearchResult searchOptimizationParameters(
+			final List< SerializablePairWiseStitchingResult[] > shifts,
+			final List< OptimizationParameters > optimizationParametersList,
+			final boolean noLeaves,
+			final int waveSize,
+			final OptimizationParametersEvaluator evaluator )
+	{
+		// many points of the grid retain exactly the same set of pairwise connections, so group them and run the optimization only once per group
+		final Map< BitSet, EdgeSetCandidate > edgeSetCandidates = groupByRetainedEdges( shifts, optimizationParametersList );
+		final List< EdgeSetCandidate > candidates = new ArrayList<>();
+		for ( final EdgeSetCandidate candidate : edgeSetCandidates.values() )
+			if ( !noLeaves || !candidate.hasLeaves )
+				candidates.add( candidate );
+
+		// both thresholds only remove connections, so the graph size decreases monotonically across the grid.
+		// Evaluate the candidates with the largest graphs first and skip those that cannot outperform the best acceptable result found so far
+		candidates.sort( ( a, b ) -> a.graphSize != b.graphSize ? -Integer.compare( a.graphSize, b.graphSize ) : -Integer.compare( a.validPairs, b.validPairs ) );
+
+		final Map< OptimizationParameters, OptimizationResult > evaluatedResults = new HashMap<>();
+		OptimizationResult bestAcceptableResult = null;
+		int evaluatedCandidates = 0, prunedCandidates = 0;
+		for ( int waveStart = 0; waveStart < candidates.size(); )
+		{
+			final List< OptimizationParameters > wave = new ArrayList<>();
+			final Map< OptimizationParameters, EdgeSetCandidate > waveCandidates = new HashMap<>();
+			while ( waveStart < candidates.size() && wave.size() < waveSize )
+			{
+				final EdgeSetCandidate candidate = candidates.get( waveStart++ );
+				if ( bestAcceptableResult != null && !canOutperform( candidate, bestAcceptableResult ) )
+				{
+					++prunedCandidates;
+					continue;
+				}
+				final OptimizationParameters representative = candidate.optimizationParametersList.get( 0 );
+				wave.add( representative );
+				waveCandidates.put( representative, candidate );
+			}
+
+			if ( wave.isEmpty() )
+				continue;
+
+			final List< OptimizationResult > waveResults = evaluator.evaluate( wave );
+
+			evaluatedCandidates += waveResults.size();
+			for ( final OptimizationResult waveResult : waveResults )
+			{
+				// the same result applies to all grid points that share this set of connections
+				for ( final OptimizationParameters optimizationParameters : waveCandidates.get( waveResult.optimizationParameters ).optimizationParametersList )
+				{
+					evaluatedResults.put( optimizationParameters, new OptimizationResult(
+							optimizationParameters,
+							waveResult.maxAllowedError,
+							waveResult.fullGraphSize,
+							waveResult.remainingGraphSize,
+							waveResult.remainingPairs,
+							waveResult.avgDisplacement,
+							waveResult.maxDisplacement ) );
+				}
+
+				if ( waveResult.maxDisplacement <= waveResult.maxAllowedError && ( bestAcceptableResult == null || waveResult.compareTo( bestAcceptableResult ) < 0 ) )
+					bestAcceptableResult = waveResult;
+			}
+		}
+
+		// keep the order of the parameter grid so the ties are resolved in the same way as with the exhaustive search
+		final List< OptimizationResult > optimizationResultList = new ArrayList<>();
+		for ( final OptimizationParameters optimizationParameters : optimizationParametersList )
+			if ( evaluatedResults.containsKey( optimizationParameters ) )
+				optimizationResultList.add( evaluatedResults.get( optimizationParameters ) );
+
+		Collections.sort( optimizationResultList );
+
+		int retainedGridPoints = 0;
+		for ( final EdgeSetCandidate candidate : candidates )
+			retainedGridPoints += candidate.optimizationParametersList.size();
+
+		return new ParameterSearchResult(
+				optimizationResultList,
+				optimizationParametersList.size(),
+				edgeSetCandidates.size(),
+				evaluatedCandidates,
+				prunedCandidates,
+				edgeSetCandidates.size() - candidates.size(),
+				retainedGridPoints );
+	}
+
+	/**
+	 * Runs the global optimization on the pairs that are retained with the given parameters.
+	 */
+	static OptimizationResult evaluateOptimizationParameters(
+			final List< SerializablePairWiseStitchingResult[] > shifts,
+			final OptimizationParameters optimizationParameters,
+			final GlobalOptimizationPerformer optimizationPerformer,
+			final StitchingParameters stitchingParameters,
+			final double maxAllowedError,
+			final int fullGraphSize )
+	{
+		final Vector< ComparePair > comparePairs = createComparePairs( shifts, optimizationParameters );
+
+		int validPairs = 0;
+		for ( final ComparePair pair : comparePairs )
+			if ( pair.getIsValidOverlap() )
+				++validPairs;
+
+		optimizationPerformer.optimize( comparePairs, stitchingParameters );
+		return new OptimizationResult(
+				optimizationParameters,
+				maxAllowedError,
+				fullGraphSize,
+				optimizationPerformer.remainingGraphSize,
+				validPairs,
+				optimizationPerformer.avgDisplacement,
+				optimizationPerformer.maxDisplacement );
+	}
+
+	private GlobalOptimizationPerformer createOptimizationPerformer( final OptimizationWarmStart warmStart )
+	{
+		final GlobalOptimizationPerformer optimizationPerformer = new GlobalOptimizationPerformer();
+		if ( job.getArgs().optimizationSolver() != null )
+			optimizationPerformer.solver = job.getArgs().optimizationSolver();
+		if ( warmStart != null )
+		{
+			optimizationPerformer.warmStart = warmStart;
+			optimizationPerformer.earlyStoppingPlateauWidth = EARLY_STOPPING_PLATEAU_WIDTH;
+		}
+		return optimizationPerformer;
+	}
+
+	/**
+	 * Loads the solution of the previous iteration (stitched tile configuration and the pairs that were used to obtain it).
+	 */
+	private OptimizationWarmStart loadWarmStart( final String basePath, final String previousIterationDirname ) throws IOException
+	{
+		final DataProvider dataProvider = job.getDataProvider();
+		final String previousStitchedTilesPath = PathResolver.get(
+				basePath,
+				previousIterationDirname,
+				Utils.addFilenameSuffix( PathResolver.getFileName( job.getArgs().inputTileConfigurations().get( job.getMainChannelIndex() ) ), "-stitched" )
+			);
+		final String previousUsedPairsPath = PathResolver.get( basePath, previousIterationDirname, "pairwise-used.json" );
+
+		if ( !dataProvider.exists( previousStitchedTilesPath ) || !dataProvider.exists( previousUsedPairsPath ) )
+		{
+			System.out.println( "Previous solution is not available in " + previousIterationDirname + ", optimizing from scratch" );
+			return null;
+		}
+
+		return new OptimizationWarmStart(
+				TileInfoJSONProvider.loadTilesConfiguration( dataProvider.getJsonReader( previousStitchedTilesPath ) ),
+				TileInfoJSONProvider.loadPairwiseShiftsMulti( dataProvider.getJsonReader( previousUsedPairsPath ) )
+			);
+	}
+
+	/**
+	 * Checks if the candidate may still be ranked higher than the given result that is within the accepted error range.
+	 * The candidate cannot yield a larger graph than the largest connected component of its pairs,
+	 * and when the number of pairs is used to break ties, it cannot have more pairs than it has now.
+	 */
+	private static boolean canOutperform( final EdgeSetCandidate candidate, final OptimizationResult bestAcceptableResult )
+	{
+		if ( candidate.graphSize != bestAcceptableResult.remainingGraphSize )
+			return candidate.graphSize > bestAcceptableResult.remainingGraphSize;
+
+		if ( Math.round( bestAcceptableResult.maxAllowedError ) <= 10 )
+			return candidate.validPairs >= bestAcceptableResult.remainingPairs;
+
+		return true;
+	}
+
+	/**
+	 * Groups the points of the parameter grid by the set of pairs that are retained with these parameters (in the same way as in {@link #createComparePairs(List, OptimizationParameters)}).
+	 * The groups are returned in the order of their first occurrence in the grid.
+	 */
+	private static Map< BitSet, EdgeSetCandidate > groupByRetainedEdges( final List< SerializablePairWiseStitchingResult[] > shifts, final List< OptimizationParameters > optimizationParametersList )
+	{
+		final List< SerializablePairWiseStitchingResult > pairs = new ArrayList<>();
+		for ( final SerializablePairWiseStitchingResult[] pairMulti : shifts )
+			for ( final SerializablePairWiseStitchingResult pair : pairMulti )
+				pairs.add( pair );
+
+		final Map< BitSet, EdgeSetCandidate > edgeSetCandidates = new LinkedHashMap<>();
+		for ( final OptimizationParameters optimizationParameters : optimizationParametersList )
+		{
+			final BitSet edges = new BitSet( pairs.size() );
+			for ( int i = 0; i < pairs.size(); ++i )
+			{
+				final SerializablePairWiseStitchingResult pair = pairs.get( i );
+				if ( pair.getIsValidOverlap()
+						&& pair.getCrossCorrelation() > optimizationParameters.minCrossCorrelation
+						&& pair.getVariance() != null && pair.getVariance().doubleValue() > optimizationParameters.minVariance )
+					edges.set( i );
+			}
+
+			EdgeSetCandidate candidate = edgeSetCandidates.get( edges );
+			if ( candidate == null )
+			{
+				candidate = createEdgeSetCandidate( pairs, edges );
+				edgeSetCandidates.put( edges, candidate );
+			}
+			candidate.optimizationParametersList.add( optimizationParameters );
+		}
+		return edgeSetCandidates;
+	}
+
+	private static EdgeSetCandidate createEdgeSetCandidate( final List< SerializablePairWiseStitchingResult > pairs, final BitSet edges )
+	{
+		final Map< Integer, Integer > parents = new HashMap<>();
+		final Map< Integer, Set< Integer > > connections = new HashMap<>();
+		for ( int i = edges.nextSetBit( 0 ); i >= 0; i = edges.nextSetBit( i + 1 ) )
+		{
+			final int[] ind = new int[] { pairs.get( i ).getTilePair().getA().getIndex(), pairs.get( i ).getTilePair().getB().getIndex() };
+			for ( int k = 0; k < 2; ++k )
+			{
+				if ( !connections.containsKey( ind[ k ] ) )
+					connections.put( ind[ k ], new HashSet<>() );
+				connections.get( ind[ k ] ).add( ind[ ( k + 1 ) % 2 ] );
+			}
+			parents.put( findRoot( parents, ind[ 0 ] ), findRoot( parents, ind[ 1 ] ) );
+		}
+
+		final Map< Integer, Integer > graphSizes = new HashMap<>();
+		int largestGraphSize = 0;
+		boolean hasLeaves = false;
+		for ( final Entry< Integer, Set< Integer > > entry : connections.entrySet() )
+		{
+			final int root = findRoot( parents, entry.getKey() );
+			final int graphSize = graphSizes.getOrDefault( root, 0 ) + 1;
+			graphSizes.put( root, graphSize );
+			largestGraphSize = Math.max( graphSize, largestGraphSize );
+			hasLeaves |= entry.getValue().size() <= 1;
+		}
+
+		return new EdgeSetCandidate( largestGraphSize, edges.cardinality(), hasLeaves );
+	}
+
+	private static int findRoot( final Map< Integer, Integer > parents, final int index )
+	{
+		int root = index;
+		while ( parents.containsKey( root ) && parents.get( root ) != root )
+			root = parents.get( root );
+
+		// path compression
+		for ( int i = index; i != root; )
+		{
+			final int next = parents.get( i );
+			parents.put( i, root );
+			i = next;
+		}
+		return root;
+	}
+
+	static Vector< ComparePair > createComparePairs( final List< SerializablePairWiseStitchingResult[] > shifts, final OptimizationParameters optimizationParameters )
 	{
 		// Create fake tile objects so that they don't hold any image data
 		// required by the GlobalOptimization
@@ -322,7 +662,7 @@ public class StitchingOptimizer implements Serializable
 			for ( final TileInfo tileInfo : pair.getTilePair().toArray() ) {
 				if ( !fakeTileImagesMap.containsKey( tileInfo.getIndex() ) ) {
 					try {
-						final ImageCollectionElement el = Utils.createElement( job, tileInfo );
+						final ImageCollectionElement el = Utils.createElement( tileInfo );
 						final ImagePlus fakeImage = new ImagePlus( tileInfo.getIndex().toString(), (java.awt.Image)null );
 						final Tile< ? > fakeTile = new ImagePlusTimePoint( fakeImage, el.getIndex(), 1, el.getModel(), el );
 						fakeTileImagesMap.put( tileInfo.getIndex(), fakeTile );
@@ -356,26 +696,4 @@ public class StitchingOptimizer implements Serializable
 
 		return comparePairs;
 	}
-
-	private boolean hasLeaves( final Vector< ComparePair > comparePairs )
-	{
-		final Map< Integer, Set< Integer > > connections = new TreeMap<>();
-		for ( final ComparePair comparePair : comparePairs )
-		{
-			if ( !comparePair.getIsValidOverlap() )
-				continue;
-
-			final int[] ind = new int[] { comparePair.getTile1().getImpId(), comparePair.getTile2().getImpId() };
-			for ( int i = 0; i < 2; ++i )
-			{
-				if ( !connections.containsKey( ind[ i ] ) )
-					connections.put( ind[ i ], new TreeSet<>() );
-				connections.get( ind[ i ] ).add( ind[ ( i + 1 ) % 2 ] );
-			}
-		}
-		for ( final Set< Integer > value : connections.values() )
-			if ( value.size() <= 1 )
-				return true;
-		return false;
-	}
 }
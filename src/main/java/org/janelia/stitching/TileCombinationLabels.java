@@ -0,0 +1,150 @@
+package org.janelia.stitching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.imglib2.Interval;
+
+/**
+ * Label image that tracks which tiles cover each pixel of an output cell.
+ * Instead of storing a set of tile indexes for every pixel, each pixel holds an index into a per-cell palette of distinct tile combinations
+ * (the first dimension varies fastest). Label 0 always stands for the empty combination.
+ * The number of distinct combinations within a cell is small, so any per-combination check is done once per palette entry instead of once per pixel.
+ *
+ * @author Igor Pisarev
+ */
+public class TileCombinationLabels
+{
+	private final int[] cellDimensions;
+	private final int[] labels;
+
+	private final List< Set< Integer > > palette = new ArrayList<>();
+	private final Map< Set< Integer >, Integer > paletteIndexes = new HashMap<>();
+
+	public TileCombinationLabels( final int[] cellDimensions )
+	{
+		this.cellDimensions = cellDimensions.clone();
+
+		int numElements = 1;
+		for ( final int dimension : cellDimensions )
+			numElements *= dimension;
+		labels = new int[ numElements ];
+
+		getOrCreateLabel( Collections.emptySet() );
+	}
+
+	/**
+	 * Adds the tile to all pixels within the given interval (in the cell coordinates).
+	 */
+	public void addTile( final int tileIndex, final Interval intervalInCell )
+	{
+		final int n = cellDimensions.length;
+		final int[] steps = new int[ n ];
+		final int[] min = new int[ n ], size = new int[ n ];
+		int rowIndex = 0;
+		for ( int d = 0; d < n; ++d )
+		{
+			steps[ d ] = d == 0 ? 1 : steps[ d - 1 ] * cellDimensions[ d - 1 ];
+			min[ d ] = ( int ) intervalInCell.min( d );
+			size[ d ] = ( int ) intervalInCell.dimension( d );
+			rowIndex += min[ d ] * steps[ d ];
+		}
+
+		// the new label is the same for all pixels that had the same label before, so the transitions are cached for the current tile
+		final int[] transitions = new int[ palette.size() ];
+		Arrays.fill( transitions, -1 );
+
+		final int[] rowPosition = new int[ n ];
+		while ( true )
+		{
+			for ( int i = rowIndex; i < rowIndex + size[ 0 ]; ++i )
+			{
+				final int label = labels[ i ];
+				if ( transitions[ label ] == -1 )
+				{
+					final Set< Integer > combination = new TreeSet<>( palette.get( label ) );
+					combination.add( tileIndex );
+					transitions[ label ] = getOrCreateLabel( combination );
+				}
+				labels[ i ] = transitions[ label ];
+			}
+
+			int d = 1;
+			for ( ; d < n; ++d )
+			{
+				if ( ++rowPosition[ d ] < size[ d ] )
+				{
+					rowIndex += steps[ d ];
+					break;
+				}
+				rowPosition[ d ] = 0;
+				rowIndex -= ( size[ d ] - 1 ) * steps[ d ];
+			}
+			if ( d >= n )
+				break;
+		}
+	}
+
+	/**
+	 * @return label of the pixel with the given index (in flat iteration order)
+	 */
+	public int getLabel( final int index )
+	{
+		return labels[ index ];
+	}
+
+	public int numLabels()
+	{
+		return palette.size();
+	}
+
+	/**
+	 * @return tile indexes that correspond to the given label
+	 */
+	public Set< Integer > getTileIndexes( final int label )
+	{
+		return Collections.unmodifiableSet( palette.get( label ) );
+	}
+
+	/**
+	 * Checks every combination of tiles whether it contains any of the given pairwise connections.
+	 *
+	 * @return flag for each label that tells whether the pixels with this label should be retained
+	 */
+	public boolean[] getRetainedLabels( final Map< Integer, Set< Integer > > pairwiseConnectionsMap )
+	{
+		final boolean[] retained = new boolean[ palette.size() ];
+		for ( int label = 0; label < palette.size(); ++label )
+		{
+			final Set< Integer > tilesAtPoint = palette.get( label );
+			for ( final Integer testTileIndex : tilesAtPoint )
+			{
+				final Set< Integer > connectedTileIndexes = pairwiseConnectionsMap.get( testTileIndex );
+				if ( connectedTileIndexes != null && !Collections.disjoint( tilesAtPoint, connectedTileIndexes ) )
+				{
+					retained[ label ] = true;
+					break;
+				}
+			}
+		}
+		return retained;
+	}
+
+	private int getOrCreateLabel( final Set< Integer > combination )
+	{
+		final Integer existingLabel = paletteIndexes.get( combination );
+		if ( existingLabel != null )
+			return existingLabel;
+
+		final int label = palette.size();
+		palette.add( combination );
+		paletteIndexes.put( combination, label );
+		return label;
+	}
+}
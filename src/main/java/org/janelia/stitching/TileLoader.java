@@ -5,7 +5,9 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import org.janelia.dataaccess.BlockCachingN5Reader;
 import org.janelia.dataaccess.DataProvider;
+import org.janelia.dataaccess.N5BlockCache;
 import org.janelia.dataaccess.PathResolver;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -65,7 +67,11 @@ public class TileLoader
 		final String tileDatasetPath = Paths.get( n5Path ).relativize( Paths.get( tile.getFilePath() ) ).toString();
 		final N5Reader n5 = dataProvider.createN5Reader( n5Path );
 		if ( n5.datasetExists( tileDatasetPath ) )
-			return N5Utils.open( n5, tileDatasetPath );
+		{
+			// share decoded blocks between the tasks running on the same executor if the caller has enabled the block cache
+			final N5BlockCache blockCache = N5BlockCache.getBoundInstance();
+			return N5Utils.open( blockCache != null ? new BlockCachingN5Reader( n5, n5Path, blockCache, N5BlockCache.getBoundStats() ) : n5, tileDatasetPath );
+		}
 
 		// if it is a file, try to read it as an image file
 		if ( dataProvider.exists( tile.getFilePath() ) )
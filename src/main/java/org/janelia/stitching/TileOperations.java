@@ -2,8 +2,10 @@ package org.janelia.stitching;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
 
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
@@ -76,15 +78,139 @@ public class TileOperations
 	 * @return a list of overlapping pairs
 	 */
 	public static ArrayList< TilePair > findOverlappingTiles( final TileInfo[] tiles )
+	{
+		return findOverlappingTiles( tiles, false );
+	}
+
+	/**
+	 * Finds overlapping pairs using sweep-and-prune along the dimension where the tiles are spread out the most.
+	 * The pairs are ordered in the same way as if all pairs (i,j) with i<j were checked one by one.
+	 *
+	 * @param parallel if true, the candidates for each tile are checked in parallel using the common fork/join pool
+	 * @return a list of overlapping pairs
+	 */
+	public static ArrayList< TilePair > findOverlappingTiles( final TileInfo[] tiles, final boolean parallel )
 	{
 		final ArrayList< TilePair > overlappingTiles = new ArrayList<>();
+		if ( tiles.length < 2 )
+			return overlappingTiles;
+
+		final int sweepDimension = getSweepDimension( tiles );
+
+		// sort the tiles by their min coordinate along the sweep dimension
+		final Integer[] sortedIndexes = new Integer[ tiles.length ];
 		for ( int i = 0; i < tiles.length; i++ )
-			for ( int j = i + 1; j < tiles.length; j++ )
-				if ( overlap( tiles[ i ], tiles[ j ] ) )
+			sortedIndexes[ i ] = i;
+		Arrays.sort( sortedIndexes, Comparator.comparingDouble( i -> tiles[ i ].realMin( sweepDimension ) ) );
+
+		final int[] order = new int[ tiles.length ];
+		final double[] sortedMin = new double[ tiles.length ];
+		double maxExtent = 0;
+		for ( int k = 0; k < tiles.length; k++ )
+		{
+			order[ k ] = sortedIndexes[ k ];
+			sortedMin[ k ] = tiles[ order[ k ] ].realMin( sweepDimension );
+			maxExtent = Math.max( tiles[ k ].realMax( sweepDimension ) - tiles[ k ].realMin( sweepDimension ), maxExtent );
+		}
+
+		// a tile can only overlap with the tiles that start within [min - maxExtent, max] along the sweep dimension (the lower bound is relaxed by 1 to tolerate rounding errors)
+		final double sweepMaxExtent = maxExtent + 1;
+		final int[][] overlappingIndexes = new int[ tiles.length ][];
+		final IntStream range = IntStream.range( 0, tiles.length );
+		( parallel ? range.parallel() : range ).forEach( i ->
+			{
+				final int from = lowerBound( sortedMin, tiles[ i ].realMin( sweepDimension ) - sweepMaxExtent );
+				final int to = upperBound( sortedMin, tiles[ i ].realMax( sweepDimension ) );
+				final int[] candidates = new int[ to - from ];
+				int count = 0;
+				for ( int k = from; k < to; k++ )
+					if ( order[ k ] > i && overlap( tiles[ i ], tiles[ order[ k ] ] ) )
+						candidates[ count++ ] = order[ k ];
+				overlappingIndexes[ i ] = Arrays.copyOf( candidates, count );
+				Arrays.sort( overlappingIndexes[ i ] );
+			}
+		);
+
+		for ( int i = 0; i < tiles.length; i++ )
+			for ( final int j : overlappingIndexes[ i ] )
+				overlappingTiles.add( new TilePair( tiles[ i ], tiles[ j ] ) );
+		return overlappingTiles;
+	}
+
+	/**
+	 * @return a list of overlapping pairs (ordered by the first and then by the second tile of the pair) found using the spatial index
+	 */
+	public static ArrayList< TilePair > findOverlappingTiles( final TileSpatialIndex index )
+	{
+		final TileInfo[] tiles = index.getTiles();
+		final ArrayList< TilePair > overlappingTiles = new ArrayList<>();
+		for ( int i = 0; i < tiles.length; i++ )
+			for ( final int j : index.findOverlappingIndexes( tiles[ i ] ) )
+				if ( j > i )
 					overlappingTiles.add( new TilePair( tiles[ i ], tiles[ j ] ) );
 		return overlappingTiles;
 	}
 
+	/**
+	 * @return the dimension where the tiles are spread out the most relative to their size (the one where the sweep prunes most of the candidates)
+	 */
+	private static int getSweepDimension( final TileInfo[] tiles )
+	{
+		int sweepDimension = 0;
+		double bestRatio = -1;
+		for ( int d = 0; d < tiles[ 0 ].numDimensions(); d++ )
+		{
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, maxExtent = 0;
+			for ( final TileInfo tile : tiles )
+			{
+				min = Math.min( tile.realMin( d ), min );
+				max = Math.max( tile.realMax( d ), max );
+				maxExtent = Math.max( tile.realMax( d ) - tile.realMin( d ), maxExtent );
+			}
+			final double ratio = ( max - min ) / ( maxExtent + 1 );
+			if ( ratio > bestRatio )
+			{
+				bestRatio = ratio;
+				sweepDimension = d;
+			}
+		}
+		return sweepDimension;
+	}
+
+	/**
+	 * @return the first position in the sorted array where the value is not less than {@code key}
+	 */
+	private static int lowerBound( final double[] sorted, final double key )
+	{
+		int lo = 0, hi = sorted.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( sorted[ mid ] < key )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the first position in the sorted array where the value is greater than {@code key}
+	 */
+	private static int upperBound( final double[] sorted, final double key )
+	{
+		int lo = 0, hi = sorted.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( sorted[ mid ] <= key )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
 	/**
 	 * @return an overlap with relative coordinates of the first tile
 	 */
@@ -204,6 +330,14 @@ public class TileOperations
 		return tilesWithinSubregion;
 	}
 
+	/**
+	 * @return a list of tiles lying within specified subregion (overlapping with it) found using the spatial index
+	 */
+	public static ArrayList< TileInfo > findTilesWithinSubregion( final TileSpatialIndex index, final RealInterval subregion )
+	{
+		return index.findOverlapping( subregion );
+	}
+
 	/**
 	 * @return an integer bounding box of a collection of tiles
 	 */
@@ -0,0 +1,441 @@
+package org.janelia.stitching;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.dataaccess.DataProvider;
+import org.janelia.dataaccess.N5BlockCache;
+import org.janelia.dataaccess.PathResolver;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.iterator.IntervalIterator;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Loads a subregion of a tile image (typically a padded overlap with a neighboring tile) into a primitive float buffer.
+ * For N5 tiles only the blocks intersecting with the requested region are fetched (in parallel, through the executor-wide {@link N5BlockCache} if the caller has enabled it), and their contents are copied directly into the buffer.
+ * For image file tiles the whole image has to be read, so it falls back to {@link TileLoader#loadTile(TileInfo, DataProvider)}.
+ *
+ * @author Igor Pisarev
+ */
+
+public class TileOverlapLoader
+{
+	/**
+	 * Holds the loaded region along with the I/O stats that were collected when loading it.
+	 */
+	public static class OverlapRegion
+	{
+		private final float[] data;
+		private final Interval interval;
+		private final long bytesRead;
+		private final long bytesUsed;
+
+		public OverlapRegion( final float[] data, final Interval interval, final long bytesRead, final long bytesUsed )
+		{
+			this.data = data;
+			this.interval = interval;
+			this.bytesRead = bytesRead;
+			this.bytesUsed = bytesUsed;
+		}
+
+		/**
+		 * @return flattened region data (X is the fastest dimension)
+		 */
+		public float[] getData() { return data; }
+
+		/**
+		 * @return loaded region in the local coordinate space of the tile
+		 */
+		public Interval getInterval() { return interval; }
+
+		/**
+		 * @return number of decoded bytes that were read from the storage
+		 */
+		public long getBytesRead() { return bytesRead; }
+
+		/**
+		 * @return number of bytes that fall within the requested region
+		 */
+		public long getBytesUsed() { return bytesUsed; }
+	}
+
+	/**
+	 * Keeps the image file tiles that have been loaded for a batch of tile pairs so they can be reused by other pairs of the same batch.
+	 * An image is kept until the last pair of the batch that contains its tile has been processed (see {@link #release(TilePair)}),
+	 * so the cache never holds more than the distinct tiles of the batch, and for spatially coherent batches usually only a few of them at a time.
+	 * N5 blocks are shared through the executor-wide {@link N5BlockCache} instead.
+	 */
+	public static class BatchCache
+	{
+		// number of pairs of the batch that have not been processed yet for every tile index
+		private final Map< Integer, Integer > remainingPairs = new HashMap<>();
+
+		// loaded images for every tile index (a tile has a separate image for each channel)
+		private final Map< Integer, Map< String, RandomAccessibleInterval< ? > > > images = new HashMap<>();
+
+		public BatchCache( final Collection< TilePair > batch )
+		{
+			for ( final TilePair pair : batch )
+				for ( final TileInfo tile : pair.toArray() )
+					remainingPairs.merge( tile.getIndex(), 1, Integer::sum );
+		}
+
+		/**
+		 * Marks the pair as processed and drops the images of its tiles that are not used by the remaining pairs of the batch.
+		 */
+		public void release( final TilePair pair )
+		{
+			for ( final TileInfo tile : pair.toArray() )
+				if ( remainingPairs.computeIfPresent( tile.getIndex(), ( index, count ) -> count > 1 ? count - 1 : null ) == null )
+					images.remove( tile.getIndex() );
+		}
+
+		int getNumCachedImages()
+		{
+			int numCachedImages = 0;
+			for ( final Map< String, RandomAccessibleInterval< ? > > tileImages : images.values() )
+				numCachedImages += tileImages.size();
+			return numCachedImages;
+		}
+
+		RandomAccessibleInterval< ? > get( final TileInfo tile )
+		{
+			final Map< String, RandomAccessibleInterval< ? > > tileImages = images.get( tile.getIndex() );
+			return tileImages != null ? tileImages.get( tile.getFilePath() ) : null;
+		}
+
+		void put( final TileInfo tile, final RandomAccessibleInterval< ? > img )
+		{
+			// the images of the tiles that are not used by the remaining pairs of the batch would never be reused
+			if ( remainingPairs.containsKey( tile.getIndex() ) )
+				images.computeIfAbsent( tile.getIndex(), index -> new HashMap<>() ).put( tile.getFilePath(), img );
+		}
+	}
+
+	private static final int BLOCK_READER_THREADS = 8;
+
+	private static ExecutorService blockReaderThreadPool;
+
+	private static synchronized ExecutorService getBlockReaderThreadPool()
+	{
+		if ( blockReaderThreadPool == null )
+		{
+			blockReaderThreadPool = Executors.newFixedThreadPool( BLOCK_READER_THREADS, runnable ->
+				{
+					final Thread thread = new Thread( runnable, "tile-overlap-block-reader" );
+					thread.setDaemon( true );
+					return thread;
+				} );
+		}
+		return blockReaderThreadPool;
+	}
+
+	/**
+	 * Loads the given {@code region} (defined in the local coordinate space of the {@code tile}) into a float buffer.
+	 */
+	public static OverlapRegion loadRegion( final TileInfo tile, final Interval region, final DataProvider dataProvider ) throws IOException
+	{
+		return loadRegion( tile, region, dataProvider, null );
+	}
+
+	/**
+	 * Loads the given {@code region} (defined in the local coordinate space of the {@code tile}) into a float buffer.
+	 * The data that is already available in the {@code batchCache} is not fetched from the storage again.
+	 */
+	public static OverlapRegion loadRegion( final TileInfo tile, final Interval region, final DataProvider dataProvider, final BatchCache batchCache ) throws IOException
+	{
+		if ( Intervals.numElements( region ) > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Requested region is too large to fit into a single buffer: " + Arrays.toString( Intervals.dimensionsAsLongArray( region ) ) );
+
+		final String n5Path = PathResolver.getParent( PathResolver.getParent( tile.getFilePath() ) );
+		final String tileDatasetPath = Paths.get( n5Path ).relativize( Paths.get( tile.getFilePath() ) ).toString();
+		final N5Reader n5 = dataProvider.createN5Reader( n5Path );
+		if ( n5.datasetExists( tileDatasetPath ) )
+			return loadRegionN5( tile, n5, n5Path, tileDatasetPath, region );
+
+		if ( !dataProvider.exists( tile.getFilePath() ) )
+			throw new IOException( "Cannot load tile image: " + tile.getFilePath() );
+
+		return loadRegionImageFile( tile, region, dataProvider, batchCache );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static < T extends NativeType< T > & RealType< T > > OverlapRegion loadRegionN5(
+			final TileInfo tile,
+			final N5Reader n5,
+			final String n5Path,
+			final String tileDatasetPath,
+			final Interval region ) throws IOException
+	{
+		final DatasetAttributes attributes = n5.getDatasetAttributes( tileDatasetPath );
+
+		// the blocks are interpreted according to the stored data type, so it has to match the metadata
+		if ( attributes.getDataType() != N5Utils.dataType( ( T ) tile.getType().getType() ) )
+			throw new IOException( String.format( "Image type %s does not match the value from metadata %s", attributes.getDataType(), tile.getType() ) );
+		if ( !Arrays.equals( attributes.getDimensions(), tile.getSize() ) )
+			throw new IOException( String.format( "Image size %s does not match the value from metadata %s", Arrays.toString( attributes.getDimensions() ), Arrays.toString( tile.getSize() ) ) );
+
+		final int[] blockSize = attributes.getBlockSize();
+		final long[] gridMin = new long[ region.numDimensions() ], gridMax = new long[ region.numDimensions() ];
+		for ( int d = 0; d < region.numDimensions(); ++d )
+		{
+			gridMin[ d ] = region.min( d ) / blockSize[ d ];
+			gridMax[ d ] = region.max( d ) / blockSize[ d ];
+		}
+
+		final List< long[] > gridPositions = new ArrayList<>();
+		final IntervalIterator gridIterator = new IntervalIterator( new FinalInterval( gridMin, gridMax ) );
+		while ( gridIterator.hasNext() )
+		{
+			gridIterator.fwd();
+			final long[] gridPosition = new long[ region.numDimensions() ];
+			gridIterator.localize( gridPosition );
+			gridPositions.add( gridPosition );
+		}
+
+		final float[] data = new float[ ( int ) Intervals.numElements( region ) ];
+		final long[] regionDimensions = Intervals.dimensionsAsLongArray( region );
+		final DataType dataType = attributes.getDataType();
+
+		// blocks are read on the pool threads, so the cache and the stats need to be obtained from the calling thread
+		final N5BlockCache blockCache = N5BlockCache.getBoundInstance();
+		final N5BlockCache.Stats blockCacheStats = N5BlockCache.getBoundStats();
+
+		// blocks cover disjoint parts of the buffer, so they can be copied concurrently
+		final List< Future< Long > > futures = new ArrayList<>();
+		for ( final long[] gridPosition : gridPositions )
+		{
+			futures.add( getBlockReaderThreadPool().submit( () ->
+				{
+					final String blockKey = N5BlockCache.getBlockKey( n5Path, tileDatasetPath, gridPosition );
+					DataBlock< ? > block = blockCache != null ? blockCache.get( blockKey, blockCacheStats ) : null;
+					long blockBytesRead = 0;
+					if ( block == null )
+					{
+						block = n5.readBlock( tileDatasetPath, attributes, gridPosition );
+						if ( block == null )
+							return 0L; // missing blocks are treated as empty, same as when reading through N5Utils
+						blockBytesRead = ( long ) block.getNumElements() * getBytesPerElement( dataType );
+						if ( blockCache != null )
+							blockCache.put( blockKey, block, blockCacheStats );
+					}
+					copyBlock( block, dataType, blockSize, region, regionDimensions, data );
+					return blockBytesRead;
+				} ) );
+		}
+
+		long bytesRead = 0;
+		try
+		{
+			for ( final Future< Long > future : futures )
+				bytesRead += future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			throw new IOException( "Cannot read blocks of " + tile.getFilePath(), e );
+		}
+
+		final long bytesUsed = Intervals.numElements( region ) * getBytesPerElement( dataType );
+		return new OverlapRegion( data, new FinalInterval( region ), bytesRead, bytesUsed );
+	}
+
+	private static < T extends NativeType< T > & RealType< T > > OverlapRegion loadRegionImageFile(
+			final TileInfo tile,
+			final Interval region,
+			final DataProvider dataProvider,
+			final BatchCache batchCache ) throws IOException
+	{
+		RandomAccessibleInterval< T > img = batchCache != null ? ( RandomAccessibleInterval< T > ) batchCache.get( tile ) : null;
+		final boolean loadedFromStorage = ( img == null );
+		if ( loadedFromStorage )
+		{
+			img = TileLoader.loadTile( tile, dataProvider );
+			if ( img == null )
+				throw new IOException( "Cannot load tile image: " + tile.getFilePath() );
+			if ( batchCache != null )
+				batchCache.put( tile, img );
+		}
+		final T type = Util.getTypeFromInterval( img );
+		if ( !type.getClass().equals( tile.getType().getType().getClass() ) )
+			throw new IOException( String.format( "Image type %s does not match the value from metadata %s", type.getClass().getName(), tile.getType() ) );
+		if ( !Arrays.equals( Intervals.dimensionsAsLongArray( img ), tile.getSize() ) )
+			throw new IOException( String.format( "Image size %s does not match the value from metadata %s", Arrays.toString( Intervals.dimensionsAsLongArray( img ) ), Arrays.toString( tile.getSize() ) ) );
+
+		final float[] data = new float[ ( int ) Intervals.numElements( region ) ];
+		final RandomAccessibleInterval< FloatType > imgCrop = Converters.convert( Views.interval( img, region ), new RealFloatConverter<>(), new FloatType() );
+		final Cursor< FloatType > cursor = Views.flatIterable( imgCrop ).cursor();
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = cursor.next().get();
+
+		final int bytesPerElement = Math.max( type.getBitsPerPixel() / 8, 1 );
+		return new OverlapRegion(
+				data,
+				new FinalInterval( region ),
+				loadedFromStorage ? Intervals.numElements( img ) * bytesPerElement : 0,
+				Intervals.numElements( region ) * bytesPerElement
+			);
+	}
+
+	/**
+	 * Copies the part of the {@code block} that falls within the {@code region} into the {@code target} buffer row by row.
+	 */
+	static void copyBlock(
+			final DataBlock< ? > block,
+			final DataType dataType,
+			final int[] blockSize,
+			final Interval region,
+			final long[] regionDimensions,
+			final float[] target )
+	{
+		final int n = region.numDimensions();
+		final int[] actualBlockSize = block.getSize();
+		final long[] actualBlockDimensions = new long[ n ];
+		final long[] blockMin = new long[ n ], intersectionMin = new long[ n ], intersectionMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			actualBlockDimensions[ d ] = actualBlockSize[ d ];
+			blockMin[ d ] = block.getGridPosition()[ d ] * blockSize[ d ];
+			intersectionMin[ d ] = Math.max( blockMin[ d ], region.min( d ) );
+			intersectionMax[ d ] = Math.min( blockMin[ d ] + actualBlockSize[ d ] - 1, region.max( d ) );
+			if ( intersectionMin[ d ] > intersectionMax[ d ] )
+				return;
+		}
+
+		final int rowLength = ( int ) ( intersectionMax[ 0 ] - intersectionMin[ 0 ] + 1 );
+		final long[] position = intersectionMin.clone();
+		final long[] positionInBlock = new long[ n ], positionInRegion = new long[ n ];
+		final Object blockData = block.getData();
+
+		while ( true )
+		{
+			for ( int k = 0; k < n; ++k )
+			{
+				positionInBlock[ k ] = position[ k ] - blockMin[ k ];
+				positionInRegion[ k ] = position[ k ] - region.min( k );
+			}
+			final int srcIndex = ( int ) IntervalIndexer.positionToIndex( positionInBlock, actualBlockDimensions );
+			final int dstIndex = ( int ) IntervalIndexer.positionToIndex( positionInRegion, regionDimensions );
+			copyRow( blockData, dataType, srcIndex, target, dstIndex, rowLength );
+
+			// advance to the next row
+			int d = 1;
+			for ( ; d < n; ++d )
+			{
+				if ( ++position[ d ] <= intersectionMax[ d ] )
+					break;
+				position[ d ] = intersectionMin[ d ];
+			}
+			if ( d == n )
+				break;
+		}
+	}
+
+	private static void copyRow( final Object src, final DataType dataType, final int srcIndex, final float[] dst, final int dstIndex, final int length )
+	{
+		switch ( dataType )
+		{
+		case UINT8:
+			for ( int i = 0; i < length; ++i )
+				dst[ dstIndex + i ] = ( ( byte[] ) src )[ srcIndex + i ] & 0xff;
+			break;
+		case INT8:
+			for ( int i = 0; i < length; ++i )
+				dst[ dstIndex + i ] = ( ( byte[] ) src )[ srcIndex + i ];
+			break;
+		case UINT16:
+			for ( int i = 0; i < length; ++i )
+				dst[ dstIndex + i ] = ( ( short[] ) src )[ srcIndex + i ] & 0xffff;
+			break;
+		case INT16:
+			for ( int i = 0; i < length; ++i )
+				dst[ dstIndex + i ] = ( ( short[] ) src )[ srcIndex + i ];
+			break;
+		case UINT32:
+			for ( int i = 0; i < length; ++i )
+				dst[ dstIndex + i ] = ( ( int[] ) src )[ srcIndex + i ] & 0xffffffffL;
+			break;
+		case INT32:
+			for ( int i = 0; i < length; ++i )
+				dst[ dstIndex + i ] = ( ( int[] ) src )[ srcIndex + i ];
+			break;
+		case UINT64:
+			for ( int i = 0; i < length; ++i )
+				dst[ dstIndex + i ] = unsignedLongToFloat( ( ( long[] ) src )[ srcIndex + i ] );
+			break;
+		case INT64:
+			for ( int i = 0; i < length; ++i )
+				dst[ dstIndex + i ] = ( ( long[] ) src )[ srcIndex + i ];
+			break;
+		case FLOAT32:
+			System.arraycopy( src, srcIndex, dst, dstIndex, length );
+			break;
+		case FLOAT64:
+			for ( int i = 0; i < length; ++i )
+				dst[ dstIndex + i ] = ( float ) ( ( double[] ) src )[ srcIndex + i ];
+			break;
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+
+	/**
+	 * Converts the value interpreted as unsigned to the nearest float.
+	 * Values of 2^63 or more are halved to fit into a signed long (keeping the lowest bit so the rounding is not affected) and doubled back as floats.
+	 */
+	static float unsignedLongToFloat( final long value )
+	{
+		if ( value >= 0 )
+			return value;
+		return ( ( value >>> 1 ) | ( value & 1 ) ) * 2.0f;
+	}
+
+	private static int getBytesPerElement( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case UINT8:
+		case INT8:
+			return 1;
+		case UINT16:
+		case INT16:
+			return 2;
+		case UINT32:
+		case INT32:
+		case FLOAT32:
+			return 4;
+		case UINT64:
+		case INT64:
+		case FLOAT64:
+			return 8;
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package org.janelia.stitching;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Groups tile pairs into spatially coherent batches so that pairs sharing the same tile are likely to be processed within the same task.
+ * The pairs are ordered along the Z-order (Morton) curve of their centers expressed in units of the tile grid.
+ *
+ * @author Igor Pisarev
+ */
+
+public class TilePairPartitioner
+{
+	/**
+	 * Splits the given pairs into batches of (at most) {@code batchSize} pairs that are close to each other in space.
+	 */
+	public static List< List< TilePair > > partitionIntoBatches( final List< TilePair > pairs, final int batchSize )
+	{
+		final List< List< TilePair > > batches = new ArrayList<>();
+		for ( final List< Integer > indexesBatch : partitionIndexesIntoBatches( pairs, batchSize ) )
+		{
+			final List< TilePair > batch = new ArrayList<>();
+			for ( final int i : indexesBatch )
+				batch.add( pairs.get( i ) );
+			batches.add( batch );
+		}
+		return batches;
+	}
+
+	/**
+	 * Same as {@link #partitionIntoBatches(List, int)}, but the batches contain the indexes of the pairs in the given list,
+	 * so the results can be put back into the original order of the pairs.
+	 */
+	public static List< List< Integer > > partitionIndexesIntoBatches( final List< TilePair > pairs, final int batchSize )
+	{
+		if ( batchSize <= 0 )
+			throw new IllegalArgumentException( "Batch size should be positive, got " + batchSize );
+
+		final List< Integer > order = getZOrder( pairs );
+		final List< List< Integer > > batches = new ArrayList<>();
+		for ( int i = 0; i < order.size(); i += batchSize )
+			batches.add( new ArrayList<>( order.subList( i, Math.min( i + batchSize, order.size() ) ) ) );
+		return batches;
+	}
+
+	/**
+	 * @return indexes of the given pairs sorted by the Z-order index of their centers
+	 */
+	private static List< Integer > getZOrder( final List< TilePair > pairs )
+	{
+		final List< Integer > order = new ArrayList<>( pairs.size() );
+		if ( pairs.isEmpty() )
+			return order;
+
+		final int n = pairs.get( 0 ).getA().numDimensions();
+		final double[] minCenter = new double[ n ], avgTileSize = new double[ n ];
+		for ( int d = 0; d < n; ++d )
+			minCenter[ d ] = Double.POSITIVE_INFINITY;
+
+		final double[][] centers = new double[ pairs.size() ][];
+		for ( int i = 0; i < pairs.size(); ++i )
+		{
+			centers[ i ] = getPairCenter( pairs.get( i ) );
+			for ( int d = 0; d < n; ++d )
+			{
+				minCenter[ d ] = Math.min( centers[ i ][ d ], minCenter[ d ] );
+				avgTileSize[ d ] += pairs.get( i ).getA().getSize( d );
+			}
+		}
+		for ( int d = 0; d < n; ++d )
+			avgTileSize[ d ] /= pairs.size();
+
+		// centers of adjacent pairs are located half a tile apart, so use the grid with the step of half a tile size
+		final long[] zOrderIndexes = new long[ pairs.size() ];
+		final long[] gridPosition = new long[ n ];
+		for ( int i = 0; i < pairs.size(); ++i )
+		{
+			for ( int d = 0; d < n; ++d )
+				gridPosition[ d ] = Math.round( ( centers[ i ][ d ] - minCenter[ d ] ) / Math.max( avgTileSize[ d ] / 2, 1 ) );
+			zOrderIndexes[ i ] = getZOrderIndex( gridPosition );
+		}
+
+		for ( int i = 0; i < pairs.size(); ++i )
+			order.add( i );
+		order.sort( Comparator.comparingLong( i -> zOrderIndexes[ i ] ) );
+		return order;
+	}
+
+	/**
+	 * Interleaves the bits of the given non-negative grid coordinates.
+	 * Each coordinate is clamped to the number of bits available for a single dimension.
+	 */
+	public static long getZOrderIndex( final long[] gridPosition )
+	{
+		final int n = gridPosition.length;
+		final int bitsPerDimension = 63 / n;
+		final long maxCoordinate = ( 1L << bitsPerDimension ) - 1;
+
+		long index = 0;
+		for ( int bit = 0; bit < bitsPerDimension; ++bit )
+		{
+			for ( int d = 0; d < n; ++d )
+			{
+				final long coordinate = Math.max( 0, Math.min( gridPosition[ d ], maxCoordinate ) );
+				index |= ( ( coordinate >> bit ) & 1L ) << ( bit * n + d );
+			}
+		}
+		return index;
+	}
+
+	private static double[] getPairCenter( final TilePair pair )
+	{
+		final double[] center = new double[ pair.getA().numDimensions() ];
+		for ( final TileInfo tile : pair.toArray() )
+			for ( int d = 0; d < center.length; ++d )
+				center[ d ] += ( tile.getPosition( d ) + tile.getSize( d ) / 2.0 ) / 2;
+		return center;
+	}
+}
@@ -0,0 +1,221 @@
+package org.janelia.stitching;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+
+/**
+ * Bounding volume hierarchy (a bulk-loaded R-tree) over the bounding boxes of a set of tiles.
+ * The tree is built once (typically on the driver) and can be broadcasted to run overlap and containment queries in logarithmic time.
+ * The tile bounding boxes are treated the same way as in {@link TileOperations#overlap(TileInfo, TileInfo)}, i.e. from {@code position} to {@code position + size - 1} inclusive.
+ * The query results are always returned in the same order as the tiles were given, so they match the results of the linear scan.
+ *
+ * @author Igor Pisarev
+ */
+
+public class TileSpatialIndex implements Serializable
+{
+	private static final long serialVersionUID = 4178423016529735185L;
+
+	private static final int MAX_LEAF_SIZE = 8;
+
+	private final TileInfo[] tiles;
+	private final int n;
+
+	// tile indexes grouped by the leaves of the tree
+	private final int[] order;
+
+	// flattened node data: bounding boxes (node * n + d), children (-1 for leaves), and ranges within the order array for leaves
+	private final double[] nodeMin, nodeMax;
+	private final int[] nodeLeft, nodeRight;
+	private final int[] nodeStart, nodeEnd;
+
+	public TileSpatialIndex( final TileInfo[] tiles )
+	{
+		this.tiles = tiles;
+		n = tiles.length > 0 ? tiles[ 0 ].numDimensions() : 0;
+
+		order = new int[ tiles.length ];
+		for ( int i = 0; i < order.length; ++i )
+			order[ i ] = i;
+
+		final NodeBuilder builder = new NodeBuilder();
+		if ( tiles.length > 0 )
+			build( builder, 0, tiles.length );
+
+		nodeMin = builder.min.stream().flatMapToDouble( Arrays::stream ).toArray();
+		nodeMax = builder.max.stream().flatMapToDouble( Arrays::stream ).toArray();
+		nodeLeft = builder.left.stream().mapToInt( Integer::intValue ).toArray();
+		nodeRight = builder.right.stream().mapToInt( Integer::intValue ).toArray();
+		nodeStart = builder.start.stream().mapToInt( Integer::intValue ).toArray();
+		nodeEnd = builder.end.stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+	public int numDimensions()
+	{
+		return n;
+	}
+
+	public int size()
+	{
+		return tiles.length;
+	}
+
+	public TileInfo[] getTiles()
+	{
+		return tiles;
+	}
+
+	/**
+	 * @return a list of tiles overlapping with the given {@code interval}
+	 */
+	public ArrayList< TileInfo > findOverlapping( final RealInterval interval )
+	{
+		return toTiles( findOverlappingIndexes( interval ) );
+	}
+
+	/**
+	 * @return sorted positions (in the array of tiles that was used to build the index) of the tiles overlapping with the given {@code interval}
+	 */
+	public int[] findOverlappingIndexes( final RealInterval interval )
+	{
+		final List< Integer > found = new ArrayList<>();
+		if ( tiles.length > 0 )
+			searchOverlapping( 0, interval, found );
+		return toSortedArray( found );
+	}
+
+	/**
+	 * @return a list of tiles that are entirely contained within the given {@code interval}
+	 */
+	public ArrayList< TileInfo > findContained( final RealInterval interval )
+	{
+		final List< Integer > found = new ArrayList<>();
+		for ( final int i : findOverlappingIndexes( interval ) )
+			if ( isContained( tiles[ i ], interval ) )
+				found.add( i );
+		return toTiles( toSortedArray( found ) );
+	}
+
+	/**
+	 * @return a list of tiles containing the given {@code point}
+	 */
+	public ArrayList< TileInfo > findContaining( final double[] point )
+	{
+		return findOverlapping( new FinalRealInterval( point, point ) );
+	}
+
+	private void searchOverlapping( final int node, final RealInterval interval, final List< Integer > found )
+	{
+		for ( int d = 0; d < n; ++d )
+			if ( nodeMin[ node * n + d ] > interval.realMax( d ) || nodeMax[ node * n + d ] < interval.realMin( d ) )
+				return;
+
+		if ( nodeLeft[ node ] == -1 )
+		{
+			for ( int k = nodeStart[ node ]; k < nodeEnd[ node ]; ++k )
+				if ( TileOperations.overlap( tiles[ order[ k ] ], interval ) )
+					found.add( order[ k ] );
+		}
+		else
+		{
+			searchOverlapping( nodeLeft[ node ], interval, found );
+			searchOverlapping( nodeRight[ node ], interval, found );
+		}
+	}
+
+	private int build( final NodeBuilder builder, final int start, final int end )
+	{
+		final double[] min = new double[ n ], max = new double[ n ];
+		final double[] centerMin = new double[ n ], centerMax = new double[ n ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+		Arrays.fill( centerMin, Double.POSITIVE_INFINITY );
+		Arrays.fill( centerMax, Double.NEGATIVE_INFINITY );
+		for ( int k = start; k < end; ++k )
+		{
+			final TileInfo tile = tiles[ order[ k ] ];
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = Math.min( tile.realMin( d ), min[ d ] );
+				max[ d ] = Math.max( tile.realMax( d ), max[ d ] );
+				centerMin[ d ] = Math.min( getCenter( tile, d ), centerMin[ d ] );
+				centerMax[ d ] = Math.max( getCenter( tile, d ), centerMax[ d ] );
+			}
+		}
+
+		final int node = builder.add( min, max, start, end );
+		if ( end - start <= MAX_LEAF_SIZE )
+			return node;
+
+		// split at the median along the dimension with the largest spread of tile centers
+		int splitDimension = 0;
+		for ( int d = 1; d < n; ++d )
+			if ( centerMax[ d ] - centerMin[ d ] > centerMax[ splitDimension ] - centerMin[ splitDimension ] )
+				splitDimension = d;
+
+		final int dim = splitDimension;
+		final Integer[] segment = new Integer[ end - start ];
+		for ( int k = start; k < end; ++k )
+			segment[ k - start ] = order[ k ];
+		Arrays.sort( segment, Comparator.comparingDouble( i -> getCenter( tiles[ i ], dim ) ) );
+		for ( int k = start; k < end; ++k )
+			order[ k ] = segment[ k - start ];
+
+		final int mid = ( start + end ) / 2;
+		builder.left.set( node, build( builder, start, mid ) );
+		builder.right.set( node, build( builder, mid, end ) );
+		return node;
+	}
+
+	private ArrayList< TileInfo > toTiles( final int[] indexes )
+	{
+		final ArrayList< TileInfo > result = new ArrayList<>( indexes.length );
+		for ( final int i : indexes )
+			result.add( tiles[ i ] );
+		return result;
+	}
+
+	private static int[] toSortedArray( final List< Integer > list )
+	{
+		final int[] array = list.stream().mapToInt( Integer::intValue ).toArray();
+		Arrays.sort( array );
+		return array;
+	}
+
+	private static double getCenter( final TileInfo tile, final int d )
+	{
+		return ( tile.realMin( d ) + tile.realMax( d ) ) / 2;
+	}
+
+	private static boolean isContained( final RealInterval inner, final RealInterval outer )
+	{
+		for ( int d = 0; d < inner.numDimensions(); ++d )
+			if ( inner.realMin( d ) < outer.realMin( d ) || inner.realMax( d ) > outer.realMax( d ) )
+				return false;
+		return true;
+	}
+
+	private static class NodeBuilder
+	{
+		final List< double[] > min = new ArrayList<>(), max = new ArrayList<>();
+		final List< Integer > left = new ArrayList<>(), right = new ArrayList<>();
+		final List< Integer > start = new ArrayList<>(), end = new ArrayList<>();
+
+		int add( final double[] nodeMin, final double[] nodeMax, final int nodeStart, final int nodeEnd )
+		{
+			min.add( nodeMin );
+			max.add( nodeMax );
+			left.add( -1 );
+			right.add( -1 );
+			start.add( nodeStart );
+			end.add( nodeEnd );
+			return min.size() - 1;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package org.janelia.stitching;
+
+import java.util.Arrays;
+
+/**
+ * Solves for the tile translations that best agree with a set of weighted pairwise offsets in the least-squares sense.
+ * For translation models this is a sparse linear problem: the normal equations are given by the weighted graph Laplacian
+ * (which is the same for all dimensions), and they are solved for each dimension using conjugate gradient with the Jacobi preconditioner.
+ * The positions of the fixed tiles are kept as is.
+ *
+ * @author Igor Pisarev
+ */
+
+public class TranslationLeastSquaresSolver
+{
+	private static final double DEFAULT_TOLERANCE = 1e-10;
+
+	private final int numTiles, numDimensions;
+
+	private int numConstraints;
+	private int[] constraintFrom = new int[ 16 ], constraintTo = new int[ 16 ];
+	private double[] constraintWeight = new double[ 16 ];
+	private double[][] constraintOffset;
+
+	private final boolean[] fixed;
+	private int iterations;
+
+	public TranslationLeastSquaresSolver( final int numTiles, final int numDimensions )
+	{
+		this.numTiles = numTiles;
+		this.numDimensions = numDimensions;
+		constraintOffset = new double[ numDimensions ][ 16 ];
+		fixed = new boolean[ numTiles ];
+	}
+
+	/**
+	 * Adds a constraint {@code position[ to ] - position[ from ] = offset} with the given weight.
+	 */
+	public void addConstraint( final int from, final int to, final double[] offset, final double weight )
+	{
+		if ( numConstraints == constraintFrom.length )
+		{
+			final int capacity = numConstraints * 2;
+			constraintFrom = Arrays.copyOf( constraintFrom, capacity );
+			constraintTo = Arrays.copyOf( constraintTo, capacity );
+			constraintWeight = Arrays.copyOf( constraintWeight, capacity );
+			for ( int d = 0; d < numDimensions; ++d )
+				constraintOffset[ d ] = Arrays.copyOf( constraintOffset[ d ], capacity );
+		}
+
+		constraintFrom[ numConstraints ] = from;
+		constraintTo[ numConstraints ] = to;
+		constraintWeight[ numConstraints ] = weight;
+		for ( int d = 0; d < numDimensions; ++d )
+			constraintOffset[ d ][ numConstraints ] = offset[ d ];
+		++numConstraints;
+	}
+
+	public void fixTile( final int tile )
+	{
+		fixed[ tile ] = true;
+	}
+
+	/**
+	 * @return total number of conjugate gradient iterations made by the last call to {@link #solve(double[][])}
+	 */
+	public int getIterations()
+	{
+		return iterations;
+	}
+
+	/**
+	 * @param initialPositions positions of the tiles ([tile][dimension]) used as the starting point; the positions of the fixed tiles are not changed.
+	 * If none of the tiles are fixed, the first tile is fixed to make the solution unique.
+	 * @return optimal tile positions
+	 */
+	public double[][] solve( final double[][] initialPositions )
+	{
+		return solve( initialPositions, DEFAULT_TOLERANCE, Math.max( 1000, 10 * numTiles ) );
+	}
+
+	/**
+	 * @param tolerance the iterations stop when the norm of the residual is reduced by this factor
+	 */
+	public double[][] solve( final double[][] initialPositions, final double tolerance, final int maxIterations )
+	{
+		boolean anyFixed = false;
+		for ( final boolean isFixed : fixed )
+			anyFixed |= isFixed;
+		if ( !anyFixed && numTiles > 0 )
+			fixed[ 0 ] = true;
+
+		// diagonal of the Laplacian
+		final double[] diagonal = new double[ numTiles ];
+		for ( int c = 0; c < numConstraints; ++c )
+		{
+			diagonal[ constraintFrom[ c ] ] += constraintWeight[ c ];
+			diagonal[ constraintTo[ c ] ] += constraintWeight[ c ];
+		}
+
+		iterations = 0;
+		final double[][] positions = new double[ numTiles ][ numDimensions ];
+		final double[] x = new double[ numTiles ], rhs = new double[ numTiles ];
+		final double[] r = new double[ numTiles ], z = new double[ numTiles ], p = new double[ numTiles ], q = new double[ numTiles ];
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			for ( int i = 0; i < numTiles; ++i )
+				x[ i ] = initialPositions[ i ][ d ];
+
+			Arrays.fill( rhs, 0 );
+			for ( int c = 0; c < numConstraints; ++c )
+			{
+				rhs[ constraintFrom[ c ] ] -= constraintWeight[ c ] * constraintOffset[ d ][ c ];
+				rhs[ constraintTo[ c ] ] += constraintWeight[ c ] * constraintOffset[ d ][ c ];
+			}
+
+			// r = rhs - L * x (only for the free tiles)
+			multiplyLaplacian( x, r );
+			for ( int i = 0; i < numTiles; ++i )
+				r[ i ] = isFree( i, diagonal ) ? rhs[ i ] - r[ i ] : 0;
+
+			final double initialResidualNorm = norm( r );
+			if ( initialResidualNorm > 0 )
+			{
+				double rz = applyPreconditioner( r, z, diagonal );
+				System.arraycopy( z, 0, p, 0, numTiles );
+
+				for ( int iter = 0; iter < maxIterations && norm( r ) > tolerance * initialResidualNorm; ++iter )
+				{
+					multiplyLaplacian( p, q );
+					for ( int i = 0; i < numTiles; ++i )
+						if ( !isFree( i, diagonal ) )
+							q[ i ] = 0;
+
+					final double pq = dot( p, q );
+					if ( pq <= 0 )
+						break;
+
+					final double alpha = rz / pq;
+					for ( int i = 0; i < numTiles; ++i )
+					{
+						x[ i ] += alpha * p[ i ];
+						r[ i ] -= alpha * q[ i ];
+					}
+
+					final double rzNew = applyPreconditioner( r, z, diagonal );
+					final double beta = rzNew / rz;
+					rz = rzNew;
+					for ( int i = 0; i < numTiles; ++i )
+						p[ i ] = z[ i ] + beta * p[ i ];
+
+					++iterations;
+				}
+			}
+
+			for ( int i = 0; i < numTiles; ++i )
+				positions[ i ][ d ] = x[ i ];
+		}
+		return positions;
+	}
+
+	/**
+	 * The fixed tiles and the tiles without any constraints keep their positions.
+	 */
+	private boolean isFree( final int i, final double[] diagonal )
+	{
+		return !fixed[ i ] && diagonal[ i ] > 0;
+	}
+
+	private void multiplyLaplacian( final double[] v, final double[] out )
+	{
+		Arrays.fill( out, 0 );
+		for ( int c = 0; c < numConstraints; ++c )
+		{
+			final int from = constraintFrom[ c ], to = constraintTo[ c ];
+			final double value = constraintWeight[ c ] * ( v[ from ] - v[ to ] );
+			out[ from ] += value;
+			out[ to ] -= value;
+		}
+	}
+
+	private double applyPreconditioner( final double[] r, final double[] z, final double[] diagonal )
+	{
+		for ( int i = 0; i < numTiles; ++i )
+			z[ i ] = isFree( i, diagonal ) ? r[ i ] / diagonal[ i ] : 0;
+		return dot( r, z );
+	}
+
+	private static double dot( final double[] a, final double[] b )
+	{
+		double sum = 0;
+		for ( int i = 0; i < a.length; ++i )
+			sum += a[ i ] * b[ i ];
+		return sum;
+	}
+
+	private static double norm( final double[] v )
+	{
+		return Math.sqrt( dot( v, v ) );
+	}
+}
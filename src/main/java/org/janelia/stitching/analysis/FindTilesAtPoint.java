@@ -10,6 +10,7 @@ import org.janelia.dataaccess.DataProviderFactory;
 import org.janelia.stitching.TileInfo;
 import org.janelia.stitching.TileInfoJSONProvider;
 import org.janelia.stitching.TileOperations;
+import org.janelia.stitching.TileSpatialIndex;
 import org.janelia.util.Conversions;
 
 /**
@@ -29,10 +30,7 @@ public class FindTilesAtPoint
 
 		final double[] point = Conversions.parseDoubleArray( args[ 1 ].split( "," ) );
 
-		final TileInfo subregion = new TileInfo( point.length );
-		subregion.setPosition( point );
-		subregion.setSize( new long[] { 1, 1, 1 } );
-		final List< TileInfo > tilesAtPoint = TileOperations.findTilesWithinSubregion( tiles, subregion );
+		final List< TileInfo > tilesAtPoint = new TileSpatialIndex( tiles ).findContaining( point );
 
 		System.out.println( "There are " + tilesAtPoint.size() + " tiles at the point " + Arrays.toString( point ) + ":" );
 		for ( final TileInfo tile : tilesAtPoint )
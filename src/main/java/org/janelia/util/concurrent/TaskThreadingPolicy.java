@@ -0,0 +1,40 @@
+package org.janelia.util.concurrent;
+
+import java.io.Serializable;
+
+import org.apache.spark.SparkConf;
+
+/**
+ * Determines how many threads a single Spark task may use without oversubscribing the executor.
+ * Spark runs {@code spark.executor.cores / spark.task.cpus} tasks concurrently on each executor,
+ * so a task is allowed to use {@code spark.task.cpus} threads, limited by the number of cores that are actually available to the executor JVM.
+ *
+ * @author Igor Pisarev
+ */
+public class TaskThreadingPolicy implements Serializable
+{
+	private static final long serialVersionUID = 6384171287364925712L;
+
+	private final int taskCpus;
+
+	/**
+	 * Should be created on the driver and passed to the tasks.
+	 */
+	public TaskThreadingPolicy( final SparkConf conf )
+	{
+		this( conf.getInt( "spark.task.cpus", 1 ) );
+	}
+
+	public TaskThreadingPolicy( final int taskCpus )
+	{
+		this.taskCpus = Math.max( taskCpus, 1 );
+	}
+
+	/**
+	 * @return number of threads available to the current task (should be called within the task)
+	 */
+	public int getThreadsPerTask()
+	{
+		return Math.max( 1, Math.min( taskCpus, Runtime.getRuntime().availableProcessors() ) );
+	}
+}
@@ -0,0 +1,214 @@
+package mpicbg.imglib.algorithm.fft.custom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.cursor.LocalizableCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+public class CrossCorrelationVerifierTest
+{
+	private static final double EPSILON = 1e-6;
+
+	@Test
+	public void testMatchesTwoPassComputation()
+	{
+		final Random rnd = new Random( 7 );
+		final int[] dimensions1 = new int[] { 23, 17, 9 }, dimensions2 = new int[] { 19, 21, 9 };
+		final float[] data1 = createRandomImage( dimensions1, rnd ), data2 = createRandomImage( dimensions2, rnd );
+		final int[] minOverlapPx = new int[] { 3, 3, 3 };
+
+		final List< int[] > shifts = new ArrayList<>();
+		for ( int i = 0; i < 50; ++i )
+			shifts.add( new int[] { rnd.nextInt( 50 ) - 25, rnd.nextInt( 50 ) - 25, rnd.nextInt( 12 ) - 6 } );
+		shifts.add( new int[] { 0, 0, 0 } );
+		shifts.add( new int[] { 23, 0, 0 } );
+
+		final CrossCorrelationVerifier verifier = new CrossCorrelationVerifier( data1, dimensions1, data2, dimensions2 );
+		final long[] numPixels = new long[ shifts.size() ];
+		final double[] correlations = verifier.testCrossCorrelation( shifts, minOverlapPx, numPixels, 4 );
+
+		for ( int i = 0; i < shifts.size(); ++i )
+		{
+			final long[] expectedNumPixels = new long[ 1 ];
+			final double expectedCorrelation = testCrossCorrelationTwoPass( shifts.get( i ), data1, dimensions1, data2, dimensions2, minOverlapPx, expectedNumPixels );
+			Assert.assertEquals( expectedNumPixels[ 0 ], numPixels[ i ] );
+			Assert.assertEquals( expectedCorrelation, correlations[ i ], EPSILON );
+		}
+	}
+
+	@Test
+	public void testHighOffsetLowVariance()
+	{
+		// both images are crops of the same pattern with a large offset and a small variance (the pixel values are close to the float precision)
+		final Random rnd = new Random( 11 );
+		final int[] canvasDimensions = new int[] { 40, 36 }, offset = new int[] { 7, 5 };
+		final int[] pattern = new int[ canvasDimensions[ 0 ] * canvasDimensions[ 1 ] ];
+		for ( int i = 0; i < pattern.length; ++i )
+			pattern[ i ] = rnd.nextInt( 4 );
+
+		final int[] dimensions1 = new int[] { 30, 28 }, dimensions2 = new int[] { 31, 27 };
+		final Image< FloatType > image1 = new ImageFactory<>( new FloatType(), new ArrayContainerFactory() ).createImage( dimensions1 );
+		final Image< FloatType > image2 = new ImageFactory<>( new FloatType(), new ArrayContainerFactory() ).createImage( dimensions2 );
+		fillWithPattern( image1, pattern, canvasDimensions[ 0 ], new int[ 2 ], rnd );
+		fillWithPattern( image2, pattern, canvasDimensions[ 0 ], offset, rnd );
+
+		final int[] minOverlapPx = new int[] { 3, 3 };
+		final List< int[] > shifts = new ArrayList<>();
+		shifts.add( offset );
+		for ( int i = 0; i < 30; ++i )
+			shifts.add( new int[] { rnd.nextInt( 40 ) - 20, rnd.nextInt( 40 ) - 20 } );
+
+		final CrossCorrelationVerifier verifier = new CrossCorrelationVerifier( PhaseCorrelation.toFloatArray( image1 ), dimensions1, PhaseCorrelation.toFloatArray( image2 ), dimensions2 );
+		final long[] numPixels = new long[ shifts.size() ];
+		final double[] correlations = verifier.testCrossCorrelation( shifts, minOverlapPx, numPixels, 2 );
+
+		for ( int i = 0; i < shifts.size(); ++i )
+		{
+			final long[] expectedNumPixels = new long[ 1 ];
+			final double expectedCorrelation = PhaseCorrelation.testCrossCorrelation( shifts.get( i ), image1, image2, minOverlapPx, expectedNumPixels );
+			Assert.assertEquals( expectedNumPixels[ 0 ], numPixels[ i ] );
+			Assert.assertEquals( expectedCorrelation, correlations[ i ], EPSILON );
+		}
+
+		// the true shift is recognized even though the variance is far below the squared average
+		Assert.assertTrue( correlations[ 0 ] > 0.9 );
+	}
+
+	@Test
+	public void testConstantImages()
+	{
+		final int[] dimensions = new int[] { 10, 10 };
+		final float[] data1 = new float[ 100 ], data2 = new float[ 100 ], data3 = new float[ 100 ];
+		for ( int i = 0; i < 100; ++i )
+		{
+			data1[ i ] = 1234.5f;
+			data2[ i ] = 1234.5f;
+			data3[ i ] = 4321;
+		}
+
+		final int[] minOverlapPx = new int[] { 3, 3 };
+		Assert.assertEquals( 1, new CrossCorrelationVerifier( data1, dimensions, data2, dimensions ).testCrossCorrelation( new int[] { 2, -3 }, minOverlapPx, null ), 0 );
+		Assert.assertEquals( 0, new CrossCorrelationVerifier( data1, dimensions, data3, dimensions ).testCrossCorrelation( new int[] { 2, -3 }, minOverlapPx, null ), 0 );
+	}
+
+	@Test
+	public void testMinimumOverlap()
+	{
+		final int[] dimensions = new int[] { 10, 10 };
+		final float[] data = createRandomImage( dimensions, new Random( 3 ) );
+		final CrossCorrelationVerifier verifier = new CrossCorrelationVerifier( data, dimensions, data, dimensions );
+
+		final long[] numPixels = new long[ 1 ];
+		Assert.assertEquals( 0, verifier.testCrossCorrelation( new int[] { 8, 0 }, new int[] { 3, 3 }, numPixels ), 0 );
+		Assert.assertEquals( 0, numPixels[ 0 ] );
+
+		Assert.assertEquals( 1, verifier.testCrossCorrelation( new int[] { 0, 0 }, new int[] { 3, 3 }, numPixels ), EPSILON );
+		Assert.assertEquals( 100, numPixels[ 0 ] );
+	}
+
+	private static void fillWithPattern( final Image< FloatType > image, final int[] pattern, final int patternWidth, final int[] offset, final Random rnd )
+	{
+		final int[] position = new int[ 2 ];
+		final LocalizableCursor< FloatType > cursor = image.createLocalizableCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.getPosition( position );
+			final int value = pattern[ ( position[ 1 ] + offset[ 1 ] ) * patternWidth + position[ 0 ] + offset[ 0 ] ] * 4 + rnd.nextInt( 2 );
+			cursor.getType().set( 5000000 + value * 0.5f );
+		}
+		cursor.close();
+	}
+
+	private static float[] createRandomImage( final int[] dimensions, final Random rnd )
+	{
+		int size = 1;
+		for ( final int dimension : dimensions )
+			size *= dimension;
+
+		final float[] data = new float[ size ];
+		for ( int i = 0; i < size; ++i )
+			data[ i ] = 1000 + rnd.nextInt( 4000 );
+		return data;
+	}
+
+	/**
+	 * Straightforward two-pass computation that follows {@link PhaseCorrelation#testCrossCorrelation(int[], mpicbg.imglib.image.Image, mpicbg.imglib.image.Image, int[], long[])}.
+	 */
+	private static double testCrossCorrelationTwoPass(
+			final int[] shift,
+			final float[] data1, final int[] dimensions1,
+			final float[] data2, final int[] dimensions2,
+			final int[] minOverlapPx,
+			final long[] numPixels )
+	{
+		final int n = dimensions1.length;
+		final int[] overlapSize = new int[ n ], offset1 = new int[ n ], offset2 = new int[ n ];
+		long numPx = 1;
+		numPixels[ 0 ] = 0;
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( shift[ d ] >= 0 )
+			{
+				if ( shift[ d ] >= dimensions1[ d ] )
+					return 0;
+				offset1[ d ] = shift[ d ];
+				overlapSize[ d ] = Math.min( dimensions1[ d ] - shift[ d ], dimensions2[ d ] );
+			}
+			else
+			{
+				offset2[ d ] = -shift[ d ];
+				overlapSize[ d ] = Math.min( dimensions2[ d ] + shift[ d ], dimensions1[ d ] );
+			}
+			numPx *= overlapSize[ d ];
+			if ( overlapSize[ d ] < minOverlapPx[ d ] )
+				return 0;
+		}
+		numPixels[ 0 ] = numPx;
+
+		final float[] pixels1 = new float[ ( int ) numPx ], pixels2 = new float[ ( int ) numPx ];
+		final int[] position = new int[ n ];
+		for ( int i = 0; i < numPx; ++i )
+		{
+			int index1 = 0, index2 = 0, step1 = 1, step2 = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				index1 += ( position[ d ] + offset1[ d ] ) * step1;
+				index2 += ( position[ d ] + offset2[ d ] ) * step2;
+				step1 *= dimensions1[ d ];
+				step2 *= dimensions2[ d ];
+			}
+			pixels1[ i ] = data1[ index1 ];
+			pixels2[ i ] = data2[ index2 ];
+
+			for ( int d = 0; d < n && ++position[ d ] == overlapSize[ d ]; ++d )
+				position[ d ] = 0;
+		}
+
+		double avg1 = 0, avg2 = 0;
+		for ( int i = 0; i < numPx; ++i )
+		{
+			avg1 += pixels1[ i ];
+			avg2 += pixels2[ i ];
+		}
+		avg1 /= numPx;
+		avg2 /= numPx;
+
+		double var1 = 0, var2 = 0, coVar = 0;
+		for ( int i = 0; i < numPx; ++i )
+		{
+			coVar += ( pixels1[ i ] - avg1 ) * ( pixels2[ i ] - avg2 );
+			var1 += ( pixels1[ i ] - avg1 ) * ( pixels1[ i ] - avg1 );
+			var2 += ( pixels2[ i ] - avg2 ) * ( pixels2[ i ] - avg2 );
+		}
+		return ( coVar / numPx ) / Math.sqrt( ( var1 / numPx ) * ( var2 / numPx ) );
+	}
+}
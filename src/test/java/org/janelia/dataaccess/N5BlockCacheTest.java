@@ -0,0 +1,89 @@
+package org.janelia.dataaccess;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class N5BlockCacheTest
+{
+	// each block holds 4 shorts, i.e. 8 bytes
+	private static final long BLOCK_BYTES = 8;
+
+	@Test
+	public void testLruOrder()
+	{
+		final N5BlockCache cache = new N5BlockCache( 3 * BLOCK_BYTES );
+		for ( int i = 0; i < 3; ++i )
+			cache.put( key( i ), createBlock( i ), null );
+
+		// touch the eldest block, so the second one becomes the least recently used
+		Assert.assertNotNull( cache.get( key( 0 ), null ) );
+		cache.put( key( 3 ), createBlock( 3 ), null );
+
+		Assert.assertNotNull( cache.get( key( 0 ), null ) );
+		Assert.assertNull( cache.get( key( 1 ), null ) );
+		Assert.assertNotNull( cache.get( key( 2 ), null ) );
+		Assert.assertNotNull( cache.get( key( 3 ), null ) );
+	}
+
+	@Test
+	public void testEvictionBySize()
+	{
+		final N5BlockCache cache = new N5BlockCache( 5 * BLOCK_BYTES / 2 );
+		for ( int i = 0; i < 4; ++i )
+		{
+			cache.put( key( i ), createBlock( i ), null );
+			Assert.assertTrue( cache.getCachedBytes() <= cache.getMaxBytes() );
+		}
+		Assert.assertEquals( 2, cache.getNumCachedBlocks() );
+		Assert.assertEquals( 2 * BLOCK_BYTES, cache.getCachedBytes() );
+		Assert.assertNull( cache.get( key( 0 ), null ) );
+		Assert.assertNull( cache.get( key( 1 ), null ) );
+
+		// replacing a block does not count its size twice
+		cache.put( key( 3 ), createBlock( 3 ), null );
+		Assert.assertEquals( 2 * BLOCK_BYTES, cache.getCachedBytes() );
+
+		// a block that is larger than the cache is not stored and does not evict other blocks
+		cache.put( key( 4 ), new ShortArrayDataBlock( new int[] { 16 }, new long[] { 4 }, new short[ 16 ] ), null );
+		Assert.assertNull( cache.get( key( 4 ), null ) );
+		Assert.assertEquals( 2, cache.getNumCachedBlocks() );
+	}
+
+	@Test
+	public void testZeroSizePassThrough() throws IOException
+	{
+		final N5BlockCache cache = new N5BlockCache( 0 );
+		final AtomicInteger loads = new AtomicInteger();
+		for ( int i = 0; i < 3; ++i )
+		{
+			final DataBlock< ? > block = cache.getOrLoad( key( 0 ), () -> { loads.incrementAndGet(); return createBlock( 0 ); }, null );
+			Assert.assertNotNull( block );
+		}
+		Assert.assertEquals( 3, loads.get() );
+		Assert.assertEquals( 0, cache.getNumCachedBlocks() );
+		Assert.assertEquals( 0, cache.getCachedBytes() );
+	}
+
+	@Test
+	public void testNotEnabledByDefault()
+	{
+		// the threads that have not bound any stats read the blocks directly from the storage
+		Assert.assertNull( N5BlockCache.getBoundStats() );
+		Assert.assertNull( N5BlockCache.getBoundInstance() );
+	}
+
+	private static String key( final int i )
+	{
+		return N5BlockCache.getBlockKey( "/data/tiles.n5", "ch0/tile0", new long[] { i, 0, 0 } );
+	}
+
+	private static DataBlock< ? > createBlock( final int i )
+	{
+		return new ShortArrayDataBlock( new int[] { 4 }, new long[] { i }, new short[ 4 ] );
+	}
+}
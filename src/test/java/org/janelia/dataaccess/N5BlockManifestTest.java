@@ -0,0 +1,65 @@
+package org.janelia.dataaccess;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class N5BlockManifestTest
+{
+	@Test
+	public void testRegions()
+	{
+		final N5BlockManifest manifest = new N5BlockManifest( new long[] { 100, 50, 30 }, new int[] { 32, 32, 16 } );
+		Assert.assertEquals( 4 * 2 * 2, manifest.numBlocks() );
+		Assert.assertEquals( 0, manifest.numWrittenBlocks() );
+
+		// the region touches 2 blocks in X, 1 block in Y, and 2 blocks in Z
+		manifest.addRegion( new long[] { 30, 0, 10 }, new long[] { 10, 32, 10 } );
+		Assert.assertEquals( 4, manifest.numWrittenBlocks() );
+		Assert.assertTrue( manifest.contains( new long[] { 0, 0, 0 } ) );
+		Assert.assertTrue( manifest.contains( new long[] { 1, 0, 1 } ) );
+		Assert.assertFalse( manifest.contains( new long[] { 1, 1, 1 } ) );
+
+		Assert.assertTrue( manifest.containsAny( new long[] { 60, 0, 0 }, new long[] { 10, 10, 10 } ) );
+		Assert.assertFalse( manifest.containsAny( new long[] { 64, 0, 0 }, new long[] { 36, 50, 30 } ) );
+
+		// the region is truncated by the dataset dimensions
+		Assert.assertEquals( 2, manifest.getGridPositions( new long[] { 90, 40, 0 }, new long[] { 64, 64, 16 } ).size() );
+		Assert.assertTrue( manifest.getGridPositions( new long[] { 100, 0, 0 }, new long[] { 10, 10, 10 } ).isEmpty() );
+	}
+
+	@Test
+	public void testAttributes() throws IOException
+	{
+		final Path tempPath = Files.createTempDirectory( "N5BlockManifestTest-" );
+		final N5Writer n5 = new N5FSWriter( tempPath.toString() );
+		try
+		{
+			n5.createDataset( "data", new long[] { 1000, 1000 }, new int[] { 100, 100 }, DataType.UINT16, new GzipCompression() );
+			Assert.assertNull( N5BlockManifest.read( n5, "data" ) );
+
+			final N5BlockManifest manifest = new N5BlockManifest( n5.getDatasetAttributes( "data" ) );
+			manifest.addRegion( new long[] { 0, 0 }, new long[] { 300, 100 } );
+			manifest.add( new long[] { 9, 9 } );
+			manifest.write( n5, "data", 101 );
+
+			final N5BlockManifest loadedManifest = N5BlockManifest.read( n5, "data" );
+			Assert.assertEquals( 4, loadedManifest.numWrittenBlocks() );
+			Assert.assertTrue( loadedManifest.contains( new long[] { 2, 0 } ) );
+			Assert.assertTrue( loadedManifest.contains( new long[] { 9, 9 } ) );
+			Assert.assertFalse( loadedManifest.contains( new long[] { 3, 0 } ) );
+			Assert.assertEquals( 101, N5BlockManifest.readFillValue( n5, "data" ), 0 );
+		}
+		finally
+		{
+			n5.remove();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package org.janelia.dataaccess;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class N5ParallelBlockWriterTest
+{
+	private static final long[] DATASET_SIZE = new long[] { 45, 30, 17 };
+	private static final int[] BLOCK_SIZE = new int[] { 8, 7, 5 };
+
+	private N5FSWriter n5;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		n5 = new N5FSWriter( Files.createTempDirectory( "N5ParallelBlockWriterTest-" ).resolve( "export.n5" ).toString() );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		n5.remove();
+	}
+
+	@Test
+	public void testSameAsSequentialWrite() throws IOException
+	{
+		// the region is aligned to the block grid and ends at the border of the dataset, so the last blocks are partial
+		final long[] gridOffset = new long[] { 1, 2, 1 };
+		final long[] regionSize = new long[ DATASET_SIZE.length ];
+		for ( int d = 0; d < regionSize.length; ++d )
+			regionSize[ d ] = DATASET_SIZE[ d ] - gridOffset[ d ] * BLOCK_SIZE[ d ];
+
+		final ArrayImg< UnsignedShortType, ShortArray > region = ArrayImgs.unsignedShorts( regionSize );
+		final Random rnd = new Random( 5 );
+		for ( final UnsignedShortType val : region )
+			val.set( rnd.nextInt( 1 << 16 ) );
+
+		for ( final int numThreads : new int[] { 1, 3, 8 } )
+		{
+			final String dataset = "parallel-" + numThreads, sequentialDataset = "sequential-" + numThreads;
+			for ( final String datasetPath : new String[] { dataset, sequentialDataset } )
+				n5.createDataset( datasetPath, DATASET_SIZE, BLOCK_SIZE, DataType.UINT16, new GzipCompression() );
+
+			final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
+			N5ParallelBlockWriter.saveBlocks( Views.translate( region, 100, -50, 7 ), n5, dataset, attributes, gridOffset, numThreads );
+			N5Utils.saveBlock( region, n5, sequentialDataset, gridOffset );
+
+			final long[] min = new long[ DATASET_SIZE.length ];
+			for ( int d = 0; d < min.length; ++d )
+				min[ d ] = gridOffset[ d ] * BLOCK_SIZE[ d ];
+
+			final RandomAccessibleInterval< UnsignedShortType > written = Views.offsetInterval( N5Utils.< UnsignedShortType >open( n5, dataset ), min, regionSize );
+			assertImagesEqual( region, written );
+			assertImagesEqual( N5Utils.< UnsignedShortType >open( n5, sequentialDataset ), N5Utils.< UnsignedShortType >open( n5, dataset ) );
+
+			// the blocks outside of the region are not written
+			Assert.assertNull( n5.readBlock( dataset, attributes, new long[] { 0, 0, 0 } ) );
+		}
+	}
+
+	private static void assertImagesEqual( final RandomAccessibleInterval< UnsignedShortType > expected, final RandomAccessibleInterval< UnsignedShortType > actual )
+	{
+		Assert.assertArrayEquals( Intervals.dimensionsAsLongArray( expected ), Intervals.dimensionsAsLongArray( actual ) );
+		final Cursor< UnsignedShortType > expectedCursor = Views.flatIterable( expected ).cursor(), actualCursor = Views.flatIterable( actual ).cursor();
+		while ( expectedCursor.hasNext() )
+			Assert.assertEquals( expectedCursor.next().get(), actualCursor.next().get() );
+	}
+}
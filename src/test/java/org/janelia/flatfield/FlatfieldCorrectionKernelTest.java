@@ -0,0 +1,100 @@
+package org.janelia.flatfield;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Translation;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.RandomAccessiblePair;
+import net.imglib2.view.RandomAccessiblePairNullable;
+import net.imglib2.view.Views;
+
+public class FlatfieldCorrectionKernelTest
+{
+	private static final double EPSILON = 1e-4;
+
+	private final Random rnd = new Random( 21 );
+
+	@Test
+	public void testMatchesLazyCorrection()
+	{
+		final long[] tileSize = new long[] { 30, 20 };
+		final RandomAccessiblePairNullable< FloatType, FloatType > flatfield = randomFlatfield( tileSize );
+		final ArrayImg< FloatType, FloatArray > tile = randomImage( tileSize );
+
+		final Interval block = new FinalInterval( new long[] { 5, 3 }, new long[] { 24, 11 } );
+		final float[] data = new float[ ( int ) Intervals.numElements( block ) ];
+		final Cursor< FloatType > tileCursor = Views.flatIterable( Views.interval( tile, block ) ).cursor();
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = tileCursor.next().get();
+		FlatfieldCorrectionKernel.create( flatfield, block ).apply( data );
+
+		final RandomAccessibleInterval< FloatType > expected = Views.interval( new FlatfieldCorrectedRandomAccessible<>( tile, flatfield.toRandomAccessiblePair() ), block );
+		assertEquals( expected, data );
+	}
+
+	@Test
+	public void testSubpixelOffset()
+	{
+		final long[] tileSize = new long[] { 30, 20 };
+		final RandomAccessiblePairNullable< FloatType, FloatType > flatfield = randomFlatfield( tileSize );
+		final ArrayImg< FloatType, FloatArray > tile = randomImage( tileSize );
+		final double[] offset = new double[] { 2.3, -4.6 };
+		final Interval targetInterval = new FinalInterval( new long[] { 3, 0 }, new long[] { 31, 14 } );
+
+		final float[] data = FlatfieldCorrectionKernel.create( flatfield, new FinalDimensions( tileSize ), offset, targetInterval ).apply(
+				Views.flatIterable( Views.interval( translate( tile, offset ), targetInterval ) ).cursor() );
+
+		final RandomAccessible< FloatType > expected = new FlatfieldCorrectedRandomAccessible<>(
+				translate( tile, offset ),
+				new RandomAccessiblePair<>(
+						translate( Views.interval( flatfield.getA(), tile ), offset ),
+						translate( Views.interval( flatfield.getB(), tile ), offset ) ) );
+		assertEquals( Views.interval( expected, targetInterval ), data );
+	}
+
+	private RandomAccessiblePairNullable< FloatType, FloatType > randomFlatfield( final long[] size )
+	{
+		final ArrayImg< FloatType, FloatArray > scaling = ArrayImgs.floats( size ), translation = ArrayImgs.floats( size );
+		for ( final FloatType val : scaling )
+			val.set( 0.5f + rnd.nextFloat() );
+		for ( final FloatType val : translation )
+			val.set( rnd.nextFloat() * 10 - 5 );
+		return new RandomAccessiblePairNullable<>( Views.extendBorder( scaling ), Views.extendBorder( translation ) );
+	}
+
+	private ArrayImg< FloatType, FloatArray > randomImage( final long[] size )
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( size );
+		for ( final FloatType val : img )
+			val.set( rnd.nextInt( 1000 ) );
+		return img;
+	}
+
+	private static RandomAccessible< FloatType > translate( final RandomAccessibleInterval< FloatType > img, final double[] offset )
+	{
+		return Views.raster( RealViews.affine( Views.interpolate( Views.extendBorder( img ), new NLinearInterpolatorFactory<>() ), new Translation( offset ) ) );
+	}
+
+	private static void assertEquals( final RandomAccessibleInterval< FloatType > expected, final float[] actual )
+	{
+		final Cursor< FloatType > expectedCursor = Views.flatIterable( expected ).cursor();
+		for ( int i = 0; i < actual.length; ++i )
+			Assert.assertEquals( expectedCursor.next().getRealDouble(), actual[ i ], EPSILON * 1000 );
+		Assert.assertFalse( expectedCursor.hasNext() );
+	}
+}
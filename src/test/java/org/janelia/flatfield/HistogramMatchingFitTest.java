@@ -0,0 +1,256 @@
+package org.janelia.flatfield;
+
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.flatfield.FlatfieldCorrectionSolver.ModelType;
+import org.janelia.flatfield.FlatfieldCorrectionSolver.RegularizerModelType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import mpicbg.models.Affine1D;
+import mpicbg.models.AffineModel1D;
+import mpicbg.models.FixedScalingAffineModel1D;
+import mpicbg.models.FixedTranslationAffineModel1D;
+import mpicbg.models.IdentityModel;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.IndependentlyInterpolatedAffineModel1D;
+import mpicbg.models.InterpolatedAffineModel1D;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import net.imglib2.histogram.Real1dBinMapper;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.composite.RealComposite;
+
+public class HistogramMatchingFitTest
+{
+	private static final double EPSILON = 1e-8;
+
+	private static final double MIN_VALUE = 100, MAX_VALUE = 900;
+	private static final int BINS = 64;
+	private static final double PIVOT_VALUE = 150;
+
+	// same as in FlatfieldCorrectionSolver
+	private static final double INTERPOLATION_LAMBDA_PIVOT = 0.5;
+	private static final double INTERPOLATION_LAMBDA_SCALING = 0.5;
+	private static final double INTERPOLATION_LAMBDA_TRANSLATION = 0.5;
+
+	private final Random rnd = new Random( 53 );
+	private final double[] binValues = HistogramMatching.getBinValues( new HistogramSettings( MIN_VALUE, MAX_VALUE, BINS ) );
+
+	@Test
+	public void testFits() throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		for ( int i = 0; i < 50; ++i )
+		{
+			final double[] referenceHistogram = randomHistogram( 1, 0 );
+			final double[] histogram = randomHistogram( 0.5 + rnd.nextDouble(), rnd.nextDouble() * 100 - 50 );
+			final List< PointMatch > matches = generatePivotedMatches( histogram, referenceHistogram );
+
+			final HistogramMatchingFit fit = new HistogramMatchingFit( binValues, referenceHistogram, PIVOT_VALUE );
+			fit.match( wrap( histogram ) );
+			Assert.assertEquals( matches.size(), fit.getNumMatches() );
+
+			final AffineModel1D affineModel = new AffineModel1D();
+			affineModel.fit( matches );
+			Assert.assertTrue( fit.fitAffine() );
+			assertModelEquals( affineModel, fit );
+
+			final double fixedScaling = 0.5 + rnd.nextDouble();
+			final FixedScalingAffineModel1D fixedScalingModel = new FixedScalingAffineModel1D( fixedScaling );
+			fixedScalingModel.fit( matches );
+			Assert.assertTrue( fit.fitFixedScaling( fixedScaling ) );
+			assertModelEquals( fixedScalingModel, fit );
+
+			final double fixedTranslation = rnd.nextDouble() * 100 - 50;
+			final FixedTranslationAffineModel1D fixedTranslationModel = new FixedTranslationAffineModel1D( fixedTranslation );
+			fixedTranslationModel.fit( matches );
+			Assert.assertTrue( fit.fitFixedTranslation( fixedTranslation ) );
+			assertModelEquals( fixedTranslationModel, fit );
+
+			// the centered sums of the affine fit should be recomputed for the next histogram
+			final double[] otherHistogram = randomHistogram( 0.5 + rnd.nextDouble(), rnd.nextDouble() * 100 - 50 );
+			final AffineModel1D otherAffineModel = new AffineModel1D();
+			otherAffineModel.fit( generatePivotedMatches( otherHistogram, referenceHistogram ) );
+			fit.match( otherHistogram );
+			Assert.assertTrue( fit.fitAffine() );
+			assertModelEquals( otherAffineModel, fit );
+		}
+	}
+
+	@Test
+	public void testNotEnoughMatches()
+	{
+		// all values of both histograms fall into the same bin, which yields a single match
+		final double[] histogram = new double[ BINS ];
+		histogram[ BINS / 2 ] = 100;
+
+		final List< PointMatch > matches = generatePivotedMatches( histogram, histogram );
+		final HistogramMatchingFit fit = new HistogramMatchingFit( binValues, histogram.clone(), PIVOT_VALUE );
+		fit.match( wrap( histogram ) );
+		Assert.assertEquals( 1, matches.size() );
+		Assert.assertEquals( matches.size(), fit.getNumMatches() );
+
+		// all models need at least two matches, so every model type falls back to the regularizer
+		Assert.assertFalse( fit.fitAffine() );
+		Assert.assertFalse( fit.fitFixedScaling( 1 ) );
+		Assert.assertFalse( fit.fitFixedTranslation( 0 ) );
+
+		final double[] regularizerValues = new double[] { 1.2, -3.4 };
+		for ( final ModelType modelType : ModelType.values() )
+		{
+			for ( final RegularizerModelType regularizerModelType : RegularizerModelType.values() )
+			{
+				for ( final double[] regularizer : new double[][] { null, regularizerValues } )
+				{
+					final double[] expected = estimateModelWithPointMatches( matches, modelType, regularizerModelType, regularizer );
+					final double[] actual = new double[ 2 ];
+					FlatfieldCorrectionSolver.estimateModel( fit, modelType, regularizerModelType, regularizer, actual );
+					Assert.assertArrayEquals( modelType + " / " + regularizerModelType, expected, actual, EPSILON );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRegularizedModel()
+	{
+		for ( int i = 0; i < 20; ++i )
+		{
+			final double[] referenceHistogram = randomHistogram( 1, 0 );
+			final double[] histogram = randomHistogram( 0.5 + rnd.nextDouble(), rnd.nextDouble() * 100 - 50 );
+			final List< PointMatch > matches = generatePivotedMatches( histogram, referenceHistogram );
+
+			final HistogramMatchingFit fit = new HistogramMatchingFit( binValues, referenceHistogram, PIVOT_VALUE );
+			fit.match( wrap( histogram ) );
+
+			final double[] regularizerValues = new double[] { 0.5 + rnd.nextDouble(), rnd.nextDouble() * 100 - 50 };
+			for ( final ModelType modelType : ModelType.values() )
+			{
+				for ( final RegularizerModelType regularizerModelType : RegularizerModelType.values() )
+				{
+					for ( final double[] regularizer : new double[][] { null, regularizerValues } )
+					{
+						final double[] expected = estimateModelWithPointMatches( matches, modelType, regularizerModelType, regularizer );
+						final double[] actual = new double[ 2 ];
+						FlatfieldCorrectionSolver.estimateModel( fit, modelType, regularizerModelType, regularizer, actual );
+						Assert.assertArrayEquals( modelType + " / " + regularizerModelType, expected, actual, EPSILON );
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Estimates the model from the point matches using the mpicbg models in the same way as it was done by {@link FlatfieldCorrectionSolver}
+	 * before the matches were reduced by {@link HistogramMatchingFit}.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static < M extends Model< M > & Affine1D< M >, R extends Model< R > & Affine1D< R > & InvertibleBoundable > double[] estimateModelWithPointMatches(
+			final List< PointMatch > matches,
+			final ModelType modelType,
+			final RegularizerModelType regularizerModelType,
+			final double[] regularizerValues )
+	{
+		final M model;
+		switch ( modelType )
+		{
+		case AffineModel:
+			model = ( M ) new AffineModel1D();
+			break;
+		case FixedTranslationAffineModel:
+			model = ( M ) new FixedTranslationAffineModel1D( regularizerValues == null ? 0 : regularizerValues[ 1 ] );
+			break;
+		case FixedScalingAffineModel:
+			model = ( M ) new FixedScalingAffineModel1D( regularizerValues == null ? 1 : regularizerValues[ 0 ] );
+			break;
+		default:
+			throw new IllegalArgumentException();
+		}
+
+		final M pivotedModel = ( M ) new InterpolatedAffineModel1D<>( model, new FixedTranslationAffineModel1D( 0 ), INTERPOLATION_LAMBDA_PIVOT );
+
+		boolean modelFound;
+		try
+		{
+			pivotedModel.fit( matches );
+			modelFound = true;
+		}
+		catch ( final Exception e )
+		{
+			modelFound = false;
+		}
+
+		final R regularizerModel;
+		switch ( regularizerModelType )
+		{
+		case IdentityModel:
+			regularizerModel = ( R ) new IdentityModel();
+			break;
+		case AffineModel:
+			final AffineModel1D downsampledModel = new AffineModel1D();
+			downsampledModel.set(
+					regularizerValues != null ? regularizerValues[ 0 ] : 1,
+					regularizerValues != null ? regularizerValues[ 1 ] : 0 );
+			regularizerModel = ( R ) downsampledModel;
+			break;
+		default:
+			throw new IllegalArgumentException();
+		}
+
+		final M interpolatedModel = ( M ) ( modelFound ?
+				new IndependentlyInterpolatedAffineModel1D<>(
+						pivotedModel,
+						regularizerModel,
+						INTERPOLATION_LAMBDA_SCALING,
+						INTERPOLATION_LAMBDA_TRANSLATION ) :
+					regularizerModel );
+
+		final double[] estimatedModelValues = new double[ 2 ];
+		interpolatedModel.toArray( estimatedModelValues );
+		return estimatedModelValues;
+	}
+
+	private List< PointMatch > generatePivotedMatches( final double[] histogram, final double[] referenceHistogram )
+	{
+		final List< PointMatch > matches = HistogramMatching.generateHistogramMatches( wrap( histogram ), wrap( referenceHistogram ), binValues );
+		for ( final PointMatch match : matches )
+			for ( final Point point : new Point[] { match.getP1(), match.getP2() } )
+				for ( final double[] value : new double[][] { point.getL(), point.getW() } )
+					value[ 0 ] -= PIVOT_VALUE;
+		return matches;
+	}
+
+	/**
+	 * Generates a histogram of 10000 normally distributed values transformed by the given affine transformation,
+	 * some of which fall outside of the histogram range.
+	 */
+	private double[] randomHistogram( final double scaling, final double translation )
+	{
+		final Real1dBinMapper< DoubleType > binMapper = new Real1dBinMapper<>( MIN_VALUE, MAX_VALUE, BINS, true );
+		final DoubleType value = new DoubleType();
+		final double[] histogram = new double[ BINS ];
+		for ( int i = 0; i < 10000; ++i )
+		{
+			value.set( ( rnd.nextGaussian() * 200 + 500 ) * scaling + translation );
+			++histogram[ ( int ) binMapper.map( value ) ];
+		}
+		return histogram;
+	}
+
+	private static RealComposite< DoubleType > wrap( final double[] histogram )
+	{
+		return new RealComposite<>( ArrayImgs.doubles( histogram, histogram.length ).randomAccess(), histogram.length );
+	}
+
+	private static void assertModelEquals( final Affine1D< ? > expected, final HistogramMatchingFit actual )
+	{
+		final double[] expectedValues = new double[ 2 ];
+		expected.toArray( expectedValues );
+		Assert.assertArrayEquals( expectedValues, new double[] { actual.getScaling(), actual.getTranslation() }, EPSILON );
+	}
+}
@@ -0,0 +1,107 @@
+package org.janelia.flatfield;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.histogram.Real1dBinMapper;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.RealComposite;
+
+public class HistogramsBinningTest
+{
+	private static final double EPSILON = 1e-10;
+
+	private final Random rnd = new Random( 31 );
+
+	@Test
+	public void testSameDimensionality()
+	{
+		final int bins = 10;
+		final Real1dBinMapper< UnsignedShortType > binMapper = new Real1dBinMapper<>( 100, 900, bins, true );
+		final Interval blockInterval = new FinalInterval( new long[] { 8, 4, 2 }, new long[] { 15, 11, 5 } );
+		final int numPixels = ( int ) Intervals.numElements( blockInterval );
+
+		final double[] histograms = new double[ numPixels * bins ];
+		final double[] expected = new double[ numPixels * bins ];
+		for ( int i = 0; i < 3; ++i )
+		{
+			final RandomAccessibleInterval< UnsignedShortType > tileBlock = Views.interval( randomTile( new long[] { 20, 15, 10 } ), blockInterval );
+			HistogramsProvider.accumulateBinnedValues( histograms, numPixels, HistogramsProvider.binValues( tileBlock, binMapper ) );
+			accumulatePerPixel( tileBlock, binMapper, blockInterval, expected );
+		}
+
+		Assert.assertArrayEquals( expected, histograms, EPSILON );
+		Assert.assertEquals( numPixels * 3, sum( histograms ), EPSILON );
+	}
+
+	@Test
+	public void testCollapsedDimension()
+	{
+		final int bins = 16;
+		final Real1dBinMapper< UnsignedShortType > binMapper = new Real1dBinMapper<>( 0, 1000, bins, true );
+		final Interval blockInterval = new FinalInterval( new long[] { 4, 6 }, new long[] { 11, 9 } );
+		final Interval tileBlockInterval = new FinalInterval( new long[] { 4, 6, 0 }, new long[] { 11, 9, 6 } );
+		final int numPixels = ( int ) Intervals.numElements( blockInterval );
+
+		final double[] histograms = new double[ numPixels * bins ];
+		final double[] expected = new double[ numPixels * bins ];
+		for ( int i = 0; i < 2; ++i )
+		{
+			final RandomAccessibleInterval< UnsignedShortType > tileBlock = Views.interval( randomTile( new long[] { 12, 10, 7 } ), tileBlockInterval );
+			HistogramsProvider.accumulateBinnedValues( histograms, numPixels, HistogramsProvider.binValues( tileBlock, binMapper ) );
+
+			// the last dimension of the tile is used as additional data points for the histograms
+			for ( long z = tileBlockInterval.min( 2 ); z <= tileBlockInterval.max( 2 ); ++z )
+				accumulatePerPixel( Views.hyperSlice( tileBlock, 2, z ), binMapper, blockInterval, expected );
+		}
+
+		Assert.assertArrayEquals( expected, histograms, EPSILON );
+		Assert.assertEquals( tileBlockInterval.dimension( 2 ) * numPixels * 2, sum( histograms ), EPSILON );
+	}
+
+	private ArrayImg< UnsignedShortType, ShortArray > randomTile( final long[] size )
+	{
+		final ArrayImg< UnsignedShortType, ShortArray > tile = ArrayImgs.unsignedShorts( size );
+		for ( final UnsignedShortType val : tile )
+			val.set( rnd.nextInt( 1000 ) );
+		return tile;
+	}
+
+	private static void accumulatePerPixel(
+			final RandomAccessibleInterval< UnsignedShortType > tileBlock,
+			final Real1dBinMapper< UnsignedShortType > binMapper,
+			final Interval blockInterval,
+			final double[] histograms )
+	{
+		final long[] histogramsDimensions = new long[ blockInterval.numDimensions() + 1 ];
+		blockInterval.dimensions( histogramsDimensions );
+		histogramsDimensions[ blockInterval.numDimensions() ] = binMapper.getBinCount();
+		final ArrayImg< DoubleType, DoubleArray > histogramsImg = ArrayImgs.doubles( histograms, histogramsDimensions );
+
+		final Cursor< RealComposite< DoubleType > > histogramsCursor = Views.flatIterable( Views.collapseReal( histogramsImg ) ).cursor();
+		final Cursor< UnsignedShortType > tileCursor = Views.flatIterable( tileBlock ).cursor();
+		while ( histogramsCursor.hasNext() )
+			histogramsCursor.next().get( binMapper.map( tileCursor.next() ) ).inc();
+	}
+
+	private static double sum( final double[] array )
+	{
+		double sum = 0;
+		for ( final double val : array )
+			sum += val;
+		return sum;
+	}
+}
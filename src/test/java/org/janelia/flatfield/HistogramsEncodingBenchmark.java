@@ -0,0 +1,149 @@
+package org.janelia.flatfield;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.janelia.dataaccess.DataProvider;
+import org.janelia.dataaccess.DataProviderFactory;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.imglib2.util.Intervals;
+
+/**
+ * Compares the storage size and the read/write throughput of the histograms encodings on an existing histograms dataset.
+ * The dataset is re-encoded with each encoding into a temporary dataset in the same container (stored on the local filesystem),
+ * and all blocks are then read back through {@link HistogramsN5Reader} and compared with the original.
+ *
+ * Usage: HistogramsEncodingBenchmark &lt;path to the flatfield N5 container&gt; [histograms dataset, 'histograms-n5' by default]
+ * <p>
+ * No results on a real stack yet. Synthetic histograms (4 blocks of 64x64 pixels x 258 bins, background with a heavy-tailed signal fraction
+ * under a smooth flatfield) encoded with gzip in memory, without the filesystem I/O:
+ * <pre>
+ * 500 values per pixel (max count 89, 22.5% non-zero bins):
+ *   DOUBLE   FLOAT64  1.05 MB   write  55 MB/s   read  514 MB/s
+ *   INTEGER  UINT16   0.74 MB   write  86 MB/s   read 1015 MB/s
+ *   SPARSE   INT32    1.05 MB   write  66 MB/s   read  740 MB/s
+ * 20000 values per pixel (max count 2734, 78.1% non-zero bins):
+ *   DOUBLE   FLOAT64  3.20 MB   write  19 MB/s   read  343 MB/s
+ *   INTEGER  UINT16   2.29 MB   write  24 MB/s   read  487 MB/s
+ *   SPARSE   INT32    4.00 MB   write  18 MB/s   read  188 MB/s
+ * </pre>
+ * Gzip already removes most of the zero bins, so the sparse encoding only pays off when the histograms are much sparser than above.
+ *
+ * @author Igor Pisarev
+ */
+public class HistogramsEncodingBenchmark
+{
+	public static void main( final String[] args ) throws IOException
+	{
+		final String n5Path = args[ 0 ];
+		final String histogramsDataset = args.length > 1 ? args[ 1 ] : "histograms-n5";
+
+		final DataProvider dataProvider = DataProviderFactory.createFSDataProvider();
+		final N5Writer n5 = dataProvider.createN5Writer( n5Path );
+		final N5Reader histogramsN5 = new HistogramsN5Reader( n5 );
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes( histogramsDataset );
+		final DatasetAttributes decodedAttributes = histogramsN5.getDatasetAttributes( histogramsDataset );
+		final long[] extendedDimensions = attributes.getDimensions();
+		final int[] extendedBlockSize = attributes.getBlockSize();
+		final List< long[] > blockPositions = HistogramsProvider.getBlockPositions( extendedDimensions, extendedBlockSize );
+
+		// the max count is not stored, find it to select the integer type
+		long maxCount = 0;
+		for ( final long[] blockPosition : blockPositions )
+			for ( final double count : readHistograms( histogramsN5, histogramsDataset, decodedAttributes, blockPosition ) )
+				maxCount = Math.max( maxCount, ( long ) count );
+
+		System.out.println( "Histograms dataset " + histogramsDataset + " of size " + Arrays.toString( extendedDimensions ) + " stored with " + HistogramsEncoding.read( n5, histogramsDataset ) + " encoding as " + attributes.getDataType() );
+		System.out.println( blockPositions.size() + " blocks of size " + Arrays.toString( extendedBlockSize ) + ", max count: " + maxCount );
+		System.out.println();
+
+		for ( final HistogramsEncoding encoding : HistogramsEncoding.values() )
+		{
+			final DataType dataType = encoding.getDataType( maxCount );
+			if ( dataType == null )
+			{
+				System.out.println( encoding + ": counts cannot be represented" );
+				continue;
+			}
+
+			final String encodedDataset = histogramsDataset + "-benchmark-" + encoding.name().toLowerCase();
+			n5.createDataset( encodedDataset, extendedDimensions, extendedBlockSize, dataType, attributes.getCompression() );
+			n5.setAttribute( encodedDataset, HistogramsEncoding.ATTRIBUTE_KEY, encoding.name() );
+			final DatasetAttributes encodedAttributes = n5.getDatasetAttributes( encodedDataset );
+
+			long elapsedWrite = 0;
+			for ( final long[] blockPosition : blockPositions )
+			{
+				final DataBlock< ? > block = histogramsN5.readBlock( histogramsDataset, decodedAttributes, blockPosition );
+				final double[] histograms = ( double[] ) block.getData();
+
+				final long start = System.nanoTime();
+				n5.writeBlock( encodedDataset, encodedAttributes, encoding.encode( histograms, block.getSize(), blockPosition, dataType ) );
+				elapsedWrite += System.nanoTime() - start;
+			}
+
+			final long storageSize = getStorageSize( Paths.get( n5Path, encodedDataset ) );
+
+			long elapsedRead = 0;
+			boolean matches = true;
+			final N5Reader encodedN5 = new HistogramsN5Reader( n5 );
+			final DatasetAttributes encodedDecodedAttributes = encodedN5.getDatasetAttributes( encodedDataset );
+			for ( final long[] blockPosition : blockPositions )
+			{
+				final long start = System.nanoTime();
+				final double[] decodedHistograms = readHistograms( encodedN5, encodedDataset, encodedDecodedAttributes, blockPosition );
+				elapsedRead += System.nanoTime() - start;
+
+				matches &= Arrays.equals( readHistograms( histogramsN5, histogramsDataset, decodedAttributes, blockPosition ), decodedHistograms );
+			}
+
+			n5.remove( encodedDataset );
+
+			System.out.println( String.format(
+					"%-8s %-8s size: %8.1f MB,  write: %7.2f s,  read: %7.2f s (%7.1f MB/s decoded)%s",
+					encoding,
+					dataType,
+					storageSize / 1e6,
+					elapsedWrite / 1e9,
+					elapsedRead / 1e9,
+					Intervals.numElements( extendedDimensions ) * Double.BYTES / 1e6 / ( elapsedRead / 1e9 ),
+					matches ? "" : "  MISMATCH"
+				) );
+		}
+	}
+
+	private static double[] readHistograms( final N5Reader n5, final String dataset, final DatasetAttributes attributes, final long[] blockPosition ) throws IOException
+	{
+		return ( double[] ) n5.readBlock( dataset, attributes, blockPosition ).getData();
+	}
+
+	private static long getStorageSize( final Path path ) throws IOException
+	{
+		try ( final Stream< Path > files = Files.walk( path ) )
+		{
+			return files.filter( Files::isRegularFile ).mapToLong( file ->
+				{
+					try
+					{
+						return Files.size( file );
+					}
+					catch ( final IOException e )
+					{
+						throw new UncheckedIOException( e );
+					}
+				} ).sum();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package org.janelia.flatfield;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.composite.RealComposite;
+
+public class ReferenceHistogramSelectionTest
+{
+	private static final double EPSILON = 1e-10;
+
+	private final Random rnd = new Random( 17 );
+
+	@Test
+	public void testHistogramMean()
+	{
+		final double[] binValues = HistogramMatching.getBinValues( new HistogramSettings( 10., 20., 7 ) );
+
+		// tail bins are ignored
+		Assert.assertEquals( ( 11 * 2 + 15 * 3 + 19 ) / 6., HistogramsProvider.getHistogramMean( wrap( new double[] { 5, 2, 0, 3, 0, 1, 8 } ), binValues ), EPSILON );
+		Assert.assertTrue( Double.isNaN( HistogramsProvider.getHistogramMean( wrap( new double[] { 5, 0, 0, 0, 0, 0, 8 } ), binValues ) ) );
+	}
+
+	@Test
+	public void testCutBuckets()
+	{
+		final int numBuckets = 1000, numPoints = 100000;
+		final double minMean = 0, maxMean = 1;
+
+		final double[] means = new double[ numPoints ];
+		final long[] meanBucketCounts = new long[ numBuckets + 1 ];
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			means[ i ] = i < numPoints / 20 ? Double.NaN : rnd.nextGaussian() * 0.2 + 0.5;
+			++meanBucketCounts[ HistogramsProvider.getMeanBucket( means[ i ], minMean, maxMean, numBuckets ) ];
+		}
+		Assert.assertEquals( numPoints / 20, meanBucketCounts[ numBuckets ] );
+
+		final long start = 37500, end = 62500;
+		final int[] cutBuckets = HistogramsProvider.getCutBuckets( meanBucketCounts, start, end );
+		final long numSelectedPoints = HistogramsProvider.getNumSelectedPoints( meanBucketCounts, cutBuckets );
+
+		// the cuts may differ from the exact ranks by at most half of the boundary buckets
+		final long maxDifference = ( meanBucketCounts[ cutBuckets[ 0 ] - 1 ] + meanBucketCounts[ cutBuckets[ 0 ] ] + meanBucketCounts[ cutBuckets[ 1 ] - 1 ] + meanBucketCounts[ cutBuckets[ 1 ] ] ) / 2 + 1;
+		Assert.assertEquals( end - start, numSelectedPoints, maxDifference );
+
+		// the selected points are the same as the ones chosen by sorting apart from the boundary buckets
+		final double[] sortedMeans = means.clone();
+		Arrays.sort( sortedMeans );
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			final int bucket = HistogramsProvider.getMeanBucket( sortedMeans[ i ], minMean, maxMean, numBuckets );
+			if ( bucket > cutBuckets[ 0 ] && bucket < cutBuckets[ 1 ] - 1 )
+				Assert.assertTrue( i >= start && i < end );
+			if ( i >= start && i < end && ( bucket < cutBuckets[ 0 ] - 1 || bucket > cutBuckets[ 1 ] ) )
+				Assert.fail( "point of rank " + i + " in bucket " + bucket + " is too far from the cut buckets " + Arrays.toString( cutBuckets ) );
+		}
+	}
+
+	@Test
+	public void testSingleBucket()
+	{
+		final long[] meanBucketCounts = new long[ 11 ];
+		meanBucketCounts[ 4 ] = 100;
+		meanBucketCounts[ 10 ] = 5;
+
+		Assert.assertArrayEquals( new int[] { 4, 5 }, HistogramsProvider.getCutBuckets( meanBucketCounts, 38, 63 ) );
+		Assert.assertArrayEquals( new int[] { 4, 5 }, HistogramsProvider.getCutBuckets( meanBucketCounts, 50, 51 ) );
+	}
+
+	private static RealComposite< DoubleType > wrap( final double[] histogram )
+	{
+		return new RealComposite<>( ArrayImgs.doubles( histogram, histogram.length ).randomAccess(), histogram.length );
+	}
+}
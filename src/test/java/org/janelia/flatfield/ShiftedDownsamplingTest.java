@@ -10,6 +10,7 @@ import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.dataaccess.DataProvider;
 import org.janelia.dataaccess.DataProviderFactory;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
@@ -31,6 +32,7 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.histogram.Real1dBinMapper;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -83,6 +85,23 @@ public class ShiftedDownsamplingTest
 
 	@Test
 	public void test() throws IOException
+	{
+		testDownsampling( HistogramsEncoding.DOUBLE );
+	}
+
+	@Test
+	public void testIntegerEncoding() throws IOException
+	{
+		testDownsampling( HistogramsEncoding.INTEGER );
+	}
+
+	@Test
+	public void testSparseEncoding() throws IOException
+	{
+		testDownsampling( HistogramsEncoding.SPARSE );
+	}
+
+	private void testDownsampling( final HistogramsEncoding encoding ) throws IOException
 	{
 		final DataProvider dataProvider = DataProviderFactory.createFSDataProvider();
 
@@ -128,7 +147,10 @@ public class ShiftedDownsamplingTest
 				histogramsHelperArray[ helperArrayIndex++ ] = histograms[ i ][ bin ];
 		final N5Writer n5 = dataProvider.createN5Writer( histogramsN5BasePath );
 		final RandomAccessibleInterval< DoubleType > source = ArrayImgs.doubles( histogramsHelperArray, extendedDimensions );
-		N5Utils.save( source, n5, histogramsDataset, extendedBlockSize, new GzipCompression() );
+		if ( encoding == HistogramsEncoding.DOUBLE )
+			N5Utils.save( source, n5, histogramsDataset, extendedBlockSize, new GzipCompression() );
+		else
+			saveEncodedHistograms( source, n5, extendedBlockSize, encoding );
 
 		// test downsampling with offset
 		final ShiftedDownsampling< AffineTransform3D > shiftedDownsampling = new ShiftedDownsampling<>(
@@ -171,6 +193,35 @@ public class ShiftedDownsamplingTest
 		Assert.assertFalse( n5.datasetExists( downsampledHistogramsDataset ) );
 	}
 
+	private static void saveEncodedHistograms(
+			final RandomAccessibleInterval< DoubleType > source,
+			final N5Writer n5,
+			final int[] extendedBlockSize,
+			final HistogramsEncoding encoding ) throws IOException
+	{
+		final long[] extendedDimensions = Intervals.dimensionsAsLongArray( source );
+		n5.createDataset( histogramsDataset, extendedDimensions, extendedBlockSize, encoding.getDataType( 6 ), new GzipCompression() );
+		n5.setAttribute( histogramsDataset, HistogramsEncoding.ATTRIBUTE_KEY, encoding.name() );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( histogramsDataset );
+
+		final CellGrid cellGrid = new CellGrid( extendedDimensions, extendedBlockSize );
+		for ( final long[] gridPosition : HistogramsProvider.getBlockPositions( extendedDimensions, extendedBlockSize ) )
+		{
+			final long[] cellMin = new long[ extendedDimensions.length ], cellSize = new long[ extendedDimensions.length ];
+			final int[] cellDimensions = new int[ extendedDimensions.length ];
+			cellGrid.getCellDimensions( gridPosition, cellMin, cellDimensions );
+			for ( int d = 0; d < cellSize.length; ++d )
+				cellSize[ d ] = cellDimensions[ d ];
+
+			final double[] blockHistograms = new double[ ( int ) Intervals.numElements( cellSize ) ];
+			final Cursor< DoubleType > cursor = Views.flatIterable( Views.offsetInterval( source, cellMin, cellSize ) ).cursor();
+			for ( int i = 0; i < blockHistograms.length; ++i )
+				blockHistograms[ i ] = cursor.next().get();
+
+			n5.writeBlock( histogramsDataset, attributes, encoding.encode( blockHistograms, cellDimensions, gridPosition, attributes.getDataType() ) );
+		}
+	}
+
 	private double[] getHistogramArray( final CompositeIntervalView< DoubleType, RealComposite< DoubleType > > downsampledHistogramsImg, final long[] position )
 	{
 		final double[] histogram = new double[ bins ];
@@ -230,7 +281,8 @@ public class ShiftedDownsamplingTest
 					histogramsN5BasePath,
 					new TileInfo[] { tile },
 					tile.getSize().clone(),
-					new HistogramSettings( histMinValue, histMaxValue, bins )
+					new HistogramSettings( histMinValue, histMaxValue, bins ),
+					HistogramsEncoding.DOUBLE
 				);
 
 			final ShiftedDownsampling< ? > downsampler = new ShiftedDownsampling<>( sparkContext, histogramsProvider );
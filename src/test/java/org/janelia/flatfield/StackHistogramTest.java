@@ -0,0 +1,87 @@
+package org.janelia.flatfield;
+
+import org.janelia.flatfield.StackHistogram.QuantileMode;
+import org.janelia.stitching.ImageType;
+import org.janelia.stitching.TileInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.util.Pair;
+
+public class StackHistogramTest
+{
+	private static final double EPSILON = 1e-10;
+
+	@Test
+	public void testSampledSlices()
+	{
+		Assert.assertArrayEquals( new long[] { 5, 15, 25, 35, 45, 55, 65, 75, 85, 95 }, StackHistogram.getSampledSlices( 100, 0.1 ) );
+		Assert.assertArrayEquals( new long[] { 1 }, StackHistogram.getSampledSlices( 3, 0.01 ) );
+		Assert.assertArrayEquals( new long[] { 0, 1, 2 }, StackHistogram.getSampledSlices( 3, 1 ) );
+	}
+
+	@Test
+	public void testTileSetKey()
+	{
+		final HistogramSettings histogramSettings = new HistogramSettings( 0., 16383., 4098 );
+		final TileInfo[] tiles = new TileInfo[] { createTile( 0, "/data/tile0.tif" ), createTile( 1, "/data/tile1.tif" ) };
+		final String key = StackHistogram.getTileSetKey( tiles, histogramSettings );
+
+		// the key does not depend on the tile positions and the order of the tiles
+		final TileInfo[] stitchedTiles = new TileInfo[] { createTile( 1, "/data/tile1.tif" ), createTile( 0, "/data/tile0.tif" ) };
+		stitchedTiles[ 0 ].setPosition( new double[] { 10.5, -3, 7 } );
+		Assert.assertEquals( key, StackHistogram.getTileSetKey( stitchedTiles, histogramSettings ) );
+
+		Assert.assertNotEquals( key, StackHistogram.getTileSetKey( new TileInfo[] { tiles[ 0 ], createTile( 1, "/data/tile1-decon.tif" ) }, histogramSettings ) );
+		Assert.assertNotEquals( key, StackHistogram.getTileSetKey( tiles, new HistogramSettings( 0., 65535., 16386 ) ) );
+
+		Assert.assertEquals( "/data/stack-histogram-" + key + ".json", StackHistogram.getStackHistogramPath( "/data/ch0-final.json", tiles, histogramSettings, 1 ) );
+		Assert.assertEquals( "/data/stack-histogram-" + key + "-sampled-0.1.json", StackHistogram.getStackHistogramPath( "/data/ch0.json", tiles, histogramSettings, 0.1 ) );
+	}
+
+	@Test
+	public void testSubsampleBounds()
+	{
+		// bin centers: -inf, 1, 3, 5, 7, +inf
+		final HistogramSettings histogramSettings = new HistogramSettings( 0., 8., 6 );
+		final long[][] subsampleHistograms = new long[][] {
+			new long[] { 0, 10, 30, 5, 0, 0 },
+			new long[] { 0, 5, 20, 25, 0, 0 },
+			new long[] { 0, 0, 0, 0, 0, 0 },
+			new long[] { 1, 10, 25, 10, 4, 0 }
+		};
+		final StackHistogram stackHistogram = new StackHistogram( subsampleHistograms, histogramSettings, 0.1 );
+		Assert.assertTrue( stackHistogram.isSampled() );
+
+		// combined histogram: 1, 25, 75, 40, 4, 0
+		Assert.assertEquals( 3, stackHistogram.getPivotValue(), EPSILON );
+		final Pair< Double, Double > pivotValueBounds = stackHistogram.getPivotValueBounds();
+		Assert.assertEquals( 3, pivotValueBounds.getA(), EPSILON );
+		Assert.assertEquals( 5, pivotValueBounds.getB(), EPSILON );
+
+		// the empty subsample is ignored
+		final Pair< Double, Double > quantileBounds = stackHistogram.getQuantileBounds( 0.75, QuantileMode.CenterValue );
+		Assert.assertEquals( 5, stackHistogram.getQuantile( 0.75, QuantileMode.CenterValue ), EPSILON );
+		Assert.assertEquals( 3, quantileBounds.getA(), EPSILON );
+		Assert.assertEquals( 5, quantileBounds.getB(), EPSILON );
+
+		final Pair< Double, Double > medianBounds = stackHistogram.getQuantileBounds( 0.5, QuantileMode.CenterValue );
+		Assert.assertEquals( 3, medianBounds.getA(), EPSILON );
+		Assert.assertEquals( 3, medianBounds.getB(), EPSILON );
+
+		final StackHistogram fullStackHistogram = new StackHistogram( new long[] { 1, 25, 75, 40, 4, 0 }, histogramSettings );
+		Assert.assertFalse( fullStackHistogram.isSampled() );
+		Assert.assertEquals( fullStackHistogram.getPivotValue(), fullStackHistogram.getPivotValueBounds().getA(), EPSILON );
+		Assert.assertEquals( fullStackHistogram.getPivotValue(), fullStackHistogram.getPivotValueBounds().getB(), EPSILON );
+	}
+
+	private static TileInfo createTile( final int index, final String filePath )
+	{
+		final TileInfo tile = new TileInfo( 3 );
+		tile.setIndex( index );
+		tile.setFilePath( filePath );
+		tile.setSize( new long[] { 100, 100, 50 } );
+		tile.setType( ImageType.GRAY16 );
+		return tile;
+	}
+}
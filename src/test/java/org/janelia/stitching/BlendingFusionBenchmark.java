@@ -0,0 +1,141 @@
+package org.janelia.stitching;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Translation;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the per-pixel blending weight computation through generic cursors with {@link BlendingKernel}
+ * on a 256^3 output cell covered by a number of tiles at subpixel offsets.
+ *
+ * Usage: BlendingFusionBenchmark [numbers of tiles, default 2,4,8]
+ */
+public class BlendingFusionBenchmark
+{
+	private static final int CELL_SIZE = 256;
+	private static final int TILE_SIZE = 300;
+	private static final double FRACTION_BLENDED = 0.2;
+	private static final int REPEATS = 3;
+
+	public static void main( final String[] args )
+	{
+		final String[] tileCounts = args.length > 0 ? args[ 0 ].split( "," ) : new String[] { "2", "4", "8" };
+
+		final ArrayImg< FloatType, FloatArray > tileImg = ArrayImgs.floats( TILE_SIZE, TILE_SIZE, TILE_SIZE );
+		final Random rnd = new Random( 42 );
+		for ( final FloatType val : tileImg )
+			val.set( rnd.nextInt( 4096 ) );
+
+		final Interval cell = new FinalInterval( CELL_SIZE, CELL_SIZE, CELL_SIZE );
+		final FinalDimensions tileDimensions = new FinalDimensions( TILE_SIZE, TILE_SIZE, TILE_SIZE );
+
+		for ( final String tileCountStr : tileCounts )
+		{
+			final int tileCount = Integer.parseInt( tileCountStr );
+			final double[][] offsets = new double[ tileCount ][ 3 ];
+			for ( int i = 0; i < tileCount; ++i )
+				for ( int d = 0; d < 3; ++d )
+					offsets[ i ][ d ] = -( ( i * 11.3 + d * 7.7 ) % ( TILE_SIZE - CELL_SIZE ) );
+
+			System.out.println( "Tiles: " + tileCount );
+			final float[][] cursorResult = new float[ 1 ][];
+			final float[][] kernelResult = new float[ 1 ][];
+			benchmark( "  per-pixel weights", () -> cursorResult[ 0 ] = fuseWithCursors( tileImg, tileDimensions, offsets, cell ) );
+			benchmark( "  blending kernel", () -> kernelResult[ 0 ] = fuseWithKernel( tileImg, tileDimensions, offsets, cell ) );
+
+			double maxDifference = 0;
+			for ( int i = 0; i < cursorResult[ 0 ].length; ++i )
+				maxDifference = Math.max( Math.abs( cursorResult[ 0 ][ i ] - kernelResult[ 0 ][ i ] ), maxDifference );
+			System.out.println( "  max difference: " + maxDifference );
+			System.out.println();
+		}
+	}
+
+	private static void benchmark( final String name, final Runnable fusion )
+	{
+		long bestElapsed = Long.MAX_VALUE;
+		for ( int repeat = 0; repeat < REPEATS; ++repeat )
+		{
+			final long start = System.nanoTime();
+			fusion.run();
+			bestElapsed = Math.min( System.nanoTime() - start, bestElapsed );
+		}
+		System.out.println( name + ": best of " + REPEATS + " runs took " + bestElapsed / 1e6 + "ms" );
+	}
+
+	private static RandomAccessibleInterval< FloatType > getSource( final ArrayImg< FloatType, FloatArray > tileImg, final double[] offset, final Interval interval )
+	{
+		return Views.interval(
+				Views.raster( RealViews.affine( Views.interpolate( Views.extendBorder( tileImg ), new NLinearInterpolatorFactory<>() ), new Translation( offset ) ) ),
+				interval );
+	}
+
+	private static float[] fuseWithKernel( final ArrayImg< FloatType, FloatArray > tileImg, final FinalDimensions tileDimensions, final double[][] offsets, final Interval cell )
+	{
+		final int numElements = ( int ) Intervals.numElements( cell );
+		final float[] weights = new float[ numElements ], values = new float[ numElements ];
+		for ( final double[] offset : offsets )
+		{
+			final BlendingKernel blendingKernel = new BlendingKernel( tileDimensions, offset, cell, cell, FRACTION_BLENDED );
+			blendingKernel.accumulate( Views.flatIterable( getSource( tileImg, offset, cell ) ).cursor(), weights, values );
+		}
+
+		for ( int i = 0; i < numElements; ++i )
+			values[ i ] = weights[ i ] == 0 ? 0 : values[ i ] / weights[ i ];
+		return values;
+	}
+
+	/**
+	 * The previous implementation of the blending fusion loop.
+	 */
+	private static float[] fuseWithCursors( final ArrayImg< FloatType, FloatArray > tileImg, final FinalDimensions tileDimensions, final double[][] offsets, final Interval cell )
+	{
+		final ArrayImg< FloatType, FloatArray > weights = ArrayImgs.floats( Intervals.dimensionsAsLongArray( cell ) );
+		final ArrayImg< FloatType, FloatArray > values = ArrayImgs.floats( Intervals.dimensionsAsLongArray( cell ) );
+		for ( final double[] offset : offsets )
+		{
+			final Cursor< FloatType > sourceCursor = Views.flatIterable( getSource( tileImg, offset, cell ) ).localizingCursor();
+			final Cursor< FloatType > weightsCursor = Views.flatIterable( weights ).cursor();
+			final Cursor< FloatType > valuesCursor = Views.flatIterable( values ).cursor();
+
+			final double[] position = new double[ sourceCursor.numDimensions() ];
+			while ( sourceCursor.hasNext() )
+			{
+				final double value = sourceCursor.next().getRealDouble();
+
+				sourceCursor.localize( position );
+				for ( int d = 0; d < position.length; ++d )
+					position[ d ] -= offset[ d ];
+				final double weight = BlendingKernel.getBlendingWeight( position, tileDimensions, FRACTION_BLENDED );
+
+				final FloatType weightAccum = weightsCursor.next();
+				final FloatType valueAccum = valuesCursor.next();
+				weightAccum.setReal( weightAccum.getRealDouble() + weight );
+				valueAccum.setReal( valueAccum.getRealDouble() + value * weight );
+			}
+		}
+
+		final float[] result = new float[ ( int ) Intervals.numElements( cell ) ];
+		final Cursor< FloatType > weightsCursor = weights.cursor(), valuesCursor = values.cursor();
+		for ( int i = 0; i < result.length; ++i )
+		{
+			final double weight = weightsCursor.next().getRealDouble();
+			final double value = valuesCursor.next().getRealDouble();
+			result[ i ] = weight == 0 ? 0 : ( float ) ( value / weight );
+		}
+		return result;
+	}
+}
@@ -0,0 +1,104 @@
+package org.janelia.stitching;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class BlendingKernelTest
+{
+	private static final double EPSILON = 1e-5;
+
+	@Test
+	public void testMatchesPerPixelWeights()
+	{
+		final Random rnd = new Random( 11 );
+		final FinalDimensions tileDimensions = new FinalDimensions( 40, 30, 20 );
+		final FinalDimensions cellDimensions = new FinalDimensions( 32, 24, 16 );
+		final double[] offset = new double[] { -5.3, 2.7, -10.5 };
+		final Interval intersection = new FinalInterval( new long[] { 0, 2, 0 }, new long[] { 31, 23, 9 } );
+
+		final ArrayImg< FloatType, FloatArray > source = ArrayImgs.floats( Intervals.dimensionsAsLongArray( intersection ) );
+		for ( final FloatType val : source )
+			val.set( rnd.nextInt( 1000 ) );
+
+		final int numElements = ( int ) Intervals.numElements( cellDimensions );
+		final float[] weights = new float[ numElements ], values = new float[ numElements ];
+		new BlendingKernel( tileDimensions, offset, intersection, cellDimensions, 0.2 ).accumulate( Views.flatIterable( source ).cursor(), weights, values );
+
+		final float[] expectedWeights = new float[ numElements ], expectedValues = new float[ numElements ];
+		final Cursor< FloatType > sourceCursor = Views.flatIterable( source ).localizingCursor();
+		final double[] position = new double[ 3 ];
+		while ( sourceCursor.hasNext() )
+		{
+			final double value = sourceCursor.next().getRealDouble();
+			int index = 0;
+			for ( int d = 2; d >= 0; --d )
+			{
+				final long cellPosition = sourceCursor.getLongPosition( d ) + intersection.min( d );
+				position[ d ] = cellPosition - offset[ d ];
+				index = index * ( int ) cellDimensions.dimension( d ) + ( int ) cellPosition;
+			}
+			final double weight = BlendingKernel.getBlendingWeight( position, tileDimensions, 0.2 );
+			expectedWeights[ index ] += weight;
+			expectedValues[ index ] += value * weight;
+		}
+
+		Assert.assertArrayEquals( expectedWeights, weights, ( float ) EPSILON );
+		Assert.assertArrayEquals( expectedValues, values, ( float ) ( EPSILON * 1000 ) );
+	}
+
+	@Test
+	public void testSharedWeights()
+	{
+		final Random rnd = new Random( 12 );
+		final FinalDimensions tileDimensions = new FinalDimensions( 40, 30, 20 );
+		final FinalDimensions cellDimensions = new FinalDimensions( 32, 24, 16 );
+		final double[] offset = new double[] { 3.5, -1.2, 4.8 };
+		final Interval intersection = new FinalInterval( new long[] { 3, 0, 4 }, new long[] { 31, 23, 15 } );
+
+		final ArrayImg< FloatType, FloatArray > source = ArrayImgs.floats( Intervals.dimensionsAsLongArray( intersection ) );
+		for ( final FloatType val : source )
+			val.set( rnd.nextInt( 1000 ) );
+
+		final BlendingKernel blendingKernel = new BlendingKernel( tileDimensions, offset, intersection, cellDimensions, 0.2 );
+		final int numElements = ( int ) Intervals.numElements( cellDimensions );
+		final float[] expectedWeights = new float[ numElements ], expectedValues = new float[ numElements ];
+		blendingKernel.accumulate( Views.flatIterable( source ).cursor(), expectedWeights, expectedValues );
+
+		final float[] weights = new float[ numElements ], values = new float[ numElements ];
+		final float[] tileWeights = blendingKernel.getWeights();
+		blendingKernel.accumulateWeights( tileWeights, weights );
+		blendingKernel.accumulateValues( Views.flatIterable( source ).cursor(), tileWeights, values );
+
+		Assert.assertArrayEquals( expectedWeights, weights, ( float ) EPSILON );
+		Assert.assertArrayEquals( expectedValues, values, ( float ) ( EPSILON * 1000 ) );
+	}
+
+	@Test
+	public void testBlendingWeight()
+	{
+		final FinalDimensions tileDimensions = new FinalDimensions( 101, 101 );
+
+		// the center of the tile is not blended
+		Assert.assertEquals( 1, BlendingKernel.getBlendingWeight( new double[] { 50, 50 }, tileDimensions, 0.2 ), 0 );
+
+		// the weight decreases towards the border
+		final double nearBorder = BlendingKernel.getBlendingWeight( new double[] { 2, 50 }, tileDimensions, 0.2 );
+		final double atBorder = BlendingKernel.getBlendingWeight( new double[] { 0, 50 }, tileDimensions, 0.2 );
+		Assert.assertTrue( nearBorder < 1 );
+		Assert.assertTrue( atBorder < nearBorder );
+		Assert.assertTrue( atBorder > 0 );
+	}
+}
@@ -0,0 +1,98 @@
+package org.janelia.stitching;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.FinalDimensions;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+
+public class DeltaExportRegionsTest
+{
+	@Test
+	public void testAffectedRegions()
+	{
+		final TileInfo[] previousTiles = new TileInfo[] {
+				createTile( 0, 100, 50 ),
+				createTile( 1, 180, 50 ),
+				createTile( 2, 260, 50 )
+			};
+		final TileInfo[] tiles = new TileInfo[] {
+				createTile( 0, 100, 50 ), // unchanged
+				createTile( 1, 185.5, 52 ), // moved
+				createTile( 3, 340, 50 ) // added (tile 2 is removed)
+			};
+
+		final List< Interval > affectedRegions = PipelineFusionStepExecutor.getAffectedRegions( previousTiles, tiles );
+
+		// the tiles are translated into the space of the previous export
+		Assert.assertArrayEquals( new double[] { 0, 0 }, tiles[ 0 ].getPosition(), 0 );
+		Assert.assertArrayEquals( new double[] { 85.5, 2 }, tiles[ 1 ].getPosition(), 0 );
+
+		// new and old box of the moved tile, new box of the added tile, old box of the removed tile
+		Assert.assertEquals( 4, affectedRegions.size() );
+		assertRegion( new long[] { 85, 1 }, new long[] { 186, 102 }, affectedRegions.get( 0 ) );
+		assertRegion( new long[] { 79, -1 }, new long[] { 180, 100 }, affectedRegions.get( 1 ) );
+		assertRegion( new long[] { 239, -1 }, new long[] { 340, 100 }, affectedRegions.get( 2 ) );
+		assertRegion( new long[] { 159, -1 }, new long[] { 260, 100 }, affectedRegions.get( 3 ) );
+	}
+
+	@Test
+	public void testNoChanges()
+	{
+		final TileInfo[] previousTiles = new TileInfo[] { createTile( 0, 10, 20 ), createTile( 1, 90, 20 ) };
+		final TileInfo[] tiles = new TileInfo[] { createTile( 1, 90, 20 ), createTile( 0, 10, 20 ) };
+		Assert.assertTrue( PipelineFusionStepExecutor.getAffectedRegions( previousTiles, tiles ).isEmpty() );
+	}
+
+	@Test
+	public void testEmptiedCellsAreRewritten()
+	{
+		final TileInfo[] previousTiles = new TileInfo[] {
+				createTile( 0, 0, 0 ),
+				createTile( 1, 100, 0 ),
+				createTile( 2, 200, 0 )
+			};
+		final TileInfo[] tiles = new TileInfo[] {
+				createTile( 0, 0, 0 ), // unchanged
+				createTile( 1, 130, 0 ) // moved (tile 2 is removed)
+			};
+
+		final List< Interval > affectedRegions = PipelineFusionStepExecutor.getAffectedRegions( previousTiles, tiles );
+		final List< TileInfo > cells = TileOperations.divideSpace( new Boundaries( new long[] { 300, 100 } ), new FinalDimensions( 50, 50 ) );
+		final List< TileInfo > affectedCells = PipelineFusionStepExecutor.getAffectedCells( cells, affectedRegions );
+		final TileSpatialIndex tileIndex = new TileSpatialIndex( tiles );
+
+		// all cells that were covered by the old boxes of the moved and removed tiles are re-fused, including the ones that are empty now
+		int numEmptiedCells = 0;
+		for ( final TileInfo cell : cells )
+		{
+			final boolean coveredByChangedTile = cell.getBoundaries().max( 0 ) >= 99; // the affected regions are expanded by one voxel
+			Assert.assertEquals( coveredByChangedTile, affectedCells.contains( cell ) );
+			if ( coveredByChangedTile && TileOperations.findTilesWithinSubregion( tileIndex, cell ).isEmpty() )
+				++numEmptiedCells;
+		}
+		Assert.assertEquals( 2, numEmptiedCells );
+
+		// the emptied cells are not skipped in the delta mode, so the old data of the removed and moved tiles is overwritten
+		Assert.assertFalse( PipelineFusionStepExecutor.areUniformCellsSkipped( true ) );
+		Assert.assertTrue( PipelineFusionStepExecutor.areUniformCellsSkipped( false ) );
+	}
+
+	private static TileInfo createTile( final int index, final double x, final double y )
+	{
+		final TileInfo tile = new TileInfo( 2 );
+		tile.setIndex( index );
+		tile.setPosition( new double[] { x, y } );
+		tile.setSize( new long[] { 100, 100 } );
+		return tile;
+	}
+
+	private static void assertRegion( final long[] expectedMin, final long[] expectedMax, final Interval region )
+	{
+		Assert.assertArrayEquals( expectedMin, Intervals.minAsLongArray( region ) );
+		Assert.assertArrayEquals( expectedMax, Intervals.maxAsLongArray( region ) );
+	}
+}
@@ -0,0 +1,97 @@
+package org.janelia.stitching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the exhaustive pairwise check with the sweep-and-prune search (sequential and fork/join) and with the spatial index
+ * on synthetic grids of slightly jittered tiles.
+ *
+ * Usage: FindOverlappingTilesBenchmark [tile counts, default 1000,10000,100000]
+ * The exhaustive check is skipped for more than 20000 tiles unless the count is prefixed with '!' (e.g. !100000).
+ */
+public class FindOverlappingTilesBenchmark
+{
+	private static final int MAX_BRUTE_FORCE_TILES = 20000;
+	private static final int REPEATS = 3;
+
+	public static void main( final String[] args )
+	{
+		final String[] tileCounts = args.length > 0 ? args[ 0 ].split( "," ) : new String[] { "1000", "10000", "100000" };
+		for ( final String tileCountStr : tileCounts )
+		{
+			final boolean forceBruteForce = tileCountStr.startsWith( "!" );
+			final int tileCount = Integer.parseInt( forceBruteForce ? tileCountStr.substring( 1 ) : tileCountStr );
+			final TileInfo[] tiles = createTileGrid( tileCount );
+			System.out.println( "Tiles: " + tiles.length );
+
+			if ( forceBruteForce || tiles.length <= MAX_BRUTE_FORCE_TILES )
+				benchmark( "  brute force", () -> findOverlappingTilesBruteForce( tiles ).size() );
+			else
+				System.out.println( "  brute force: skipped" );
+
+			benchmark( "  sweep-and-prune", () -> TileOperations.findOverlappingTiles( tiles, false ).size() );
+			benchmark( "  sweep-and-prune (fork/join)", () -> TileOperations.findOverlappingTiles( tiles, true ).size() );
+			benchmark( "  spatial index", () -> TileOperations.findOverlappingTiles( new TileSpatialIndex( tiles ) ).size() );
+			System.out.println();
+		}
+	}
+
+	private static void benchmark( final String name, final PairCounter counter )
+	{
+		long bestElapsed = Long.MAX_VALUE;
+		int pairs = 0;
+		for ( int repeat = 0; repeat < REPEATS; ++repeat )
+		{
+			final long start = System.nanoTime();
+			pairs = counter.count();
+			bestElapsed = Math.min( System.nanoTime() - start, bestElapsed );
+		}
+		System.out.println( name + ": " + pairs + " pairs, best of " + REPEATS + " runs took " + bestElapsed / 1e6 + "ms" );
+	}
+
+	private static ArrayList< TilePair > findOverlappingTilesBruteForce( final TileInfo[] tiles )
+	{
+		final ArrayList< TilePair > overlappingTiles = new ArrayList<>();
+		for ( int i = 0; i < tiles.length; i++ )
+			for ( int j = i + 1; j < tiles.length; j++ )
+				if ( TileOperations.overlap( tiles[ i ], tiles[ j ] ) )
+					overlappingTiles.add( new TilePair( tiles[ i ], tiles[ j ] ) );
+		return overlappingTiles;
+	}
+
+	/**
+	 * Creates a 3D grid of tiles with 10% overlap and a small random offset of each tile, similar to a typical acquisition.
+	 */
+	private static TileInfo[] createTileGrid( final int tileCount )
+	{
+		final Random rnd = new Random( 42 );
+		final long[] tileSize = new long[] { 1000, 1000, 500 };
+		final int gridZ = Math.max( 1, ( int ) Math.round( Math.cbrt( tileCount ) / 2 ) );
+		final int gridXY = ( int ) Math.ceil( Math.sqrt( ( double ) tileCount / gridZ ) );
+
+		final List< TileInfo > tiles = new ArrayList<>();
+		for ( int z = 0; z < gridZ && tiles.size() < tileCount; ++z )
+			for ( int y = 0; y < gridXY && tiles.size() < tileCount; ++y )
+				for ( int x = 0; x < gridXY && tiles.size() < tileCount; ++x )
+				{
+					final TileInfo tile = new TileInfo( 3 );
+					tile.setIndex( tiles.size() );
+					tile.setPosition( new double[] {
+							x * tileSize[ 0 ] * 0.9 + rnd.nextGaussian() * 10,
+							y * tileSize[ 1 ] * 0.9 + rnd.nextGaussian() * 10,
+							z * tileSize[ 2 ] * 0.9 + rnd.nextGaussian() * 5
+						} );
+					tile.setSize( tileSize.clone() );
+					tiles.add( tile );
+				}
+		return tiles.toArray( new TileInfo[ 0 ] );
+	}
+
+	@FunctionalInterface
+	private static interface PairCounter
+	{
+		int count();
+	}
+}
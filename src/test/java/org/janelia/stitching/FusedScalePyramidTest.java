@@ -0,0 +1,83 @@
+package org.janelia.stitching;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FusedScalePyramidTest
+{
+	@Test
+	public void testIsotropic()
+	{
+		final FusedScalePyramid scalePyramid = new FusedScalePyramid( new long[] { 1000, 500, 300 }, new int[] { 128, 128, 128 }, new double[] { 1, 1, 1 } );
+
+		// 1000 -> 500 -> 250 -> 125 fits into a single block
+		Assert.assertEquals( 4, scalePyramid.numLevels() );
+		Assert.assertArrayEquals( new int[] { 8, 8, 8 }, scalePyramid.getDownsamplingFactors( 3 ) );
+		Assert.assertArrayEquals( new int[] { 2, 2, 2 }, scalePyramid.getRelativeDownsamplingFactors( 3 ) );
+		Assert.assertArrayEquals( new long[] { 125, 62, 37 }, scalePyramid.getDimensions( 3 ) );
+		Assert.assertArrayEquals( new int[] { 512, 512, 512 }, scalePyramid.getProcessingCellSize( 2 ) );
+	}
+
+	@Test
+	public void testAnisotropic()
+	{
+		final FusedScalePyramid scalePyramid = new FusedScalePyramid( new long[] { 2048, 2048, 500 }, new int[] { 128, 128, 32 }, new double[] { 1, 1, 4 } );
+
+		Assert.assertArrayEquals( new int[] { 2, 2, 1 }, scalePyramid.getDownsamplingFactors( 1 ) );
+		Assert.assertArrayEquals( new int[] { 4, 4, 1 }, scalePyramid.getDownsamplingFactors( 2 ) );
+		Assert.assertArrayEquals( new int[] { 8, 8, 2 }, scalePyramid.getDownsamplingFactors( 3 ) );
+		Assert.assertArrayEquals( new int[] { 16, 16, 4 }, scalePyramid.getDownsamplingFactors( 4 ) );
+		Assert.assertArrayEquals( new int[] { 64, 64, 16 }, scalePyramid.getDownsamplingFactors( 6 ) );
+		Assert.assertArrayEquals( new long[] { 32, 32, 31 }, scalePyramid.getDimensions( 6 ) );
+		Assert.assertEquals( 7, scalePyramid.numLevels() );
+
+		// every level is an integer downsampling of the previous one
+		for ( int level = 1; level < scalePyramid.numLevels(); ++level )
+		{
+			final int[] factors = scalePyramid.getDownsamplingFactors( level ), previousFactors = scalePyramid.getDownsamplingFactors( level - 1 ), relativeFactors = scalePyramid.getRelativeDownsamplingFactors( level );
+			for ( int d = 0; d < factors.length; ++d )
+				Assert.assertEquals( factors[ d ], previousFactors[ d ] * relativeFactors[ d ] );
+		}
+	}
+
+	@Test
+	public void testMaxFusedLevels()
+	{
+		final FusedScalePyramid scalePyramid = new FusedScalePyramid( new long[] { 2048, 2048, 500 }, new int[] { 128, 128, 32 }, new double[] { 1, 1, 4 } );
+
+		Assert.assertEquals( 1024L * 1024 * 64, scalePyramid.getProcessingCellNumElements( 3 ) );
+		// the processing cell of the last level is clipped by the full-scale dimensions
+		Assert.assertEquals( 2048L * 2048 * 500, scalePyramid.getProcessingCellNumElements( 6 ) );
+
+		Assert.assertEquals( 3, scalePyramid.getMaxFusedLevels( 5, 1024L * 1024 * 64 ) );
+		Assert.assertEquals( 2, scalePyramid.getMaxFusedLevels( 5, 1024L * 1024 * 64 - 1 ) );
+		Assert.assertEquals( 0, scalePyramid.getMaxFusedLevels( 5, 0 ) );
+
+		// the requested number of levels is not exceeded and is limited by the number of levels in the pyramid
+		Assert.assertEquals( 1, scalePyramid.getMaxFusedLevels( 1, Long.MAX_VALUE ) );
+		Assert.assertEquals( 6, scalePyramid.getMaxFusedLevels( 10, Long.MAX_VALUE ) );
+	}
+
+	@Test
+	public void testLevelRegion()
+	{
+		final FusedScalePyramid scalePyramid = new FusedScalePyramid( new long[] { 1000, 100 }, new int[] { 64, 64 }, new double[] { 1, 1 } );
+		final long[] levelMin = new long[ 2 ], levelSize = new long[ 2 ];
+
+		// inner region produces whole blocks
+		scalePyramid.getLevelRegion( 2, new long[] { 256, 0 }, new long[] { 256, 100 }, levelMin, levelSize );
+		Assert.assertArrayEquals( new long[] { 64, 0 }, levelMin );
+		Assert.assertArrayEquals( new long[] { 64, 25 }, levelSize );
+
+		// the last region is truncated by the level dimensions
+		scalePyramid.getLevelRegion( 2, new long[] { 768, 0 }, new long[] { 232, 100 }, levelMin, levelSize );
+		Assert.assertArrayEquals( new long[] { 192, 0 }, levelMin );
+		Assert.assertArrayEquals( new long[] { 58, 25 }, levelSize );
+
+		// the dimension that has been downsampled to a single pixel is not downsampled further
+		final FusedScalePyramid thinScalePyramid = new FusedScalePyramid( new long[] { 1000, 3 }, new int[] { 64, 64 }, new double[] { 1, 1 } );
+		Assert.assertArrayEquals( new int[] { 16, 2 }, thinScalePyramid.getDownsamplingFactors( 4 ) );
+		thinScalePyramid.getLevelRegion( 4, new long[] { 0, 0 }, new long[] { 1024, 3 }, levelMin, levelSize );
+		Assert.assertArrayEquals( new long[] { 62, 1 }, levelSize );
+	}
+}
@@ -0,0 +1,84 @@
+package org.janelia.stitching;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Translation;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the interpolated view stack that is used for tiles at subpixel positions with the direct translated view
+ * that is used for tiles at integral positions, by copying a tile into a 256^3 output cell.
+ *
+ * Usage: IntegerOffsetFusionBenchmark
+ */
+public class IntegerOffsetFusionBenchmark
+{
+	private static final int CELL_SIZE = 256;
+	private static final int TILE_SIZE = 300;
+	private static final int REPEATS = 5;
+
+	public static void main( final String[] args )
+	{
+		final ArrayImg< UnsignedShortType, ShortArray > tileImg = ArrayImgs.unsignedShorts( TILE_SIZE, TILE_SIZE, TILE_SIZE );
+		final Random rnd = new Random( 42 );
+		for ( final UnsignedShortType val : tileImg )
+			val.set( rnd.nextInt( 4096 ) );
+
+		final RandomAccessibleInterval< FloatType > convertedTile = Converters.convert( ( RandomAccessibleInterval< UnsignedShortType > ) tileImg, new RealFloatConverter<>(), new FloatType() );
+		final Interval cell = new FinalInterval( CELL_SIZE, CELL_SIZE, CELL_SIZE );
+		final long[] offset = new long[] { -20, -13, -7 };
+		final double[] realOffset = new double[] { offset[ 0 ], offset[ 1 ], offset[ 2 ] };
+
+		final ArrayImg< FloatType, FloatArray > interpolatedOut = ArrayImgs.floats( CELL_SIZE, CELL_SIZE, CELL_SIZE );
+		final ArrayImg< FloatType, FloatArray > directOut = ArrayImgs.floats( CELL_SIZE, CELL_SIZE, CELL_SIZE );
+
+		benchmark( "interpolated", () -> copy(
+				Views.interval(
+						Views.raster( RealViews.affine( Views.interpolate( Views.extendBorder( convertedTile ), new NLinearInterpolatorFactory<>() ), new Translation( realOffset ) ) ),
+						cell ),
+				interpolatedOut ) );
+		benchmark( "direct", () -> copy(
+				Views.interval( Views.translate( convertedTile, offset ), cell ),
+				directOut ) );
+
+		final Cursor< FloatType > interpolatedCursor = interpolatedOut.cursor(), directCursor = directOut.cursor();
+		double maxDifference = 0;
+		while ( interpolatedCursor.hasNext() )
+			maxDifference = Math.max( Math.abs( interpolatedCursor.next().get() - directCursor.next().get() ), maxDifference );
+		System.out.println( "max difference: " + maxDifference );
+	}
+
+	private static void benchmark( final String name, final Runnable copy )
+	{
+		long bestElapsed = Long.MAX_VALUE;
+		for ( int repeat = 0; repeat < REPEATS; ++repeat )
+		{
+			final long start = System.nanoTime();
+			copy.run();
+			bestElapsed = Math.min( System.nanoTime() - start, bestElapsed );
+		}
+		System.out.println( name + ": best of " + REPEATS + " runs took " + bestElapsed / 1e6 + "ms" );
+	}
+
+	private static void copy( final RandomAccessibleInterval< FloatType > source, final ArrayImg< FloatType, FloatArray > target )
+	{
+		final Cursor< FloatType > sourceCursor = Views.flatIterable( source ).cursor();
+		final Cursor< FloatType > targetCursor = target.cursor();
+		while ( targetCursor.hasNext() )
+			targetCursor.next().set( sourceCursor.next() );
+	}
+}
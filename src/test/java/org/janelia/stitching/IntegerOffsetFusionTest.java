@@ -0,0 +1,63 @@
+package org.janelia.stitching;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class IntegerOffsetFusionTest
+{
+	private static final long[] TILE_SIZE = new long[] { 40, 35, 30 };
+	private static final Interval CELL = new FinalInterval( 32, 32, 32 );
+
+	@Test
+	public void testDirectCopyMatchesInterpolation()
+	{
+		final ArrayImg< UnsignedShortType, ShortArray > tileImg = ArrayImgs.unsignedShorts( TILE_SIZE );
+		final Random rnd = new Random( 42 );
+		for ( final UnsignedShortType val : tileImg )
+			val.set( rnd.nextInt( 1 << 16 ) );
+		final RandomAccessibleInterval< FloatType > convertedTile = Converters.convert( ( RandomAccessibleInterval< UnsignedShortType > ) tileImg, new RealFloatConverter<>(), new FloatType() );
+
+		final long[][] offsets = new long[][] {
+			new long[] { 0, 0, 0 },
+			new long[] { -20, -13, -7 },
+			new long[] { 5, -3, 17 },
+			new long[] { -39, 31, -29 }
+		};
+
+		for ( final long[] offset : offsets )
+		{
+			final double[] realOffset = new double[ offset.length ];
+			for ( int d = 0; d < offset.length; ++d )
+				realOffset[ d ] = offset[ d ];
+
+			final Interval intersection = Intervals.intersect( Views.translate( convertedTile, offset ), CELL );
+			Assert.assertFalse( Intervals.isEmpty( intersection ) );
+
+			final RandomAccessibleInterval< FloatType > direct = FusionPerformer.getTranslatedTileInterval( convertedTile, offset, intersection );
+			final RandomAccessibleInterval< FloatType > interpolated = FusionPerformer.getInterpolatedTileInterval( convertedTile, realOffset, intersection );
+
+			final Cursor< FloatType > directCursor = Views.flatIterable( direct ).cursor(), interpolatedCursor = Views.flatIterable( interpolated ).cursor();
+			double maxDifference = 0;
+			while ( directCursor.hasNext() )
+				maxDifference = Math.max( Math.abs( interpolatedCursor.next().get() - directCursor.next().get() ), maxDifference );
+			Assert.assertFalse( interpolatedCursor.hasNext() );
+			Assert.assertEquals( 0, maxDifference, 0 );
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.janelia.stitching;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MaxMinDistanceOwnershipTest
+{
+	@Test
+	public void testMatchesPerPixelOwnership()
+	{
+		final Random rnd = new Random( 17 );
+		final int[] cellDimensions = new int[] { 37, 29, 11 };
+		for ( int iteration = 0; iteration < 50; ++iteration )
+		{
+			final int numTiles = 1 + rnd.nextInt( 8 );
+			final double[][] offsets = new double[ numTiles ][ 3 ];
+			final long[][] tileDimensions = new long[ numTiles ][ 3 ];
+			for ( int t = 0; t < numTiles; ++t )
+			{
+				for ( int d = 0; d < 3; ++d )
+				{
+					tileDimensions[ t ][ d ] = cellDimensions[ d ] / 2 + rnd.nextInt( cellDimensions[ d ] );
+					final double offset = rnd.nextInt( cellDimensions[ d ] + 10 ) - tileDimensions[ t ][ d ] / 2 - 5;
+					// mix integer and subpixel offsets
+					offsets[ t ][ d ] = rnd.nextBoolean() ? offset : offset + rnd.nextDouble();
+				}
+			}
+			// identical tiles produce ties
+			if ( numTiles > 1 && rnd.nextBoolean() )
+			{
+				offsets[ numTiles - 1 ] = offsets[ 0 ].clone();
+				tileDimensions[ numTiles - 1 ] = tileDimensions[ 0 ].clone();
+			}
+
+			Assert.assertArrayEquals( getOwnersPerPixel( offsets, tileDimensions, cellDimensions ), getOwners( new MaxMinDistanceOwnership( offsets, tileDimensions, cellDimensions ), cellDimensions ) );
+		}
+	}
+
+	private static int[] getOwners( final MaxMinDistanceOwnership ownership, final int[] cellDimensions )
+	{
+		final int[] owners = new int[ cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] ];
+		Arrays.fill( owners, -1 );
+		for ( int t = 0; t < ownership.numTiles(); ++t )
+		{
+			for ( int r = 0; r < ownership.getNumRuns( t ); ++r )
+			{
+				for ( int x = ownership.getRunStart( t, r ); x < ownership.getRunEnd( t, r ); ++x )
+				{
+					final int index = ownership.getRunRow( t, r ) * cellDimensions[ 0 ] + x;
+					Assert.assertEquals( -1, owners[ index ] );
+					owners[ index ] = t;
+				}
+			}
+		}
+		return owners;
+	}
+
+	private static int[] getOwnersPerPixel( final double[][] offsets, final long[][] tileDimensions, final int[] cellDimensions )
+	{
+		final int[] owners = new int[ cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] ];
+		final int[] position = new int[ 3 ];
+		for ( int i = 0; i < owners.length; ++i )
+		{
+			owners[ i ] = -1;
+			double maxMinDistance = 0;
+			for ( int t = 0; t < offsets.length; ++t )
+			{
+				double minDistance = Double.MAX_VALUE;
+				for ( int d = 0; d < 3; ++d )
+					minDistance = Math.min( Math.min( position[ d ] - offsets[ t ][ d ], tileDimensions[ t ][ d ] - 1 + offsets[ t ][ d ] - position[ d ] ), minDistance );
+				if ( minDistance >= maxMinDistance )
+				{
+					maxMinDistance = minDistance;
+					owners[ i ] = t;
+				}
+			}
+
+			for ( int d = 0; d < 3 && ++position[ d ] == cellDimensions[ d ]; ++d )
+				position[ d ] = 0;
+		}
+		return owners;
+	}
+}
@@ -0,0 +1,316 @@
+package org.janelia.stitching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+
+import org.janelia.stitching.StitchingOptimizer.OptimizationParameters;
+import org.janelia.stitching.StitchingOptimizer.OptimizationResult;
+import org.janelia.stitching.StitchingOptimizer.ParameterSearchResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+import mpicbg.stitching.ComparePair;
+import mpicbg.stitching.ImagePlusTimePoint;
+import mpicbg.stitching.StitchingParameters;
+
+public class StitchingOptimizerTest
+{
+	private static final int GRID_SIZE = 4;
+	private static final double TILE_STEP = 90;
+
+	private final Random rnd = new Random( 29 );
+
+	/**
+	 * Emulates the global optimization: the resulting graph is the largest connected component of the retained pairs,
+	 * and the error is determined by the worst retained pair. The result depends only on the set of retained pairs as with the real optimizer.
+	 */
+	private static final class FakeOptimizationPerformer extends GlobalOptimizationPerformer
+	{
+		private final Map< Long, Double > pairErrors;
+
+		public FakeOptimizationPerformer( final Map< Long, Double > pairErrors )
+		{
+			this.pairErrors = pairErrors;
+		}
+
+		@Override
+		public ArrayList< ImagePlusTimePoint > optimize( final Vector< ComparePair > pairs, final StitchingParameters params )
+		{
+			final Map< Integer, Integer > parents = new HashMap<>();
+			final Set< Integer > tileIndexes = new HashSet<>();
+			double errorSum = 0;
+			int validPairs = 0;
+			maxDisplacement = 0;
+			for ( final ComparePair pair : pairs )
+			{
+				if ( pair.getIsValidOverlap() )
+				{
+					final int ind1 = pair.getTile1().getImpId(), ind2 = pair.getTile2().getImpId();
+					parents.put( findRoot( parents, ind1 ), findRoot( parents, ind2 ) );
+					tileIndexes.add( ind1 );
+					tileIndexes.add( ind2 );
+					final double error = pairErrors.get( getPairKey( ind1, ind2 ) );
+					maxDisplacement = Math.max( error, maxDisplacement );
+					errorSum += error;
+					++validPairs;
+				}
+			}
+
+			final Map< Integer, Integer > graphSizes = new HashMap<>();
+			for ( final Integer tileIndex : tileIndexes )
+				graphSizes.merge( findRoot( parents, tileIndex ), 1, Integer::sum );
+			remainingGraphSize = graphSizes.isEmpty() ? 0 : Collections.max( graphSizes.values() );
+			avgDisplacement = validPairs == 0 ? 0 : errorSum / validPairs;
+			return null;
+		}
+
+		private static int findRoot( final Map< Integer, Integer > parents, final int index )
+		{
+			int root = index;
+			while ( parents.containsKey( root ) && parents.get( root ) != root )
+				root = parents.get( root );
+			return root;
+		}
+	}
+
+	@Test
+	public void testPrunedSearchMatchesExhaustiveSearch()
+	{
+		final List< OptimizationParameters > optimizationParametersList = StitchingOptimizer.createOptimizationParametersGrid();
+		for ( int i = 0; i < 20; ++i )
+		{
+			final TileInfo[] tiles = createGridTiles();
+			final List< SerializablePairWiseStitchingResult[] > shifts = createShifts( tiles, 1 );
+
+			// pairs with lower cross correlation are more likely to be outliers
+			final Map< Long, Double > pairErrors = new HashMap<>();
+			for ( final SerializablePairWiseStitchingResult[] pairMulti : shifts )
+			{
+				final SerializablePairWiseStitchingResult pair = pairMulti[ 0 ];
+				pair.setIsValidOverlap( rnd.nextDouble() > 0.1 );
+				final boolean isOutlier = rnd.nextDouble() > pair.getCrossCorrelation();
+				pairErrors.put( getPairKey( pair.getTilePair().getA().getIndex(), pair.getTilePair().getB().getIndex() ), isOutlier ? 5 + rnd.nextDouble() * 30 : rnd.nextDouble() * 3 );
+			}
+
+			for ( final double maxAllowedError : new double[] { 5, 20 } )
+			{
+				final List< OptimizationResult > exhaustiveResults = new ArrayList<>();
+				for ( final OptimizationParameters optimizationParameters : optimizationParametersList )
+					exhaustiveResults.add( StitchingOptimizer.evaluateOptimizationParameters( shifts, optimizationParameters, new FakeOptimizationPerformer( pairErrors ), null, maxAllowedError, tiles.length ) );
+				Collections.sort( exhaustiveResults );
+
+				for ( final int waveSize : new int[] { 1, 3, 16 } )
+				{
+					final ParameterSearchResult searchResult = StitchingOptimizer.searchOptimizationParameters( shifts, optimizationParametersList, false, waveSize,
+							wave ->
+							{
+								Assert.assertTrue( wave.size() <= waveSize );
+								final List< OptimizationResult > waveResults = new ArrayList<>();
+								for ( final OptimizationParameters optimizationParameters : wave )
+									waveResults.add( StitchingOptimizer.evaluateOptimizationParameters( shifts, optimizationParameters, new FakeOptimizationPerformer( pairErrors ), null, maxAllowedError, tiles.length ) );
+								return waveResults;
+							} );
+
+					Assert.assertEquals( optimizationParametersList.size(), searchResult.gridSize );
+					Assert.assertEquals( searchResult.distinctEdgeSets, searchResult.evaluatedCandidates + searchResult.prunedCandidates );
+					Assert.assertTrue( searchResult.evaluatedCandidates < optimizationParametersList.size() );
+
+					final OptimizationResult expected = exhaustiveResults.get( 0 ), actual = searchResult.optimizationResultList.get( 0 );
+					Assert.assertEquals( expected.optimizationParameters, actual.optimizationParameters );
+					assertResultEquals( expected, actual, 0 );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testPrunedSearchMatchesExhaustiveSearchWithGlobalOptimization()
+	{
+		final TileInfo[] tiles = createGridTiles();
+		final List< SerializablePairWiseStitchingResult[] > shifts = createShifts( tiles, 0.2 );
+
+		// make a few pairs outliers
+		for ( final int outlierIndex : new int[] { 2, 7, 15 } )
+		{
+			final SerializablePairWiseStitchingResult pair = shifts.get( outlierIndex )[ 0 ];
+			pair.getOffset()[ 0 ] += 30;
+			pair.getOffset()[ 1 ] -= 20;
+		}
+
+		final List< OptimizationParameters > optimizationParametersList = new ArrayList<>();
+		for ( final double minCrossCorrelation : new double[] { 0.1, 0.3, 0.5, 0.7, 0.9 } )
+			for ( final double minVariance : new double[] { 0, 50, 100, 150 } )
+				optimizationParametersList.add( new OptimizationParameters( minCrossCorrelation, minVariance ) );
+
+		final StitchingParameters stitchingParameters = createStitchingParameters();
+		final double maxAllowedError = 5;
+
+		GlobalOptimizationPerformer.suppressOutput();
+		try
+		{
+			final List< OptimizationResult > exhaustiveResults = new ArrayList<>();
+			for ( final OptimizationParameters optimizationParameters : optimizationParametersList )
+				exhaustiveResults.add( StitchingOptimizer.evaluateOptimizationParameters( shifts, optimizationParameters, new GlobalOptimizationPerformer(), stitchingParameters, maxAllowedError, tiles.length ) );
+			Collections.sort( exhaustiveResults );
+
+			final ParameterSearchResult searchResult = StitchingOptimizer.searchOptimizationParameters( shifts, optimizationParametersList, false, 2,
+					wave ->
+					{
+						final List< OptimizationResult > waveResults = new ArrayList<>();
+						for ( final OptimizationParameters optimizationParameters : wave )
+							waveResults.add( StitchingOptimizer.evaluateOptimizationParameters( shifts, optimizationParameters, new GlobalOptimizationPerformer(), stitchingParameters, maxAllowedError, tiles.length ) );
+						return waveResults;
+					} );
+
+			// the iterative solver may converge to slightly different errors depending on the fixed tile, so compare the results with a tolerance
+			assertResultEquals( exhaustiveResults.get( 0 ), searchResult.optimizationResultList.get( 0 ), 0.1 );
+			Assert.assertTrue( searchResult.optimizationResultList.get( 0 ).maxDisplacement <= maxAllowedError );
+		}
+		finally
+		{
+			GlobalOptimizationPerformer.restoreOutput();
+		}
+	}
+
+	@Test
+	public void testWarmStartMatchesColdStart()
+	{
+		final TileInfo[] tiles = createGridTiles();
+		final List< SerializablePairWiseStitchingResult[] > previousShifts = createShifts( tiles, 1 );
+		final OptimizationParameters optimizationParameters = new OptimizationParameters( 0, -1 );
+		final StitchingParameters stitchingParameters = createStitchingParameters();
+
+		GlobalOptimizationPerformer.suppressOutput();
+		try
+		{
+			final GlobalOptimizationPerformer previousOptimizationPerformer = new GlobalOptimizationPerformer();
+			final Map< Integer, double[] > previousSolution = getPositions( previousOptimizationPerformer.optimize( StitchingOptimizer.createComparePairs( previousShifts, optimizationParameters ), stitchingParameters ) );
+			Assert.assertEquals( tiles.length, previousSolution.size() );
+
+			final TileInfo[] previousStitchedTiles = new TileInfo[ tiles.length ];
+			for ( int i = 0; i < tiles.length; ++i )
+			{
+				previousStitchedTiles[ i ] = tiles[ i ].clone();
+				previousStitchedTiles[ i ].setPosition( previousSolution.get( tiles[ i ].getIndex() ) );
+			}
+			final OptimizationWarmStart warmStart = new OptimizationWarmStart( previousStitchedTiles, previousShifts );
+
+			// the same set of pairs as in the previous iteration, and a new set where all shifts have changed so the whole graph is re-optimized
+			final List< List< SerializablePairWiseStitchingResult[] > > shiftsList = new ArrayList<>();
+			shiftsList.add( previousShifts );
+			shiftsList.add( createShifts( tiles, 1 ) );
+
+			for ( final List< SerializablePairWiseStitchingResult[] > shifts : shiftsList )
+			{
+				final GlobalOptimizationPerformer coldStartOptimizationPerformer = new GlobalOptimizationPerformer();
+				final Map< Integer, double[] > coldStartSolution = getPositions( coldStartOptimizationPerformer.optimize( StitchingOptimizer.createComparePairs( shifts, optimizationParameters ), stitchingParameters ) );
+
+				final GlobalOptimizationPerformer warmStartOptimizationPerformer = new GlobalOptimizationPerformer();
+				warmStartOptimizationPerformer.warmStart = warmStart;
+				warmStartOptimizationPerformer.earlyStoppingPlateauWidth = 200;
+				final Map< Integer, double[] > warmStartSolution = getPositions( warmStartOptimizationPerformer.optimize( StitchingOptimizer.createComparePairs( shifts, optimizationParameters ), stitchingParameters ) );
+
+				Assert.assertEquals( coldStartOptimizationPerformer.remainingGraphSize, warmStartOptimizationPerformer.remainingGraphSize );
+				Assert.assertEquals( coldStartOptimizationPerformer.maxDisplacement, warmStartOptimizationPerformer.maxDisplacement, 0.05 );
+				Assert.assertEquals( coldStartOptimizationPerformer.avgDisplacement, warmStartOptimizationPerformer.avgDisplacement, 0.05 );
+
+				// the solutions may differ by a global translation depending on the fixed tile, so compare the positions relative to the first tile
+				Assert.assertEquals( coldStartSolution.keySet(), warmStartSolution.keySet() );
+				for ( final Integer tileIndex : coldStartSolution.keySet() )
+					for ( int d = 0; d < 2; ++d )
+						Assert.assertEquals(
+								coldStartSolution.get( tileIndex )[ d ] - coldStartSolution.get( 0 )[ d ],
+								warmStartSolution.get( tileIndex )[ d ] - warmStartSolution.get( 0 )[ d ],
+								0.1 );
+			}
+		}
+		finally
+		{
+			GlobalOptimizationPerformer.restoreOutput();
+		}
+	}
+
+	private static void assertResultEquals( final OptimizationResult expected, final OptimizationResult actual, final double errorTolerance )
+	{
+		Assert.assertEquals( expected.remainingGraphSize, actual.remainingGraphSize );
+		Assert.assertEquals( expected.remainingPairs, actual.remainingPairs );
+		Assert.assertEquals( expected.maxDisplacement, actual.maxDisplacement, errorTolerance );
+		Assert.assertEquals( expected.avgDisplacement, actual.avgDisplacement, errorTolerance );
+	}
+
+	private static long getPairKey( final int ind1, final int ind2 )
+	{
+		return ( long ) Math.min( ind1, ind2 ) * Integer.MAX_VALUE + Math.max( ind1, ind2 );
+	}
+
+	private static Map< Integer, double[] > getPositions( final List< ImagePlusTimePoint > optimized )
+	{
+		final Map< Integer, double[] > positions = new HashMap<>();
+		for ( final ImagePlusTimePoint optimizedTile : optimized )
+		{
+			final double[] pos = new double[ 2 ];
+			optimizedTile.getModel().applyInPlace( pos );
+			positions.put( optimizedTile.getImpId(), pos );
+		}
+		return positions;
+	}
+
+	private static StitchingParameters createStitchingParameters()
+	{
+		final StitchingParameters stitchingParameters = new StitchingParameters();
+		stitchingParameters.dimensionality = 2;
+		stitchingParameters.absoluteThreshold = 5;
+		stitchingParameters.relativeThreshold = 3;
+		return stitchingParameters;
+	}
+
+	/**
+	 * Creates a 2D grid of overlapping tiles with slightly perturbed stage positions.
+	 */
+	private TileInfo[] createGridTiles()
+	{
+		final TileInfo[] tiles = new TileInfo[ GRID_SIZE * GRID_SIZE ];
+		for ( int i = 0; i < tiles.length; ++i )
+		{
+			tiles[ i ] = new TileInfo( 2 );
+			tiles[ i ].setIndex( i );
+			tiles[ i ].setFilePath( "/data/tile" + i + ".tif" );
+			tiles[ i ].setPosition( new double[] { ( i % GRID_SIZE ) * TILE_STEP + rnd.nextDouble() * 4 - 2, ( i / GRID_SIZE ) * TILE_STEP + rnd.nextDouble() * 4 - 2 } );
+			tiles[ i ].setSize( new long[] { 100, 100 } );
+			tiles[ i ].setType( ImageType.GRAY16 );
+		}
+		return tiles;
+	}
+
+	/**
+	 * Creates the pairs between adjacent tiles where the shifts deviate from the true offsets by up to the given noise amount.
+	 */
+	private List< SerializablePairWiseStitchingResult[] > createShifts( final TileInfo[] tiles, final double noise )
+	{
+		final List< SerializablePairWiseStitchingResult[] > shifts = new ArrayList<>();
+		for ( int i = 0; i < tiles.length; ++i )
+		{
+			for ( final int j : new int[] { i % GRID_SIZE == GRID_SIZE - 1 ? -1 : i + 1, i + GRID_SIZE < tiles.length ? i + GRID_SIZE : -1 } )
+			{
+				if ( j == -1 )
+					continue;
+
+				final float[] offset = new float[ 2 ];
+				for ( int d = 0; d < offset.length; ++d )
+					offset[ d ] = ( float ) ( tiles[ j ].getPosition( d ) - tiles[ i ].getPosition( d ) + ( rnd.nextDouble() * 2 - 1 ) * noise );
+
+				final SerializablePairWiseStitchingResult shift = new SerializablePairWiseStitchingResult( new TilePair( tiles[ i ], tiles[ j ] ), offset, ( float ) ( 0.2 + rnd.nextDouble() * 0.8 ) );
+				shift.setVariance( rnd.nextDouble() * 300 );
+				shifts.add( new SerializablePairWiseStitchingResult[] { shift } );
+			}
+		}
+		return shifts;
+	}
+}
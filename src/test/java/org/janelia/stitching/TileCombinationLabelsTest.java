@@ -0,0 +1,65 @@
+package org.janelia.stitching;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+
+public class TileCombinationLabelsTest
+{
+	@Test
+	public void testLabels()
+	{
+		final TileCombinationLabels labels = new TileCombinationLabels( new int[] { 10, 8, 4 } );
+		labels.addTile( 5, new FinalInterval( new long[] { 0, 0, 0 }, new long[] { 6, 7, 3 } ) );
+		labels.addTile( 2, new FinalInterval( new long[] { 4, 2, 0 }, new long[] { 9, 7, 3 } ) );
+		labels.addTile( 7, new FinalInterval( new long[] { 5, 0, 1 }, new long[] { 9, 3, 2 } ) );
+
+		// empty, {5}, {2,5}, {2}, {5,7}, {2,5,7}, {7}, {2,7}
+		Assert.assertEquals( 8, labels.numLabels() );
+
+		for ( int z = 0; z < 4; ++z )
+		{
+			for ( int y = 0; y < 8; ++y )
+			{
+				for ( int x = 0; x < 10; ++x )
+				{
+					final Set< Integer > expected = new HashSet<>();
+					if ( x <= 6 )
+						expected.add( 5 );
+					if ( x >= 4 && y >= 2 )
+						expected.add( 2 );
+					if ( x >= 5 && y <= 3 && z >= 1 && z <= 2 )
+						expected.add( 7 );
+					Assert.assertEquals( expected, labels.getTileIndexes( labels.getLabel( x + 10 * ( y + 8 * z ) ) ) );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRetainedLabels()
+	{
+		final TileCombinationLabels labels = new TileCombinationLabels( new int[] { 10 } );
+		labels.addTile( 1, new FinalInterval( new long[] { 0 }, new long[] { 5 } ) );
+		labels.addTile( 2, new FinalInterval( new long[] { 4 }, new long[] { 9 } ) );
+		labels.addTile( 3, new FinalInterval( new long[] { 8 }, new long[] { 9 } ) );
+
+		final Map< Integer, Set< Integer > > pairwiseConnectionsMap = new HashMap<>();
+		pairwiseConnectionsMap.put( 1, new HashSet<>( Arrays.asList( 2 ) ) );
+		pairwiseConnectionsMap.put( 2, new HashSet<>( Arrays.asList( 1 ) ) );
+
+		final boolean[] retained = labels.getRetainedLabels( pairwiseConnectionsMap );
+		final boolean[] retainedPixels = new boolean[ 10 ];
+		for ( int x = 0; x < 10; ++x )
+			retainedPixels[ x ] = retained[ labels.getLabel( x ) ];
+
+		Assert.assertArrayEquals( new boolean[] { false, false, false, false, true, true, false, false, false, false }, retainedPixels );
+	}
+}
@@ -0,0 +1,204 @@
+package org.janelia.stitching;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.janelia.dataaccess.DataProvider;
+import org.janelia.dataaccess.DataProviderFactory;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class TileOverlapLoaderTest
+{
+	private static final long[] TILE_SIZE = new long[] { 37, 29, 11 };
+	private static final int[] BLOCK_SIZE = new int[] { 8, 7, 5 };
+
+	private final Random rnd = new Random( 71 );
+	private final DataProvider dataProvider = DataProviderFactory.createFSDataProvider();
+
+	private String n5Path;
+	private N5FSWriter n5;
+	private TileInfo tile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		n5Path = Files.createTempDirectory( "TileOverlapLoaderTest-" ).resolve( "tiles.n5" ).toString();
+		n5 = new N5FSWriter( n5Path );
+
+		final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( TILE_SIZE );
+		for ( final UnsignedShortType val : img )
+			val.set( rnd.nextInt( 1 << 16 ) );
+		N5Utils.save( img, n5, "ch0/tile0", BLOCK_SIZE, new GzipCompression() );
+
+		tile = new TileInfo( TILE_SIZE.length );
+		tile.setIndex( 0 );
+		tile.setFilePath( Paths.get( n5Path, "ch0", "tile0" ).toString() );
+		tile.setPosition( new double[ TILE_SIZE.length ] );
+		tile.setSize( TILE_SIZE.clone() );
+		tile.setType( ImageType.GRAY16 );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		n5.remove();
+	}
+
+	@Test
+	public void testRegionsMatchFullTileCrop() throws IOException
+	{
+		final RandomAccessibleInterval< UnsignedShortType > fullTile = TileLoader.loadTile( tile, dataProvider );
+
+		// the full tile, a region within a single block, a region aligned to the block grid, and random regions that clip the partial blocks at the border
+		final Interval[] regions = new Interval[ 23 ];
+		regions[ 0 ] = new FinalInterval( TILE_SIZE );
+		regions[ 1 ] = new FinalInterval( new long[] { 9, 8, 1 }, new long[] { 14, 12, 3 } );
+		regions[ 2 ] = new FinalInterval( new long[] { 8, 7, 5 }, new long[] { 23, 20, 9 } );
+		for ( int i = 3; i < regions.length; ++i )
+		{
+			final long[] min = new long[ TILE_SIZE.length ], max = new long[ TILE_SIZE.length ];
+			for ( int d = 0; d < min.length; ++d )
+			{
+				min[ d ] = rnd.nextInt( ( int ) TILE_SIZE[ d ] );
+				max[ d ] = min[ d ] + rnd.nextInt( ( int ) ( TILE_SIZE[ d ] - min[ d ] ) );
+			}
+			regions[ i ] = new FinalInterval( min, max );
+		}
+
+		for ( final Interval region : regions )
+		{
+			final TileOverlapLoader.OverlapRegion overlapRegion = TileOverlapLoader.loadRegion( tile, region, dataProvider );
+			assertRegionEquals( Views.interval( fullTile, region ), overlapRegion.getData() );
+			Assert.assertEquals( Intervals.numElements( region ) * 2, overlapRegion.getBytesUsed() );
+		}
+	}
+
+	@Test
+	public void testCopyPartialBlock()
+	{
+		// the last block along X and Y is partial: 5x1 pixels at the grid position (7,4), i.e. at (56,28)
+		final short[] blockData = new short[] { 1, 2, 3, 4, 5 };
+		final ShortArrayDataBlock block = new ShortArrayDataBlock( new int[] { 5, 1 }, new long[] { 7, 4 }, blockData );
+
+		// the region covers the last 3 pixels of the block and extends beyond the block along Y
+		final Interval region = new FinalInterval( new long[] { 58, 27 }, new long[] { 61, 28 } );
+		final float[] target = new float[ ( int ) Intervals.numElements( region ) ];
+		TileOverlapLoader.copyBlock( block, DataType.UINT16, new int[] { 8, 7 }, region, Intervals.dimensionsAsLongArray( region ), target );
+		Assert.assertArrayEquals( new float[] { 0, 0, 0, 0, 3, 4, 5, 0 }, target, 0 );
+
+		// the region does not intersect with the block
+		final Interval disjointRegion = new FinalInterval( new long[] { 0, 0 }, new long[] { 3, 3 } );
+		final float[] disjointTarget = new float[ ( int ) Intervals.numElements( disjointRegion ) ];
+		TileOverlapLoader.copyBlock( block, DataType.UINT16, new int[] { 8, 7 }, disjointRegion, Intervals.dimensionsAsLongArray( disjointRegion ), disjointTarget );
+		Assert.assertArrayEquals( new float[ disjointTarget.length ], disjointTarget, 0 );
+	}
+
+	@Test
+	public void testBatchCacheKeepsImagesUntilLastUse()
+	{
+		final TileInfo[] tiles = new TileInfo[ 3 ];
+		for ( int i = 0; i < tiles.length; ++i )
+		{
+			tiles[ i ] = new TileInfo( 2 );
+			tiles[ i ].setIndex( i );
+			tiles[ i ].setFilePath( "/data/ch0/tile" + i + ".tif" );
+		}
+		final TilePair first = new TilePair( tiles[ 0 ], tiles[ 1 ] ), second = new TilePair( tiles[ 1 ], tiles[ 2 ] );
+		final TileOverlapLoader.BatchCache batchCache = new TileOverlapLoader.BatchCache( Arrays.asList( first, second ) );
+
+		// the image of the same tile in another channel is cached separately
+		final TileInfo otherChannelTile = tiles[ 1 ].clone();
+		otherChannelTile.setFilePath( "/data/ch1/tile1.tif" );
+		for ( final TileInfo tile : new TileInfo[] { tiles[ 0 ], tiles[ 1 ], otherChannelTile } )
+			batchCache.put( tile, ArrayImgs.unsignedShorts( 2, 2 ) );
+		Assert.assertEquals( 3, batchCache.getNumCachedImages() );
+		Assert.assertNotSame( batchCache.get( tiles[ 1 ] ), batchCache.get( otherChannelTile ) );
+
+		// the first tile is not used by the remaining pair, the second one is
+		batchCache.release( first );
+		Assert.assertNull( batchCache.get( tiles[ 0 ] ) );
+		Assert.assertNotNull( batchCache.get( tiles[ 1 ] ) );
+		Assert.assertNotNull( batchCache.get( otherChannelTile ) );
+
+		batchCache.put( tiles[ 2 ], ArrayImgs.unsignedShorts( 2, 2 ) );
+		batchCache.release( second );
+		Assert.assertEquals( 0, batchCache.getNumCachedImages() );
+
+		// the images of the tiles that are no longer used by the batch are not kept
+		batchCache.put( tiles[ 0 ], ArrayImgs.unsignedShorts( 2, 2 ) );
+		Assert.assertEquals( 0, batchCache.getNumCachedImages() );
+	}
+
+	@Test
+	public void testCopyUnsignedLongBlock()
+	{
+		final long[] blockData = new long[] { 0, 12345, Long.MAX_VALUE, Long.MIN_VALUE, -1 };
+		final Interval region = new FinalInterval( new long[] { 0, 0 }, new long[] { 4, 0 } );
+
+		final float[] unsignedTarget = new float[ blockData.length ];
+		TileOverlapLoader.copyBlock( new LongArrayDataBlock( new int[] { 5, 1 }, new long[] { 0, 0 }, blockData ), DataType.UINT64, new int[] { 5, 1 }, region, Intervals.dimensionsAsLongArray( region ), unsignedTarget );
+		Assert.assertArrayEquals( new float[] { 0, 12345, 0x1p63f, 0x1p63f, 0x1p64f }, unsignedTarget, 0 );
+
+		final float[] signedTarget = new float[ blockData.length ];
+		TileOverlapLoader.copyBlock( new LongArrayDataBlock( new int[] { 5, 1 }, new long[] { 0, 0 }, blockData ), DataType.INT64, new int[] { 5, 1 }, region, Intervals.dimensionsAsLongArray( region ), signedTarget );
+		Assert.assertArrayEquals( new float[] { 0, 12345, 0x1p63f, -0x1p63f, -1 }, signedTarget, 0 );
+
+		// the conversion is rounded to the nearest float in the same way as for the values that fit into a signed long
+		for ( final long value : new long[] { 0x8000_0080_0000_0001L, 0x8000_0080_0000_0000L, 0xffff_ff7f_ffff_ffffL } )
+			Assert.assertEquals( new BigDecimal( Long.toUnsignedString( value ) ).floatValue(), TileOverlapLoader.unsignedLongToFloat( value ), 0 );
+	}
+
+	@Test( expected = IOException.class )
+	public void testTypeMismatch() throws IOException
+	{
+		tile.setType( ImageType.GRAY32 );
+		TileOverlapLoader.loadRegion( tile, new FinalInterval( TILE_SIZE ), dataProvider );
+	}
+
+	@Test( expected = IOException.class )
+	public void testSizeMismatch() throws IOException
+	{
+		tile.setSize( new long[] { 37, 29, 12 } );
+		TileOverlapLoader.loadRegion( tile, new FinalInterval( TILE_SIZE ), dataProvider );
+	}
+
+	@Test( expected = IOException.class )
+	public void testMissingImage() throws IOException
+	{
+		tile.setFilePath( Paths.get( n5Path, "ch0", "tile1" ).toString() );
+		TileOverlapLoader.loadRegion( tile, new FinalInterval( TILE_SIZE ), dataProvider );
+	}
+
+	private static < T extends RealType< T > > void assertRegionEquals( final RandomAccessibleInterval< T > expected, final float[] actual )
+	{
+		Assert.assertEquals( Intervals.numElements( expected ), actual.length );
+		final Cursor< T > cursor = Views.flatIterable( expected ).cursor();
+		for ( int i = 0; i < actual.length; ++i )
+			Assert.assertEquals( cursor.next().getRealFloat(), actual[ i ], 0 );
+	}
+}
@@ -0,0 +1,106 @@
+package org.janelia.stitching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TilePairPartitionerTest
+{
+	@Test
+	public void testZOrderIndex()
+	{
+		Assert.assertEquals( 0, TilePairPartitioner.getZOrderIndex( new long[] { 0, 0 } ) );
+		Assert.assertEquals( 1, TilePairPartitioner.getZOrderIndex( new long[] { 1, 0 } ) );
+		Assert.assertEquals( 2, TilePairPartitioner.getZOrderIndex( new long[] { 0, 1 } ) );
+		Assert.assertEquals( 3, TilePairPartitioner.getZOrderIndex( new long[] { 1, 1 } ) );
+		Assert.assertEquals( 4, TilePairPartitioner.getZOrderIndex( new long[] { 2, 0 } ) );
+
+		Assert.assertEquals( 7, TilePairPartitioner.getZOrderIndex( new long[] { 1, 1, 1 } ) );
+		Assert.assertEquals( 56, TilePairPartitioner.getZOrderIndex( new long[] { 2, 2, 2 } ) );
+	}
+
+	@Test
+	public void testBatches()
+	{
+		final List< TileInfo > tiles = new ArrayList<>();
+		for ( int z = 0; z < 3; ++z )
+		{
+			for ( int y = 0; y < 5; ++y )
+			{
+				for ( int x = 0; x < 7; ++x )
+				{
+					final TileInfo tile = new TileInfo( 3 );
+					tile.setIndex( tiles.size() );
+					tile.setPosition( new double[] { x * 90, y * 90, z * 45 } );
+					tile.setSize( new long[] { 100, 100, 50 } );
+					tiles.add( tile );
+				}
+			}
+		}
+
+		final List< TilePair > pairs = TileOperations.findOverlappingTiles( tiles.toArray( new TileInfo[ 0 ] ) );
+		final int batchSize = 7;
+		final List< List< TilePair > > batches = TilePairPartitioner.partitionIntoBatches( pairs, batchSize );
+
+		Assert.assertEquals( ( pairs.size() + batchSize - 1 ) / batchSize, batches.size() );
+
+		final Set< String > seenPairs = new HashSet<>();
+		for ( final List< TilePair > batch : batches )
+		{
+			Assert.assertTrue( batch.size() > 0 && batch.size() <= batchSize );
+			for ( final TilePair pair : batch )
+				Assert.assertTrue( seenPairs.add( pair.toString() ) );
+		}
+		Assert.assertEquals( pairs.size(), seenPairs.size() );
+
+		// the batches of indexes refer to the same pairs, and each index is used exactly once
+		final List< List< Integer > > indexesBatches = TilePairPartitioner.partitionIndexesIntoBatches( pairs, batchSize );
+		Assert.assertEquals( batches.size(), indexesBatches.size() );
+		final boolean[] seenIndexes = new boolean[ pairs.size() ];
+		for ( int i = 0; i < batches.size(); ++i )
+		{
+			Assert.assertEquals( batches.get( i ).size(), indexesBatches.get( i ).size() );
+			for ( int j = 0; j < batches.get( i ).size(); ++j )
+			{
+				final int pairIndex = indexesBatches.get( i ).get( j );
+				Assert.assertSame( pairs.get( pairIndex ), batches.get( i ).get( j ) );
+				Assert.assertFalse( seenIndexes[ pairIndex ] );
+				seenIndexes[ pairIndex ] = true;
+			}
+		}
+
+		// pairs of the same batch share their tiles: a batch of 7 pairs touches up to 14 tiles,
+		// which is close to what the batches of randomly ordered pairs touch on average
+		final List< TilePair > shuffledPairs = new ArrayList<>( pairs );
+		Collections.shuffle( shuffledPairs, new Random( 29 ) );
+		final List< List< TilePair > > shuffledBatches = new ArrayList<>();
+		for ( int i = 0; i < shuffledPairs.size(); i += batchSize )
+			shuffledBatches.add( shuffledPairs.subList( i, Math.min( i + batchSize, shuffledPairs.size() ) ) );
+
+		int totalBatchTiles = 0, totalShuffledBatchTiles = 0;
+		for ( final List< TilePair > batch : batches )
+		{
+			final int batchTiles = countDistinctTiles( batch );
+			Assert.assertTrue( "batch touches " + batchTiles + " tiles", batchTiles <= 2 * batchSize - 3 );
+			totalBatchTiles += batchTiles;
+		}
+		for ( final List< TilePair > batch : shuffledBatches )
+			totalShuffledBatchTiles += countDistinctTiles( batch );
+		Assert.assertTrue( totalBatchTiles + " vs " + totalShuffledBatchTiles, totalBatchTiles < 0.7 * totalShuffledBatchTiles );
+	}
+
+	private static int countDistinctTiles( final List< TilePair > batch )
+	{
+		final Set< Integer > tileIndexes = new HashSet<>();
+		for ( final TilePair pair : batch )
+			for ( final TileInfo tile : pair.toArray() )
+				tileIndexes.add( tile.getIndex() );
+		return tileIndexes.size();
+	}
+}
@@ -0,0 +1,69 @@
+package org.janelia.stitching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TileSpatialIndexTest
+{
+	private static TileInfo[] createRandomTiles( final int count, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final TileInfo[] tiles = new TileInfo[ count ];
+		for ( int i = 0; i < count; ++i )
+		{
+			tiles[ i ] = new TileInfo( 3 );
+			tiles[ i ].setIndex( i );
+			tiles[ i ].setPosition( new double[] { rnd.nextDouble() * 2000 - 500, rnd.nextDouble() * 2000, rnd.nextDouble() * 500 } );
+			tiles[ i ].setSize( new long[] { 50 + rnd.nextInt( 100 ), 50 + rnd.nextInt( 100 ), 20 + rnd.nextInt( 50 ) } );
+		}
+		return tiles;
+	}
+
+	@Test
+	public void testOverlappingPairs()
+	{
+		final TileInfo[] tiles = createRandomTiles( 500, 42 );
+
+		final List< String > expected = new ArrayList<>();
+		for ( int i = 0; i < tiles.length; ++i )
+			for ( int j = i + 1; j < tiles.length; ++j )
+				if ( TileOperations.overlap( tiles[ i ], tiles[ j ] ) )
+					expected.add( new TilePair( tiles[ i ], tiles[ j ] ).toString() );
+
+		final List< String > actual = new ArrayList<>();
+		for ( final TilePair pair : TileOperations.findOverlappingTiles( new TileSpatialIndex( tiles ) ) )
+			actual.add( pair.toString() );
+
+		Assert.assertFalse( expected.isEmpty() );
+		Assert.assertEquals( expected, actual );
+	}
+
+	@Test
+	public void testSubregionQueries()
+	{
+		final TileInfo[] tiles = createRandomTiles( 300, 7 );
+		final TileSpatialIndex index = new TileSpatialIndex( tiles );
+
+		final TileInfo[] subregions = createRandomTiles( 50, 13 );
+		for ( final TileInfo subregion : subregions )
+			Assert.assertEquals( TileOperations.findTilesWithinSubregion( tiles, subregion ), index.findOverlapping( subregion ) );
+
+		for ( final TileInfo tile : tiles )
+		{
+			final double[] point = new double[] { tile.getPosition( 0 ), tile.getPosition( 1 ), tile.getPosition( 2 ) };
+			Assert.assertTrue( index.findContaining( point ).contains( tile ) );
+			Assert.assertTrue( index.findContained( tile ).contains( tile ) );
+		}
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		final TileSpatialIndex index = new TileSpatialIndex( new TileInfo[ 0 ] );
+		Assert.assertTrue( TileOperations.findOverlappingTiles( index ).isEmpty() );
+	}
+}
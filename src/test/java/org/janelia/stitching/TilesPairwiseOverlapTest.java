@@ -1,5 +1,9 @@
 package org.janelia.stitching;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -106,4 +110,33 @@ public class TilesPairwiseOverlapTest {
 		Assert.assertNull( TileOperations.getOverlappingRegion( t1, t2 ) );
 		Assert.assertNull( TileOperations.getOverlappingRegion( t2, t1 ) );
 	}
+
+	@Test
+	public void testFindOverlappingTilesOrder()
+	{
+		final Random rnd = new Random( 1 );
+		final TileInfo[] tiles = new TileInfo[ 1000 ];
+		for ( int i = 0; i < tiles.length; i++ )
+		{
+			tiles[ i ] = new TileInfo( 3 );
+			tiles[ i ].setIndex( i );
+			tiles[ i ].setPosition( new double[] { rnd.nextDouble() * 3000 - 1000, rnd.nextDouble() * 1000, rnd.nextInt( 300 ) } );
+			tiles[ i ].setSize( new long[] { 1 + rnd.nextInt( 200 ), 1 + rnd.nextInt( 200 ), 1 + rnd.nextInt( 100 ) } );
+		}
+
+		final List< String > expected = new ArrayList<>();
+		for ( int i = 0; i < tiles.length; i++ )
+			for ( int j = i + 1; j < tiles.length; j++ )
+				if ( TileOperations.overlap( tiles[ i ], tiles[ j ] ) )
+					expected.add( new TilePair( tiles[ i ], tiles[ j ] ).toString() );
+		Assert.assertFalse( expected.isEmpty() );
+
+		for ( final boolean parallel : new boolean[] { false, true } )
+		{
+			final List< String > actual = new ArrayList<>();
+			for ( final TilePair pair : TileOperations.findOverlappingTiles( tiles, parallel ) )
+				actual.add( pair.toString() );
+			Assert.assertEquals( expected, actual );
+		}
+	}
 }
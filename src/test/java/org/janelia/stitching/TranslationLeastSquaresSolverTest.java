@@ -0,0 +1,119 @@
+package org.janelia.stitching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TranslationLeastSquaresSolverTest
+{
+	private static final double EPSILON = 1e-6;
+
+	@Test
+	public void testConsistentOffsets()
+	{
+		final Random rnd = new Random( 3 );
+		final int gridSize = 20;
+		final double[][] truePositions = new double[ gridSize * gridSize ][];
+		for ( int i = 0; i < truePositions.length; ++i )
+			truePositions[ i ] = new double[] { ( i % gridSize ) * 90 + rnd.nextGaussian() * 5, ( i / gridSize ) * 90 + rnd.nextGaussian() * 5, rnd.nextGaussian() * 5 };
+
+		final TranslationLeastSquaresSolver solver = new TranslationLeastSquaresSolver( truePositions.length, 3 );
+		for ( final int[] edge : createGridEdges( gridSize ) )
+			solver.addConstraint( edge[ 0 ], edge[ 1 ], getOffset( truePositions, edge[ 0 ], edge[ 1 ] ), 0.5 + rnd.nextDouble() );
+
+		final double[][] initialPositions = new double[ truePositions.length ][ 3 ];
+		initialPositions[ 0 ] = truePositions[ 0 ].clone();
+		solver.fixTile( 0 );
+
+		final double[][] positions = solver.solve( initialPositions );
+		for ( int i = 0; i < truePositions.length; ++i )
+			Assert.assertArrayEquals( truePositions[ i ], positions[ i ], EPSILON );
+	}
+
+	@Test
+	public void testNoisyOffsets()
+	{
+		final Random rnd = new Random( 5 );
+		final int gridSize = 4, numTiles = gridSize * gridSize;
+		final List< int[] > edges = createGridEdges( gridSize );
+		final double[] offsets = new double[ edges.size() ], weights = new double[ edges.size() ];
+
+		final TranslationLeastSquaresSolver solver = new TranslationLeastSquaresSolver( numTiles, 1 );
+		for ( int e = 0; e < edges.size(); ++e )
+		{
+			offsets[ e ] = 100 + rnd.nextGaussian() * 10;
+			weights[ e ] = 0.1 + rnd.nextDouble();
+			solver.addConstraint( edges.get( e )[ 0 ], edges.get( e )[ 1 ], new double[] { offsets[ e ] }, weights[ e ] );
+		}
+		solver.fixTile( 0 );
+		final double[][] positions = solver.solve( new double[ numTiles ][ 1 ] );
+
+		// solve the normal equations for the free tiles directly
+		final double[][] a = new double[ numTiles - 1 ][ numTiles ];
+		for ( int e = 0; e < edges.size(); ++e )
+		{
+			final int from = edges.get( e )[ 0 ], to = edges.get( e )[ 1 ];
+			if ( from != 0 ) { a[ from - 1 ][ from - 1 ] += weights[ e ]; a[ from - 1 ][ numTiles - 1 ] -= weights[ e ] * offsets[ e ]; }
+			if ( to != 0 ) { a[ to - 1 ][ to - 1 ] += weights[ e ]; a[ to - 1 ][ numTiles - 1 ] += weights[ e ] * offsets[ e ]; }
+			if ( from != 0 && to != 0 ) { a[ from - 1 ][ to - 1 ] -= weights[ e ]; a[ to - 1 ][ from - 1 ] -= weights[ e ]; }
+		}
+		final double[] expected = solveGaussian( a );
+
+		Assert.assertEquals( 0, positions[ 0 ][ 0 ], EPSILON );
+		for ( int i = 1; i < numTiles; ++i )
+			Assert.assertEquals( expected[ i - 1 ], positions[ i ][ 0 ], EPSILON );
+	}
+
+	private static List< int[] > createGridEdges( final int gridSize )
+	{
+		final List< int[] > edges = new ArrayList<>();
+		for ( int y = 0; y < gridSize; ++y )
+		{
+			for ( int x = 0; x < gridSize; ++x )
+			{
+				if ( x + 1 < gridSize )
+					edges.add( new int[] { y * gridSize + x, y * gridSize + x + 1 } );
+				if ( y + 1 < gridSize )
+					edges.add( new int[] { y * gridSize + x, ( y + 1 ) * gridSize + x } );
+			}
+		}
+		return edges;
+	}
+
+	private static double[] getOffset( final double[][] positions, final int from, final int to )
+	{
+		final double[] offset = new double[ positions[ from ].length ];
+		for ( int d = 0; d < offset.length; ++d )
+			offset[ d ] = positions[ to ][ d ] - positions[ from ][ d ];
+		return offset;
+	}
+
+	/**
+	 * Solves the linear system given as the augmented matrix.
+	 */
+	private static double[] solveGaussian( final double[][] a )
+	{
+		final int n = a.length;
+		for ( int col = 0; col < n; ++col )
+		{
+			for ( int row = col + 1; row < n; ++row )
+			{
+				final double factor = a[ row ][ col ] / a[ col ][ col ];
+				for ( int k = col; k <= n; ++k )
+					a[ row ][ k ] -= factor * a[ col ][ k ];
+			}
+		}
+		final double[] x = new double[ n ];
+		for ( int row = n - 1; row >= 0; --row )
+		{
+			double sum = a[ row ][ n ];
+			for ( int k = row + 1; k < n; ++k )
+				sum -= a[ row ][ k ] * x[ k ];
+			x[ row ] = sum / a[ row ][ row ];
+		}
+		return x;
+	}
+}